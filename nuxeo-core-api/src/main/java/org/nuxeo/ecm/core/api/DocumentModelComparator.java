@@ -74,6 +74,20 @@ public class DocumentModelComparator implements Sorter {
         this(null, orderBy);
     }
 
+    /**
+     * Gets the schema name, or {@code null} if the keys are property names.
+     */
+    public String getSchemaName() {
+        return schemaName;
+    }
+
+    /**
+     * Gets the map of field or property names to "asc" or "desc".
+     */
+    public Map<String, String> getOrderBy() {
+        return orderBy;
+    }
+
     protected int compare(Object v1, Object v2, boolean asc) {
         if (v1 == null && v2 == null) {
             return 0;
@@ -31,10 +31,17 @@ import java.util.List;
  */
 public interface DocumentModelList extends List<DocumentModel>, Serializable {
 
+    /**
+     * Total size returned when the matching documents were counted only up to
+     * the limit configured for the repository: there are more documents than
+     * that limit, but how many is unknown.
+     */
+    long TOTAL_SIZE_OVER_LIMIT = -2;
+
     /**
      * Returns the total size of the bigger list this is a part of.
      *
-     * @return the total size
+     * @return the total size, or {@link #TOTAL_SIZE_OVER_LIMIT}
      */
     long totalSize();
 
@@ -0,0 +1,801 @@
+/*
+ * (C) Copyright 2009 Nuxeo SAS (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Florent Guillaume
+ */
+
+package org.nuxeo.ecm.core.api.model.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutput;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.model.Property;
+import org.nuxeo.ecm.core.api.model.PropertyException;
+import org.nuxeo.ecm.core.api.model.PropertyFactory;
+import org.nuxeo.ecm.core.schema.SchemaManager;
+import org.nuxeo.ecm.core.schema.types.ComplexType;
+import org.nuxeo.ecm.core.schema.types.Field;
+import org.nuxeo.ecm.core.schema.types.ListType;
+import org.nuxeo.ecm.core.schema.types.Schema;
+import org.nuxeo.ecm.core.schema.types.Type;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * Schema-aware binary serialization of document parts.
+ * <p>
+ * Instead of the property names, the index of the property field in its
+ * parent type is written, the fields being sorted by name. Strings, numbers,
+ * booleans, dates, and arrays or lists of them are written without Java
+ * serialization, other values (blobs for instance) are written as objects.
+ * As the indexes are only meaningful if both sides have the same schemas, the
+ * part starts with a fingerprint of its schema, the number of fields of all
+ * its types and a checksum of their names, and reading a part whose schema
+ * differs fails instead of assigning the values to the wrong fields.
+ * <p>
+ * The format used to serialize a {@link DocumentPartImpl} depends on the
+ * transport for which the current thread serializes, set by
+ * {@link #setTransport}. The format of a transport is given by the runtime
+ * property {@value #FORMAT_PROPERTY} suffixed by a dot and the transport
+ * name, otherwise by the property itself, otherwise it is
+ * {@link Format#JAVA}.
+ * <p>
+ * The {@link Format#JAVA} format keeps the historical stream layout, so it
+ * stays compatible with peers not knowing the other formats. The other
+ * formats start with the {@link Format} object, which distinguishes them from
+ * the historical layout starting with the schema name: reading does not
+ * depend on the configuration, but both peers must know these formats. In the
+ * compressed format only the primitive data is deflated, the objects are
+ * written after it directly to the serialization stream, so that they are
+ * resolved by this stream as for the other formats.
+ * <p>
+ * The field arrays of the types and the schema fingerprints are cached, the cache being cleared when a
+ * new instance of a schema is seen, as happens when the schemas are reloaded.
+ *
+ * @author Florent Guillaume
+ */
+public class DocumentPartCodec {
+
+    private static final Log log = LogFactory.getLog(DocumentPartCodec.class);
+
+    public static final String FORMAT_PROPERTY = "org.nuxeo.ecm.core.api.serialization.format";
+
+    /**
+     * The transport used when none is set, in particular for remote calls.
+     */
+    public static final String DEFAULT_TRANSPORT = "default";
+
+    /** The transport used by the event bundles forwarded to JMS. */
+    public static final String JMS_TRANSPORT = "jms";
+
+    /**
+     * The serialization formats. Except for {@link #JAVA}, the format is
+     * written at the start of the stream.
+     */
+    public enum Format {
+
+        /** Java serialization of the property names and values. */
+        JAVA("java"),
+
+        /** Field indexes and unboxed values. */
+        BINARY("binary"),
+
+        /** The binary format, deflated. */
+        COMPRESSED("compressed");
+
+        private final String value;
+
+        Format(String value) {
+            this.value = value;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        public static Format fromString(String value) {
+            for (Format e : values()) {
+                if (e.value.equals(value)) {
+                    return e;
+                }
+            }
+            throw new IllegalArgumentException(value);
+        }
+    }
+
+    // value tags
+
+    protected static final int NULL = 0;
+
+    protected static final int STRING = 1;
+
+    protected static final int LONG = 2;
+
+    protected static final int INTEGER = 3;
+
+    protected static final int DOUBLE = 4;
+
+    protected static final int TRUE = 5;
+
+    protected static final int FALSE = 6;
+
+    protected static final int CALENDAR = 7;
+
+    protected static final int DATE = 8;
+
+    protected static final int LONG_ARRAY = 9;
+
+    protected static final int INT_ARRAY = 10;
+
+    protected static final int DOUBLE_ARRAY = 11;
+
+    protected static final int BOOLEAN_ARRAY = 12;
+
+    protected static final int ARRAY = 13;
+
+    protected static final int LIST = 14;
+
+    protected static final int OBJECT = 15;
+
+    /** The component types of the arrays written with an {@link #ARRAY} tag. */
+    protected static final Class<?>[] ARRAY_TYPES = { String.class,
+            Long.class, Integer.class, Double.class, Boolean.class,
+            Calendar.class, Date.class, Object.class };
+
+    protected static final Comparator<Field> FIELD_ORDER = new Comparator<Field>() {
+        public int compare(Field f1, Field f2) {
+            return f1.getName().getPrefixedName().compareTo(
+                    f2.getName().getPrefixedName());
+        }
+    };
+
+    private static final ThreadLocal<String> currentTransport = new ThreadLocal<String>();
+
+    private static final Map<String, Format> formats = new ConcurrentHashMap<String, Format>();
+
+    private static final Map<ComplexType, Field[]> typeFields = new ConcurrentHashMap<ComplexType, Field[]>();
+
+    private static final Map<Schema, Fingerprint> fingerprints = new ConcurrentHashMap<Schema, Fingerprint>();
+
+    /** The schema instances seen, to detect a reload. */
+    private static final Map<String, Schema> schemas = new ConcurrentHashMap<String, Schema>();
+
+    private DocumentPartCodec() {
+    }
+
+    /**
+     * Sets the transport for which the current thread serializes.
+     *
+     * @param transport the transport, or {@code null} for the default one
+     * @return the previous transport, to be restored afterwards
+     */
+    public static String setTransport(String transport) {
+        String previous = currentTransport.get();
+        if (transport == null) {
+            currentTransport.remove();
+        } else {
+            currentTransport.set(transport);
+        }
+        return previous;
+    }
+
+    /**
+     * Gets the format to use by the current thread.
+     */
+    public static Format getFormat() {
+        String transport = currentTransport.get();
+        return getFormat(transport == null ? DEFAULT_TRANSPORT : transport);
+    }
+
+    public static Format getFormat(String transport) {
+        Format format = formats.get(transport);
+        if (format == null) {
+            String value = getProperty(FORMAT_PROPERTY + '.' + transport);
+            if (value == null) {
+                value = getProperty(FORMAT_PROPERTY);
+            }
+            format = Format.JAVA;
+            if (value != null) {
+                try {
+                    format = Format.fromString(value);
+                } catch (IllegalArgumentException e) {
+                    log.error("Illegal serialization format: " + value
+                            + ", using default: " + format.getValue());
+                }
+            }
+            formats.put(transport, format);
+        }
+        return format;
+    }
+
+    /**
+     * Sets the format of a transport, overriding the configuration.
+     */
+    public static void setFormat(String transport, Format format) {
+        formats.put(transport, format);
+    }
+
+    /**
+     * Forgets the formats set or read from the configuration.
+     */
+    public static void resetFormats() {
+        formats.clear();
+    }
+
+    protected static String getProperty(String name) {
+        String value = null;
+        if (Framework.getRuntime() != null) {
+            value = Framework.getProperty(name);
+        }
+        return value == null ? System.getProperty(name) : value;
+    }
+
+    /**
+     * Forgets the cached fields of the types, to be called when the schemas
+     * are reloaded. This is also done when a new instance of a known schema
+     * is serialized.
+     */
+    public static void clearCache() {
+        typeFields.clear();
+        fingerprints.clear();
+        schemas.clear();
+    }
+
+    /**
+     * Clears the cache if the schema is not the instance seen before under
+     * its name.
+     */
+    protected static void checkSchema(Schema schema) {
+        Schema previous = schemas.put(schema.getName(), schema);
+        if (previous != null && previous != schema) {
+            log.debug("Schema reloaded: " + schema.getName());
+            typeFields.clear();
+            fingerprints.clear();
+            schemas.clear();
+            schemas.put(schema.getName(), schema);
+        }
+    }
+
+    /**
+     * Writes a part with a format other than {@link Format#JAVA}, after the
+     * format itself.
+     */
+    public static void write(DocumentPartImpl part, ObjectOutputStream out,
+            Format format) throws PropertyException, IOException {
+        out.writeObject(format);
+        if (format != Format.COMPRESSED) {
+            writePart(part, out, null);
+            return;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        List<Object> objects = new ArrayList<Object>();
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            DataOutputStream dout = new DataOutputStream(
+                    new DeflaterOutputStream(bytes, deflater));
+            writePart(part, dout, objects);
+            dout.close();
+        } finally {
+            deflater.end();
+        }
+        out.writeInt(bytes.size());
+        bytes.writeTo(out);
+        for (Object object : objects) {
+            out.writeObject(object);
+        }
+    }
+
+    /**
+     * Reads a part written by {@link #write}, the format having already been
+     * read.
+     */
+    public static void read(DocumentPartImpl part, ObjectInputStream in,
+            Format format) throws ClassNotFoundException, PropertyException,
+            IOException {
+        if (format != Format.COMPRESSED) {
+            readPart(part, in, in);
+            return;
+        }
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        Inflater inflater = new Inflater();
+        try {
+            DataInputStream din = new DataInputStream(new InflaterInputStream(
+                    new ByteArrayInputStream(bytes), inflater));
+            // the objects follow the compressed data in the outer stream
+            readPart(part, din, in);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Writes an object, to the data output itself if no list of objects is
+     * given, otherwise to the list to be written later.
+     */
+    protected static void writeObject(Object object, DataOutput out,
+            List<Object> objects) throws IOException {
+        if (objects == null) {
+            ((ObjectOutput) out).writeObject(object);
+        } else {
+            objects.add(object);
+        }
+    }
+
+    protected static void writePart(DocumentPartImpl part, DataOutput out,
+            List<Object> objects) throws PropertyException, IOException {
+        checkSchema(part.schema);
+        out.writeUTF(part.schema.getName());
+        Fingerprint fingerprint = getFingerprint(part.schema);
+        writeVarInt(out, fingerprint.fieldCount);
+        out.writeInt(fingerprint.checksum);
+        PropertyFactory factory = part.factory;
+        if (factory == DefaultPropertyFactory.getInstance()) {
+            factory = null;
+        }
+        writeObject(factory, out, objects);
+        writeChildren(part, out, objects);
+    }
+
+    protected static void readPart(DocumentPartImpl part, DataInput in,
+            ObjectInput objects) throws ClassNotFoundException,
+            PropertyException, IOException {
+        String schemaName = in.readUTF();
+        Schema schema = Framework.getLocalService(SchemaManager.class).getSchema(
+                schemaName);
+        if (schema == null) {
+            throw new IOException("Unknown schema: " + schemaName);
+        }
+        checkSchema(schema);
+        Fingerprint fingerprint = getFingerprint(schema);
+        int fieldCount = readVarInt(in);
+        int checksum = in.readInt();
+        if (fieldCount != fingerprint.fieldCount
+                || checksum != fingerprint.checksum) {
+            throw new IOException("Schema " + schemaName
+                    + " differs from the one of the writer (" + fieldCount
+                    + " fields instead of " + fingerprint.fieldCount
+                    + " or different names)");
+        }
+        part.schema = schema;
+        PropertyFactory factory = (PropertyFactory) objects.readObject();
+        part.factory = factory == null ? DefaultPropertyFactory.getInstance()
+                : factory;
+        // children are transient so we need to create them explicitely
+        part.children = new Hashtable<String, Property>();
+        readChildren(part, part, in, objects);
+    }
+
+    /**
+     * Gets the fields of a type sorted by name, the index of a field in this
+     * array being written instead of its name.
+     */
+    protected static Field[] getFields(ComplexType type) {
+        Field[] fields = typeFields.get(type);
+        if (fields == null) {
+            Collection<Field> collection = type.getFields();
+            fields = collection.toArray(new Field[collection.size()]);
+            Arrays.sort(fields, FIELD_ORDER);
+            typeFields.put(type, fields);
+        }
+        return fields;
+    }
+
+    /**
+     * The fingerprint of a schema: the number of fields of its types and a
+     * checksum of their names, in the order of the field indexes.
+     */
+    protected static class Fingerprint {
+
+        protected final int fieldCount;
+
+        protected final int checksum;
+
+        protected Fingerprint(int fieldCount, int checksum) {
+            this.fieldCount = fieldCount;
+            this.checksum = checksum;
+        }
+    }
+
+    protected static Fingerprint getFingerprint(Schema schema)
+            throws IOException {
+        Fingerprint fingerprint = fingerprints.get(schema);
+        if (fingerprint == null) {
+            CRC32 crc = new CRC32();
+            int fieldCount = addFields(schema, crc, new HashSet<Type>());
+            fingerprint = new Fingerprint(fieldCount, (int) crc.getValue());
+            fingerprints.put(schema, fingerprint);
+        }
+        return fingerprint;
+    }
+
+    /**
+     * Adds the names of the fields of a type and of its complex field types
+     * to a checksum, each type being visited once.
+     *
+     * @return the number of fields added
+     */
+    protected static int addFields(ComplexType type, CRC32 crc,
+            Set<Type> seen) throws IOException {
+        if (!seen.add(type)) {
+            return 0;
+        }
+        int count = 0;
+        for (Field field : getFields(type)) {
+            crc.update(field.getName().getPrefixedName().getBytes("UTF-8"));
+            crc.update(0);
+            count++;
+            Type fieldType = field.getType();
+            if (fieldType.isListType()) {
+                fieldType = ((ListType) fieldType).getFieldType();
+            }
+            if (fieldType.isComplexType()) {
+                count += addFields((ComplexType) fieldType, crc, seen);
+            }
+        }
+        return count;
+    }
+
+    protected static void writeChildren(ComplexProperty property,
+            DataOutput out, List<Object> objects) throws PropertyException,
+            IOException {
+        Field[] fields = getFields(property.getType());
+        Collection<Property> children = property.getNonPhantomChildren();
+        writeVarInt(out, children.size());
+        for (Property child : children) {
+            int index = Arrays.binarySearch(fields, child.getField(),
+                    FIELD_ORDER);
+            if (index < 0) {
+                throw new IOException("No field " + child.getName()
+                        + " in type " + property.getType().getName());
+            }
+            writeVarInt(out, index);
+            writeProperty(child, out, objects);
+        }
+    }
+
+    protected static void readChildren(DocumentPartImpl part,
+            ComplexProperty parent, DataInput in, ObjectInput objects)
+            throws ClassNotFoundException, PropertyException, IOException {
+        Field[] fields = getFields(parent.getType());
+        int size = readVarInt(in);
+        for (int i = 0; i < size; i++) {
+            int index = readVarInt(in);
+            if (index >= fields.length) {
+                throw new IOException("No field " + index + " in type "
+                        + parent.getType().getName());
+            }
+            Property property = readProperty(part, parent, fields[index],
+                    in, objects);
+            parent.children.put(property.getName(), property);
+        }
+    }
+
+    /**
+     * Writes the flags of a property and the presence of data in a single
+     * integer, then the data, then the value or the children.
+     */
+    protected static void writeProperty(Property property, DataOutput out,
+            List<Object> objects) throws PropertyException, IOException {
+        AbstractProperty ap = (AbstractProperty) property;
+        writeVarInt(out, (ap.flags << 1) | (ap.data == null ? 0 : 1));
+        if (ap.data != null) {
+            writeObject(ap.data, out, objects);
+        }
+        if (!property.isContainer()) {
+            writeValue(property.getValue(), out, objects);
+        } else if (property.isList()) {
+            Collection<Property> children = property.getChildren();
+            writeVarInt(out, children.size());
+            for (Property child : children) {
+                writeProperty(child, out, objects);
+            }
+        } else {
+            writeChildren((ComplexProperty) property, out, objects);
+        }
+    }
+
+    protected static Property readProperty(DocumentPartImpl part,
+            Property parent, Field field, DataInput in, ObjectInput objects)
+            throws ClassNotFoundException, PropertyException, IOException {
+        int header = readVarInt(in);
+        Property property = part.createProperty(parent, field, header >>> 1);
+        if ((header & 1) != 0) {
+            ((AbstractProperty) property).data = objects.readObject();
+        }
+        if (!property.isContainer()) {
+            property.init((Serializable) readValue(in, objects));
+        } else if (property.isList()) {
+            ListProperty list = (ListProperty) property;
+            Field itemField = list.getType().getField();
+            int size = readVarInt(in);
+            for (int i = 0; i < size; i++) {
+                list.children.add(readProperty(part, list, itemField, in,
+                        objects));
+            }
+        } else {
+            readChildren(part, (ComplexProperty) property, in, objects);
+        }
+        return property;
+    }
+
+    protected static void writeValue(Object value, ObjectOutput out)
+            throws IOException {
+        writeValue(value, out, null);
+    }
+
+    protected static void writeValue(Object value, DataOutput out,
+            List<Object> objects) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+        } else if (value instanceof String) {
+            out.writeByte(STRING);
+            writeString(out, (String) value);
+        } else if (value instanceof Long) {
+            out.writeByte(LONG);
+            writeVarLong(out, ((Long) value).longValue());
+        } else if (value instanceof Integer) {
+            out.writeByte(INTEGER);
+            writeVarLong(out, ((Integer) value).intValue());
+        } else if (value instanceof Double) {
+            out.writeByte(DOUBLE);
+            out.writeDouble(((Double) value).doubleValue());
+        } else if (value instanceof Boolean) {
+            out.writeByte(((Boolean) value).booleanValue() ? TRUE : FALSE);
+        } else if (value.getClass() == GregorianCalendar.class) {
+            Calendar calendar = (Calendar) value;
+            out.writeByte(CALENDAR);
+            writeVarLong(out, calendar.getTimeInMillis());
+            out.writeUTF(calendar.getTimeZone().getID());
+        } else if (value.getClass() == Date.class) {
+            out.writeByte(DATE);
+            writeVarLong(out, ((Date) value).getTime());
+        } else if (value instanceof long[]) {
+            long[] array = (long[]) value;
+            out.writeByte(LONG_ARRAY);
+            writeVarInt(out, array.length);
+            for (long v : array) {
+                writeVarLong(out, v);
+            }
+        } else if (value instanceof int[]) {
+            int[] array = (int[]) value;
+            out.writeByte(INT_ARRAY);
+            writeVarInt(out, array.length);
+            for (int v : array) {
+                writeVarLong(out, v);
+            }
+        } else if (value instanceof double[]) {
+            double[] array = (double[]) value;
+            out.writeByte(DOUBLE_ARRAY);
+            writeVarInt(out, array.length);
+            for (double v : array) {
+                out.writeDouble(v);
+            }
+        } else if (value instanceof boolean[]) {
+            boolean[] array = (boolean[]) value;
+            out.writeByte(BOOLEAN_ARRAY);
+            writeVarInt(out, array.length);
+            for (boolean v : array) {
+                out.writeBoolean(v);
+            }
+        } else if (value instanceof Object[]
+                && arrayType(value.getClass().getComponentType()) != -1) {
+            Object[] array = (Object[]) value;
+            out.writeByte(ARRAY);
+            out.writeByte(arrayType(value.getClass().getComponentType()));
+            writeVarInt(out, array.length);
+            for (Object v : array) {
+                writeValue(v, out, objects);
+            }
+        } else if (value.getClass() == ArrayList.class) {
+            List<?> list = (List<?>) value;
+            out.writeByte(LIST);
+            writeVarInt(out, list.size());
+            for (Object v : list) {
+                writeValue(v, out, objects);
+            }
+        } else {
+            out.writeByte(OBJECT);
+            writeObject(value, out, objects);
+        }
+    }
+
+    protected static Object readValue(ObjectInput in)
+            throws ClassNotFoundException, IOException {
+        return readValue(in, in);
+    }
+
+    protected static Object readValue(DataInput in, ObjectInput objects)
+            throws ClassNotFoundException, IOException {
+        int tag = in.readByte();
+        switch (tag) {
+        case NULL:
+            return null;
+        case STRING:
+            return readString(in);
+        case LONG:
+            return Long.valueOf(readVarLong(in));
+        case INTEGER:
+            return Integer.valueOf((int) readVarLong(in));
+        case DOUBLE:
+            return Double.valueOf(in.readDouble());
+        case TRUE:
+            return Boolean.TRUE;
+        case FALSE:
+            return Boolean.FALSE;
+        case CALENDAR:
+            long millis = readVarLong(in);
+            Calendar calendar = new GregorianCalendar(
+                    TimeZone.getTimeZone(in.readUTF()));
+            calendar.setTimeInMillis(millis);
+            return calendar;
+        case DATE:
+            return new Date(readVarLong(in));
+        case LONG_ARRAY: {
+            long[] array = new long[readVarInt(in)];
+            for (int i = 0; i < array.length; i++) {
+                array[i] = readVarLong(in);
+            }
+            return array;
+        }
+        case INT_ARRAY: {
+            int[] array = new int[readVarInt(in)];
+            for (int i = 0; i < array.length; i++) {
+                array[i] = (int) readVarLong(in);
+            }
+            return array;
+        }
+        case DOUBLE_ARRAY: {
+            double[] array = new double[readVarInt(in)];
+            for (int i = 0; i < array.length; i++) {
+                array[i] = in.readDouble();
+            }
+            return array;
+        }
+        case BOOLEAN_ARRAY: {
+            boolean[] array = new boolean[readVarInt(in)];
+            for (int i = 0; i < array.length; i++) {
+                array[i] = in.readBoolean();
+            }
+            return array;
+        }
+        case ARRAY: {
+            Class<?> type = ARRAY_TYPES[in.readByte()];
+            Object[] array = (Object[]) Array.newInstance(type,
+                    readVarInt(in));
+            for (int i = 0; i < array.length; i++) {
+                array[i] = readValue(in, objects);
+            }
+            return array;
+        }
+        case LIST: {
+            int size = readVarInt(in);
+            List<Object> list = new ArrayList<Object>(size);
+            for (int i = 0; i < size; i++) {
+                list.add(readValue(in, objects));
+            }
+            return list;
+        }
+        case OBJECT:
+            return objects.readObject();
+        default:
+            throw new IOException("Invalid value tag: " + tag);
+        }
+    }
+
+    protected static int arrayType(Class<?> componentType) {
+        for (int i = 0; i < ARRAY_TYPES.length; i++) {
+            if (ARRAY_TYPES[i] == componentType) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    protected static void writeString(DataOutput out, String string)
+            throws IOException {
+        byte[] bytes = string.getBytes("UTF-8");
+        writeVarInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+    protected static String readString(DataInput in) throws IOException {
+        byte[] bytes = new byte[readVarInt(in)];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    /**
+     * Writes a positive integer on as few bytes as possible, 7 bits at a
+     * time.
+     */
+    protected static void writeVarInt(DataOutput out, int value)
+            throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    protected static int readVarInt(DataInput in) throws IOException {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in.readByte();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    /**
+     * Writes a long on as few bytes as possible, after a zigzag encoding to
+     * keep small negative values short.
+     */
+    protected static void writeVarLong(DataOutput out, long value)
+            throws IOException {
+        value = (value << 1) ^ (value >> 63);
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    protected static long readVarLong(DataInput in) throws IOException {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+}
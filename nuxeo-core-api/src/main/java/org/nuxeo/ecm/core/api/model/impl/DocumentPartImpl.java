@@ -36,6 +36,7 @@ import org.nuxeo.ecm.core.api.model.PropertyFactory;
 import org.nuxeo.ecm.core.api.model.PropertyRuntimeException;
 import org.nuxeo.ecm.core.api.model.PropertyVisitor;
 import org.nuxeo.ecm.core.api.model.ValueExporter;
+import org.nuxeo.ecm.core.api.model.impl.DocumentPartCodec.Format;
 import org.nuxeo.ecm.core.schema.SchemaManager;
 import org.nuxeo.ecm.core.schema.types.ComplexType;
 import org.nuxeo.ecm.core.schema.types.Field;
@@ -146,7 +147,16 @@ public class DocumentPartImpl extends ComplexProperty implements DocumentPart {
         // always perform the default de-serialization first
         in.defaultReadObject();
         try {
-            deserialize(in);
+            // the historical layout starts with the schema name
+            Object first = in.readObject();
+            if (first instanceof Format) {
+                DocumentPartCodec.read(this, in, (Format) first);
+            } else if (first instanceof String) {
+                deserialize(in, (String) first);
+            } else {
+                throw new IOException("Invalid serialized document part: "
+                        + first);
+            }
         } catch (PropertyException e) {
             IOException ee = new IOException(
                     "failed to deserialize document part " + schema);
@@ -157,8 +167,13 @@ public class DocumentPartImpl extends ComplexProperty implements DocumentPart {
 
     private void writeObject(ObjectOutputStream out) throws IOException {
         out.defaultWriteObject();
+        Format format = DocumentPartCodec.getFormat();
         try {
-            serialize(out);
+            if (format == Format.JAVA) {
+                serialize(out);
+            } else {
+                DocumentPartCodec.write(this, out, format);
+            }
         } catch (PropertyException e) {
             IOException ee = new IOException(
                     "failed to serialize document part " + schema);
@@ -215,7 +230,11 @@ public class DocumentPartImpl extends ComplexProperty implements DocumentPart {
     public void deserialize(ObjectInputStream in)
             throws ClassNotFoundException, IOException, PropertyException {
         // read schema
-        String schemaName = (String) in.readObject();
+        deserialize(in, (String) in.readObject());
+    }
+
+    protected void deserialize(ObjectInputStream in, String schemaName)
+            throws ClassNotFoundException, IOException, PropertyException {
         //schema = TypeService.getSchemaManager().getSchema(schemaName);
         schema = Framework.getLocalService(SchemaManager.class).getSchema(schemaName);
         // read factory
@@ -0,0 +1,368 @@
+/*
+ * (C) Copyright 2009 Nuxeo SAS (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Florent Guillaume
+ */
+
+package org.nuxeo.ecm.core.api.model.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.impl.blob.StringBlob;
+import org.nuxeo.ecm.core.api.model.impl.DocumentPartCodec.Format;
+import org.nuxeo.ecm.core.schema.SchemaManager;
+import org.nuxeo.ecm.core.schema.types.Field;
+import org.nuxeo.ecm.core.schema.types.Schema;
+import org.nuxeo.ecm.core.schema.types.SchemaImpl;
+import org.nuxeo.ecm.core.schema.types.primitives.StringType;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.test.NXRuntimeTestCase;
+
+/**
+ * Round-trip and size tests of the document part serialization formats.
+ *
+ * @author Florent Guillaume
+ */
+public class TestDocumentPartCodec extends NXRuntimeTestCase {
+
+    private static final Log log = LogFactory.getLog(TestDocumentPartCodec.class);
+
+    protected static final int BENCH_PARTS = 1000;
+
+    protected static final int BENCH_AUTHORS = 20;
+
+    protected Schema schema;
+
+    /**
+     * A stream recording the classes it resolves, as containers do to use
+     * their own class loaders.
+     */
+    protected static class RecordingObjectInputStream extends
+            ObjectInputStream {
+
+        protected final List<String> resolved = new ArrayList<String>();
+
+        public RecordingObjectInputStream(InputStream in) throws IOException {
+            super(in);
+        }
+
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc)
+                throws IOException, ClassNotFoundException {
+            resolved.add(desc.getName());
+            return super.resolveClass(desc);
+        }
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        deployBundle("org.nuxeo.ecm.core.schema");
+        deployContrib("org.nuxeo.ecm.core.api.tests",
+                "OSGI-INF/test-propmodel-types-contrib.xml");
+        schema = Framework.getService(SchemaManager.class).getSchema("test");
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        DocumentPartCodec.resetFormats();
+        DocumentPartCodec.clearCache();
+        super.tearDown();
+    }
+
+    protected DocumentPartImpl newPart(int nbAuthors) throws Exception {
+        Map<String, Serializable> map = new HashMap<String, Serializable>();
+        map.put("title", "The title");
+        map.put("creationDate", new GregorianCalendar(2009, 5, 17, 12, 30));
+        map.put("price", Long.valueOf(-42));
+        map.put("keywords", new String[] { "a", "b", null, "été" });
+        ArrayList<String> references = new ArrayList<String>();
+        references.add("ref1");
+        references.add("ref2");
+        map.put("references", references);
+        ArrayList<Map<String, Serializable>> authors = new ArrayList<Map<String, Serializable>>();
+        for (int i = 0; i < nbAuthors; i++) {
+            HashMap<String, Serializable> name = new HashMap<String, Serializable>();
+            name.put("firstName", "John" + i);
+            name.put("lastName", "Doe");
+            HashMap<String, Serializable> author = new HashMap<String, Serializable>();
+            author.put("name", name);
+            author.put("age", Long.valueOf(20 + i));
+            authors.add(author);
+        }
+        map.put("authors", authors);
+        HashMap<String, Serializable> fileName = new HashMap<String, Serializable>();
+        fileName.put("name", "book");
+        fileName.put("extension", "xml");
+        HashMap<String, Serializable> file = new HashMap<String, Serializable>();
+        file.put("fileName", fileName);
+        file.put("blob", new StringBlob("abcdef", "text/plain", "UTF-8"));
+        map.put("file", file);
+        DocumentPartImpl dp = new DocumentPartImpl(schema);
+        dp.setValue(map);
+        return dp;
+    }
+
+    protected static byte[] serialize(DocumentPartImpl dp) throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(baos);
+        out.writeObject(dp);
+        out.close();
+        return baos.toByteArray();
+    }
+
+    protected static DocumentPartImpl deserialize(byte[] bytes)
+            throws Exception {
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(
+                bytes));
+        return (DocumentPartImpl) in.readObject();
+    }
+
+    public void testRoundTrip() throws Exception {
+        for (Format format : Format.values()) {
+            DocumentPartCodec.setFormat(DocumentPartCodec.DEFAULT_TRANSPORT,
+                    format);
+            DocumentPartImpl dp = newPart(3);
+            DocumentPartImpl dp2 = deserialize(serialize(dp));
+            checkSameValues(dp, dp2);
+            assertEquals(format.getValue(), dp.get("title").isDirty(),
+                    dp2.get("title").isDirty());
+        }
+    }
+
+    /**
+     * The java format keeps the historical layout, readable by peers not
+     * knowing the other formats.
+     */
+    public void testJavaLayout() throws Exception {
+        assertEquals(-2959928612693829263L, ObjectStreamClass.lookup(
+                DocumentPartImpl.class).getSerialVersionUID());
+        DocumentPartCodec.setFormat(DocumentPartCodec.DEFAULT_TRANSPORT,
+                Format.JAVA);
+        String java = new String(serialize(newPart(1)), "ISO-8859-1");
+        assertFalse(java.contains(Format.class.getName()));
+        DocumentPartCodec.setFormat(DocumentPartCodec.DEFAULT_TRANSPORT,
+                Format.BINARY);
+        String binary = new String(serialize(newPart(1)), "ISO-8859-1");
+        assertTrue(binary.contains(Format.class.getName()));
+    }
+
+    /**
+     * The objects are resolved by the serialization stream in all formats.
+     */
+    public void testResolveClass() throws Exception {
+        for (Format format : Format.values()) {
+            DocumentPartCodec.setFormat(DocumentPartCodec.DEFAULT_TRANSPORT,
+                    format);
+            DocumentPartImpl dp = newPart(2);
+            RecordingObjectInputStream in = new RecordingObjectInputStream(
+                    new ByteArrayInputStream(serialize(dp)));
+            DocumentPartImpl dp2 = (DocumentPartImpl) in.readObject();
+            checkSameValues(dp, dp2);
+            assertTrue(format.getValue(), in.resolved.contains(
+                    StringBlob.class.getName()));
+        }
+    }
+
+    public void testSchemaReload() throws Exception {
+        Field[] fields = DocumentPartCodec.getFields(schema);
+        assertSame(fields, DocumentPartCodec.getFields(schema));
+        DocumentPartCodec.clearCache();
+        Field[] fields2 = DocumentPartCodec.getFields(schema);
+        assertNotSame(fields, fields2);
+
+        // a new instance of a schema clears the cache
+        DocumentPartCodec.checkSchema(schema);
+        assertSame(fields2, DocumentPartCodec.getFields(schema));
+        DocumentPartCodec.checkSchema(new SchemaImpl(schema.getName()));
+        assertNotSame(fields2, DocumentPartCodec.getFields(schema));
+    }
+
+    /**
+     * A part written with other fields in its schema is rejected instead of
+     * having its values read into the wrong fields.
+     */
+    public void testSchemaMismatch() throws Exception {
+        SchemaManager schemaManager = Framework.getService(SchemaManager.class);
+        // an added field sorting first shifts the indexes of all the others
+        SchemaImpl changed = new SchemaImpl(schema.getName(),
+                schema.getNamespace());
+        changed.addField("aaa", StringType.INSTANCE.getRef());
+        for (Field field : schema.getFields()) {
+            changed.addField(field.getName(), field.getType().getRef());
+        }
+        assertEquals(DocumentPartCodec.getFingerprint(schema).fieldCount + 1,
+                DocumentPartCodec.getFingerprint(changed).fieldCount);
+        for (Format format : Format.values()) {
+            if (format == Format.JAVA) {
+                continue;
+            }
+            DocumentPartCodec.setFormat(DocumentPartCodec.DEFAULT_TRANSPORT,
+                    format);
+            byte[] bytes = serialize(newPart(1));
+            schemaManager.registerSchema(changed);
+            try {
+                deserialize(bytes);
+                fail(format.getValue() + ": schema mismatch not detected");
+            } catch (IOException e) {
+                assertTrue(e.getMessage(), e.getMessage().startsWith(
+                        "Schema test differs"));
+            } finally {
+                schemaManager.registerSchema(schema);
+            }
+            // same schema again
+            checkSameValues(newPart(1), deserialize(bytes));
+        }
+    }
+
+    protected static void checkSameValues(DocumentPartImpl dp,
+            DocumentPartImpl dp2) throws Exception {
+        assertEquals(dp.getSchema(), dp2.getSchema());
+        assertEquals(dp.getValue("title"), dp2.getValue("title"));
+        assertEquals(dp.getValue("creationDate"), dp2.getValue("creationDate"));
+        assertEquals(dp.getValue("price"), dp2.getValue("price"));
+        assertTrue(Arrays.equals((Object[]) dp.getValue("keywords"),
+                (Object[]) dp2.getValue("keywords")));
+        assertEquals(dp.getValue("references"), dp2.getValue("references"));
+        assertEquals(dp.getValue("authors"), dp2.getValue("authors"));
+        assertEquals(dp.getValue("file/fileName"),
+                dp2.getValue("file/fileName"));
+        // blobs are equal only if they are the same object
+        Blob blob = (Blob) dp.getValue("file/blob");
+        Blob blob2 = (Blob) dp2.getValue("file/blob");
+        assertEquals(blob.getString(), blob2.getString());
+        assertEquals(blob.getMimeType(), blob2.getMimeType());
+        assertEquals(blob.getEncoding(), blob2.getEncoding());
+    }
+
+    public void testTransport() throws Exception {
+        DocumentPartCodec.setFormat(DocumentPartCodec.DEFAULT_TRANSPORT,
+                Format.JAVA);
+        DocumentPartCodec.setFormat(DocumentPartCodec.JMS_TRANSPORT,
+                Format.COMPRESSED);
+        assertEquals(Format.JAVA, DocumentPartCodec.getFormat());
+        String previous = DocumentPartCodec.setTransport(DocumentPartCodec.JMS_TRANSPORT);
+        try {
+            assertEquals(Format.COMPRESSED, DocumentPartCodec.getFormat());
+        } finally {
+            DocumentPartCodec.setTransport(previous);
+        }
+        assertEquals(Format.JAVA, DocumentPartCodec.getFormat());
+
+        // unconfigured transports use the global property, then java
+        DocumentPartCodec.resetFormats();
+        assertEquals(Format.JAVA, DocumentPartCodec.getFormat("foo"));
+        DocumentPartCodec.resetFormats();
+        System.setProperty(DocumentPartCodec.FORMAT_PROPERTY, "binary");
+        try {
+            assertEquals(Format.BINARY, DocumentPartCodec.getFormat("foo"));
+        } finally {
+            System.getProperties().remove(DocumentPartCodec.FORMAT_PROPERTY);
+        }
+    }
+
+    public void testValues() throws Exception {
+        Object[] values = { null, "", "abc", Long.valueOf(Long.MIN_VALUE),
+                Long.valueOf(-1), Integer.valueOf(300), Double.valueOf(1.5),
+                Boolean.TRUE, Boolean.FALSE,
+                new GregorianCalendar(2009, 0, 1),
+                new Date(123456789L), new HashMap<String, String>() };
+        for (Object value : values) {
+            assertEquals(value, roundTrip(value));
+        }
+        assertTrue(Arrays.equals(new long[] { 1, -2, 3 },
+                (long[]) roundTrip(new long[] { 1, -2, 3 })));
+        assertTrue(Arrays.equals(new int[] { 1, -2 },
+                (int[]) roundTrip(new int[] { 1, -2 })));
+        assertTrue(Arrays.equals(new double[] { 1.5 },
+                (double[]) roundTrip(new double[] { 1.5 })));
+        assertTrue(Arrays.equals(new boolean[] { true, false },
+                (boolean[]) roundTrip(new boolean[] { true, false })));
+        Long[] longs = { Long.valueOf(1), null };
+        Object result = roundTrip(longs);
+        assertEquals(Long[].class, result.getClass());
+        assertTrue(Arrays.equals(longs, (Long[]) result));
+        List<Object> list = new ArrayList<Object>();
+        list.add("a");
+        list.add(Long.valueOf(2));
+        assertEquals(list, roundTrip(list));
+    }
+
+    protected static Object roundTrip(Object value) throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(baos);
+        DocumentPartCodec.writeValue(value, out);
+        out.close();
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(
+                baos.toByteArray()));
+        return DocumentPartCodec.readValue(in);
+    }
+
+    /**
+     * Compares the size and speed of the formats, one stream per part as for
+     * remote calls. The timings are only logged.
+     */
+    public void testBenchmark() throws Exception {
+        List<DocumentPartImpl> parts = new ArrayList<DocumentPartImpl>(
+                BENCH_PARTS);
+        for (int i = 0; i < BENCH_PARTS; i++) {
+            parts.add(newPart(BENCH_AUTHORS));
+        }
+        Map<Format, Long> sizes = new HashMap<Format, Long>();
+        for (Format format : Format.values()) {
+            DocumentPartCodec.setFormat(DocumentPartCodec.DEFAULT_TRANSPORT,
+                    format);
+            List<byte[]> serialized = new ArrayList<byte[]>(BENCH_PARTS);
+            long size = 0;
+            long t0 = System.nanoTime();
+            for (DocumentPartImpl dp : parts) {
+                byte[] bytes = serialize(dp);
+                size += bytes.length;
+                serialized.add(bytes);
+            }
+            long t1 = System.nanoTime();
+            for (byte[] bytes : serialized) {
+                deserialize(bytes);
+            }
+            long t2 = System.nanoTime();
+            sizes.put(format, Long.valueOf(size));
+            log.info(format.getValue() + ": " + (size / BENCH_PARTS)
+                    + " bytes per part, write " + (t1 - t0) / 1000000
+                    + " ms, read " + (t2 - t1) / 1000000 + " ms for "
+                    + BENCH_PARTS + " parts");
+        }
+        assertTrue(sizes.get(Format.BINARY).longValue() < sizes.get(
+                Format.JAVA).longValue());
+        assertTrue(sizes.get(Format.COMPRESSED).longValue() < sizes.get(
+                Format.BINARY).longValue());
+    }
+
+}
@@ -20,6 +20,7 @@ package org.nuxeo.ecm.core.convert.cache;
 import java.io.File;
 import java.util.Date;
 
+import org.nuxeo.common.utils.FileUtils;
 import org.nuxeo.ecm.core.api.blobholder.BlobHolder;
 import org.nuxeo.ecm.core.convert.api.ConversionService;
 
@@ -32,26 +33,65 @@ import org.nuxeo.ecm.core.convert.api.ConversionService;
  */
 public class ConversionCacheEntry {
 
-    protected Date lastAccessTime;
+    protected volatile Date lastAccessTime;
+    protected long creationTime;
+    protected String converterName;
     protected BlobHolder bh;
     protected boolean persisted = false;
     protected String persistPath;
-    protected long sizeInKB = 0;
+    protected long size = 0;
 
     public ConversionCacheEntry(BlobHolder bh) {
+        this(null, bh);
+    }
+
+    public ConversionCacheEntry(String converterName, BlobHolder bh) {
+        this.converterName = converterName;
         this.bh = bh;
         updateAccessTime();
+        creationTime = lastAccessTime.getTime();
+    }
+
+    /**
+     * Creates an entry for a blob holder already persisted at the given path.
+     */
+    public ConversionCacheEntry(String converterName, String persistPath,
+            Date lastAccessTime) {
+        this.converterName = converterName;
+        this.persistPath = persistPath;
+        this.lastAccessTime = lastAccessTime;
+        File file = new File(persistPath);
+        creationTime = file.lastModified();
+        size = getSize(file);
+        persisted = true;
     }
 
     protected void updateAccessTime() {
         lastAccessTime = new Date();
     }
 
+    protected static long getSize(File file) {
+        if (!file.isDirectory()) {
+            return file.length();
+        }
+        long size = 0;
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                size += getSize(f);
+            }
+        }
+        return size;
+    }
+
     public boolean persist(String basePath) throws Exception {
         if (bh instanceof CachableBlobHolder) {
             CachableBlobHolder cbh = (CachableBlobHolder) bh;
             persistPath = cbh.persist(basePath);
-            sizeInKB = new File(persistPath).length() / 1024;
+            if (persistPath == null) {
+                return false;
+            }
+            size = getSize(new File(persistPath));
             persisted = true;
         }
         bh = null;
@@ -60,13 +100,26 @@ public class ConversionCacheEntry {
 
     public void remove() {
         if (persisted && persistPath != null) {
-            new File(persistPath).delete();
+            new File(persistPath
+                    + ConversionCacheHolder.KEY_FILE_SUFFIX).delete();
+            FileUtils.deleteTree(new File(persistPath));
         }
     }
 
+    /**
+     * Restores the persisted blob holder, or returns {@code null} if it has
+     * been removed from the disk in the meantime.
+     */
     public BlobHolder restore() {
         updateAccessTime();
         if (persisted && persistPath != null) {
+            if (!new File(persistPath).exists()) {
+                return null;
+            }
+            // keep the access time for the index rebuilt after a restart
+            File keyFile = new File(persistPath
+                    + ConversionCacheHolder.KEY_FILE_SUFFIX);
+            keyFile.setLastModified(lastAccessTime.getTime());
             CachableBlobHolder holder = new SimpleCachableBlobHolder();
             holder.load(persistPath);
             return holder;
@@ -75,8 +128,28 @@ public class ConversionCacheEntry {
         }
     }
 
+    public String getPersistPath() {
+        return persistPath;
+    }
+
+    /**
+     * Gets the name of the converter that produced the entry, or {@code null}
+     * if unknown.
+     */
+    public String getConverterName() {
+        return converterName;
+    }
+
+    public long getCreationTime() {
+        return creationTime;
+    }
+
+    public long getDiskSpaceUsage() {
+        return size;
+    }
+
     public long getDiskSpaceUsageInKB() {
-        return sizeInKB;
+        return size / 1024;
     }
 
     public Date getLastAccessedTime() {
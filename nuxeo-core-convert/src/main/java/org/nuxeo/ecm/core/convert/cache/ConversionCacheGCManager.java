@@ -19,20 +19,23 @@
  */
 package org.nuxeo.ecm.core.convert.cache;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Date;
-import java.util.HashMap;
-import java.util.List;
+import java.util.Iterator;
 import java.util.Map;
-import java.util.Set;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.convert.extension.ConverterDescriptor;
 import org.nuxeo.ecm.core.convert.service.ConversionServiceImpl;
 
 /**
  * Manages GC processing to clean up disk cache.
+ * <p>
+ * The disk usage is maintained incrementally by the
+ * {@link ConversionCacheHolder}, so checking it is cheap. Eviction is an
+ * approximate LRU: a cursor cycles over the entries and the least recently
+ * accessed entry of each sample of {@link #SAMPLE_SIZE} entries is removed.
+ * Entries older than the cache TTL of their converter are removed first, and
+ * converters with a cache quota are brought back under it.
  *
  * @author tiry
  */
@@ -41,11 +44,20 @@ public class ConversionCacheGCManager {
     public static final String MAX_DISK_SPACE_USAGE_KEY = "MaxDiskSpaceUsageForCache";
     public static final long MAX_DISK_SPACE_USAGE_KB = 1000;
 
+    /**
+     * The number of entries among which the least recently accessed one is
+     * evicted.
+     */
+    public static final int SAMPLE_SIZE = 16;
+
     private static final Log log = LogFactory.getLog(ConversionCacheGCManager.class);
 
     private static int gcRuns = 0;
     private static int gcCalls = 0;
 
+    /** Cycles over the cache entries so that successive samples differ. */
+    private static Iterator<Map.Entry<String, ConversionCacheEntry>> cursor;
+
     // Utility class.
     private ConversionCacheGCManager() {
     }
@@ -63,26 +75,22 @@ public class ConversionCacheGCManager {
     }
 
     public static long getCacheSizeInKB() {
-        long totalSize = 0;
-        Set<String> cacheKeys = ConversionCacheHolder.getCacheKeys();
-
-        for (String key : cacheKeys) {
-            ConversionCacheEntry cacheEntry = ConversionCacheHolder.getCacheEntry(key);
-            totalSize += cacheEntry.getDiskSpaceUsageInKB();
-        }
-        return totalSize;
+        return ConversionCacheHolder.getCacheSizeInKB();
     }
 
-    public static boolean gcIfNeeded() {
+    public static synchronized boolean gcIfNeeded() {
         gcCalls += 1;
         log.debug("GC Thread awake, see if there is some work to be done");
 
+        boolean done = evictExpired();
+        done |= enforceConverterQuotas();
+
         long totalSize = getCacheSizeInKB();
         long limit = getMaxDiskSpaceUsageKB();
 
         if (totalSize < limit) {
             log.debug("No GC needed, go back to sleep for now");
-            return false;
+            return done;
         }
 
         // do the GC
@@ -94,34 +102,135 @@ public class ConversionCacheGCManager {
         return true;
     }
 
-    public static void doGC(long deltaInKB) {
+    /**
+     * Evicts least recently accessed entries until more than the given volume
+     * has been freed, or the cache is empty.
+     */
+    public static synchronized void doGC(long deltaInKB) {
         gcRuns += 1;
-        Set<String> cacheKeys = ConversionCacheHolder.getCacheKeys();
-
-        Map<Date, String> sortingMap = new HashMap<Date, String>();
+        evict(null, deltaInKB * 1024);
+    }
 
-        for (String key : cacheKeys) {
-            ConversionCacheEntry cacheEntry = ConversionCacheHolder.getCacheEntry(key);
-            sortingMap.put(cacheEntry.getLastAccessedTime(), key);
+    /**
+     * Evicts the entries older than the cache TTL of their converter. As this
+     * walks all the entries, it is only done if some converter has a TTL.
+     */
+    protected static boolean evictExpired() {
+        boolean hasTTL = false;
+        for (String converterName : ConversionCacheHolder.getConverterCacheSizesInKB().keySet()) {
+            ConverterDescriptor desc = ConversionServiceImpl.getConverterDesciptor(converterName);
+            if (desc != null && desc.getCacheTTL() > 0) {
+                hasTTL = true;
+                break;
+            }
         }
+        if (!hasTTL) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        int count = 0;
+        for (Map.Entry<String, ConversionCacheEntry> es : ConversionCacheHolder.getCacheEntries()) {
+            if (ConversionCacheHolder.isExpired(es.getValue(), now)
+                    && ConversionCacheHolder.evictFromCache(es.getKey())) {
+                count++;
+            }
+        }
+        if (count > 0) {
+            log.debug("Evicted " + count + " expired entries");
+        }
+        return count > 0;
+    }
 
-        List<Date> accessTimeList = new ArrayList<Date>();
-        accessTimeList.addAll(sortingMap.keySet());
-        Collections.sort(accessTimeList);
-
-        long deletedVolume = 0;
-        for (Date accessDate : accessTimeList) {
-            ConversionCacheEntry cacheEntry = ConversionCacheHolder.getCacheEntry(sortingMap.get(accessDate));
-
-            long deletePotential = cacheEntry.getDiskSpaceUsageInKB();
+    /**
+     * Evicts the least recently accessed entries of the converters using more
+     * than their cache quota.
+     */
+    protected static boolean enforceConverterQuotas() {
+        boolean done = false;
+        Map<String, Long> sizes = ConversionCacheHolder.getConverterCacheSizesInKB();
+        for (Map.Entry<String, Long> es : sizes.entrySet()) {
+            String converterName = es.getKey();
+            ConverterDescriptor desc = ConversionServiceImpl.getConverterDesciptor(converterName);
+            if (desc == null || desc.getCacheMaxSize() <= 0) {
+                continue;
+            }
+            long deltaInKB = es.getValue().longValue() - desc.getCacheMaxSize();
+            if (deltaInKB > 0) {
+                log.debug("Converter " + converterName + " is " + deltaInKB
+                        + " KB over its cache quota");
+                evict(converterName, deltaInKB * 1024);
+                done = true;
+            }
+        }
+        return done;
+    }
 
-            deletedVolume += deletePotential;
-            ConversionCacheHolder.removeFromCache(sortingMap.get(accessDate));
+    /**
+     * Evicts entries until more than the given number of bytes have been
+     * freed.
+     *
+     * @param converterName only evict entries of this converter, or
+     *            {@code null} for all entries
+     */
+    protected static void evict(String converterName, long delta) {
+        long freed = 0;
+        while (freed <= delta) {
+            long size = evictOne(converterName);
+            if (size < 0) {
+                break;
+            }
+            freed += size;
+        }
+    }
 
-            if (deletedVolume > deltaInKB) {
+    /**
+     * Evicts the least recently accessed entry of a sample.
+     *
+     * @return the freed size in bytes, or {@code -1} if there is nothing left
+     *         to evict
+     */
+    protected static long evictOne(String converterName) {
+        // don't cycle more than once over the entries
+        int max = ConversionCacheHolder.getNbCacheEntries();
+        String victim = null;
+        ConversionCacheEntry victimEntry = null;
+        int sampled = 0;
+        for (int i = 0; i < max && sampled < SAMPLE_SIZE; i++) {
+            Map.Entry<String, ConversionCacheEntry> es = nextEntry();
+            if (es == null) {
                 break;
             }
+            ConversionCacheEntry cce = es.getValue();
+            if (converterName != null
+                    && !converterName.equals(cce.getConverterName())) {
+                continue;
+            }
+            sampled++;
+            if (victimEntry == null
+                    || cce.getLastAccessedTime().before(
+                            victimEntry.getLastAccessedTime())) {
+                victim = es.getKey();
+                victimEntry = cce;
+            }
+        }
+        if (victim == null) {
+            return -1;
+        }
+        if (!ConversionCacheHolder.evictFromCache(victim)) {
+            // removed concurrently
+            return 0;
+        }
+        return victimEntry.getDiskSpaceUsage();
+    }
+
+    protected static Map.Entry<String, ConversionCacheEntry> nextEntry() {
+        if (cursor == null || !cursor.hasNext()) {
+            cursor = ConversionCacheHolder.getCacheEntries().iterator();
+            if (!cursor.hasNext()) {
+                return null;
+            }
         }
+        return cursor.next();
     }
 
 }
@@ -18,12 +18,20 @@
 package org.nuxeo.ecm.core.convert.cache;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -31,31 +39,150 @@ import org.nuxeo.common.utils.Base64;
 import org.nuxeo.common.utils.Path;
 import org.nuxeo.ecm.core.api.blobholder.BlobHolder;
 import org.nuxeo.ecm.core.convert.api.ConversionService;
+import org.nuxeo.ecm.core.convert.extension.ConverterDescriptor;
 import org.nuxeo.ecm.core.convert.service.ConversionServiceImpl;
 
 /**
  * Manager for the cache system of the {@link ConversionService}.
+ * <p>
+ * Lookups don't take any lock. Additions and removals only lock the stripe of
+ * their key, and the blobs are written to disk outside of any global lock.
+ * <p>
+ * Next to each persisted entry a key file holds the cache key of the entry,
+ * so that the index can be rebuilt from the disk after a restart. The
+ * modification time of the key file is the last access time of the entry.
+ * <p>
+ * The disk usage of the cache, globally and per converter, is maintained
+ * incrementally so that checking it doesn't walk the entries.
  *
  * @author tiry
  */
 public class ConversionCacheHolder {
 
-    protected static final Map<String, ConversionCacheEntry> cache = new HashMap<String, ConversionCacheEntry>();
+    /** The suffix of the file holding the cache key of a persisted entry. */
+    public static final String KEY_FILE_SUFFIX = ".key";
 
-    protected static final ReentrantReadWriteLock cacheLock = new ReentrantReadWriteLock();
+    protected static final String TMP_FILE_SUFFIX = ".tmp";
+
+    protected static final int NB_STRIPES = 64;
+
+    protected static final ConcurrentMap<String, ConversionCacheEntry> cache = new ConcurrentHashMap<String, ConversionCacheEntry>();
+
+    /** Serializes the additions and removals of the keys of a stripe. */
+    protected static final Object[] stripes = new Object[NB_STRIPES];
+
+    static {
+        for (int i = 0; i < NB_STRIPES; i++) {
+            stripes[i] = new Object();
+        }
+    }
+
+    protected static final Object indexLock = new Object();
+
+    protected static volatile boolean indexLoaded = false;
 
     private static final Log log = LogFactory.getLog(ConversionCacheHolder.class);
 
     public static int nbSubPathPart = 5;
     public static int subPathPartSize = 2;
-    public static long cacheHits = 0;
+    protected static final AtomicLong cacheHits = new AtomicLong();
+
+    protected static final AtomicLong cacheMisses = new AtomicLong();
+
+    protected static final AtomicLong evictions = new AtomicLong();
+
+    /** The disk usage of the cache, in bytes. */
+    protected static final AtomicLong cacheSize = new AtomicLong();
+
+    /** The disk usage of the cache per converter, in bytes. */
+    protected static final ConcurrentMap<String, AtomicLong> converterCacheSizes = new ConcurrentHashMap<String, AtomicLong>();
 
     public static long getCacheHits() {
-        return cacheHits;
+        return cacheHits.get();
+    }
+
+    public static long getCacheMisses() {
+        return cacheMisses.get();
+    }
+
+    /**
+     * Gets the number of entries removed by the GC or because they expired.
+     */
+    public static long getEvictions() {
+        return evictions.get();
+    }
+
+    public static long getCacheSizeInKB() {
+        loadIndexIfNeeded();
+        return cacheSize.get() / 1024;
+    }
+
+    public static long getCacheSizeInKB(String converterName) {
+        loadIndexIfNeeded();
+        AtomicLong size = converterCacheSizes.get(converterName);
+        return size == null ? 0 : size.get() / 1024;
+    }
+
+    /**
+     * Gets the disk usage of the cache in KB for each converter.
+     */
+    public static Map<String, Long> getConverterCacheSizesInKB() {
+        loadIndexIfNeeded();
+        Map<String, Long> sizes = new HashMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> es : converterCacheSizes.entrySet()) {
+            sizes.put(es.getKey(), Long.valueOf(es.getValue().get() / 1024));
+        }
+        return sizes;
+    }
+
+    /**
+     * Gets the name of the converter from a key computed by
+     * {@link CacheKeyGenerator}.
+     */
+    protected static String getConverterName(String key) {
+        int i = key.indexOf(':');
+        return i < 0 ? key : key.substring(0, i);
+    }
+
+    protected static void updateSize(ConversionCacheEntry cce, int sign) {
+        long delta = sign * cce.getDiskSpaceUsage();
+        cacheSize.addAndGet(delta);
+        String converterName = cce.getConverterName();
+        if (converterName != null) {
+            AtomicLong size = converterCacheSizes.get(converterName);
+            if (size == null) {
+                AtomicLong newSize = new AtomicLong();
+                size = converterCacheSizes.putIfAbsent(converterName, newSize);
+                if (size == null) {
+                    size = newSize;
+                }
+            }
+            size.addAndGet(delta);
+        }
+    }
+
+    /**
+     * Checks if an entry is older than the cache TTL of its converter.
+     */
+    public static boolean isExpired(ConversionCacheEntry cce, long now) {
+        String converterName = cce.getConverterName();
+        if (converterName == null) {
+            return false;
+        }
+        ConverterDescriptor desc = ConversionServiceImpl.getConverterDesciptor(converterName);
+        if (desc == null || desc.getCacheTTL() <= 0) {
+            return false;
+        }
+        return now - cce.getCreationTime() > desc.getCacheTTL() * 1000;
     }
 
     public static int getNbCacheEntries() {
-        return cache.keySet().size();
+        loadIndexIfNeeded();
+        return cache.size();
+    }
+
+    protected static Object getStripe(String key) {
+        return stripes[(key.hashCode() & 0x7fffffff) % NB_STRIPES];
     }
 
     protected static List<String> getSubPathFromKey(String key) {
@@ -95,84 +222,217 @@ public class ConversionCacheHolder {
     }
 
     public static void addToCache(String key, BlobHolder result) {
-        cacheLock.writeLock().lock();
-        try {
+        loadIndexIfNeeded();
+        synchronized (getStripe(key)) {
             doAddToCache(key, result);
-        } finally {
-            cacheLock.writeLock().unlock();
         }
     }
 
     protected static void doAddToCache(String key, BlobHolder result) {
-        ConversionCacheEntry cce = new ConversionCacheEntry(result);
+        if (cache.containsKey(key)) {
+            // computed concurrently by another thread
+            return;
+        }
+        ConversionCacheEntry cce = new ConversionCacheEntry(
+                getConverterName(key), result);
         boolean persisted = false;
 
         try {
             persisted = cce.persist(getCacheEntryPath(key));
+            if (persisted) {
+                writeKeyFile(cce.getPersistPath() + KEY_FILE_SUFFIX, key);
+            }
         } catch (Exception e) {
             log.error("Error while trying to persit cache entry", e);
+            if (persisted) {
+                cce.remove();
+                persisted = false;
+            }
         }
 
         if (persisted) {
             cache.put(key, cce);
+            updateSize(cce, 1);
         }
     }
 
     public static void removeFromCache(String key) {
-        cacheLock.writeLock().lock();
-        try {
+        loadIndexIfNeeded();
+        synchronized (getStripe(key)) {
             doRemoveFromCache(key);
-        } finally {
-            cacheLock.writeLock().unlock();
         }
-
     }
 
-    protected static void doRemoveFromCache(String key) {
-        if (cache.containsKey(key)) {
-            ConversionCacheEntry cce = cache.get(key);
-            cce.remove();
-            cache.remove(key);
+    protected static boolean doRemoveFromCache(String key) {
+        ConversionCacheEntry cce = cache.remove(key);
+        if (cce == null) {
+            return false;
         }
+        updateSize(cce, -1);
+        cce.remove();
+        return true;
     }
 
-    public static ConversionCacheEntry getCacheEntry(String key) {
-        cacheLock.readLock().lock();
-        try {
-            return doGetCacheEntry(key);
-        } finally {
-            cacheLock.readLock().unlock();
+    /**
+     * Removes an entry to free space or because it expired.
+     *
+     * @return {@code true} if the entry was still in the cache
+     */
+    public static boolean evictFromCache(String key) {
+        loadIndexIfNeeded();
+        boolean removed;
+        synchronized (getStripe(key)) {
+            removed = doRemoveFromCache(key);
         }
+        if (removed) {
+            evictions.incrementAndGet();
+        }
+        return removed;
     }
 
-    protected static ConversionCacheEntry doGetCacheEntry(String key) {
+    public static ConversionCacheEntry getCacheEntry(String key) {
+        loadIndexIfNeeded();
         return cache.get(key);
     }
 
     public static BlobHolder getFromCache(String key) {
-        cacheLock.readLock().lock();
-        try {
-            return doGetFromCache(key);
-        } finally {
-            cacheLock.readLock().unlock();
+        loadIndexIfNeeded();
+        ConversionCacheEntry cacheEntry = cache.get(key);
+        if (cacheEntry == null) {
+            cacheMisses.incrementAndGet();
+            return null;
         }
+        if (isExpired(cacheEntry, System.currentTimeMillis())) {
+            evictFromCache(key);
+            cacheMisses.incrementAndGet();
+            return null;
+        }
+        BlobHolder result = cacheEntry.restore();
+        if (result == null) {
+            cacheMisses.incrementAndGet();
+        } else {
+            cacheHits.incrementAndGet();
+        }
+        return result;
     }
 
-    protected static BlobHolder doGetFromCache(String key) {
-        ConversionCacheEntry cacheEntry = cache.get(key);
-        if (cacheEntry != null) {
-            if (cacheHits == Long.MAX_VALUE) {
-                cacheHits = 0;
-            } else {
-                cacheHits += 1;
+    public static Set<String> getCacheKeys() {
+        loadIndexIfNeeded();
+        return cache.keySet();
+    }
+
+    /**
+     * Gets a live view of the cache entries, by key.
+     */
+    public static Set<Map.Entry<String, ConversionCacheEntry>> getCacheEntries() {
+        loadIndexIfNeeded();
+        return cache.entrySet();
+    }
+
+    /**
+     * Forgets the in-memory index, it is rebuilt from the disk on next access.
+     */
+    public static void resetIndex() {
+        synchronized (indexLock) {
+            cache.clear();
+            cacheSize.set(0);
+            converterCacheSizes.clear();
+            indexLoaded = false;
+        }
+    }
+
+    protected static void loadIndexIfNeeded() {
+        if (indexLoaded) {
+            return;
+        }
+        synchronized (indexLock) {
+            if (indexLoaded) {
+                return;
             }
-            return cacheEntry.restore();
+            long t = System.currentTimeMillis();
+            File baseDir = new File(ConversionServiceImpl.getCacheBasePath());
+            loadIndex(baseDir);
+            indexLoaded = true;
+            log.debug("Loaded " + cache.size() + " conversion cache entries in "
+                    + (System.currentTimeMillis() - t) + "ms");
         }
-        return null;
     }
 
-    public static Set<String> getCacheKeys() {
-        return cache.keySet();
+    /**
+     * Registers the persisted entries found under a directory of the cache.
+     * Entries whose key file is missing are incomplete and are ignored.
+     */
+    protected static void loadIndex(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (file.isDirectory()) {
+                if (!new File(dir, name + KEY_FILE_SUFFIX).exists()) {
+                    // a sub path directory, not a multi-blob entry
+                    loadIndex(file);
+                }
+            } else if (name.endsWith(KEY_FILE_SUFFIX)) {
+                File entryFile = new File(dir, name.substring(0, name.length()
+                        - KEY_FILE_SUFFIX.length()));
+                if (!entryFile.exists()) {
+                    file.delete();
+                    continue;
+                }
+                try {
+                    String key = readKeyFile(file);
+                    ConversionCacheEntry cce = new ConversionCacheEntry(
+                            getConverterName(key),
+                            entryFile.getAbsolutePath(),
+                            new Date(file.lastModified()));
+                    if (cache.putIfAbsent(key, cce) == null) {
+                        updateSize(cce, 1);
+                    }
+                } catch (IOException e) {
+                    log.error("Cannot read conversion cache key file: "
+                            + file.getPath(), e);
+                }
+            } else if (name.endsWith(TMP_FILE_SUFFIX)) {
+                file.delete();
+            }
+        }
+    }
+
+    protected static void writeKeyFile(String path, String key)
+            throws IOException {
+        File tmp = new File(path + TMP_FILE_SUFFIX);
+        OutputStream out = new FileOutputStream(tmp);
+        try {
+            out.write(key.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        File file = new File(path);
+        file.delete();
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Cannot rename " + tmp.getPath());
+        }
+    }
+
+    protected static String readKeyFile(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        InputStream in = new FileInputStream(file);
+        try {
+            int off = 0;
+            while (off < bytes.length) {
+                int n = in.read(bytes, off, bytes.length - off);
+                if (n == -1) {
+                    throw new IOException("Truncated file: " + file.getPath());
+                }
+                off += n;
+            }
+        } finally {
+            in.close();
+        }
+        return new String(bytes, "UTF-8");
     }
 
 }
@@ -22,6 +22,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Semaphore;
 
 import org.nuxeo.common.xmap.annotation.XNode;
 import org.nuxeo.common.xmap.annotation.XNodeList;
@@ -69,6 +70,37 @@ public class ConverterDescriptor implements Serializable {
     @XNodeList(value = "conversionSteps/subconverter", type = ArrayList.class, componentType = String.class)
     protected List<String> subConverters = new ArrayList<String>();
 
+    /**
+     * The maximum number of conversions run concurrently by this converter,
+     * {@code 0} for no limit.
+     */
+    @XNode("@maxConcurrency")
+    protected int maxConcurrency;
+
+    /**
+     * The maximum time, in milliseconds, to wait for a conversion slot or for
+     * the same conversion already running in another thread, {@code 0} for no
+     * limit.
+     */
+    @XNode("@timeout")
+    protected long timeout;
+
+    protected transient Semaphore concurrencySemaphore;
+
+    /**
+     * The maximum disk usage, in KB, of the cached results of this converter,
+     * {@code 0} for no limit other than the global one.
+     */
+    @XNode("@cacheMaxSize")
+    protected long cacheMaxSize;
+
+    /**
+     * The time, in seconds, after which the cached results of this converter
+     * expire, {@code 0} for no expiration.
+     */
+    @XNode("@cacheTTL")
+    protected long cacheTTL;
+
     public String getConverterName() {
         return converterName;
     }
@@ -114,6 +146,36 @@ public class ConverterDescriptor implements Serializable {
         return instance;
     }
 
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    public long getTimeout() {
+        return timeout;
+    }
+
+    public long getCacheMaxSize() {
+        return cacheMaxSize;
+    }
+
+    public long getCacheTTL() {
+        return cacheTTL;
+    }
+
+    /**
+     * Gets the semaphore limiting the concurrent conversions, or {@code null}
+     * if there is no limit.
+     */
+    public synchronized Semaphore getConcurrencySemaphore() {
+        if (maxConcurrency <= 0) {
+            return null;
+        }
+        if (concurrencySemaphore == null) {
+            concurrencySemaphore = new Semaphore(maxConcurrency, true);
+        }
+        return concurrencySemaphore;
+    }
+
     public Map<String, String> getParameters() {
         return parameters;
     }
@@ -155,6 +217,21 @@ public class ConverterDescriptor implements Serializable {
         if (other.steps != null && other.steps.size() > 0) {
             steps = other.steps;
         }
+        if (other.maxConcurrency != 0) {
+            synchronized (this) {
+                maxConcurrency = other.maxConcurrency;
+                concurrencySemaphore = null;
+            }
+        }
+        if (other.timeout != 0) {
+            timeout = other.timeout;
+        }
+        if (other.cacheMaxSize != 0) {
+            cacheMaxSize = other.cacheMaxSize;
+        }
+        if (other.cacheTTL != 0) {
+            cacheTTL = other.cacheTTL;
+        }
 
         return this;
     }
@@ -0,0 +1,88 @@
+/*
+ * (C) Copyright 2009 Nuxeo SAS (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Florent Guillaume
+ */
+
+package org.nuxeo.ecm.core.convert.management;
+
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import org.nuxeo.ecm.core.convert.cache.ConversionCacheGCManager;
+import org.nuxeo.ecm.core.convert.cache.ConversionCacheHolder;
+import org.nuxeo.ecm.core.convert.service.ConversionServiceImpl;
+
+/**
+ * An MBean to monitor the conversion cache.
+ *
+ * @author Florent Guillaume
+ */
+public class ConversionCacheStatus implements ConversionCacheStatusMBean {
+
+    public int getNbCacheEntries() {
+        return ConversionCacheHolder.getNbCacheEntries();
+    }
+
+    public long getCacheSizeInKB() {
+        return ConversionCacheHolder.getCacheSizeInKB();
+    }
+
+    public long getMaxCacheSizeInKB() {
+        return ConversionServiceImpl.getMaxCacheSizeInKB();
+    }
+
+    public String listConverterCacheSizes() {
+        Map<String, Long> sizes = new TreeMap<String, Long>(
+                ConversionCacheHolder.getConverterCacheSizesInKB());
+        StringBuilder buf = new StringBuilder();
+        for (Entry<String, Long> es : sizes.entrySet()) {
+            buf.append(es.getKey());
+            buf.append(": ");
+            buf.append(es.getValue());
+            buf.append(" KB\n");
+        }
+        return buf.toString();
+    }
+
+    public long getCacheHits() {
+        return ConversionCacheHolder.getCacheHits();
+    }
+
+    public long getCacheMisses() {
+        return ConversionCacheHolder.getCacheMisses();
+    }
+
+    public long getEvictions() {
+        return ConversionCacheHolder.getEvictions();
+    }
+
+    public int getGCRuns() {
+        return ConversionCacheGCManager.getGCRuns();
+    }
+
+    public long getSavedConversions() {
+        return ConversionServiceImpl.getSavedConversions();
+    }
+
+    public int getInFlightConversions() {
+        return ConversionServiceImpl.getInFlightConversions();
+    }
+
+    public boolean gcIfNeeded() {
+        return ConversionCacheGCManager.gcIfNeeded();
+    }
+
+}
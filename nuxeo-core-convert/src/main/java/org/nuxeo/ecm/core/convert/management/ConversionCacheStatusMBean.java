@@ -0,0 +1,67 @@
+/*
+ * (C) Copyright 2009 Nuxeo SAS (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Florent Guillaume
+ */
+
+package org.nuxeo.ecm.core.convert.management;
+
+/**
+ * @author Florent Guillaume
+ */
+public interface ConversionCacheStatusMBean {
+
+    int getNbCacheEntries();
+
+    /**
+     * Gets the disk usage of the cache, in KB.
+     */
+    long getCacheSizeInKB();
+
+    /**
+     * Gets the configured maximum disk usage of the cache, in KB.
+     */
+    long getMaxCacheSizeInKB();
+
+    /**
+     * Lists the disk usage of the cache for each converter.
+     */
+    String listConverterCacheSizes();
+
+    long getCacheHits();
+
+    long getCacheMisses();
+
+    /**
+     * Gets the number of entries removed to free space or because they
+     * expired.
+     */
+    long getEvictions();
+
+    int getGCRuns();
+
+    /**
+     * Gets the number of conversions avoided because the same conversion was
+     * already running.
+     */
+    long getSavedConversions();
+
+    int getInFlightConversions();
+
+    /**
+     * Runs the GC now if the cache is over its limits.
+     */
+    boolean gcIfNeeded();
+
+}
@@ -22,6 +22,15 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -59,6 +68,15 @@ public class ConversionServiceImpl extends DefaultComponent implements
 
     protected static final GlobalConfigDescriptor config = new GlobalConfigDescriptor();
 
+    /**
+     * The conversions currently running, by cache key. Callers asking for a
+     * conversion already running wait for its result instead of running it
+     * again.
+     */
+    protected static final ConcurrentMap<String, FutureTask<BlobHolder>> inFlightConversions = new ConcurrentHashMap<String, FutureTask<BlobHolder>>();
+
+    protected static final AtomicLong savedConversions = new AtomicLong();
+
     /**
      * Component implementation *
      */
@@ -134,6 +152,21 @@ public class ConversionServiceImpl extends DefaultComponent implements
         return config.getCachingDirectory();
     }
 
+    /**
+     * Gets the number of conversions avoided because the same conversion was
+     * already running and its result was found in the cache.
+     */
+    public static long getSavedConversions() {
+        return savedConversions.get();
+    }
+
+    /**
+     * Gets the number of distinct conversions currently running.
+     */
+    public static int getInFlightConversions() {
+        return inFlightConversions.size();
+    }
+
     /* Service API */
 
     public List<String> getRegistredConverters() {
@@ -166,14 +199,126 @@ public class ConversionServiceImpl extends DefaultComponent implements
 
         if (cachedResult != null) {
             return cachedResult;
-        } else {
-            Converter converter = desc.getConverterInstance();
+        }
+        if (!config.isCacheEnabled()) {
+            // results can't be shared without the cache
+            return doConvert(desc, blobHolder, parameters);
+        }
+
+        FutureTask<BlobHolder> task = new FutureTask<BlobHolder>(
+                new ConversionCall(desc, cacheKey, blobHolder, parameters));
+        FutureTask<BlobHolder> running = inFlightConversions.putIfAbsent(
+                cacheKey, task);
+        if (running == null) {
+            try {
+                task.run();
+            } finally {
+                inFlightConversions.remove(cacheKey, task);
+            }
+            return getResult(task, 0, converterName);
+        }
 
-            BlobHolder result = converter.convert(blobHolder, parameters);
+        // same conversion already running in another thread, wait for it
+        // and get our own copy of its result from the cache
+        getResult(running, desc.getTimeout(), converterName);
+        cachedResult = ConversionCacheHolder.getFromCache(cacheKey);
+        if (cachedResult != null) {
+            savedConversions.incrementAndGet();
+            return cachedResult;
+        }
+        // the result could not be cached, and can't be shared as the holder
+        // is mutable, so convert again
+        return doConvert(desc, blobHolder, parameters);
+    }
+
+    /**
+     * Runs a conversion, waiting for a slot if the converter has a
+     * concurrency limit.
+     */
+    protected static BlobHolder doConvert(ConverterDescriptor desc,
+            BlobHolder blobHolder, Map<String, Serializable> parameters)
+            throws ConversionException {
+        String converterName = desc.getConverterName();
+        Semaphore semaphore = desc.getConcurrencySemaphore();
+        if (semaphore != null) {
+            long timeout = desc.getTimeout();
+            try {
+                if (timeout <= 0) {
+                    semaphore.acquire();
+                } else if (!semaphore.tryAcquire(timeout,
+                        TimeUnit.MILLISECONDS)) {
+                    throw new ConversionException("Timeout after " + timeout
+                            + "ms waiting for converter " + converterName);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ConversionException("Interrupted while waiting for "
+                        + "converter " + converterName, e);
+            }
+        }
+        try {
+            Converter converter = desc.getConverterInstance();
+            return converter.convert(blobHolder, parameters);
+        } finally {
+            if (semaphore != null) {
+                semaphore.release();
+            }
+        }
+    }
 
-            if (config.isCacheEnabled()) {
-                ConversionCacheHolder.addToCache(cacheKey, result);
+    protected static BlobHolder getResult(FutureTask<BlobHolder> task,
+            long timeout, String converterName) throws ConversionException {
+        try {
+            if (timeout <= 0) {
+                return task.get();
+            } else {
+                return task.get(timeout, TimeUnit.MILLISECONDS);
+            }
+        } catch (TimeoutException e) {
+            throw new ConversionException("Timeout after " + timeout
+                    + "ms waiting for running conversion by "
+                    + converterName, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ConversionException("Interrupted while waiting for "
+                    + "running conversion by " + converterName, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ConversionException) {
+                throw (ConversionException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
             }
+            throw new ConversionException("Error during conversion by "
+                    + converterName, (Exception) cause);
+        }
+    }
+
+    /**
+     * A conversion whose result is added to the cache.
+     */
+    protected static class ConversionCall implements Callable<BlobHolder> {
+
+        protected final ConverterDescriptor desc;
+
+        protected final String cacheKey;
+
+        protected final BlobHolder blobHolder;
+
+        protected final Map<String, Serializable> parameters;
+
+        public ConversionCall(ConverterDescriptor desc, String cacheKey,
+                BlobHolder blobHolder, Map<String, Serializable> parameters) {
+            this.desc = desc;
+            this.cacheKey = cacheKey;
+            this.blobHolder = blobHolder;
+            this.parameters = parameters;
+        }
+
+        public BlobHolder call() throws ConversionException {
+            BlobHolder result = doConvert(desc, blobHolder, parameters);
+            ConversionCacheHolder.addToCache(cacheKey, result);
             return result;
         }
     }
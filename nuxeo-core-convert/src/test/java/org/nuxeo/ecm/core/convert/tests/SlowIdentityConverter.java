@@ -0,0 +1,60 @@
+/*
+ * (C) Copyright 2009 Nuxeo SAS (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Florent Guillaume
+ */
+
+package org.nuxeo.ecm.core.convert.tests;
+
+import java.io.Serializable;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.core.api.blobholder.BlobHolder;
+import org.nuxeo.ecm.core.api.blobholder.SimpleBlobHolder;
+import org.nuxeo.ecm.core.convert.api.ConversionException;
+
+/**
+ * Identity converter taking some time, counting its invocations. With the
+ * {@link #UNCACHABLE} parameter, the result can't be cached.
+ *
+ * @author Florent Guillaume
+ */
+public class SlowIdentityConverter extends IdentityConverter {
+
+    public static final String UNCACHABLE = "uncachable";
+
+    public static final AtomicInteger invocations = new AtomicInteger();
+
+    @Override
+    public BlobHolder convert(BlobHolder blobHolder,
+            Map<String, Serializable> parameters) throws ConversionException {
+        invocations.incrementAndGet();
+        try {
+            Thread.sleep(500);
+        } catch (InterruptedException e) {
+            throw new ConversionException("Interrupted", e);
+        }
+        if (parameters != null && parameters.containsKey(UNCACHABLE)) {
+            try {
+                return new SimpleBlobHolder(blobHolder.getBlob());
+            } catch (ClientException e) {
+                throw new ConversionException("Error while getting blob", e);
+            }
+        }
+        return super.convert(blobHolder, parameters);
+    }
+
+}
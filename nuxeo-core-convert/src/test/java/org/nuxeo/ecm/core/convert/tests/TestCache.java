@@ -19,6 +19,12 @@
 package org.nuxeo.ecm.core.convert.tests;
 
 import java.io.File;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.nuxeo.common.utils.FileUtils;
 import org.nuxeo.ecm.core.api.Blob;
@@ -26,6 +32,7 @@ import org.nuxeo.ecm.core.api.blobholder.BlobHolder;
 import org.nuxeo.ecm.core.api.blobholder.SimpleBlobHolder;
 import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
 import org.nuxeo.ecm.core.convert.api.ConversionService;
+import org.nuxeo.ecm.core.convert.cache.CacheKeyGenerator;
 import org.nuxeo.ecm.core.convert.cache.ConversionCacheGCManager;
 import org.nuxeo.ecm.core.convert.cache.ConversionCacheHolder;
 import org.nuxeo.ecm.core.convert.extension.Converter;
@@ -91,4 +98,156 @@ public class TestCache extends NXRuntimeTestCase {
         assertEquals(0, cacheSize3);
     }
 
+    public void testIndexSurvivesRestart() throws Exception {
+        deployContrib("org.nuxeo.ecm.core.convert.tests", "OSGI-INF/converters-test-contrib3.xml");
+        ConversionService cs = Framework.getLocalService(ConversionService.class);
+
+        File file = FileUtils.getResourceFileFromContext("test-data/hello.doc");
+        Blob blob = new FileBlob(file);
+        blob.setFilename("hello.doc");
+        blob.setMimeType("application/msword");
+        BlobHolder bh = new SimpleBlobHolder(blob);
+        String key = CacheKeyGenerator.computeKey("identity", bh, null);
+
+        cs.convert("identity", bh, null);
+        assertNotNull(ConversionCacheHolder.getCacheEntry(key));
+        int cacheSize1 = ConversionCacheHolder.getNbCacheEntries();
+
+        // simulate a restart: the index is rebuilt from the disk
+        ConversionCacheHolder.resetIndex();
+        assertEquals(cacheSize1, ConversionCacheHolder.getNbCacheEntries());
+        assertNotNull(ConversionCacheHolder.getCacheEntry(key));
+
+        long cacheHits1 = ConversionCacheHolder.getCacheHits();
+        BlobHolder result = cs.convert("identity", bh, null);
+        assertNotNull(result);
+        assertEquals(1, ConversionCacheHolder.getCacheHits() - cacheHits1);
+        assertEquals(file.length(), result.getBlob().getLength());
+
+        // a removed entry is not found again
+        ConversionCacheHolder.removeFromCache(key);
+        ConversionCacheHolder.resetIndex();
+        assertNull(ConversionCacheHolder.getCacheEntry(key));
+    }
+
+    public void testSingleFlight() throws Exception {
+        deployContrib("org.nuxeo.ecm.core.convert.tests", "OSGI-INF/converters-test-contrib5.xml");
+        BlobHolder bh = newDocBlobHolder();
+        String key = CacheKeyGenerator.computeKey("slowIdentity", bh, null);
+        ConversionCacheHolder.removeFromCache(key);
+
+        int invocations1 = SlowIdentityConverter.invocations.get();
+        long saved1 = ConversionServiceImpl.getSavedConversions();
+        int n = 5;
+        BlobHolder[] results = convertConcurrently(n, bh, null);
+
+        // the conversion ran only once
+        assertEquals(1, SlowIdentityConverter.invocations.get() - invocations1);
+        assertEquals(n - 1, ConversionServiceImpl.getSavedConversions()
+                - saved1);
+        checkDistinctResults(results);
+        assertEquals(0, ConversionServiceImpl.getInFlightConversions());
+
+        ConversionCacheHolder.removeFromCache(key);
+    }
+
+    public void testSingleFlightUncachable() throws Exception {
+        deployContrib("org.nuxeo.ecm.core.convert.tests", "OSGI-INF/converters-test-contrib5.xml");
+        BlobHolder bh = newDocBlobHolder();
+        Map<String, Serializable> parameters = new HashMap<String, Serializable>();
+        parameters.put(SlowIdentityConverter.UNCACHABLE, Boolean.TRUE);
+
+        int invocations1 = SlowIdentityConverter.invocations.get();
+        long saved1 = ConversionServiceImpl.getSavedConversions();
+        int n = 3;
+        BlobHolder[] results = convertConcurrently(n, bh, parameters);
+
+        // the result is not shared, each thread converted
+        assertEquals(n, SlowIdentityConverter.invocations.get() - invocations1);
+        assertEquals(0, ConversionServiceImpl.getSavedConversions() - saved1);
+        checkDistinctResults(results);
+        assertEquals(0, ConversionServiceImpl.getInFlightConversions());
+    }
+
+    protected static BlobHolder newDocBlobHolder() throws Exception {
+        File file = FileUtils.getResourceFileFromContext("test-data/hello.doc");
+        Blob blob = new FileBlob(file);
+        blob.setFilename("hello.doc");
+        blob.setMimeType("application/msword");
+        return new SimpleBlobHolder(blob);
+    }
+
+    /**
+     * Runs the same slow conversion in several threads at once, rethrowing
+     * the first error of the threads.
+     */
+    protected static BlobHolder[] convertConcurrently(int n,
+            final BlobHolder bh, final Map<String, Serializable> parameters)
+            throws Exception {
+        final ConversionService cs = Framework.getLocalService(ConversionService.class);
+        final BlobHolder[] results = new BlobHolder[n];
+        final List<Exception> errors = Collections.synchronizedList(new ArrayList<Exception>());
+        Thread[] threads = new Thread[n];
+        for (int i = 0; i < n; i++) {
+            final int index = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        results[index] = cs.convert("slowIdentity", bh,
+                                parameters);
+                    } catch (Exception e) {
+                        errors.add(e);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (!errors.isEmpty()) {
+            throw errors.get(0);
+        }
+        return results;
+    }
+
+    /**
+     * Checks that each thread got its own result holder.
+     */
+    protected static void checkDistinctResults(BlobHolder[] results) {
+        for (int i = 0; i < results.length; i++) {
+            assertNotNull(results[i]);
+            for (int j = 0; j < i; j++) {
+                assertNotSame(results[i], results[j]);
+            }
+        }
+    }
+
+    public void testEvictionAccounting() throws Exception {
+        deployContrib("org.nuxeo.ecm.core.convert.tests", "OSGI-INF/converters-test-contrib3.xml");
+        ConversionService cs = Framework.getLocalService(ConversionService.class);
+
+        File file = FileUtils.getResourceFileFromContext("test-data/hello.doc");
+        Blob blob = new FileBlob(file);
+        blob.setFilename("hello.doc");
+        blob.setMimeType("application/msword");
+        BlobHolder bh = new SimpleBlobHolder(blob);
+        String key = CacheKeyGenerator.computeKey("identity", bh, null);
+        ConversionCacheHolder.removeFromCache(key);
+
+        long size1 = ConversionCacheHolder.getCacheSizeInKB("identity");
+        long misses1 = ConversionCacheHolder.getCacheMisses();
+        cs.convert("identity", bh, null);
+        assertEquals(1, ConversionCacheHolder.getCacheMisses() - misses1);
+        assertEquals(file.length() / 1024,
+                ConversionCacheHolder.getCacheSizeInKB("identity") - size1);
+
+        long evictions1 = ConversionCacheHolder.getEvictions();
+        ConversionCacheGCManager.doGC(ConversionCacheHolder.getCacheSizeInKB());
+        assertEquals(0, ConversionCacheHolder.getNbCacheEntries());
+        assertEquals(0, ConversionCacheHolder.getCacheSizeInKB());
+        assertTrue(ConversionCacheHolder.getEvictions() > evictions1);
+    }
+
 }
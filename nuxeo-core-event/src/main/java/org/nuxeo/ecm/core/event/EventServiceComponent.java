@@ -39,6 +39,7 @@ public class EventServiceComponent extends DefaultComponent {
 
     @Override
     public void deactivate(ComponentContext context) throws Exception {
+        service.shutdown();
         service = null;
     }
 
@@ -18,24 +18,36 @@
  */
 package org.nuxeo.ecm.core.event.impl;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.nuxeo.ecm.core.event.EventBundle;
-import org.nuxeo.ecm.core.event.PostCommitEventListener;
 import org.nuxeo.ecm.core.event.ReconnectedEventBundle;
 import org.nuxeo.ecm.core.event.tx.EventBundleTransactionHandler;
 import org.nuxeo.runtime.api.Framework;
 
 /**
  * ThreadPoolExecutor of listeners for event bundles.
+ * <p>
+ * Jobs are executed in the order of the listeners priorities, then in
+ * submission order. So that jobs of low priority listeners are not starved
+ * by a steady flow of higher priority ones, priorities age: each priority
+ * level is worth a fixed wait time, see {@link #DEFAULT_PRIORITY_AGING}, and
+ * a job goes before the jobs submitted after it by more than its priority
+ * difference times this time. Each listener has a bounded number of pending jobs: when
+ * it is reached, the submitting thread blocks, or the bundle is discarded for
+ * this listener, depending on the {@link QueuePolicy}.
  *
  * @author Bogdan Stefanescu
  * @author Thierry Delprat
@@ -45,12 +57,67 @@ public class AsyncEventExecutor {
 
     private static final Log log = LogFactory.getLog(AsyncEventExecutor.class);
 
-    public static final int QUEUE_SIZE = Integer.MAX_VALUE;
+    /** The default maximum number of pending jobs for a listener. */
+    public static final int QUEUE_SIZE = 10000;
+
+    /**
+     * The default wait time, in milliseconds, equivalent to one priority
+     * level.
+     */
+    public static final long DEFAULT_PRIORITY_AGING = 1000;
+
+    /** What to do when a listener queue is full. */
+    public enum QueuePolicy {
+
+        /** Block the submitting thread until the listener catches up. */
+        BLOCK("block"),
+
+        /** Drop the bundle for this listener. */
+        DISCARD("discard");
+
+        private final String value;
+
+        QueuePolicy(String value) {
+            this.value = value;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        public static QueuePolicy fromString(String value) {
+            for (QueuePolicy e : values()) {
+                if (e.value.equals(value)) {
+                    return e;
+                }
+            }
+            throw new IllegalArgumentException(value);
+        }
+    }
+
+    /** Set on the executor threads, which must never block on a full queue. */
+    protected static final ThreadLocal<Boolean> inExecutor = new ThreadLocal<Boolean>();
 
     protected final ThreadPoolExecutor executor;
 
     protected final BlockingQueue<Runnable> queue;
 
+    protected final int poolSize;
+
+    protected final int maxPoolSize;
+
+    protected final int queueSize;
+
+    protected final QueuePolicy queuePolicy;
+
+    protected final long priorityAging;
+
+    protected final Map<String, AsyncListenerStats> stats = new ConcurrentHashMap<String, AsyncListenerStats>();
+
+    protected final AtomicLong sequence = new AtomicLong();
+
+    protected final AtomicInteger unfinished = new AtomicInteger();
+
     public static AsyncEventExecutor create() {
         String val = Framework.getProperty("org.nuxeo.ecm.core.event.async.poolSize");
         int poolSize = val == null ? 4 : Integer.parseInt(val);
@@ -60,40 +127,174 @@ public class AsyncEventExecutor {
         int keepAliveTime = val == null ? 4 : Integer.parseInt(val);
         val = Framework.getProperty("org.nuxeo.ecm.core.event.async.queueSize");
         int queueSize = val == null ? QUEUE_SIZE : Integer.parseInt(val);
+        val = Framework.getProperty("org.nuxeo.ecm.core.event.async.queuePolicy");
+        QueuePolicy queuePolicy = QueuePolicy.BLOCK;
+        if (val != null) {
+            try {
+                queuePolicy = QueuePolicy.fromString(val);
+            } catch (IllegalArgumentException e) {
+                log.error("Illegal async queue policy: " + val
+                        + ", using default: " + queuePolicy.getValue());
+            }
+        }
+        val = Framework.getProperty("org.nuxeo.ecm.core.event.async.priorityAging");
+        long priorityAging = val == null ? DEFAULT_PRIORITY_AGING
+                : Long.parseLong(val);
         return new AsyncEventExecutor(poolSize, maxPoolSize, keepAliveTime,
-                queueSize);
+                queueSize, queuePolicy, priorityAging);
     }
 
     public AsyncEventExecutor(int poolSize, int maxPoolSize, int keepAliveTime,
             int queueSize) {
-        queue = new LinkedBlockingQueue<Runnable>(queueSize);
+        this(poolSize, maxPoolSize, keepAliveTime, queueSize,
+                QueuePolicy.BLOCK);
+    }
+
+    public AsyncEventExecutor(int poolSize, int maxPoolSize, int keepAliveTime,
+            int queueSize, QueuePolicy queuePolicy) {
+        this(poolSize, maxPoolSize, keepAliveTime, queueSize, queuePolicy,
+                DEFAULT_PRIORITY_AGING);
+    }
+
+    /**
+     * @param poolSize the number of threads kept when idle
+     * @param maxPoolSize the maximum number of threads
+     * @param keepAliveTime the time, in seconds, after which threads above
+     *            the pool size are stopped when idle
+     * @param queueSize the maximum number of pending jobs for a listener
+     * @param queuePolicy what to do when a listener queue is full
+     * @param priorityAging the wait time, in milliseconds, equivalent to one
+     *            priority level, {@code 0} to ignore the priorities
+     */
+    public AsyncEventExecutor(int poolSize, int maxPoolSize, int keepAliveTime,
+            int queueSize, QueuePolicy queuePolicy, long priorityAging) {
+        this.poolSize = poolSize;
+        this.maxPoolSize = Math.max(poolSize, maxPoolSize);
+        this.queueSize = queueSize;
+        this.queuePolicy = queuePolicy;
+        this.priorityAging = priorityAging;
+        queue = new PriorityBlockingQueue<Runnable>();
         NamedThreadFactory threadFactory = new NamedThreadFactory("Nuxeo Async Events");
-        executor = new ThreadPoolExecutor(poolSize, maxPoolSize, keepAliveTime,
-                TimeUnit.SECONDS, queue, threadFactory);
+        executor = new ThreadPoolExecutor(poolSize, this.maxPoolSize,
+                keepAliveTime, TimeUnit.SECONDS, queue, threadFactory);
     }
 
     public void run(List<EventListenerDescriptor> listeners, EventBundle event) {
-        // The following avoids incorrect counts, because ThreadPool workers
-        // started normally may be holding on to a firstTask about to start that
-        // isn't accounted for anywhere (getActiveCount doesn't return it).
-        executor.prestartAllCoreThreads();
+        // listeners that only read the documents share one reconnection,
+        // each with its own copies of the documents
+        SharedReconnectedEventBundleImpl sharedBundle = null;
         for (EventListenerDescriptor listener : listeners) {
-            executor.execute(new Job(listener, event));
+            EventBundle bundle = listener.coalesce(event);
+            if (bundle == event && listener.isSharedBundle()
+                    && !(event instanceof ReconnectedEventBundle)) {
+                if (sharedBundle == null) {
+                    sharedBundle = new SharedReconnectedEventBundleImpl(event);
+                    bundle = sharedBundle;
+                } else {
+                    bundle = sharedBundle.newListenerBundle();
+                }
+            }
+            AsyncListenerStats listenerStats = getListenerStats(listener);
+            boolean slot = listenerStats.slots.tryAcquire();
+            if (!slot) {
+                if (queuePolicy == QueuePolicy.DISCARD) {
+                    listenerStats.discarded.incrementAndGet();
+                    log.warn("Queue full for async listener "
+                            + listener.getName() + ", discarding event "
+                            + event.getName());
+                    continue;
+                }
+                // a listener firing events must not wait for the executor
+                // threads, it goes over the bound instead
+                if (inExecutor.get() == null) {
+                    listenerStats.slots.acquireUninterruptibly();
+                    slot = true;
+                }
+            }
+            listenerStats.queued.incrementAndGet();
+            unfinished.incrementAndGet();
+            executor.execute(new Job(listener, bundle, listenerStats,
+                    sequence.incrementAndGet(), slot));
+            grow();
+        }
+    }
+
+    /**
+     * Adds a thread if they are all busy.
+     * <p>
+     * As the queue is unbounded, the executor never grows past its core size
+     * by itself, so the core size is raised up to the maximum pool size while
+     * there is work, and lowered when the queue is empty.
+     */
+    protected synchronized void grow() {
+        int size = executor.getCorePoolSize();
+        if (size < maxPoolSize && executor.getActiveCount() >= size) {
+            executor.setCorePoolSize(size + 1);
+        }
+    }
+
+    protected synchronized void shrink() {
+        if (queue.isEmpty() && executor.getCorePoolSize() > poolSize) {
+            executor.setCorePoolSize(poolSize);
+        }
+    }
+
+    protected AsyncListenerStats getListenerStats(
+            EventListenerDescriptor listener) {
+        String name = listener.getName();
+        AsyncListenerStats listenerStats = stats.get(name);
+        if (listenerStats == null) {
+            synchronized (stats) {
+                listenerStats = stats.get(name);
+                if (listenerStats == null) {
+                    listenerStats = new AsyncListenerStats(name, queueSize);
+                    stats.put(name, listenerStats);
+                }
+            }
         }
+        return listenerStats;
+    }
+
+    /**
+     * Gets the statistics of the listeners that have been executed.
+     */
+    public List<AsyncListenerStats> getListenerStats() {
+        return new ArrayList<AsyncListenerStats>(stats.values());
     }
 
     public int getUnfinishedCount() {
-        return executor.getQueue().size() + executor.getActiveCount();
+        return unfinished.get();
     }
 
-    protected static class Job implements Runnable {
+    protected class Job implements Runnable, Comparable<Job> {
 
         protected final ReconnectedEventBundle bundle;
 
         protected final EventListenerDescriptor listener;
 
-        public Job(EventListenerDescriptor listener, EventBundle bundle) {
+        protected final AsyncListenerStats listenerStats;
+
+        protected final long seq;
+
+        protected final long submitted;
+
+        /**
+         * The submission time pushed back by the priority, the jobs being run
+         * in this order.
+         */
+        protected final long rank;
+
+        /** Whether the job holds a slot in the listener queue. */
+        protected final boolean slot;
+
+        public Job(EventListenerDescriptor listener, EventBundle bundle,
+                AsyncListenerStats listenerStats, long seq, boolean slot) {
             this.listener = listener;
+            this.listenerStats = listenerStats;
+            this.seq = seq;
+            this.slot = slot;
+            submitted = System.currentTimeMillis();
+            rank = submitted + listener.getPriority() * priorityAging;
 
             if (bundle instanceof ReconnectedEventBundle) {
                 this.bundle = (ReconnectedEventBundle) bundle;
@@ -102,12 +303,29 @@ public class AsyncEventExecutor {
             }
         }
 
+        /**
+         * Orders by rank, lower priority values first as for the listeners,
+         * then by submission order. The rank being fixed, the order of two
+         * jobs doesn't change while they wait.
+         */
+        public int compareTo(Job other) {
+            if (rank != other.rank) {
+                return rank < other.rank ? -1 : 1;
+            }
+            return seq < other.seq ? -1 : seq == other.seq ? 0 : 1;
+        }
+
         public void run() {
+            inExecutor.set(Boolean.TRUE);
+            long start = System.currentTimeMillis();
+            listenerStats.jobStarted(start - submitted);
+            boolean success = false;
             EventBundleTransactionHandler txh = new EventBundleTransactionHandler();
             try {
                 txh.beginNewTransaction(listener.getTransactionTimeout());
                 listener.asPostCommitListener().handleEvent(bundle);
                 txh.commitOrRollbackTransaction();
+                success = true;
                 log.debug("Async listener executed, commiting tx");
             } catch (Throwable t) {
                 log.error("Failed to execute async event " + bundle.getName()
@@ -115,12 +333,19 @@ public class AsyncEventExecutor {
                 txh.rollbackTransaction();
             } finally {
                 bundle.disconnect();
+                listenerStats.jobFinished(System.currentTimeMillis() - start,
+                        success);
+                if (slot) {
+                    listenerStats.slots.release();
+                }
+                unfinished.decrementAndGet();
+                shrink();
             }
         }
     }
 
     /**
-     * Creates non-daemon threads at normal priority.
+     * Creates named threads at normal priority, non-daemon by default.
      */
     public static class NamedThreadFactory implements ThreadFactory {
 
@@ -132,7 +357,14 @@ public class AsyncEventExecutor {
 
         private final String namePrefix;
 
+        private final boolean daemon;
+
         public NamedThreadFactory(String prefix) {
+            this(prefix, false);
+        }
+
+        public NamedThreadFactory(String prefix, boolean daemon) {
+            this.daemon = daemon;
             SecurityManager sm = System.getSecurityManager();
             group = sm == null ? Thread.currentThread().getThreadGroup()
                     : sm.getThreadGroup();
@@ -142,7 +374,7 @@ public class AsyncEventExecutor {
         public Thread newThread(Runnable r) {
             String name = namePrefix + threadNumber.incrementAndGet();
             Thread t = new Thread(group, r, name);
-            t.setDaemon(false);
+            t.setDaemon(daemon);
             t.setPriority(Thread.NORM_PRIORITY);
             return t;
         }
@@ -0,0 +1,154 @@
+/*
+ * (C) Copyright 2009 Nuxeo SAS (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Florent Guillaume
+ */
+
+package org.nuxeo.ecm.core.event.impl;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The queue bound and the statistics of an asynchronous listener.
+ *
+ * @author Florent Guillaume
+ */
+public class AsyncListenerStats {
+
+    /**
+     * The upper bounds, in milliseconds, of the buckets of the execution time
+     * histogram. The last bucket holds longer executions.
+     */
+    public static final long[] HISTOGRAM_BOUNDS = { 10, 100, 1000, 10000 };
+
+    protected final String name;
+
+    /** The free slots in the listener queue. */
+    protected final Semaphore slots;
+
+    protected final AtomicInteger queued = new AtomicInteger();
+
+    protected final AtomicInteger running = new AtomicInteger();
+
+    protected final AtomicLong completed = new AtomicLong();
+
+    protected final AtomicLong failed = new AtomicLong();
+
+    protected final AtomicLong discarded = new AtomicLong();
+
+    protected final AtomicLong waitTime = new AtomicLong();
+
+    protected final AtomicLong runTime = new AtomicLong();
+
+    protected final AtomicLong maxRunTime = new AtomicLong();
+
+    protected final AtomicLongArray histogram = new AtomicLongArray(
+            HISTOGRAM_BOUNDS.length + 1);
+
+    public AsyncListenerStats(String name, int queueSize) {
+        this.name = name;
+        slots = new Semaphore(queueSize);
+    }
+
+    protected void jobStarted(long wait) {
+        queued.decrementAndGet();
+        running.incrementAndGet();
+        waitTime.addAndGet(wait);
+    }
+
+    protected void jobFinished(long time, boolean success) {
+        running.decrementAndGet();
+        if (success) {
+            completed.incrementAndGet();
+        } else {
+            failed.incrementAndGet();
+        }
+        runTime.addAndGet(time);
+        long max;
+        do {
+            max = maxRunTime.get();
+        } while (time > max && !maxRunTime.compareAndSet(max, time));
+        int i = 0;
+        while (i < HISTOGRAM_BOUNDS.length && time >= HISTOGRAM_BOUNDS[i]) {
+            i++;
+        }
+        histogram.incrementAndGet(i);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gets the number of bundles waiting to be processed by the listener.
+     */
+    public int getQueueDepth() {
+        return queued.get();
+    }
+
+    public int getRunningCount() {
+        return running.get();
+    }
+
+    public long getCompletedCount() {
+        return completed.get();
+    }
+
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    /**
+     * Gets the number of bundles dropped because the listener queue was full.
+     */
+    public long getDiscardedCount() {
+        return discarded.get();
+    }
+
+    /**
+     * Gets the average time, in milliseconds, spent by bundles in the queue.
+     */
+    public long getAverageWaitTime() {
+        long count = completed.get() + failed.get();
+        return count == 0 ? 0 : waitTime.get() / count;
+    }
+
+    /**
+     * Gets the average execution time of the listener, in milliseconds.
+     */
+    public long getAverageRunTime() {
+        long count = completed.get() + failed.get();
+        return count == 0 ? 0 : runTime.get() / count;
+    }
+
+    public long getMaxRunTime() {
+        return maxRunTime.get();
+    }
+
+    /**
+     * Gets the execution time histogram, whose buckets are delimited by
+     * {@link #HISTOGRAM_BOUNDS}.
+     */
+    public long[] getRunTimeHistogram() {
+        long[] counts = new long[histogram.length()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = histogram.get(i);
+        }
+        return counts;
+    }
+
+}
@@ -0,0 +1,37 @@
+/*
+ * (C) Copyright 2009 Nuxeo SAS (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Florent Guillaume
+ */
+
+package org.nuxeo.ecm.core.event.impl;
+
+/**
+ * Asynchronous work handed over by listeners to threads other than those of
+ * the {@link AsyncEventExecutor}, that
+ * {@link EventServiceImpl#waitForAsyncCompletion} also waits for.
+ * <p>
+ * The work must be counted as pending before the listener handing it over
+ * returns.
+ *
+ * @author Florent Guillaume
+ */
+public interface AsyncWaitHook {
+
+    /**
+     * Gets the number of units of work submitted and not yet finished.
+     */
+    long getPendingCount();
+
+}
@@ -0,0 +1,52 @@
+/*
+ * (C) Copyright 2009 Nuxeo SAS (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Florent Guillaume
+ */
+
+package org.nuxeo.ecm.core.event.impl;
+
+import org.nuxeo.common.xmap.annotation.XNode;
+import org.nuxeo.common.xmap.annotation.XObject;
+
+/**
+ * A coalescing rule of a post commit listener: the events with the given
+ * name about the same document are delivered only once per bundle.
+ * <p>
+ * Either the first or the last of these events is kept, at its position in
+ * the bundle.
+ *
+ * @author Florent Guillaume
+ */
+@XObject("coalesce")
+public class EventCoalescingDescriptor {
+
+    @XNode("@event")
+    public String event;
+
+    /**
+     * If {@code true} keep the first event, otherwise keep the last one.
+     */
+    @XNode("@keepFirst")
+    public boolean keepFirst;
+
+    public EventCoalescingDescriptor() {
+    }
+
+    public EventCoalescingDescriptor(String event, boolean keepFirst) {
+        this.event = event;
+        this.keepFirst = keepFirst;
+    }
+
+}
@@ -17,7 +17,13 @@
 package org.nuxeo.ecm.core.event.impl;
 
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.apache.commons.logging.Log;
@@ -25,8 +31,12 @@ import org.apache.commons.logging.LogFactory;
 import org.nuxeo.common.xmap.annotation.XNode;
 import org.nuxeo.common.xmap.annotation.XNodeList;
 import org.nuxeo.common.xmap.annotation.XObject;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.event.Event;
+import org.nuxeo.ecm.core.event.EventBundle;
 import org.nuxeo.ecm.core.event.EventListener;
 import org.nuxeo.ecm.core.event.PostCommitEventListener;
+import org.nuxeo.ecm.core.event.ReconnectedEventBundle;
 import org.nuxeo.ecm.core.event.script.Script;
 import org.nuxeo.ecm.core.event.script.ScriptingEventListener;
 import org.nuxeo.ecm.core.event.script.ScriptingPostCommitEventListener;
@@ -70,6 +80,29 @@ public class EventListenerDescriptor {
     @XNode("@async")
     protected Boolean isAsync;
 
+    /**
+     * Applies only for async post commit listeners that only read the
+     * documents of the bundle: such listeners share a single reconnection of
+     * the bundle, each getting its own copies of the documents, and get no
+     * session in the event contexts.
+     */
+    @XNode("@sharedBundle")
+    protected Boolean isSharedBundle;
+
+    /**
+     * Applies only for sync post commit listeners: the time in milliseconds
+     * above which an execution is counted as an overrun.
+     */
+    @XNode("@timeBudget")
+    protected Integer timeBudget;
+
+    /**
+     * Applies only for post commit listeners: the rules to merge the events
+     * of a bundle about the same document.
+     */
+    @XNodeList(value = "coalesce", type = EventCoalescingDescriptor[].class, componentType = EventCoalescingDescriptor.class)
+    protected EventCoalescingDescriptor[] coalescing;
+
     @XNode("@transactionTimeOut")
     protected Integer transactionTimeOut;
 
@@ -182,6 +215,74 @@ public class EventListenerDescriptor {
         return name;
     }
 
+    public boolean isSharedBundle() {
+        return isSharedBundle != null && isSharedBundle.booleanValue();
+    }
+
+    public EventCoalescingDescriptor[] getCoalescing() {
+        return coalescing;
+    }
+
+    public void setCoalescing(EventCoalescingDescriptor[] coalescing) {
+        this.coalescing = coalescing;
+    }
+
+    /**
+     * Gets the bundle to be delivered to this post commit listener, in which
+     * the events about the same document are merged according to the
+     * coalescing rules.
+     *
+     * @param bundle the bundle
+     * @return the coalesced bundle, or the same bundle if nothing was merged
+     */
+    public EventBundle coalesce(EventBundle bundle) {
+        if (coalescing == null || coalescing.length == 0
+                || bundle instanceof ReconnectedEventBundle) {
+            return bundle;
+        }
+        Map<String, Boolean> rules = new HashMap<String, Boolean>();
+        for (EventCoalescingDescriptor rule : coalescing) {
+            rules.put(rule.event, Boolean.valueOf(rule.keepFirst));
+        }
+        // find the index of the event kept for each name and document
+        List<Event> events = new ArrayList<Event>(bundle.size());
+        List<List<Object>> keys = new ArrayList<List<Object>>(bundle.size());
+        Map<List<Object>, Integer> kept = new HashMap<List<Object>, Integer>();
+        for (Event event : bundle) {
+            List<Object> key = null;
+            Boolean keepFirst = rules.get(event.getName());
+            if (keepFirst != null
+                    && event.getContext() instanceof DocumentEventContext) {
+                DocumentModel doc = ((DocumentEventContext) event.getContext()).getSourceDocument();
+                if (doc != null && doc.getRef() != null) {
+                    key = Arrays.<Object> asList(event.getName(), doc.getRef());
+                    if (!kept.containsKey(key) || !keepFirst.booleanValue()) {
+                        kept.put(key, Integer.valueOf(events.size()));
+                    }
+                }
+            }
+            events.add(event);
+            keys.add(key);
+        }
+        if (kept.size() == keys.size() - Collections.frequency(keys, null)) {
+            // nothing to merge
+            return bundle;
+        }
+        EventBundleImpl coalesced = new EventBundleImpl(
+                bundle.getSourceVMID());
+        for (int i = 0; i < events.size(); i++) {
+            List<Object> key = keys.get(i);
+            if (key == null || kept.get(key).intValue() == i) {
+                coalesced.push(events.get(i));
+            }
+        }
+        return coalesced;
+    }
+
+    public Integer getTimeBudget() {
+        return timeBudget;
+    }
+
     public Integer getTransactionTimeout() {
         return transactionTimeOut;
     }
@@ -204,6 +305,10 @@ public class EventListenerDescriptor {
             this.isAsync=other.isAsync;
         }
 
+        if (other.isSharedBundle!=null) {
+            this.isSharedBundle=other.isSharedBundle;
+        }
+
         if (other.events!=null) {
             this.events=other.events;
         }
@@ -212,8 +317,16 @@ public class EventListenerDescriptor {
             this.transactionTimeOut=other.transactionTimeOut;
         }
 
+        if (other.coalescing!=null) {
+            this.coalescing=other.coalescing;
+        }
+
+        if (other.timeBudget!=null) {
+            this.timeBudget=other.timeBudget;
+        }
+
         if (other.priority!=null) {
-            other.priority=this.priority;
+            this.priority=other.priority;
         }
 
     }
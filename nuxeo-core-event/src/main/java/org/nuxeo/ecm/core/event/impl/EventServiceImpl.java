@@ -21,6 +21,7 @@ package org.nuxeo.ecm.core.event.impl;
 import java.rmi.dgc.VMID;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -57,6 +58,8 @@ public class EventServiceImpl implements EventService {
 
     protected final AsyncEventExecutor asyncExec;
 
+    protected final List<AsyncWaitHook> asyncWaitHooks = new CopyOnWriteArrayList<AsyncWaitHook>();
+
     public EventServiceImpl() {
         listenerDescriptors = new EventListenerList();
         asyncExec = AsyncEventExecutor.create();
@@ -70,6 +73,36 @@ public class EventServiceImpl implements EventService {
         return asyncExec.getUnfinishedCount();
     }
 
+    /**
+     * Stops the threads running the synchronous post-commit listeners.
+     */
+    public void shutdown() {
+        PostCommitSynchronousRunner.shutdown();
+    }
+
+    /**
+     * Gets the executor of the asynchronous post-commit listeners.
+     */
+    public AsyncEventExecutor getAsyncEventExecutor() {
+        return asyncExec;
+    }
+
+    /**
+     * Registers work done outside of the async executor that
+     * {@link #waitForAsyncCompletion} must also wait for.
+     */
+    public void registerForAsyncWait(AsyncWaitHook hook) {
+        asyncWaitHooks.add(hook);
+    }
+
+    public void unregisterForAsyncWait(AsyncWaitHook hook) {
+        asyncWaitHooks.remove(hook);
+    }
+
+    /**
+     * Waits until all asynchronous listeners are finished, as well as the work
+     * they handed over to registered {@link AsyncWaitHook}s.
+     */
     public void waitForAsyncCompletion() {
         do {
             try {
@@ -77,7 +110,20 @@ public class EventServiceImpl implements EventService {
             } catch (InterruptedException e) {
             }
 
-        } while (asyncExec.getUnfinishedCount() > 0);
+        } while (asyncExec.getUnfinishedCount() > 0 || hasPendingAsyncWork());
+    }
+
+    /**
+     * Called after checking the executor, as listeners have their work counted
+     * by its hook before they finish.
+     */
+    protected boolean hasPendingAsyncWork() {
+        for (AsyncWaitHook hook : asyncWaitHooks) {
+            if (hook.getPendingCount() > 0) {
+                return true;
+            }
+        }
+        return false;
     }
 
     public void addEventListener(EventListenerDescriptor listener) {
@@ -170,10 +216,10 @@ public class EventServiceImpl implements EventService {
     public void fireEventBundleSync(EventBundle event) throws ClientException {
 
         for (EventListenerDescriptor desc : listenerDescriptors.getSyncPostCommitListenersDescriptors()) {
-            desc.asPostCommitListener().handleEvent(event);
+            desc.asPostCommitListener().handleEvent(desc.coalesce(event));
         }
         for (EventListenerDescriptor desc : listenerDescriptors.getAsyncPostCommitListenersDescriptors()) {
-            desc.asPostCommitListener().handleEvent(event);
+            desc.asPostCommitListener().handleEvent(desc.coalesce(event));
         }
     }
 
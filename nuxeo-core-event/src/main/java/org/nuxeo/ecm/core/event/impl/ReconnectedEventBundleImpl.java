@@ -22,11 +22,16 @@ package org.nuxeo.ecm.core.event.impl;
 import java.io.Serializable;
 import java.rmi.dgc.VMID;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 
 import javax.security.auth.login.LoginContext;
 import javax.security.auth.login.LoginException;
@@ -37,7 +42,9 @@ import org.nuxeo.ecm.core.api.ClientException;
 import org.nuxeo.ecm.core.api.CoreInstance;
 import org.nuxeo.ecm.core.api.CoreSession;
 import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.DocumentModelList;
 import org.nuxeo.ecm.core.api.DocumentRef;
+import org.nuxeo.ecm.core.api.PathRef;
 import org.nuxeo.ecm.core.api.repository.Repository;
 import org.nuxeo.ecm.core.api.repository.RepositoryManager;
 import org.nuxeo.ecm.core.event.Event;
@@ -62,7 +69,8 @@ public class ReconnectedEventBundleImpl implements ReconnectedEventBundle {
 
     protected LoginContext loginCtx;
 
-    protected CoreSession reconnectedCoreSession;
+    /** The reconnected sessions, by repository name. */
+    protected Map<String, CoreSession> reconnectedCoreSessions = new HashMap<String, CoreSession>();
 
     private static final Log log = LogFactory.getLog(ReconnectedEventBundleImpl.class);
 
@@ -74,69 +82,100 @@ public class ReconnectedEventBundleImpl implements ReconnectedEventBundle {
     }
 
     protected CoreSession getReconnectedCoreSession(String repoName) {
-        if (reconnectedCoreSession == null) {
+        CoreSession session = reconnectedCoreSessions.get(repoName);
+        if (session != null) {
+            return session;
+        }
+        if (loginCtx == null) {
             try {
                 loginCtx = Framework.login();
             } catch (LoginException e) {
                 log.error("Can not connect", e);
                 return null;
             }
-
-            try {
-                RepositoryManager mgr = Framework
-                        .getService(RepositoryManager.class);
-                Repository repo;
-                if (repoName != null) {
-                    repo = mgr.getRepository(repoName);
-                } else {
-                    repo = mgr.getDefaultRepository();
-                    repoName = repo.getName();
-                }
-
-                reconnectedCoreSession = repo.open();
-            } catch (Exception e) {
-                log.error("Error while openning core session on repo " + repoName, e);
-                return null;
-            }
-        } else {
-            // Sanity Check
-            if (!reconnectedCoreSession.getRepositoryName().equals(repoName)) {
-                if (repoName != null) {
-                    throw new IllegalStateException(
-                            "Can no reconnected a Bundle tied to several Core instances !");
-                }
+        }
+        try {
+            RepositoryManager mgr = Framework
+                    .getService(RepositoryManager.class);
+            Repository repo;
+            if (repoName != null) {
+                repo = mgr.getRepository(repoName);
+            } else {
+                repo = mgr.getDefaultRepository();
             }
+            session = repo.open();
+        } catch (Exception e) {
+            log.error("Error while openning core session on repo " + repoName, e);
+            return null;
         }
-        return reconnectedCoreSession;
+        reconnectedCoreSessions.put(repoName, session);
+        reconnectedCoreSessions.put(session.getRepositoryName(), session);
+        return session;
     }
 
     protected List<Event> getReconnectedEvents() {
         if (reconnectedEvents == null) {
+            // collect the documents of all the events to refetch them at
+            // once, with one call per repository
+            Map<String, Set<DocumentRef>> refsByRepo = new HashMap<String, Set<DocumentRef>>();
+            for (Event event : sourceEventBundle) {
+                EventContext ctx = event.getContext();
+                String repoName = ctx.getRepositoryName();
+                if (repoName == null) {
+                    continue;
+                }
+                Set<DocumentRef> refs = refsByRepo.get(repoName);
+                if (refs == null) {
+                    refs = new LinkedHashSet<DocumentRef>();
+                    refsByRepo.put(repoName, refs);
+                }
+                for (Object arg : ctx.getArguments()) {
+                    if (arg instanceof DocumentModel) {
+                        DocumentRef ref = ((DocumentModel) arg).getRef();
+                        if (ref != null) {
+                            refs.add(ref);
+                        }
+                    }
+                }
+                for (Serializable propValue : ctx.getProperties().values()) {
+                    if (propValue instanceof DocumentModel) {
+                        DocumentRef ref = ((DocumentModel) propValue).getRef();
+                        if (ref != null) {
+                            refs.add(ref);
+                        }
+                    }
+                }
+            }
+            Map<String, Map<DocumentRef, DocumentModel>> docsByRepo = new HashMap<String, Map<DocumentRef, DocumentModel>>();
+            for (Entry<String, Set<DocumentRef>> entry : refsByRepo.entrySet()) {
+                Set<DocumentRef> refs = entry.getValue();
+                if (refs.isEmpty()) {
+                    continue;
+                }
+                CoreSession session = getReconnectedCoreSession(entry.getKey());
+                if (session == null) {
+                    continue;
+                }
+                docsByRepo.put(entry.getKey(), fetchDocuments(session, refs));
+            }
+
             reconnectedEvents = new ArrayList<Event>();
             for (Event event : sourceEventBundle) {
                 EventContext ctx = event.getContext();
-                CoreSession session = ctx.getRepositoryName() == null ? null
-                        : getReconnectedCoreSession(ctx.getRepositoryName());
+                String repoName = ctx.getRepositoryName();
+                CoreSession session = repoName == null ? null
+                        : getReconnectedCoreSession(repoName);
+                Map<DocumentRef, DocumentModel> docs = docsByRepo.get(repoName);
+                if (docs == null) {
+                    docs = Collections.emptyMap();
+                }
 
                 List<Object> newArgs = new ArrayList<Object>();
                 for (Object arg : ctx.getArguments()) {
                     Object newArg = arg;
                     if (arg instanceof DocumentModel && session != null) {
-                        DocumentModel oldDoc = (DocumentModel) arg;
-                        DocumentRef ref = oldDoc.getRef();
-                        if (ref != null) {
-                            try {
-                                if (session.exists(oldDoc.getRef())) {
-                                    newArg = session.getDocument(oldDoc.getRef());
-                                } else {
-                                    // probably deleted doc
-                                    newArg = oldDoc;
-                                }
-                            } catch (ClientException e) {
-                                log.error("Can not refetch Doc with ref "
-                                        + ref.toString(), e);
-                            }
-                        }
+                        newArg = getReconnectedDocument((DocumentModel) arg,
+                                docs);
                     }
                     // XXX treat here other cases !!!!
                     newArgs.add(newArg);
@@ -157,13 +196,8 @@ public class ReconnectedEventBundleImpl implements ReconnectedEventBundle {
                         .entrySet()) {
                     Serializable propValue = prop.getValue();
                     if (propValue instanceof DocumentModel && session != null) {
-                        DocumentModel oldDoc = (DocumentModel) propValue;
-                        try {
-                            propValue = session.getDocument(oldDoc.getRef());
-                        } catch (ClientException e) {
-                            log.error("Can not refetch Doc with ref "
-                                    + oldDoc.getRef().toString(), e);
-                        }
+                        propValue = getReconnectedDocument(
+                                (DocumentModel) propValue, docs);
                     }
                     // XXX treat here other cases !!!!
                     newProps.put(prop.getKey(), propValue);
@@ -177,6 +211,51 @@ public class ReconnectedEventBundleImpl implements ReconnectedEventBundle {
         return reconnectedEvents;
     }
 
+    /**
+     * Fetches the documents of one repository referenced by the events in one
+     * call.
+     * <p>
+     * Documents that no longer exist (probably deleted) are absent from the
+     * returned map.
+     *
+     * @param session the reconnected session for the documents' repository
+     * @param refs the references of the documents
+     * @return the fetched documents, by reference
+     */
+    protected Map<DocumentRef, DocumentModel> fetchDocuments(
+            CoreSession session, Collection<DocumentRef> refs) {
+        Map<DocumentRef, DocumentModel> docs = new HashMap<DocumentRef, DocumentModel>();
+        DocumentModelList list;
+        try {
+            list = session.getDocuments(refs.toArray(new DocumentRef[refs.size()]));
+        } catch (ClientException e) {
+            log.error("Can not refetch Docs", e);
+            return docs;
+        }
+        for (DocumentModel doc : list) {
+            docs.put(doc.getRef(), doc);
+            String path = doc.getPathAsString();
+            if (path != null) {
+                docs.put(new PathRef(path), doc);
+            }
+        }
+        return docs;
+    }
+
+    protected DocumentModel getReconnectedDocument(DocumentModel oldDoc,
+            Map<DocumentRef, DocumentModel> docs) {
+        DocumentRef ref = oldDoc.getRef();
+        if (ref == null) {
+            return oldDoc;
+        }
+        DocumentModel doc = docs.get(ref);
+        if (doc == null) {
+            // probably deleted doc
+            return oldDoc;
+        }
+        return doc;
+    }
+
     public String getName() {
         return sourceEventBundle.getName();
     }
@@ -210,15 +289,19 @@ public class ReconnectedEventBundleImpl implements ReconnectedEventBundle {
     }
 
     public void disconnect() {
-        if (reconnectedCoreSession != null) {
-            CoreInstance.getInstance().close(reconnectedCoreSession);
+        // the same session may be registered under several names
+        for (CoreSession session : new HashSet<CoreSession>(
+                reconnectedCoreSessions.values())) {
+            CoreInstance.getInstance().close(session);
         }
+        reconnectedCoreSessions.clear();
         if (loginCtx != null) {
             try {
                 loginCtx.logout();
             } catch (LoginException e) {
                 log.error("Error while logging out", e);
             }
+            loginCtx = null;
         }
     }
 
@@ -0,0 +1,187 @@
+/*
+ * (C) Copyright 2009 Nuxeo SAS (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Florent Guillaume
+ */
+
+package org.nuxeo.ecm.core.event.impl;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.DocumentRef;
+import org.nuxeo.ecm.core.api.impl.DocumentModelImpl;
+import org.nuxeo.ecm.core.event.Event;
+import org.nuxeo.ecm.core.event.EventBundle;
+import org.nuxeo.ecm.core.event.EventContext;
+
+/**
+ * A reconnected {@link EventBundle} shared by several asynchronous listeners.
+ * <p>
+ * The bundle is reconnected only once, by the first listener iterating on it:
+ * the documents are fetched in bulk, fully loaded and detached, then the
+ * session is closed. This snapshot is never given to the listeners, which run
+ * concurrently: each listener gets its bundle from {@link #newListenerBundle},
+ * whose events hold its own clones of the documents of the snapshot. The
+ * event contexts have no session.
+ *
+ * @author Florent Guillaume
+ */
+public class SharedReconnectedEventBundleImpl extends
+        ReconnectedEventBundleImpl {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Log log = LogFactory.getLog(SharedReconnectedEventBundleImpl.class);
+
+    /** The bundle holding the snapshot, possibly this one. */
+    protected final SharedReconnectedEventBundleImpl shared;
+
+    /** The reconnected events, only set in the shared bundle. */
+    protected List<Event> snapshot;
+
+    public SharedReconnectedEventBundleImpl(EventBundle sourceEventBundle) {
+        super(sourceEventBundle);
+        shared = this;
+    }
+
+    protected SharedReconnectedEventBundleImpl(
+            SharedReconnectedEventBundleImpl shared) {
+        super(shared.sourceEventBundle);
+        this.shared = shared;
+    }
+
+    /**
+     * Gets a bundle for another listener, sharing the snapshot of this one
+     * but with its own copies of the documents.
+     */
+    public SharedReconnectedEventBundleImpl newListenerBundle() {
+        return new SharedReconnectedEventBundleImpl(shared);
+    }
+
+    /**
+     * Gets the reconnected events, reconnecting them on first call. Must be
+     * called on the shared bundle, synchronized on it.
+     */
+    protected List<Event> getSnapshot() {
+        if (snapshot == null) {
+            try {
+                snapshot = super.getReconnectedEvents();
+            } finally {
+                super.disconnect();
+            }
+            // the events of this bundle are copies, as for the others
+            reconnectedEvents = null;
+        }
+        return snapshot;
+    }
+
+    @Override
+    protected synchronized List<Event> getReconnectedEvents() {
+        if (reconnectedEvents == null) {
+            List<Event> events = new ArrayList<Event>();
+            // the snapshot is copied by the other listeners too
+            synchronized (shared) {
+                for (Event event : shared.getSnapshot()) {
+                    events.add(copyEvent(event));
+                }
+            }
+            reconnectedEvents = Collections.unmodifiableList(events);
+        }
+        return reconnectedEvents;
+    }
+
+    /**
+     * Copies an event of the snapshot, with copies of its documents and no
+     * session.
+     */
+    protected static Event copyEvent(Event event) {
+        EventContext ctx = event.getContext();
+        List<Object> newArgs = new ArrayList<Object>();
+        for (Object arg : ctx.getArguments()) {
+            if (arg instanceof DocumentModel) {
+                arg = copyDocument((DocumentModel) arg);
+            }
+            newArgs.add(arg);
+        }
+        EventContext newCtx;
+        if (ctx instanceof DocumentEventContext) {
+            newCtx = new DocumentEventContext(null, ctx.getPrincipal(),
+                    (DocumentModel) newArgs.get(0),
+                    (DocumentRef) newArgs.get(1));
+        } else {
+            newCtx = new EventContextImpl(null, ctx.getPrincipal());
+            ((EventContextImpl) newCtx).setArgs(newArgs.toArray());
+        }
+        newCtx.setRepositoryName(ctx.getRepositoryName());
+        Map<String, Serializable> newProps = new HashMap<String, Serializable>();
+        for (Entry<String, Serializable> prop : ctx.getProperties().entrySet()) {
+            Serializable value = prop.getValue();
+            if (value instanceof DocumentModel) {
+                value = copyDocument((DocumentModel) value);
+            }
+            newProps.put(prop.getKey(), value);
+        }
+        newCtx.setProperties(newProps);
+        return new EventImpl(event.getName(), newCtx, event.getFlags(),
+                event.getTime());
+    }
+
+    protected static DocumentModel copyDocument(DocumentModel doc) {
+        try {
+            return doc.clone();
+        } catch (CloneNotSupportedException e) {
+            log.error("Can not copy Doc with ref " + doc.getRef()
+                    + ", sharing it", e);
+            return doc;
+        }
+    }
+
+    @Override
+    protected Map<DocumentRef, DocumentModel> fetchDocuments(
+            CoreSession session, Collection<DocumentRef> refs) {
+        Map<DocumentRef, DocumentModel> docs = super.fetchDocuments(session,
+                refs);
+        for (DocumentModel doc : docs.values()) {
+            if (doc instanceof DocumentModelImpl) {
+                try {
+                    ((DocumentModelImpl) doc).detach(true);
+                } catch (ClientException e) {
+                    log.error("Can not detach Doc with ref " + doc.getRef(),
+                            e);
+                }
+            }
+        }
+        return docs;
+    }
+
+    /**
+     * Does nothing, the session is closed as soon as the snapshot is taken.
+     */
+    @Override
+    public void disconnect() {
+    }
+
+}
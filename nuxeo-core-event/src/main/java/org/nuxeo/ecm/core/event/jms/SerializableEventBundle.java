@@ -17,6 +17,8 @@
 
 package org.nuxeo.ecm.core.event.jms;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.rmi.dgc.VMID;
 import java.security.Principal;
@@ -36,6 +38,7 @@ import org.nuxeo.ecm.core.api.IdRef;
 import org.nuxeo.ecm.core.api.PathRef;
 import org.nuxeo.ecm.core.api.SimplePrincipal;
 import org.nuxeo.ecm.core.api.impl.DocumentModelImpl;
+import org.nuxeo.ecm.core.api.model.impl.DocumentPartCodec;
 import org.nuxeo.ecm.core.event.Event;
 import org.nuxeo.ecm.core.event.EventBundle;
 import org.nuxeo.ecm.core.event.EventContext;
@@ -149,6 +152,19 @@ public class SerializableEventBundle implements Serializable {
         return serializableProps;
     }
 
+    /**
+     * Serializes the documents found in the event properties using the format
+     * configured for the JMS transport.
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        String previous = DocumentPartCodec.setTransport(DocumentPartCodec.JMS_TRANSPORT);
+        try {
+            out.defaultWriteObject();
+        } finally {
+            DocumentPartCodec.setTransport(previous);
+        }
+    }
+
     public VMID getSourceVMID() {
         return sourceVMID;
     }
@@ -0,0 +1,140 @@
+/*
+ * (C) Copyright 2009 Nuxeo SAS (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Florent Guillaume
+ */
+
+package org.nuxeo.ecm.core.event.management;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.event.EventService;
+import org.nuxeo.ecm.core.event.impl.AsyncListenerStats;
+import org.nuxeo.ecm.core.event.impl.EventServiceImpl;
+import org.nuxeo.ecm.core.event.tx.PostCommitSynchronousRunner;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * An MBean to monitor the asynchronous event listeners.
+ *
+ * @author Florent Guillaume
+ */
+public class AsyncEventStatus implements AsyncEventStatusMBean {
+
+    private static final Log log = LogFactory.getLog(AsyncEventStatus.class);
+
+    protected EventServiceImpl getEventService() {
+        EventService service;
+        try {
+            service = Framework.getService(EventService.class);
+        } catch (Exception e) {
+            log.error("Error getting event service", e);
+            return null;
+        }
+        if (service instanceof EventServiceImpl) {
+            return (EventServiceImpl) service;
+        }
+        return null;
+    }
+
+    protected List<AsyncListenerStats> getListenerStats() {
+        EventServiceImpl service = getEventService();
+        if (service == null) {
+            return Collections.emptyList();
+        }
+        return service.getAsyncEventExecutor().getListenerStats();
+    }
+
+    public int getUnfinishedCount() {
+        EventServiceImpl service = getEventService();
+        if (service == null) {
+            return 0;
+        }
+        return service.getAsyncEventExecutor().getUnfinishedCount();
+    }
+
+    public String listListenerStatistics() {
+        StringBuilder buf = new StringBuilder();
+        buf.append("Async listeners (run times in ms, histogram bounds ");
+        for (long bound : AsyncListenerStats.HISTOGRAM_BOUNDS) {
+            buf.append(bound).append(' ');
+        }
+        buf.append("ms):<br />");
+        for (AsyncListenerStats stats : getListenerStats()) {
+            buf.append("<b>").append(stats.getName()).append("</b>: ");
+            buf.append(stats.getQueueDepth()).append(" queued, ");
+            buf.append(stats.getRunningCount()).append(" running, ");
+            buf.append(stats.getCompletedCount()).append(" completed, ");
+            buf.append(stats.getFailedCount()).append(" failed, ");
+            buf.append(stats.getDiscardedCount()).append(" discarded, ");
+            buf.append(stats.getAverageWaitTime()).append(" avg wait, ");
+            buf.append(stats.getAverageRunTime()).append(" avg run, ");
+            buf.append(stats.getMaxRunTime()).append(" max run, histogram");
+            for (long count : stats.getRunTimeHistogram()) {
+                buf.append(' ').append(count);
+            }
+            buf.append("<br />");
+        }
+        return buf.toString();
+    }
+
+    public int getQueueDepth() {
+        int depth = 0;
+        for (AsyncListenerStats stats : getListenerStats()) {
+            depth += stats.getQueueDepth();
+        }
+        return depth;
+    }
+
+    public long getFailedCount() {
+        long count = 0;
+        for (AsyncListenerStats stats : getListenerStats()) {
+            count += stats.getFailedCount();
+        }
+        return count;
+    }
+
+    public long getDiscardedCount() {
+        long count = 0;
+        for (AsyncListenerStats stats : getListenerStats()) {
+            count += stats.getDiscardedCount();
+        }
+        return count;
+    }
+
+    public String listSyncListenerOverruns() {
+        StringBuilder buf = new StringBuilder();
+        buf.append("Sync post-commit listeners over budget:<br />");
+        Map<String, Long> overruns = PostCommitSynchronousRunner.getOverrunCounts();
+        for (Entry<String, Long> es : overruns.entrySet()) {
+            buf.append("<b>").append(es.getKey()).append("</b>: ");
+            buf.append(es.getValue()).append(" overruns<br />");
+        }
+        return buf.toString();
+    }
+
+    public long getSyncTimeoutCount() {
+        return PostCommitSynchronousRunner.getTimeoutCount();
+    }
+
+    public long getSyncSkippedCount() {
+        return PostCommitSynchronousRunner.getSkippedCount();
+    }
+
+}
@@ -0,0 +1,69 @@
+/*
+ * (C) Copyright 2009 Nuxeo SAS (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Florent Guillaume
+ */
+
+package org.nuxeo.ecm.core.event.management;
+
+/**
+ * @author Florent Guillaume
+ */
+public interface AsyncEventStatusMBean {
+
+    /**
+     * Gets the number of async listener jobs queued or running.
+     */
+    int getUnfinishedCount();
+
+    /**
+     * Lists the statistics of each async listener: queue depth, completed,
+     * failed and discarded jobs, and execution times.
+     */
+    String listListenerStatistics();
+
+    /**
+     * Gets the number of async listener jobs waiting in the queues.
+     */
+    int getQueueDepth();
+
+    /**
+     * Gets the number of async listener jobs that failed.
+     */
+    long getFailedCount();
+
+    /**
+     * Gets the number of bundles discarded because a listener queue was full.
+     */
+    long getDiscardedCount();
+
+    /**
+     * Lists, for each sync post-commit listener, the number of executions
+     * over its time budget.
+     */
+    String listSyncListenerOverruns();
+
+    /**
+     * Gets the number of bundles whose sync post-commit listeners were
+     * cancelled because they did not finish in time.
+     */
+    long getSyncTimeoutCount();
+
+    /**
+     * Gets the number of bundles whose sync post-commit listeners were
+     * skipped because all the pool threads were busy.
+     */
+    long getSyncSkippedCount();
+
+}
@@ -19,17 +19,44 @@
 
 package org.nuxeo.ecm.core.event.tx;
 
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.nuxeo.ecm.core.event.EventBundle;
+import org.nuxeo.ecm.core.event.impl.AsyncEventExecutor.NamedThreadFactory;
 import org.nuxeo.ecm.core.event.impl.EventListenerDescriptor;
+import org.nuxeo.runtime.api.Framework;
 
 /**
  *
  * Runs synchronous Listeners in a separated thread in order to enable TX
  * management
+ * <p>
+ * The threads come from a shared pool of daemon threads, created on first
+ * use and stopped by {@link #shutdown}. The listeners are handed directly to
+ * an idle pool thread, never queued, so the time out only counts their
+ * execution. When all the pool threads are busy, for instance held by
+ * listeners stuck in I/O that ignore the cancellation, the listeners are
+ * skipped and counted: running them in the calling thread would mix them with
+ * its transaction, and running them in new threads would let stuck listeners
+ * pile up threads without bound.
+ * <p>
+ * If the listeners have not finished when the time out expires, their
+ * execution is cancelled. A listener running longer than its time budget (by
+ * default the time out) is counted as an overrun.
  *
  * @author tiry
  *
@@ -38,8 +65,21 @@ public class PostCommitSynchronousRunner {
 
     public static final int DEFAULT_TIME_OUT_MS = 300;
 
+    public static final int DEFAULT_POOL_SIZE = 4;
+
     private static final Log log = LogFactory.getLog(PostCommitSynchronousRunner.class);
 
+    protected static ThreadPoolExecutor executor;
+
+    /** Number of executions over budget, by listener name. */
+    protected static final Map<String, AtomicLong> overruns = new ConcurrentHashMap<String, AtomicLong>();
+
+    /** Number of bundles whose execution was cancelled. */
+    protected static final AtomicLong timeouts = new AtomicLong();
+
+    /** Number of bundles skipped because no pool thread was idle. */
+    protected static final AtomicLong skipped = new AtomicLong();
+
     protected final List<EventListenerDescriptor> listeners;
     protected final EventBundle event;
     protected long timeout = 0;
@@ -56,6 +96,60 @@ public class PostCommitSynchronousRunner {
         this(listeners, event, DEFAULT_TIME_OUT_MS);
     }
 
+    /**
+     * Gets the pool, creating it with the current configuration if needed.
+     */
+    protected static synchronized ThreadPoolExecutor getExecutor() {
+        if (executor == null) {
+            String val = Framework.getProperty("org.nuxeo.ecm.core.event.sync.poolSize");
+            int poolSize = val == null ? DEFAULT_POOL_SIZE
+                    : Integer.parseInt(val);
+            executor = new ThreadPoolExecutor(poolSize, poolSize, 0,
+                    TimeUnit.MILLISECONDS, new SynchronousQueue<Runnable>(),
+                    new NamedThreadFactory("Nuxeo Sync PostCommit", true));
+        }
+        return executor;
+    }
+
+    /**
+     * Stops the pool, interrupting the running listeners. A new pool is
+     * created if listeners are run afterwards.
+     */
+    public static synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * Gets the number of executions that went over their time budget, by
+     * listener name.
+     */
+    public static Map<String, Long> getOverrunCounts() {
+        Map<String, Long> counts = new HashMap<String, Long>();
+        for (Entry<String, AtomicLong> es : overruns.entrySet()) {
+            counts.put(es.getKey(), Long.valueOf(es.getValue().get()));
+        }
+        return counts;
+    }
+
+    /**
+     * Gets the number of bundles whose listeners were cancelled because they
+     * did not finish in time.
+     */
+    public static long getTimeoutCount() {
+        return timeouts.get();
+    }
+
+    /**
+     * Gets the number of bundles whose listeners were not run because all
+     * the pool threads were busy.
+     */
+    public static long getSkippedCount() {
+        return skipped.get();
+    }
+
     public void run() {
         runSync();
     }
@@ -63,40 +157,90 @@ public class PostCommitSynchronousRunner {
     protected void runSync() {
         log.debug("Starting sync executor from Thread "
                 + Thread.currentThread().getId());
-        Thread runner = new Thread(new MonoThreadExecutor());
-        runner.start();
+        MonoThreadExecutor monoExecutor = new MonoThreadExecutor();
+        FutureTask<Object> future = new FutureTask<Object>(monoExecutor, null);
         try {
-            runner.join(timeout);
-            if (runner.isAlive()) {
-                log.warn("PostCommitListeners are too slow, check debug log ...");
-                log.warn("Exit before the end of processing");
-            }
+            getExecutor().execute(future);
+        } catch (RejectedExecutionException e) {
+            // all the pool threads are busy
+            skipped.incrementAndGet();
+            log.warn("No idle thread for PostCommitListeners, "
+                    + "skipping them, check the overrun counters");
+            return;
+        }
+        try {
+            future.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            timeouts.incrementAndGet();
+            EventListenerDescriptor current = monoExecutor.current;
+            log.warn("PostCommitListeners are too slow, check the overrun counters");
+            log.warn("Exit before the end of processing"
+                    + (current == null ? "" : ", cancelling listener "
+                            + current.getName()));
         } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            log.error("Exit before the end of processing", e);
+        } catch (ExecutionException e) {
             log.error("Exit before the end of processing", e);
         }
         log.debug("Terminated sync executor from Thread "
                 + Thread.currentThread().getId());
     }
 
+    protected void overrun(EventListenerDescriptor listener, long time) {
+        String name = listener.getName();
+        AtomicLong count = overruns.get(name);
+        if (count == null) {
+            synchronized (overruns) {
+                count = overruns.get(name);
+                if (count == null) {
+                    count = new AtomicLong();
+                    overruns.put(name, count);
+                }
+            }
+        }
+        count.incrementAndGet();
+        log.warn("Post commit sync listener " + name + " took " + time
+                + "ms, over its budget");
+    }
+
     protected class MonoThreadExecutor implements Runnable {
 
+        /** The listener being run. */
+        protected volatile EventListenerDescriptor current;
+
         public void run() {
             EventBundleTransactionHandler txh = new EventBundleTransactionHandler();
             long t0 = System.currentTimeMillis();
             log.debug("Start post commit sync execution in Thread "
                     + Thread.currentThread().getId());
             for (EventListenerDescriptor listener : listeners) {
+                if (Thread.currentThread().isInterrupted()) {
+                    log.debug("Post commit sync execution cancelled before listener "
+                            + listener.getName());
+                    break;
+                }
+                current = listener;
+                long t1 = System.currentTimeMillis();
                 try {
-                    long t1 = System.currentTimeMillis();
                     txh.beginNewTransaction();
-                    listener.asPostCommitListener().handleEvent(event);
+                    listener.asPostCommitListener().handleEvent(
+                            listener.coalesce(event));
                     txh.commitOrRollbackTransaction();
-                    log.debug("End of post commit sync execution for listener " + listener.getName() + " " +
-                            + (System.currentTimeMillis() - t1) + "ms");
                 } catch (Throwable t) {
                     txh.rollbackTransaction();
                 }
+                long time = System.currentTimeMillis() - t1;
+                log.debug("End of post commit sync execution for listener "
+                        + listener.getName() + " " + time + "ms");
+                Integer budget = listener.getTimeBudget();
+                if (time > (budget == null ? timeout : budget.longValue())) {
+                    overrun(listener, time);
+                }
             }
+            current = null;
             log.debug("End of all post commit sync executions : "
                     + (System.currentTimeMillis() - t0) + "ms");
         }
@@ -22,14 +22,26 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.net.URL;
 import java.rmi.dgc.VMID;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.impl.DocumentModelImpl;
 import org.nuxeo.ecm.core.event.Event;
+import org.nuxeo.ecm.core.event.EventBundle;
 import org.nuxeo.ecm.core.event.EventService;
 import org.nuxeo.ecm.core.event.Event.Flag;
+import org.nuxeo.ecm.core.event.impl.AsyncWaitHook;
+import org.nuxeo.ecm.core.event.impl.DocumentEventContext;
+import org.nuxeo.ecm.core.event.impl.EventBundleImpl;
+import org.nuxeo.ecm.core.event.impl.EventCoalescingDescriptor;
 import org.nuxeo.ecm.core.event.impl.EventContextImpl;
 import org.nuxeo.ecm.core.event.impl.EventImpl;
+import org.nuxeo.ecm.core.event.impl.EventListenerDescriptor;
 import org.nuxeo.ecm.core.event.impl.EventServiceImpl;
 import org.nuxeo.runtime.api.Framework;
 import org.nuxeo.runtime.model.RuntimeContext;
@@ -156,6 +168,43 @@ public class EventListenerTest extends NXRuntimeTestCase {
     }
 
 
+    public void testCoalescing() throws Exception {
+        DocumentModel doc1 = new DocumentModelImpl("/", "doc1", "File");
+        DocumentModel doc2 = new DocumentModelImpl("/", "doc2", "File");
+        EventBundleImpl bundle = new EventBundleImpl();
+        bundle.push(new DocumentEventContext(null, null, doc1).newEvent("created"));
+        bundle.push(new DocumentEventContext(null, null, doc1).newEvent("modified"));
+        bundle.push(new DocumentEventContext(null, null, doc2).newEvent("modified"));
+        bundle.push(new DocumentEventContext(null, null, doc1).newEvent("modified"));
+        bundle.push(new DocumentEventContext(null, null, doc1).newEvent("created"));
+        bundle.push(new EventContextImpl(null, null).newEvent("modified"));
+
+        EventListenerDescriptor desc = new EventListenerDescriptor();
+        assertSame(bundle, desc.coalesce(bundle));
+        desc.setCoalescing(new EventCoalescingDescriptor[] {
+                new EventCoalescingDescriptor("created", true),
+                new EventCoalescingDescriptor("modified", false) });
+        EventBundle coalesced = desc.coalesce(bundle);
+        assertEquals(4, coalesced.size());
+        List<Event> events = new ArrayList<Event>();
+        for (Event event : coalesced) {
+            events.add(event);
+        }
+        // first "created", last "modified" of doc1
+        assertSame(getEvent(bundle, 0), events.get(0));
+        assertSame(getEvent(bundle, 2), events.get(1));
+        assertSame(getEvent(bundle, 3), events.get(2));
+        assertSame(getEvent(bundle, 5), events.get(3));
+    }
+
+    protected static Event getEvent(EventBundle bundle, int i) {
+        Iterator<Event> it = bundle.iterator();
+        for (int j = 0; j < i; j++) {
+            it.next();
+        }
+        return it.next();
+    }
+
     public void testRemoteForwarding() throws Exception {
         VMID vmid1 = EventServiceImpl.VMID; // the source vmid
         // generate another different vmid that will be used as the target host VMID
@@ -190,6 +239,41 @@ public class EventListenerTest extends NXRuntimeTestCase {
         assertFalse(event.hasRemoteSource());
     }
 
+    public void testAsyncWaitHook() throws Exception {
+        EventServiceImpl service = (EventServiceImpl) Framework.getLocalService(EventService.class);
+        final AtomicLong pending = new AtomicLong(1);
+        AsyncWaitHook hook = new AsyncWaitHook() {
+            public long getPendingCount() {
+                return pending.get();
+            }
+        };
+        Thread worker = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(500);
+                } catch (InterruptedException e) {
+                    // finish early
+                }
+                pending.set(0);
+            }
+        };
+        service.registerForAsyncWait(hook);
+        try {
+            worker.start();
+            service.waitForAsyncCompletion();
+            assertEquals(0, pending.get());
+        } finally {
+            service.unregisterForAsyncWait(hook);
+        }
+
+        // unregistered hooks are not waited for
+        pending.set(1);
+        long t0 = System.currentTimeMillis();
+        service.waitForAsyncCompletion();
+        assertTrue(System.currentTimeMillis() - t0 < 5000);
+    }
+
     public static Object serialize(Object obj) throws Exception {
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         ObjectOutputStream out = new ObjectOutputStream(baos);
@@ -0,0 +1,276 @@
+/*
+ * (C) Copyright 2009 Nuxeo SAS (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Florent Guillaume
+ */
+
+package org.nuxeo.ecm.core.event.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.core.event.EventBundle;
+import org.nuxeo.ecm.core.event.PostCommitEventListener;
+import org.nuxeo.ecm.core.event.impl.AsyncEventExecutor;
+import org.nuxeo.ecm.core.event.impl.AsyncListenerStats;
+import org.nuxeo.ecm.core.event.impl.EventBundleImpl;
+import org.nuxeo.ecm.core.event.impl.EventContextImpl;
+import org.nuxeo.ecm.core.event.impl.EventListenerDescriptor;
+import org.nuxeo.ecm.core.event.impl.AsyncEventExecutor.QueuePolicy;
+
+/**
+ * Tests the ordering, the queue bounds and the statistics of the async
+ * listeners executor, with a single thread blocked on demand.
+ *
+ * @author Florent Guillaume
+ */
+public class TestAsyncEventExecutor extends TestCase {
+
+    /** The names of the listeners, in the order they were run. */
+    protected final List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+
+    /** Counted down when the blocking listener has started. */
+    protected CountDownLatch blocked;
+
+    /** Releases the blocking listener. */
+    protected CountDownLatch release;
+
+    protected AsyncEventExecutor executor;
+
+    protected static class Descriptor extends EventListenerDescriptor {
+        public Descriptor(String name, int priority,
+                PostCommitEventListener listener) {
+            this.name = name;
+            this.priority = Integer.valueOf(priority);
+            postCommitEventListener = listener;
+            isPostCommit = true;
+            isAsync = Boolean.TRUE;
+        }
+    }
+
+    protected class RecordingListener implements PostCommitEventListener {
+
+        protected final String name;
+
+        protected final boolean fail;
+
+        public RecordingListener(String name, boolean fail) {
+            this.name = name;
+            this.fail = fail;
+        }
+
+        public void handleEvent(EventBundle events) throws ClientException {
+            ran.add(name);
+            if (fail) {
+                throw new ClientException("failure of " + name);
+            }
+        }
+    }
+
+    protected class BlockingListener implements PostCommitEventListener {
+        public void handleEvent(EventBundle events) throws ClientException {
+            blocked.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new ClientException(e);
+            }
+        }
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        blocked = new CountDownLatch(1);
+        release = new CountDownLatch(1);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        release.countDown();
+        super.tearDown();
+    }
+
+    protected static EventBundle newBundle() {
+        EventBundle bundle = new EventBundleImpl();
+        bundle.push(new EventContextImpl().newEvent("test"));
+        return bundle;
+    }
+
+    protected static EventListenerDescriptor listener(String name,
+            int priority, PostCommitEventListener listener) {
+        return new Descriptor(name, priority, listener);
+    }
+
+    protected EventListenerDescriptor recording(String name, int priority) {
+        return listener(name, priority, new RecordingListener(name, false));
+    }
+
+    protected void submit(EventListenerDescriptor listener) {
+        executor.run(Collections.singletonList(listener), newBundle());
+    }
+
+    /**
+     * Occupies the single executor thread until {@link #release} is counted
+     * down.
+     */
+    protected void block() throws Exception {
+        submit(listener("blocker", 0, new BlockingListener()));
+        assertTrue(blocked.await(10, TimeUnit.SECONDS));
+    }
+
+    protected void waitForCompletion() throws Exception {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (executor.getUnfinishedCount() > 0) {
+            assertTrue("timeout", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    protected AsyncListenerStats getStats(String name) {
+        for (AsyncListenerStats stats : executor.getListenerStats()) {
+            if (stats.getName().equals(name)) {
+                return stats;
+            }
+        }
+        return null;
+    }
+
+    public void testPriorityOrder() throws Exception {
+        executor = new AsyncEventExecutor(1, 1, 1, 100, QueuePolicy.BLOCK);
+        block();
+        EventListenerDescriptor low = recording("low", 10);
+        EventListenerDescriptor high = recording("high", 1);
+        EventListenerDescriptor mid = recording("mid", 5);
+        submit(low);
+        submit(high);
+        submit(mid);
+        submit(high);
+        submit(low);
+        release.countDown();
+        waitForCompletion();
+        assertEquals(Arrays.asList("high", "high", "mid", "low", "low"), ran);
+    }
+
+    public void testPriorityAging() throws Exception {
+        // one priority level is worth 1ms of waiting
+        executor = new AsyncEventExecutor(1, 1, 1, 100, QueuePolicy.BLOCK, 1);
+        block();
+        submit(recording("old", 100));
+        Thread.sleep(500);
+        // higher priority but submitted long after
+        submit(recording("new", 0));
+        release.countDown();
+        waitForCompletion();
+        assertEquals(Arrays.asList("old", "new"), ran);
+    }
+
+    public void testNoPriority() throws Exception {
+        executor = new AsyncEventExecutor(1, 1, 1, 100, QueuePolicy.BLOCK, 0);
+        block();
+        submit(recording("a", 10));
+        submit(recording("b", 0));
+        submit(recording("c", 5));
+        release.countDown();
+        waitForCompletion();
+        assertEquals(Arrays.asList("a", "b", "c"), ran);
+    }
+
+    public void testDiscardPolicy() throws Exception {
+        executor = new AsyncEventExecutor(1, 1, 1, 2, QueuePolicy.DISCARD);
+        block();
+        EventListenerDescriptor listener = recording("listener", 0);
+        for (int i = 0; i < 5; i++) {
+            submit(listener);
+        }
+        AsyncListenerStats stats = getStats("listener");
+        assertEquals(2, stats.getQueueDepth());
+        assertEquals(3, stats.getDiscardedCount());
+        release.countDown();
+        waitForCompletion();
+        assertEquals(2, ran.size());
+        assertEquals(0, stats.getQueueDepth());
+        assertEquals(2, stats.getCompletedCount());
+
+        // the slots were released
+        for (int i = 0; i < 2; i++) {
+            submit(listener);
+        }
+        waitForCompletion();
+        assertEquals(4, ran.size());
+        assertEquals(3, stats.getDiscardedCount());
+    }
+
+    public void testBlockPolicy() throws Exception {
+        executor = new AsyncEventExecutor(1, 1, 1, 1, QueuePolicy.BLOCK);
+        block();
+        final EventListenerDescriptor listener = recording("listener", 0);
+        submit(listener);
+        Thread submitter = new Thread() {
+            @Override
+            public void run() {
+                submit(listener);
+            }
+        };
+        submitter.start();
+        submitter.join(500);
+        // waiting for a free slot
+        assertTrue(submitter.isAlive());
+        assertEquals(1, getStats("listener").getQueueDepth());
+        release.countDown();
+        submitter.join(10000);
+        assertFalse(submitter.isAlive());
+        waitForCompletion();
+        assertEquals(2, getStats("listener").getCompletedCount());
+        assertEquals(0, getStats("listener").getDiscardedCount());
+    }
+
+    public void testStats() throws Exception {
+        executor = new AsyncEventExecutor(1, 1, 1, 100, QueuePolicy.BLOCK);
+        EventListenerDescriptor ok = recording("ok", 0);
+        EventListenerDescriptor ko = listener("ko", 0, new RecordingListener(
+                "ko", true));
+        for (int i = 0; i < 3; i++) {
+            submit(ok);
+        }
+        submit(ko);
+        waitForCompletion();
+
+        AsyncListenerStats okStats = getStats("ok");
+        assertEquals(3, okStats.getCompletedCount());
+        assertEquals(0, okStats.getFailedCount());
+        assertEquals(0, okStats.getQueueDepth());
+        assertEquals(0, okStats.getRunningCount());
+        AsyncListenerStats koStats = getStats("ko");
+        assertEquals(0, koStats.getCompletedCount());
+        assertEquals(1, koStats.getFailedCount());
+
+        long total = 0;
+        for (long count : okStats.getRunTimeHistogram()) {
+            total += count;
+        }
+        assertEquals(3, total);
+        assertEquals(AsyncListenerStats.HISTOGRAM_BOUNDS.length + 1,
+                okStats.getRunTimeHistogram().length);
+        assertTrue(okStats.getMaxRunTime() >= okStats.getAverageRunTime());
+    }
+
+}
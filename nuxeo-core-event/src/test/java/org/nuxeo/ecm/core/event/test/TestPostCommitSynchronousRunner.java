@@ -0,0 +1,225 @@
+/*
+ * (C) Copyright 2009 Nuxeo SAS (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Florent Guillaume
+ */
+
+package org.nuxeo.ecm.core.event.test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.core.event.EventBundle;
+import org.nuxeo.ecm.core.event.PostCommitEventListener;
+import org.nuxeo.ecm.core.event.impl.EventBundleImpl;
+import org.nuxeo.ecm.core.event.impl.EventContextImpl;
+import org.nuxeo.ecm.core.event.impl.EventListenerDescriptor;
+import org.nuxeo.ecm.core.event.tx.PostCommitSynchronousRunner;
+import org.nuxeo.runtime.test.NXRuntimeTestCase;
+
+/**
+ * Tests the time out, the overruns and the thread management of the
+ * synchronous post-commit listeners.
+ *
+ * @author Florent Guillaume
+ */
+public class TestPostCommitSynchronousRunner extends NXRuntimeTestCase {
+
+    protected static class Descriptor extends EventListenerDescriptor {
+        public Descriptor(String name, Integer timeBudget,
+                PostCommitEventListener listener) {
+            this.name = name;
+            this.timeBudget = timeBudget;
+            postCommitEventListener = listener;
+            isPostCommit = true;
+        }
+    }
+
+    /**
+     * Sleeps, recording its thread and whether it was interrupted.
+     */
+    protected static class SleepingListener implements
+            PostCommitEventListener {
+
+        protected final long sleep;
+
+        protected volatile Thread thread;
+
+        protected volatile boolean interrupted;
+
+        public SleepingListener(long sleep) {
+            this.sleep = sleep;
+        }
+
+        public void handleEvent(EventBundle events) throws ClientException {
+            thread = Thread.currentThread();
+            try {
+                Thread.sleep(sleep);
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+    }
+
+    /**
+     * Waits for a latch ignoring interrupts, as a listener stuck in I/O.
+     */
+    protected static class StuckListener implements PostCommitEventListener {
+
+        protected final CountDownLatch release;
+
+        public StuckListener(CountDownLatch release) {
+            this.release = release;
+        }
+
+        public void handleEvent(EventBundle events) throws ClientException {
+            for (;;) {
+                try {
+                    release.await();
+                    return;
+                } catch (InterruptedException e) {
+                    // ignored
+                }
+            }
+        }
+    }
+
+    protected CountDownLatch release;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        release = new CountDownLatch(1);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        release.countDown();
+        PostCommitSynchronousRunner.shutdown();
+        super.tearDown();
+    }
+
+    protected static EventBundle newBundle() {
+        EventBundle bundle = new EventBundleImpl();
+        bundle.push(new EventContextImpl().newEvent("test"));
+        return bundle;
+    }
+
+    protected static void run(EventListenerDescriptor listener, long timeout) {
+        new PostCommitSynchronousRunner(Collections.singletonList(listener),
+                newBundle(), timeout).run();
+    }
+
+    public void testRun() throws Exception {
+        SleepingListener listener = new SleepingListener(10);
+        run(new Descriptor("quick", null, listener), 5000);
+        assertNotNull(listener.thread);
+        assertNotSame(Thread.currentThread(), listener.thread);
+        // doesn't prevent the JVM from exiting
+        assertTrue(listener.thread.isDaemon());
+        assertFalse(listener.interrupted);
+    }
+
+    public void testTimeout() throws Exception {
+        long timeouts = PostCommitSynchronousRunner.getTimeoutCount();
+        SleepingListener listener = new SleepingListener(10000);
+        long t0 = System.currentTimeMillis();
+        run(new Descriptor("slow", null, listener), 100);
+        assertTrue(System.currentTimeMillis() - t0 < 5000);
+        assertEquals(timeouts + 1,
+                PostCommitSynchronousRunner.getTimeoutCount());
+        // the listener was cancelled
+        listener.thread.join(5000);
+        assertTrue(listener.interrupted);
+    }
+
+    public void testOverrun() throws Exception {
+        Long before = PostCommitSynchronousRunner.getOverrunCounts().get(
+                "overrun");
+        run(new Descriptor("overrun", Integer.valueOf(10),
+                new SleepingListener(100)), 5000);
+        Long after = PostCommitSynchronousRunner.getOverrunCounts().get(
+                "overrun");
+        assertEquals((before == null ? 0 : before.longValue()) + 1,
+                after.longValue());
+    }
+
+    /**
+     * Listeners stuck past their time out hold their thread, the next ones
+     * are skipped without creating threads until a pool thread is idle again.
+     */
+    public void testStuckListeners() throws Exception {
+        for (int i = 0; i < PostCommitSynchronousRunner.DEFAULT_POOL_SIZE; i++) {
+            run(new Descriptor("stuck", null, new StuckListener(release)), 50);
+        }
+        long skipped = PostCommitSynchronousRunner.getSkippedCount();
+        List<SleepingListener> listeners = new ArrayList<SleepingListener>();
+        for (int i = 0; i < 3; i++) {
+            SleepingListener listener = new SleepingListener(10);
+            listeners.add(listener);
+            run(new Descriptor("quick", null, listener), 5000);
+        }
+        for (SleepingListener listener : listeners) {
+            assertNull(listener.thread);
+        }
+        assertEquals(skipped + 3, PostCommitSynchronousRunner.getSkippedCount());
+
+        // once released, the pool threads run the next listeners
+        release.countDown();
+        SleepingListener listener = new SleepingListener(10);
+        for (int i = 0; i < 100 && listener.thread == null; i++) {
+            Thread.sleep(50);
+            run(new Descriptor("quick", null, listener), 5000);
+        }
+        assertNotNull(listener.thread);
+        assertFalse(listener.interrupted);
+    }
+
+    public void testShutdown() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final SleepingListener sleeping = new SleepingListener(10000) {
+            @Override
+            public void handleEvent(EventBundle events) throws ClientException {
+                started.countDown();
+                super.handleEvent(events);
+            }
+        };
+        Thread caller = new Thread() {
+            @Override
+            public void run() {
+                TestPostCommitSynchronousRunner.run(new Descriptor("sleeping",
+                        null, sleeping), 20000);
+            }
+        };
+        caller.start();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        PostCommitSynchronousRunner.shutdown();
+        // the running listener was interrupted
+        sleeping.thread.join(5000);
+        assertTrue(sleeping.interrupted);
+        caller.join(5000);
+        assertFalse(caller.isAlive());
+
+        // a new pool is created when needed
+        SleepingListener listener = new SleepingListener(10);
+        run(new Descriptor("quick", null, listener), 5000);
+        assertNotNull(listener.thread);
+        assertFalse(listener.interrupted);
+    }
+
+}
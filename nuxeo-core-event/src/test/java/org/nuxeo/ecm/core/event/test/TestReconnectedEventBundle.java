@@ -0,0 +1,255 @@
+/*
+ * (C) Copyright 2009 Nuxeo SAS (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Florent Guillaume
+ */
+
+package org.nuxeo.ecm.core.event.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.nuxeo.common.utils.Path;
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.DocumentModelList;
+import org.nuxeo.ecm.core.api.DocumentRef;
+import org.nuxeo.ecm.core.api.IdRef;
+import org.nuxeo.ecm.core.api.SimplePrincipal;
+import org.nuxeo.ecm.core.api.impl.DocumentModelImpl;
+import org.nuxeo.ecm.core.api.impl.DocumentModelListImpl;
+import org.nuxeo.ecm.core.event.Event;
+import org.nuxeo.ecm.core.event.EventBundle;
+import org.nuxeo.ecm.core.event.EventContext;
+import org.nuxeo.ecm.core.event.impl.DocumentEventContext;
+import org.nuxeo.ecm.core.event.impl.EventBundleImpl;
+import org.nuxeo.ecm.core.event.impl.ReconnectedEventBundleImpl;
+import org.nuxeo.ecm.core.event.impl.SharedReconnectedEventBundleImpl;
+
+/**
+ * Tests the bulk refetch of the documents of a reconnected bundle, and the
+ * copies of the documents of a shared bundle.
+ *
+ * @author Florent Guillaume
+ */
+public class TestReconnectedEventBundle extends TestCase {
+
+    /**
+     * Session of a given repository recording the documents fetched. Deleted
+     * documents are not returned.
+     */
+    static class RecordingCoreSession extends FakeCoreSession {
+
+        final String repositoryName;
+
+        final List<List<DocumentRef>> fetched = new ArrayList<List<DocumentRef>>();
+
+        final List<DocumentRef> deleted = new ArrayList<DocumentRef>();
+
+        RecordingCoreSession(String repositoryName) {
+            this.repositoryName = repositoryName;
+        }
+
+        @Override
+        public String getRepositoryName() {
+            return repositoryName;
+        }
+
+        @Override
+        public String getSessionId() {
+            return "fake-" + repositoryName;
+        }
+
+        @Override
+        public DocumentModelList getDocuments(DocumentRef[] docRefs)
+                throws ClientException {
+            fetched.add(Arrays.asList(docRefs));
+            DocumentModelList docs = new DocumentModelListImpl();
+            for (DocumentRef ref : docRefs) {
+                if (!deleted.contains(ref)) {
+                    docs.add(newDoc(ref.toString(), repositoryName));
+                }
+            }
+            return docs;
+        }
+    }
+
+    static class TestBundle extends ReconnectedEventBundleImpl {
+
+        private static final long serialVersionUID = 1L;
+
+        final Map<String, CoreSession> repoSessions;
+
+        TestBundle(EventBundle source, Map<String, CoreSession> repoSessions) {
+            super(source);
+            this.repoSessions = repoSessions;
+        }
+
+        @Override
+        protected CoreSession getReconnectedCoreSession(String repoName) {
+            CoreSession session = repoSessions.get(repoName);
+            reconnectedCoreSessions.put(repoName, session);
+            return session;
+        }
+    }
+
+    protected static DocumentModel newDoc(String id, String repositoryName) {
+        return new DocumentModelImpl("sid-" + repositoryName, "File", id,
+                new Path("/" + id), null, new IdRef(id), new IdRef("parent"),
+                new String[] { "file" }, null, null, repositoryName);
+    }
+
+    protected static Event newEvent(String name, String repositoryName,
+            String id, DocumentRef destination) {
+        EventContext ctx = new DocumentEventContext(null, new SimplePrincipal(
+                "bob"), newDoc(id, repositoryName), destination);
+        ctx.setRepositoryName(repositoryName);
+        return ctx.newEvent(name);
+    }
+
+    public void testFetchByRepository() throws Exception {
+        RecordingCoreSession session1 = new RecordingCoreSession("repo1");
+        RecordingCoreSession session2 = new RecordingCoreSession("repo2");
+        session1.deleted.add(new IdRef("b"));
+        Map<String, CoreSession> sessions = new HashMap<String, CoreSession>();
+        sessions.put("repo1", session1);
+        sessions.put("repo2", session2);
+
+        EventBundle source = new EventBundleImpl();
+        source.push(newEvent("evt1", "repo1", "a", null));
+        source.push(newEvent("evt2", "repo2", "c", null));
+        source.push(newEvent("evt3", "repo1", "b", null));
+        source.push(newEvent("evt4", "repo1", "a", null));
+        List<DocumentModel> sourceDocs = new ArrayList<DocumentModel>();
+        for (Event event : source) {
+            sourceDocs.add((DocumentModel) event.getContext().getArguments()[0]);
+        }
+
+        TestBundle bundle = new TestBundle(source, sessions);
+        List<Event> events = new ArrayList<Event>();
+        for (Event event : bundle) {
+            events.add(event);
+        }
+        assertEquals(4, events.size());
+
+        // one fetch per repository, each with its own documents only
+        assertEquals(1, session1.fetched.size());
+        assertEquals(Arrays.asList(new IdRef("a"), new IdRef("b")),
+                session1.fetched.get(0));
+        assertEquals(1, session2.fetched.size());
+        assertEquals(Arrays.asList(new IdRef("c")), session2.fetched.get(0));
+
+        String[] repos = { "repo1", "repo2", "repo1", "repo1" };
+        for (int i = 0; i < events.size(); i++) {
+            EventContext ctx = events.get(i).getContext();
+            assertEquals(repos[i], ctx.getRepositoryName());
+            assertSame(sessions.get(repos[i]), ctx.getCoreSession());
+            DocumentModel doc = (DocumentModel) ctx.getArguments()[0];
+            assertEquals(repos[i], doc.getRepositoryName());
+            if (i == 2) {
+                // deleted, the source document is kept
+                assertSame(sourceDocs.get(i), doc);
+            } else {
+                assertNotSame(sourceDocs.get(i), doc);
+                assertEquals(sourceDocs.get(i).getRef(), doc.getRef());
+            }
+        }
+
+        bundle.disconnect();
+    }
+
+    protected static List<Event> getEvents(EventBundle bundle) {
+        List<Event> events = new ArrayList<Event>();
+        for (Event event : bundle) {
+            events.add(event);
+        }
+        return events;
+    }
+
+    /**
+     * The listeners of a shared bundle get their own copies of the documents,
+     * fetched only once.
+     */
+    public void testSharedBundle() throws Exception {
+        final RecordingCoreSession session = new RecordingCoreSession("repo1") {
+            @Override
+            public DocumentModelList getDocuments(DocumentRef[] docRefs)
+                    throws ClientException {
+                fetched.add(Arrays.asList(docRefs));
+                DocumentModelList docs = new DocumentModelListImpl();
+                for (DocumentRef ref : docRefs) {
+                    // already detached
+                    docs.add(new DocumentModelImpl(null, "File",
+                            ref.toString(), new Path("/" + ref), null, ref,
+                            new IdRef("parent"), new String[] { "file" },
+                            new HashSet<String>(), null, repositoryName));
+                }
+                return docs;
+            }
+        };
+        EventBundle source = new EventBundleImpl();
+        source.push(newEvent("evt1", "repo1", "a", null));
+        source.push(newEvent("evt2", "repo1", "b", null));
+
+        SharedReconnectedEventBundleImpl bundle1 = new SharedReconnectedEventBundleImpl(
+                source) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected CoreSession getReconnectedCoreSession(String repoName) {
+                reconnectedCoreSessions.put(repoName, session);
+                return session;
+            }
+        };
+        SharedReconnectedEventBundleImpl bundle2 = bundle1.newListenerBundle();
+        // the second listener may iterate first
+        List<Event> events2 = getEvents(bundle2);
+        List<Event> events1 = getEvents(bundle1);
+        assertEquals(1, session.fetched.size());
+        assertEquals(2, events1.size());
+        assertEquals(2, events2.size());
+
+        for (int i = 0; i < 2; i++) {
+            EventContext ctx1 = events1.get(i).getContext();
+            EventContext ctx2 = events2.get(i).getContext();
+            assertNull(ctx1.getCoreSession());
+            assertNull(ctx2.getCoreSession());
+            assertEquals("repo1", ctx1.getRepositoryName());
+            assertEquals("repo1", ctx2.getRepositoryName());
+            DocumentModel doc1 = (DocumentModel) ctx1.getArguments()[0];
+            DocumentModel doc2 = (DocumentModel) ctx2.getArguments()[0];
+            assertNotSame(doc1, doc2);
+            assertEquals(doc1.getRef(), doc2.getRef());
+            // a change by one listener isn't seen by the other
+            doc1.getDeclaredFacets().add("Changed");
+            assertFalse(doc2.getDeclaredFacets().contains("Changed"));
+        }
+
+        // a third listener gets copies of the unchanged snapshot
+        List<Event> events3 = getEvents(bundle1.newListenerBundle());
+        DocumentModel doc3 = (DocumentModel) events3.get(0).getContext().getArguments()[0];
+        assertFalse(doc3.getDeclaredFacets().contains("Changed"));
+        assertEquals(1, session.fetched.size());
+
+        bundle1.disconnect();
+    }
+
+}
@@ -34,6 +34,8 @@ public final class ExportConstants {
 
     public static final String DOCUMENT_FILE = "document.xml";
 
+    public static final String DOCUMENTS_TAG = "documents";
+
     public static final String DOCUMENT_TAG = "document";
 
     public static final String SYSTEM_TAG = "system";
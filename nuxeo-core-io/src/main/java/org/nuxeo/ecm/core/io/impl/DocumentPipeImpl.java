@@ -22,7 +22,10 @@ package org.nuxeo.ecm.core.io.impl;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.nuxeo.ecm.core.io.DocumentPipe;
 import org.nuxeo.ecm.core.io.DocumentReader;
 import org.nuxeo.ecm.core.io.DocumentTransformer;
@@ -36,14 +39,28 @@ import org.nuxeo.ecm.core.io.ExportedDocument;
  */
 public class DocumentPipeImpl implements DocumentPipe {
 
-    private final List<DocumentTransformer> transformers;
+    private static final Log log = LogFactory.getLog(DocumentPipeImpl.class);
 
-    private final int pageSize;
+    /** The minimum interval between two progress logs, in milliseconds. */
+    public static final long PROGRESS_INTERVAL = 10000;
 
-    private DocumentReader reader;
+    protected final List<DocumentTransformer> transformers;
 
-    private DocumentWriter writer;
+    protected final int pageSize;
 
+    protected DocumentReader reader;
+
+    protected DocumentWriter writer;
+
+    protected final AtomicLong readCount = new AtomicLong();
+
+    protected final AtomicLong writtenCount = new AtomicLong();
+
+    protected long startTime;
+
+    protected long endTime;
+
+    protected long lastProgressTime;
 
     public DocumentPipeImpl(int pageSize) {
         this.pageSize = pageSize;
@@ -91,21 +108,32 @@ public class DocumentPipeImpl implements DocumentPipe {
             throw new IllegalArgumentException("Pipe writer cannot be null");
         }
 
-        List<DocumentTranslationMap> maps = new ArrayList<DocumentTranslationMap>();
-        readAndWriteDocs(maps);
-        return DocumentTranslationMapImpl.merge(maps);
+        readCount.set(0);
+        writtenCount.set(0);
+        startTime = lastProgressTime = System.currentTimeMillis();
+        endTime = 0;
+        try {
+            return readAndWriteDocs();
+        } finally {
+            endTime = System.currentTimeMillis();
+            if (log.isDebugEnabled()) {
+                log.debug("Pipe done: " + getProgress());
+            }
+        }
     }
 
-    private void readAndWriteDocs(List<DocumentTranslationMap> maps)
-            throws IOException {
+    protected DocumentTranslationMap readAndWriteDocs() throws Exception {
+        DocumentTranslationMap result = null;
         if (pageSize == 0) {
             // handle single doc case
 
             ExportedDocument doc = null;
             while ((doc = reader.read()) != null) {
+                readCount.incrementAndGet();
                 applyTransforms(doc);
                 DocumentTranslationMap map = writer.write(doc);
-                maps.add(map);
+                result = merge(result, map);
+                documentsWritten(1);
             }
 
         } else {
@@ -114,14 +142,88 @@ public class DocumentPipeImpl implements DocumentPipe {
             DocumentTranslationMap map = null;
             while ((docs = reader.read(pageSize)) != null) {
                 if (docs.length != 0) {
+                    readCount.addAndGet(docs.length);
                     applyTransforms(docs);
                     map = writer.write(docs);
-                    if (map != null) {
-                        maps.add(map);
-                    }
+                    result = merge(result, map);
+                    documentsWritten(docs.length);
                 }
             }
         }
+        return result;
+    }
+
+    /**
+     * Merges a translation map returned by the writer into the result, as
+     * soon as it is returned so that all the maps aren't kept until the end.
+     *
+     * @param result the result so far, or {@code null}
+     * @param map the map to merge, or {@code null}
+     * @return the new result
+     */
+    protected DocumentTranslationMap merge(DocumentTranslationMap result,
+            DocumentTranslationMap map) {
+        if (map == null) {
+            return result;
+        }
+        if (result == null) {
+            // take first one as reference
+            result = new DocumentTranslationMapImpl(map.getOldServerName(),
+                    map.getNewServerName());
+        }
+        result.putAll(map.getDocRefMap());
+        return result;
+    }
+
+    protected void documentsWritten(int count) {
+        writtenCount.addAndGet(count);
+        if (log.isInfoEnabled()) {
+            long now = System.currentTimeMillis();
+            if (now - lastProgressTime >= PROGRESS_INTERVAL) {
+                lastProgressTime = now;
+                log.info(getProgress());
+            }
+        }
+    }
+
+    protected String getProgress() {
+        return "read " + getReadCount() + " documents, written "
+                + getWrittenCount() + " documents in " + getElapsedTime()
+                + "ms (" + getThroughput() + " docs/s)";
+    }
+
+    /**
+     * Gets the number of documents read so far by the last run.
+     */
+    public long getReadCount() {
+        return readCount.get();
+    }
+
+    /**
+     * Gets the number of documents written so far by the last run.
+     */
+    public long getWrittenCount() {
+        return writtenCount.get();
+    }
+
+    /**
+     * Gets the duration of the last run, or the time since its start if it
+     * is still running, in milliseconds.
+     */
+    public long getElapsedTime() {
+        if (startTime == 0) {
+            return 0;
+        }
+        long end = endTime == 0 ? System.currentTimeMillis() : endTime;
+        return end - startTime;
+    }
+
+    /**
+     * Gets the number of documents written per second by the last run.
+     */
+    public long getThroughput() {
+        long elapsed = getElapsedTime();
+        return elapsed == 0 ? 0 : getWrittenCount() * 1000 / elapsed;
     }
 
     public void applyTransforms(ExportedDocument doc) throws IOException {
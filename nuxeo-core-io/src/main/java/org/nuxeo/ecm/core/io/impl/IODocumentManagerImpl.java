@@ -41,6 +41,7 @@ import org.nuxeo.ecm.core.io.DocumentWriter;
 import org.nuxeo.ecm.core.io.IODocumentManager;
 import org.nuxeo.ecm.core.io.exceptions.ExportDocumentException;
 import org.nuxeo.ecm.core.io.exceptions.ImportDocumentException;
+import org.nuxeo.ecm.core.io.impl.plugins.DocumentModelBatchWriter;
 import org.nuxeo.ecm.core.io.impl.plugins.DocumentModelWriter;
 import org.nuxeo.ecm.core.io.impl.plugins.DocumentTreeReader;
 import org.nuxeo.ecm.core.io.impl.plugins.DocumentsListReader;
@@ -59,6 +60,54 @@ public class IODocumentManagerImpl implements IODocumentManager {
 
     private static final Log log = LogFactory.getLog(IODocumentManagerImpl.class);
 
+    /**
+     * The number of transformer threads of the pipes importing or exporting
+     * archives. When set, the documents are read and written in separate
+     * threads, see {@link ParallelDocumentPipeImpl}.
+     */
+    public static final String PIPE_THREADS_PROP = "org.nuxeo.ecm.core.io.pipe.threads";
+
+    /**
+     * When {@code true}, archives are imported by a
+     * {@link DocumentModelBatchWriter}, which always creates new documents
+     * and saves them in batches, instead of a {@link DocumentModelWriter}.
+     * Only suited to imports into an empty tree.
+     */
+    public static final String IMPORT_BATCH_PROP = "org.nuxeo.ecm.core.io.import.batch";
+
+    /**
+     * Creates the pipe of an import from an archive or of an export to an
+     * archive. One side of such pipes doesn't hold a session and may run in
+     * its own thread.
+     */
+    protected static DocumentPipe newArchivePipe(int pageSize) {
+        String val = Framework.getProperty(PIPE_THREADS_PROP);
+        int threads = 0;
+        if (val != null) {
+            try {
+                threads = Integer.parseInt(val.trim());
+            } catch (NumberFormatException e) {
+                log.error("Invalid value for " + PIPE_THREADS_PROP + ": "
+                        + val + ", using a serial pipe");
+            }
+        }
+        if (threads <= 0) {
+            return new DocumentPipeImpl(pageSize);
+        }
+        return new ParallelDocumentPipeImpl(pageSize, threads);
+    }
+
+    /**
+     * Creates the writer of an import from an archive, depending on
+     * {@link #IMPORT_BATCH_PROP}.
+     */
+    protected static AbstractDocumentModelWriter newImportWriter(
+            CoreSession session, String parentPath) {
+        if (Boolean.parseBoolean(Framework.getProperty(IMPORT_BATCH_PROP))) {
+            return new DocumentModelBatchWriter(session, parentPath);
+        }
+        return new DocumentModelWriter(session, parentPath);
+    }
 
     private static CoreSession getCoreSession(String repo)
             throws ClientException {
@@ -87,12 +136,12 @@ public class IODocumentManagerImpl implements IODocumentManager {
         final DocumentModel dst = coreSession.getDocument(root);
 
         DocumentReader reader = null;
-        DocumentModelWriter writer = null;
+        DocumentWriter writer = null;
 
         try {
             reader = new NuxeoArchiveReader(in);
-            writer = new DocumentModelWriter(coreSession, dst.getPathAsString());
-            DocumentPipe pipe = new DocumentPipeImpl(10);
+            writer = newImportWriter(coreSession, dst.getPathAsString());
+            DocumentPipe pipe = newArchivePipe(10);
             pipe.setReader(reader);
             pipe.setWriter(writer);
             return pipe.run();
@@ -118,7 +167,7 @@ public class IODocumentManagerImpl implements IODocumentManager {
 
         try {
             reader = new NuxeoArchiveReader(in);
-            DocumentPipe pipe = new DocumentPipeImpl(10);
+            DocumentPipe pipe = newArchivePipe(10);
             pipe.setReader(reader);
             pipe.setWriter(customDocWriter);
             DocumentTranslationMap map = pipe.run();
@@ -146,7 +195,7 @@ public class IODocumentManagerImpl implements IODocumentManager {
         DocumentWriter writer = null;
 
         try {
-            DocumentPipe pipe = new DocumentPipeImpl(10);
+            DocumentPipe pipe = newArchivePipe(10);
             // XXX check format before creating writer
             writer = new NuxeoArchiveWriter(out);
             pipe.setWriter(writer);
@@ -187,7 +236,13 @@ public class IODocumentManagerImpl implements IODocumentManager {
         DocumentWriter writer = null;
 
         try {
-            DocumentPipe pipe = new DocumentPipeImpl(10);
+            DocumentPipe pipe;
+            if (ParallelDocumentPipeImpl.isSessionBound(customDocReader)) {
+                pipe = newArchivePipe(10);
+            } else {
+                // the reader may hold a session of an unknown kind
+                pipe = new DocumentPipeImpl(10);
+            }
             // XXX check format before creating writer
             writer = new NuxeoArchiveWriter(out);
             pipe.setWriter(writer);
@@ -0,0 +1,391 @@
+/*
+ * (C) Copyright 2009 Nuxeo SAS (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Florent Guillaume
+ */
+
+package org.nuxeo.ecm.core.io.impl;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.io.DocumentTranslationMap;
+import org.nuxeo.ecm.core.io.DocumentReader;
+import org.nuxeo.ecm.core.io.DocumentWriter;
+import org.nuxeo.ecm.core.io.ExportedDocument;
+import org.nuxeo.ecm.core.io.impl.plugins.DocumentModelReader;
+
+/**
+ * A document pipe whose stages run concurrently.
+ * <p>
+ * The reader runs in its own thread and hands the pages it reads to a pool of
+ * transformer threads. The writer runs in the calling thread, so that writes
+ * stay in the caller's transaction, and writes the pages in the order they
+ * were read, which keeps parents before their children. A bounded queue of
+ * pages between the reader and the writer limits the memory used when the
+ * writer is the slowest stage.
+ * <p>
+ * A session is tied to the thread and transaction that opened it, so a
+ * reader of documents from a session ({@link DocumentModelReader}) is run in
+ * the calling thread instead, and the writer in its own thread: this is the
+ * case of exports. When both the reader and the writer hold a session
+ * ({@link AbstractDocumentModelWriter}), the pipe runs serially in the
+ * calling thread, as {@link DocumentPipeImpl}. Other readers or writers
+ * holding a session must not be used with this pipe.
+ * <p>
+ * The transformers are called concurrently on different pages and must
+ * therefore be thread-safe. The reader and the writer are each only used by
+ * one thread.
+ *
+ * @author Florent Guillaume
+ */
+public class ParallelDocumentPipeImpl extends DocumentPipeImpl {
+
+    private static final Log log = LogFactory.getLog(ParallelDocumentPipeImpl.class);
+
+    public static final int DEFAULT_QUEUE_SIZE = 20;
+
+    /** Marks the end of the pages read. */
+    protected static final Future<ExportedDocument[]> END = new FutureTask<ExportedDocument[]>(
+            new Callable<ExportedDocument[]>() {
+                public ExportedDocument[] call() {
+                    return null;
+                }
+            });
+
+    protected final int nbTransformerThreads;
+
+    protected final int queueSize;
+
+    /**
+     * @param pageSize the number of documents read at once, {@code 0} to
+     *            read them one at a time
+     * @param nbTransformerThreads the number of threads running the
+     *            transformers
+     * @param queueSize the maximum number of pages read and not yet written
+     */
+    public ParallelDocumentPipeImpl(int pageSize, int nbTransformerThreads,
+            int queueSize) {
+        super(pageSize);
+        if (nbTransformerThreads < 1 || queueSize < 1) {
+            throw new IllegalArgumentException(
+                    "Thread count and queue size must be positive");
+        }
+        this.nbTransformerThreads = nbTransformerThreads;
+        this.queueSize = queueSize;
+    }
+
+    public ParallelDocumentPipeImpl(int pageSize, int nbTransformerThreads) {
+        this(pageSize, nbTransformerThreads, DEFAULT_QUEUE_SIZE);
+    }
+
+    /**
+     * Checks if a reader holds a session, and must therefore be used by the
+     * calling thread.
+     */
+    protected static boolean isSessionBound(DocumentReader reader) {
+        return reader instanceof DocumentModelReader;
+    }
+
+    /**
+     * Checks if a writer holds a session, and must therefore be used by the
+     * calling thread.
+     */
+    protected static boolean isSessionBound(DocumentWriter writer) {
+        return writer instanceof AbstractDocumentModelWriter;
+    }
+
+    @Override
+    protected DocumentTranslationMap readAndWriteDocs() throws Exception {
+        boolean readInCaller = isSessionBound(reader);
+        if (readInCaller && isSessionBound(writer)) {
+            log.debug("Reader and writer holding a session, running serially: "
+                    + reader.getClass().getName() + ", "
+                    + writer.getClass().getName());
+            return super.readAndWriteDocs();
+        }
+        ExecutorService pool = null;
+        if (!transformers.isEmpty()) {
+            pool = Executors.newFixedThreadPool(nbTransformerThreads,
+                    new NamedThreadFactory("DocumentPipe-transformer"));
+        }
+        BlockingQueue<Future<ExportedDocument[]>> pages = new ArrayBlockingQueue<Future<ExportedDocument[]>>(
+                queueSize);
+        try {
+            if (readInCaller) {
+                return writeInThread(pages, pool);
+            } else {
+                return readInThread(pages, pool);
+            }
+        } finally {
+            if (pool != null) {
+                pool.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Reads in a separate thread and writes in the calling thread.
+     */
+    protected DocumentTranslationMap readInThread(
+            BlockingQueue<Future<ExportedDocument[]>> pages,
+            ExecutorService pool) throws Exception {
+        Thread readerThread = new Thread(new ReaderTask(pages, pool, null),
+                "DocumentPipe-reader");
+        readerThread.setDaemon(true);
+        readerThread.start();
+        try {
+            return writePages(pages);
+        } finally {
+            // stops the reader if the writer failed
+            readerThread.interrupt();
+            readerThread.join();
+        }
+    }
+
+    /**
+     * Reads in the calling thread and writes in a separate thread.
+     */
+    protected DocumentTranslationMap writeInThread(
+            BlockingQueue<Future<ExportedDocument[]>> pages,
+            ExecutorService pool) throws Exception {
+        FutureTask<DocumentTranslationMap> writing = new FutureTask<DocumentTranslationMap>(
+                new WriterTask(pages));
+        Thread writerThread = new Thread(writing, "DocumentPipe-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+        try {
+            // read errors are handed to the writer, which reports them
+            new ReaderTask(pages, pool, writing).run();
+            return getResult(writing);
+        } finally {
+            // stops the writer if the reader was interrupted
+            writerThread.interrupt();
+            writerThread.join();
+        }
+    }
+
+    /**
+     * Writes the pages in the order they were read, until the end is
+     * reached.
+     */
+    protected DocumentTranslationMap writePages(
+            BlockingQueue<Future<ExportedDocument[]>> pages) throws Exception {
+        DocumentTranslationMap result = null;
+        for (;;) {
+            Future<ExportedDocument[]> page = pages.take();
+            if (page == END) {
+                break;
+            }
+            ExportedDocument[] docs = getResult(page);
+            DocumentTranslationMap map;
+            if (pageSize == 0) {
+                map = writer.write(docs[0]);
+            } else {
+                map = writer.write(docs);
+            }
+            result = merge(result, map);
+            documentsWritten(docs.length);
+        }
+        return result;
+    }
+
+    protected static <T> T getResult(Future<T> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Reads the pages and hands them to the transformer threads.
+     */
+    protected class ReaderTask implements Runnable {
+
+        protected final BlockingQueue<Future<ExportedDocument[]>> pages;
+
+        protected final ExecutorService pool;
+
+        protected final Future<?> writing;
+
+        /**
+         * @param writing the writer's task when it runs in its own thread, to
+         *            stop reading when it fails, or {@code null} if it runs
+         *            in the calling thread, which interrupts the reader
+         */
+        public ReaderTask(BlockingQueue<Future<ExportedDocument[]>> pages,
+                ExecutorService pool, Future<?> writing) {
+            this.pages = pages;
+            this.pool = pool;
+            this.writing = writing;
+        }
+
+        public void run() {
+            try {
+                if (readPages()) {
+                    putPage(END);
+                }
+            } catch (InterruptedException e) {
+                // the writer stopped, or the calling thread was interrupted
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Queues a page for the writer.
+         *
+         * @return {@code false} if the writer has stopped
+         */
+        protected boolean putPage(Future<ExportedDocument[]> page)
+                throws InterruptedException {
+            if (writing == null) {
+                pages.put(page);
+                return true;
+            }
+            while (!pages.offer(page, 100, TimeUnit.MILLISECONDS)) {
+                if (writing.isDone()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Reads all the pages.
+         *
+         * @return {@code false} if the writer has stopped
+         */
+        protected boolean readPages() throws InterruptedException {
+            try {
+                for (;;) {
+                    ExportedDocument[] docs;
+                    if (pageSize == 0) {
+                        ExportedDocument doc = reader.read();
+                        docs = doc == null ? null
+                                : new ExportedDocument[] { doc };
+                    } else {
+                        docs = reader.read(pageSize);
+                    }
+                    if (docs == null) {
+                        break;
+                    }
+                    if (docs.length == 0) {
+                        continue;
+                    }
+                    readCount.addAndGet(docs.length);
+                    FutureTask<ExportedDocument[]> page = new FutureTask<ExportedDocument[]>(
+                            new TransformTask(docs));
+                    if (pool == null) {
+                        page.run();
+                    } else {
+                        pool.execute(page);
+                    }
+                    // blocks when the writer lags behind
+                    if (!putPage(page)) {
+                        return false;
+                    }
+                }
+                return true;
+            } catch (InterruptedException e) {
+                throw e;
+            } catch (Throwable t) {
+                log.debug("Error reading documents", t);
+                final Exception e = t instanceof Exception ? (Exception) t
+                        : new RuntimeException(t);
+                // hand the error to the writer
+                FutureTask<ExportedDocument[]> error = new FutureTask<ExportedDocument[]>(
+                        new Callable<ExportedDocument[]>() {
+                            public ExportedDocument[] call() throws Exception {
+                                throw e;
+                            }
+                        });
+                error.run();
+                putPage(error);
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Writes the pages, when the reader runs in the calling thread.
+     */
+    protected class WriterTask implements Callable<DocumentTranslationMap> {
+
+        protected final BlockingQueue<Future<ExportedDocument[]>> pages;
+
+        public WriterTask(BlockingQueue<Future<ExportedDocument[]>> pages) {
+            this.pages = pages;
+        }
+
+        public DocumentTranslationMap call() throws Exception {
+            return writePages(pages);
+        }
+    }
+
+    /**
+     * Applies the transformers to a page.
+     */
+    protected class TransformTask implements Callable<ExportedDocument[]> {
+
+        protected final ExportedDocument[] docs;
+
+        public TransformTask(ExportedDocument[] docs) {
+            this.docs = docs;
+        }
+
+        public ExportedDocument[] call() throws IOException {
+            applyTransforms(docs);
+            return docs;
+        }
+    }
+
+    protected static class NamedThreadFactory implements ThreadFactory {
+
+        protected final AtomicInteger count = new AtomicInteger();
+
+        protected final String prefix;
+
+        public NamedThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, prefix + "-"
+                    + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+}
@@ -0,0 +1,239 @@
+/*
+ * (C) Copyright 2009 Nuxeo SAS (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Florent Guillaume
+ */
+
+package org.nuxeo.ecm.core.io.impl.plugins;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.common.utils.Path;
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DataModel;
+import org.nuxeo.ecm.core.api.DocumentLocation;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.DocumentRef;
+import org.nuxeo.ecm.core.api.PathRef;
+import org.nuxeo.ecm.core.api.impl.DocumentModelImpl;
+import org.nuxeo.ecm.core.io.DocumentTranslationMap;
+import org.nuxeo.ecm.core.io.ExportedDocument;
+import org.nuxeo.ecm.core.io.impl.AbstractDocumentModelWriter;
+import org.nuxeo.ecm.core.io.impl.DocumentTranslationMapImpl;
+
+/**
+ * A writer creating new documents, saving them in batches, for large imports
+ * into an empty tree.
+ * <p>
+ * Unlike {@link DocumentModelWriter}, it doesn't check if the documents
+ * already exist, and it always creates them. The documents are filled before
+ * their creation, which saves the second write of each document. Those of a
+ * page are passed together to {@link CoreSession#createDocument(DocumentModel[])},
+ * which still creates them one at a time; the page is cut before a document
+ * whose parent is in it, so that the parent exists when the page is passed.
+ * <p>
+ * Parents are resolved by id, using the documents previously created by this
+ * writer, and by path otherwise. A document whose name was already taken is
+ * created under another name by the session; the paths of its descendants
+ * are translated accordingly.
+ * <p>
+ * The session is saved every {@link #getSaveInterval} documents, which
+ * bounds the size of the transactions.
+ * <p>
+ * Archive imports use this writer instead of {@link DocumentModelWriter} when
+ * {@link org.nuxeo.ecm.core.io.impl.IODocumentManagerImpl#IMPORT_BATCH_PROP}
+ * is {@code true}.
+ *
+ * @author Florent Guillaume
+ */
+public class DocumentModelBatchWriter extends AbstractDocumentModelWriter {
+
+    private static final Log log = LogFactory.getLog(DocumentModelBatchWriter.class);
+
+    public static final int DEFAULT_SAVE_INTERVAL = 1000;
+
+    /**
+     * The number of created documents whose refs are remembered to resolve
+     * the parents of the next documents.
+     */
+    public static final int DEFAULT_REF_CACHE_SIZE = 10000;
+
+    /** The refs of the last created documents, by target path. */
+    protected final Map<String, DocumentRef> createdRefs;
+
+    /**
+     * The target paths of the documents created under another name, mapped
+     * to their actual path. Renames are rare, so they are all kept.
+     */
+    protected final Map<String, String> renamedPaths = new HashMap<String, String>();
+
+    public DocumentModelBatchWriter(CoreSession session, String parentPath) {
+        this(session, parentPath, DEFAULT_SAVE_INTERVAL);
+    }
+
+    public DocumentModelBatchWriter(CoreSession session, String parentPath,
+            int saveInterval) {
+        this(session, parentPath, saveInterval, DEFAULT_REF_CACHE_SIZE);
+    }
+
+    public DocumentModelBatchWriter(CoreSession session, String parentPath,
+            int saveInterval, final int refCacheSize) {
+        super(session, parentPath, saveInterval);
+        createdRefs = new LinkedHashMap<String, DocumentRef>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<String, DocumentRef> eldest) {
+                return size() > refCacheSize;
+            }
+        };
+    }
+
+    @Override
+    public DocumentTranslationMap write(ExportedDocument xdoc)
+            throws IOException {
+        return write(new ExportedDocument[] { xdoc });
+    }
+
+    @Override
+    public DocumentTranslationMap write(ExportedDocument[] xdocs)
+            throws IOException {
+        if (xdocs == null || xdocs.length == 0) {
+            return null;
+        }
+        try {
+            return doWrite(xdocs);
+        } catch (ClientException e) {
+            IOException ioe = new IOException(
+                    "Failed to import documents in repository: "
+                            + e.getMessage());
+            ioe.initCause(e);
+            throw ioe;
+        }
+    }
+
+    protected DocumentTranslationMap doWrite(ExportedDocument[] xdocs)
+            throws ClientException {
+        DocumentTranslationMap map = null;
+        List<ExportedDocument> page = new ArrayList<ExportedDocument>();
+        List<DocumentModel> models = new ArrayList<DocumentModel>();
+        Set<String> pagePaths = new HashSet<String>();
+        for (ExportedDocument xdoc : xdocs) {
+            if (xdoc.getDocument() == null) {
+                // not a valid doc -> this may be a regular folder for example
+                // the root of the tree
+                continue;
+            }
+            Path path = root.append(xdoc.getPath());
+            String parentPath = path.removeLastSegments(1).toString();
+            if (pagePaths.contains(parentPath)) {
+                // create the parent first to be able to refer to it by id
+                map = createPage(page, models, map);
+                pagePaths.clear();
+            }
+            page.add(xdoc);
+            models.add(newDocumentModel(xdoc, path));
+            pagePaths.add(path.toString());
+        }
+        return createPage(page, models, map);
+    }
+
+    /**
+     * Prepares a filled document model to be created at the given path.
+     */
+    protected DocumentModel newDocumentModel(ExportedDocument xdoc, Path path)
+            throws ClientException {
+        String parentPath = path.removeLastSegments(1).toString();
+        DocumentRef parentRef = createdRefs.get(parentPath);
+        if (parentRef == null) {
+            parentRef = new PathRef(getActualPath(parentPath));
+        }
+        DocumentModel template = session.createDocumentModel(xdoc.getType());
+        DocumentModelImpl doc = new DocumentModelImpl(null, xdoc.getType(),
+                null, path, null, null, parentRef,
+                template.getDeclaredSchemas(), template.getDeclaredFacets());
+        for (DataModel dataModel : template.getDataModelsCollection()) {
+            doc.addDataModel(dataModel);
+        }
+        loadSchemas(xdoc, doc, xdoc.getDocument());
+        return doc;
+    }
+
+    /**
+     * Gets the path of a document of the tree being written, taking into
+     * account the ancestors created under another name.
+     */
+    protected String getActualPath(String path) {
+        if (renamedPaths.isEmpty()) {
+            return path;
+        }
+        Path p = new Path(path);
+        for (int n = 0; n < p.segmentCount(); n++) {
+            String prefix = p.removeLastSegments(n).toString();
+            String actual = renamedPaths.get(prefix);
+            if (actual != null) {
+                return actual + path.substring(prefix.length());
+            }
+        }
+        return path;
+    }
+
+    protected DocumentTranslationMap createPage(List<ExportedDocument> page,
+            List<DocumentModel> models, DocumentTranslationMap map)
+            throws ClientException {
+        if (page.isEmpty()) {
+            return map;
+        }
+        DocumentModel[] docs = session.createDocument(models.toArray(
+                new DocumentModel[models.size()]));
+        for (int i = 0; i < docs.length; i++) {
+            ExportedDocument xdoc = page.get(i);
+            DocumentModel doc = docs[i];
+            String path = models.get(i).getPathAsString();
+            createdRefs.put(path, doc.getRef());
+            if (!doc.getName().equals(models.get(i).getName())) {
+                // name collision, the children still refer to the target path
+                renamedPaths.put(path, doc.getPathAsString());
+            }
+            // the ACLs need an existing document
+            loadSystemInfo(doc, xdoc.getDocument());
+            DocumentLocation source = xdoc.getSourceLocation();
+            if (map == null) {
+                map = new DocumentTranslationMapImpl(source.getServerName(),
+                        doc.getRepositoryName());
+            }
+            map.put(source.getDocRef(), doc.getRef());
+        }
+        if (log.isTraceEnabled()) {
+            log.trace("Created " + docs.length + " documents");
+        }
+        unsavedDocuments += docs.length;
+        saveIfNeeded();
+        page.clear();
+        models.clear();
+        return map;
+    }
+
+}
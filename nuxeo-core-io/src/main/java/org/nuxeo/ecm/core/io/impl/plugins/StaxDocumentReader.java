@@ -0,0 +1,483 @@
+/*
+ * (C) Copyright 2009 Nuxeo SAS (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Florent Guillaume
+ */
+
+package org.nuxeo.ecm.core.io.impl.plugins;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.nuxeo.common.collections.PrimitiveArrays;
+import org.nuxeo.common.utils.Base64;
+import org.nuxeo.common.utils.Path;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.PathRef;
+import org.nuxeo.ecm.core.api.impl.DataModelImpl;
+import org.nuxeo.ecm.core.api.impl.DocumentModelImpl;
+import org.nuxeo.ecm.core.api.impl.blob.StreamingBlob;
+import org.nuxeo.ecm.core.api.model.DocumentPart;
+import org.nuxeo.ecm.core.api.model.impl.DocumentPartImpl;
+import org.nuxeo.ecm.core.api.security.ACE;
+import org.nuxeo.ecm.core.api.security.ACL;
+import org.nuxeo.ecm.core.api.security.ACP;
+import org.nuxeo.ecm.core.api.security.impl.ACLImpl;
+import org.nuxeo.ecm.core.api.security.impl.ACPImpl;
+import org.nuxeo.ecm.core.io.ExportConstants;
+import org.nuxeo.ecm.core.schema.DocumentType;
+import org.nuxeo.ecm.core.schema.SchemaManager;
+import org.nuxeo.ecm.core.schema.TypeConstants;
+import org.nuxeo.ecm.core.schema.types.ComplexType;
+import org.nuxeo.ecm.core.schema.types.Field;
+import org.nuxeo.ecm.core.schema.types.JavaTypes;
+import org.nuxeo.ecm.core.schema.types.ListType;
+import org.nuxeo.ecm.core.schema.types.Schema;
+import org.nuxeo.ecm.core.schema.types.Type;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.services.streaming.ByteArraySource;
+import org.nuxeo.runtime.services.streaming.FileSource;
+
+/**
+ * Reads documents written by {@link StaxDocumentWriter}, going directly from
+ * StAX events to the {@link DocumentPart} properties of new document models.
+ * <p>
+ * Each call to {@link #read} returns a detached document model without id,
+ * at the exported path, or at this path relative to a new parent path if one
+ * is given. It can be passed as is to {@link CoreSession#createDocument}. The
+ * local ACP of the exported document, if any, is available from
+ * {@link #getACP} until the next call. Blobs bigger than
+ * {@link #MAX_MEMORY_BLOB_SIZE} are decoded to temporary files, which are
+ * deleted by {@link #close}: the reader must only be closed once the documents
+ * read have been created and saved.
+ *
+ * @author Florent Guillaume
+ */
+public class StaxDocumentReader {
+
+    /**
+     * The size above which decoded blobs are kept in temporary files instead
+     * of memory.
+     */
+    public static final int MAX_MEMORY_BLOB_SIZE = 1024 * 1024;
+
+    protected static final XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+
+    protected final InputStream in;
+
+    protected final Path parentPath;
+
+    protected XMLStreamReader reader;
+
+    protected boolean done;
+
+    protected String sourceId;
+
+    protected ACP acp;
+
+    protected int documentCount;
+
+    /** Temporary blob files, deleted on close. */
+    protected final Collection<File> filesToDelete = new ArrayList<File>();
+
+    public StaxDocumentReader(File file) throws IOException {
+        this(new BufferedInputStream(new FileInputStream(file)));
+    }
+
+    public StaxDocumentReader(InputStream in) {
+        this(in, null);
+    }
+
+    /**
+     * @param in the stream to read from
+     * @param parentPath the path under which to move the exported paths, or
+     *            {@code null} to keep them as is
+     */
+    public StaxDocumentReader(InputStream in, String parentPath) {
+        this.in = in;
+        this.parentPath = parentPath == null ? null : new Path(parentPath);
+    }
+
+    /**
+     * Reads the next document.
+     *
+     * @return the document, or {@code null} if there are no more documents
+     */
+    public DocumentModel read() throws IOException {
+        sourceId = null;
+        acp = null;
+        if (done) {
+            return null;
+        }
+        try {
+            if (reader == null) {
+                reader = inputFactory.createXMLStreamReader(in);
+                reader.nextTag();
+                reader.require(XMLStreamConstants.START_ELEMENT, null,
+                        ExportConstants.DOCUMENTS_TAG);
+            }
+            if (reader.nextTag() == XMLStreamConstants.END_ELEMENT) {
+                done = true;
+                return null;
+            }
+            reader.require(XMLStreamConstants.START_ELEMENT, null,
+                    ExportConstants.DOCUMENT_TAG);
+            DocumentModel doc = readDocument();
+            documentCount++;
+            return doc;
+        } catch (XMLStreamException e) {
+            IOException ioe = new IOException("Failed to read document: "
+                    + e.getMessage());
+            ioe.initCause(e);
+            throw ioe;
+        } catch (ClientException e) {
+            IOException ioe = new IOException("Failed to read document: "
+                    + e.getMessage());
+            ioe.initCause(e);
+            throw ioe;
+        }
+    }
+
+    /**
+     * Gets the id of the last document read in its source repository.
+     */
+    public String getSourceId() {
+        return sourceId;
+    }
+
+    /**
+     * Gets the local ACP of the last document read, or {@code null} if it has
+     * no local ACL.
+     */
+    public ACP getACP() {
+        return acp;
+    }
+
+    /**
+     * Gets the number of documents read so far.
+     */
+    public int getDocumentCount() {
+        return documentCount;
+    }
+
+    /**
+     * Closes the stream and deletes the temporary files holding the big blobs
+     * of the documents read.
+     */
+    public void close() {
+        if (reader != null) {
+            try {
+                reader.close();
+            } catch (XMLStreamException e) {
+                // ignore
+            }
+            reader = null;
+        }
+        try {
+            in.close();
+        } catch (IOException e) {
+            // ignore
+        }
+        for (File file : filesToDelete) {
+            file.delete();
+        }
+        filesToDelete.clear();
+    }
+
+    protected DocumentModel readDocument() throws XMLStreamException,
+            IOException, ClientException {
+        sourceId = reader.getAttributeValue(null, ExportConstants.ID_ATTR);
+        String type = null;
+        String path = null;
+        reader.nextTag();
+        reader.require(XMLStreamConstants.START_ELEMENT, null,
+                ExportConstants.SYSTEM_TAG);
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            String name = reader.getLocalName();
+            if (ExportConstants.TYPE_TAG.equals(name)) {
+                type = reader.getElementText();
+            } else if (ExportConstants.PATH_TAG.equals(name)) {
+                path = reader.getElementText();
+            } else if (ExportConstants.ACCESS_CONTROL_TAG.equals(name)) {
+                readACP();
+            } else {
+                // the life cycle is set by the repository on creation
+                skipElement();
+            }
+        }
+        if (type == null || path == null) {
+            throw new ClientException("Missing type or path for document: "
+                    + sourceId);
+        }
+        DocumentModel doc = newDocumentModel(type, path);
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            if (ExportConstants.SCHEMA_TAG.equals(reader.getLocalName())) {
+                readSchema(doc);
+            } else {
+                skipElement();
+            }
+        }
+        return doc;
+    }
+
+    protected DocumentModel newDocumentModel(String type, String path)
+            throws ClientException {
+        SchemaManager schemaManager;
+        try {
+            schemaManager = Framework.getService(SchemaManager.class);
+        } catch (Exception e) {
+            throw new ClientException(e);
+        }
+        DocumentType docType = schemaManager.getDocumentType(type);
+        if (docType == null) {
+            throw new ClientException("Document type not found: " + type);
+        }
+        Path docPath = new Path(path);
+        if (parentPath != null) {
+            docPath = parentPath.append(docPath.makeRelative());
+        }
+        DocumentModelImpl doc = new DocumentModelImpl(null, type, null,
+                docPath, null, null,
+                new PathRef(docPath.removeLastSegments(1).toString()),
+                docType.getSchemaNames(), docType.getFacets(), null, null);
+        for (Schema schema : docType.getSchemas()) {
+            doc.addDataModel(new DataModelImpl(new DocumentPartImpl(schema)));
+        }
+        return doc;
+    }
+
+    /**
+     * Reads the ACLs, keeping only the local one like the other importers.
+     */
+    protected void readACP() throws XMLStreamException {
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            String aclName = reader.getAttributeValue(null,
+                    ExportConstants.NAME_ATTR);
+            if (!ACL.LOCAL_ACL.equals(aclName)) {
+                skipElement();
+                continue;
+            }
+            ACL acl = new ACLImpl(ACL.LOCAL_ACL);
+            while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                String username = reader.getAttributeValue(null,
+                        ExportConstants.PRINCIPAL_ATTR);
+                String permission = reader.getAttributeValue(null,
+                        ExportConstants.PERMISSION_ATTR);
+                String grant = reader.getAttributeValue(null,
+                        ExportConstants.GRANT_ATTR);
+                acl.add(new ACE(username, permission,
+                        Boolean.parseBoolean(grant)));
+                skipElement();
+            }
+            if (!acl.isEmpty()) {
+                acp = new ACPImpl();
+                acp.addACL(acl);
+            }
+        }
+    }
+
+    protected void readSchema(DocumentModel doc) throws XMLStreamException,
+            IOException, ClientException {
+        String schemaName = reader.getAttributeValue(null,
+                ExportConstants.NAME_ATTR);
+        DocumentPart part = doc.getPart(schemaName);
+        if (part == null) {
+            throw new ClientException("Schema " + schemaName
+                    + " not found in type " + doc.getType());
+        }
+        Schema schema = part.getSchema();
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            String name = reader.getLocalName();
+            Field field = schema.getField(name);
+            if (field == null) {
+                throw new ClientException(
+                        "Invalid input document. No such property was found "
+                                + name + " in schema " + schemaName);
+            }
+            part.get(name).setValue(readValue(field.getType()));
+        }
+    }
+
+    /**
+     * Reads the value of the current element, decoded like the DOM-based
+     * importers do. The reader is left on the end of the element.
+     */
+    @SuppressWarnings("unchecked")
+    protected Object readValue(Type type) throws XMLStreamException,
+            IOException {
+        if (type.isSimpleType()) {
+            return type.decode(reader.getElementText());
+        } else if (type.isListType()) {
+            ListType ltype = (ListType) type;
+            Type ftype = ltype.getFieldType();
+            List<Object> list = new ArrayList<Object>();
+            while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                list.add(readValue(ftype));
+            }
+            if (ftype.isSimpleType()) { // these are stored as arrays
+                Class klass = JavaTypes.getClass(ftype);
+                if (klass.isPrimitive()) {
+                    return PrimitiveArrays.toPrimitiveArray(list, klass);
+                } else {
+                    return list.toArray((Object[]) Array.newInstance(klass,
+                            list.size()));
+                }
+            }
+            return list;
+        } else {
+            ComplexType ctype = (ComplexType) type;
+            if (TypeConstants.CONTENT.equals(ctype.getName())) {
+                return readBlob();
+            }
+            Map<String, Object> map = new HashMap<String, Object>();
+            while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                String name = reader.getLocalName();
+                Field field = ctype.getField(name);
+                if (field == null) {
+                    throw new XMLStreamException("No such property " + name
+                            + " in type " + ctype.getName(),
+                            reader.getLocation());
+                }
+                map.put(name, readValue(field.getType()));
+            }
+            return map;
+        }
+    }
+
+    protected Blob readBlob() throws XMLStreamException, IOException {
+        String encoding = null;
+        String mimeType = null;
+        Blob blob = null;
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            String name = reader.getLocalName();
+            if (ExportConstants.BLOB_ENCODING.equals(name)) {
+                encoding = reader.getElementText();
+            } else if (ExportConstants.BLOB_MIME_TYPE.equals(name)) {
+                mimeType = reader.getElementText();
+            } else if (ExportConstants.BLOB_DATA.equals(name)) {
+                blob = readBlobData();
+            } else {
+                skipElement();
+            }
+        }
+        if (blob == null && (mimeType == null || mimeType.length() == 0)) {
+            return null; // remove blob
+        }
+        if (blob == null) {
+            blob = new StreamingBlob(new ByteArraySource(new byte[0]));
+        }
+        blob.setMimeType(mimeType);
+        blob.setEncoding(encoding);
+        return blob;
+    }
+
+    /**
+     * Decodes the Base64 data of a blob as it is read, in memory first then
+     * in a temporary file if it gets too big.
+     */
+    protected Blob readBlobData() throws XMLStreamException, IOException {
+        StringBuilder buf = new StringBuilder();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        OutputStream out = bytes;
+        File file = null;
+        long size = 0;
+        try {
+            while (reader.next() != XMLStreamConstants.END_ELEMENT) {
+                int event = reader.getEventType();
+                if (event != XMLStreamConstants.CHARACTERS
+                        && event != XMLStreamConstants.CDATA) {
+                    continue;
+                }
+                char[] chars = reader.getTextCharacters();
+                int start = reader.getTextStart();
+                int end = start + reader.getTextLength();
+                for (int i = start; i < end; i++) {
+                    char c = chars[i];
+                    if (!Character.isWhitespace(c)) {
+                        buf.append(c);
+                    }
+                }
+                // decode whole quanta of 4 characters
+                int len = buf.length() - buf.length() % 4;
+                if (len == 0) {
+                    continue;
+                }
+                byte[] decoded = Base64.decode(buf.substring(0, len));
+                buf.delete(0, len);
+                size += decoded.length;
+                if (file == null && size > MAX_MEMORY_BLOB_SIZE) {
+                    file = File.createTempFile("nxstax-", ".blob");
+                    filesToDelete.add(file);
+                    out = new BufferedOutputStream(new FileOutputStream(file));
+                    bytes.writeTo(out);
+                    bytes = null;
+                }
+                out.write(decoded);
+            }
+            if (buf.length() > 0) {
+                byte[] decoded = Base64.decode(buf.toString());
+                size += decoded.length;
+                out.write(decoded);
+            }
+        } finally {
+            out.close();
+        }
+        if (size == 0) {
+            return null;
+        }
+        if (file == null) {
+            return new StreamingBlob(new ByteArraySource(bytes.toByteArray()));
+        } else {
+            return new StreamingBlob(new FileSource(file));
+        }
+    }
+
+    /**
+     * Skips the current element and its content. The reader is left on the
+     * end of the element.
+     */
+    protected void skipElement() throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+}
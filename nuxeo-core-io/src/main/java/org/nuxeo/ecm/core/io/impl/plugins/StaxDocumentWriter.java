@@ -0,0 +1,326 @@
+/*
+ * (C) Copyright 2009 Nuxeo SAS (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Florent Guillaume
+ */
+
+package org.nuxeo.ecm.core.io.impl.plugins;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.common.collections.PrimitiveArrays;
+import org.nuxeo.common.utils.Base64;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.model.DocumentPart;
+import org.nuxeo.ecm.core.api.model.Property;
+import org.nuxeo.ecm.core.api.security.ACE;
+import org.nuxeo.ecm.core.api.security.ACL;
+import org.nuxeo.ecm.core.api.security.ACP;
+import org.nuxeo.ecm.core.io.ExportConstants;
+import org.nuxeo.ecm.core.io.impl.ExportedDocumentImpl;
+import org.nuxeo.ecm.core.schema.Namespace;
+import org.nuxeo.ecm.core.schema.TypeConstants;
+import org.nuxeo.ecm.core.schema.types.ComplexType;
+import org.nuxeo.ecm.core.schema.types.ListType;
+import org.nuxeo.ecm.core.schema.types.Type;
+
+/**
+ * Writes documents as XML, in the format of {@link ExportedDocumentImpl},
+ * going directly from their {@link DocumentPart} properties to StAX events.
+ * <p>
+ * Unlike {@link XMLDocumentWriter}, no DOM is built for the documents and
+ * blobs are Base64-encoded chunk by chunk, so the memory used does not depend
+ * on the size of the documents. Blobs are always inlined. The documents are
+ * written one after the other in a {@code documents} root element, and can be
+ * read back with {@link StaxDocumentReader}.
+ *
+ * @author Florent Guillaume
+ */
+public class StaxDocumentWriter {
+
+    private static final Log log = LogFactory.getLog(StaxDocumentWriter.class);
+
+    /**
+     * The number of blob bytes encoded at once, a multiple of 3 so that the
+     * Base64 chunks can simply be concatenated.
+     */
+    protected static final int BLOB_CHUNK_SIZE = 3 * 16 * 1024;
+
+    protected static final XMLOutputFactory outputFactory = XMLOutputFactory.newInstance();
+
+    static {
+        outputFactory.setProperty(XMLOutputFactory.IS_REPAIRING_NAMESPACES,
+                Boolean.TRUE);
+    }
+
+    protected final OutputStream out;
+
+    protected final XMLStreamWriter writer;
+
+    protected int documentCount;
+
+    public StaxDocumentWriter(File file) throws IOException {
+        this(new BufferedOutputStream(new FileOutputStream(file)));
+    }
+
+    public StaxDocumentWriter(OutputStream out) throws IOException {
+        this.out = out;
+        try {
+            writer = outputFactory.createXMLStreamWriter(out, "UTF-8");
+            writer.writeStartDocument("UTF-8", "1.0");
+            writer.writeStartElement(ExportConstants.DOCUMENTS_TAG);
+        } catch (XMLStreamException e) {
+            IOException ioe = new IOException("Failed to start XML export: "
+                    + e.getMessage());
+            ioe.initCause(e);
+            throw ioe;
+        }
+    }
+
+    public void write(DocumentModel doc) throws IOException {
+        try {
+            writeDocument(doc);
+        } catch (XMLStreamException e) {
+            IOException ioe = new IOException("Failed to export document "
+                    + doc.getRef() + ": " + e.getMessage());
+            ioe.initCause(e);
+            throw ioe;
+        } catch (ClientException e) {
+            IOException ioe = new IOException("Failed to export document "
+                    + doc.getRef() + ": " + e.getMessage());
+            ioe.initCause(e);
+            throw ioe;
+        }
+        documentCount++;
+    }
+
+    /**
+     * Gets the number of documents written so far.
+     */
+    public int getDocumentCount() {
+        return documentCount;
+    }
+
+    /**
+     * Ends the XML document and closes the underlying stream.
+     */
+    public void close() throws IOException {
+        try {
+            writer.writeEndElement();
+            writer.writeEndDocument();
+            writer.close();
+        } catch (XMLStreamException e) {
+            IOException ioe = new IOException("Failed to end XML export: "
+                    + e.getMessage());
+            ioe.initCause(e);
+            throw ioe;
+        } finally {
+            out.close();
+        }
+    }
+
+    protected void writeDocument(DocumentModel doc)
+            throws XMLStreamException, IOException, ClientException {
+        writer.writeStartElement(ExportConstants.DOCUMENT_TAG);
+        if (doc.getRepositoryName() != null) {
+            writer.writeAttribute(ExportConstants.REP_NAME,
+                    doc.getRepositoryName());
+        }
+        writer.writeAttribute(ExportConstants.ID_ATTR, doc.getRef().toString());
+        writeSystem(doc);
+        for (String schemaName : doc.getDeclaredSchemas()) {
+            DocumentPart part = doc.getPart(schemaName);
+            if (part == null) {
+                continue;
+            }
+            writer.writeStartElement(ExportConstants.SCHEMA_TAG);
+            writer.writeAttribute(ExportConstants.NAME_ATTR, schemaName);
+            Namespace ns = part.getSchema().getNamespace();
+            for (Property property : part.getChildren()) {
+                writeProperty(ns, property);
+            }
+            writer.writeEndElement();
+        }
+        writer.writeEndElement();
+    }
+
+    protected void writeSystem(DocumentModel doc) throws XMLStreamException,
+            ClientException {
+        writer.writeStartElement(ExportConstants.SYSTEM_TAG);
+        writeTextElement(ExportConstants.TYPE_TAG, doc.getType());
+        writeTextElement(ExportConstants.PATH_TAG, doc.getPath().toString());
+        String lifeCycleState = null;
+        String lifeCyclePolicy = null;
+        try {
+            lifeCycleState = doc.getCurrentLifeCycleState();
+            lifeCyclePolicy = doc.getLifeCyclePolicy();
+        } catch (Exception e) {
+            log.error("Cannot get life cycle of document " + doc.getRef(), e);
+        }
+        if (lifeCycleState != null && lifeCycleState.length() > 0) {
+            writeTextElement(ExportConstants.LIFECYCLE_STATE_TAG,
+                    lifeCycleState);
+        }
+        if (lifeCyclePolicy != null && lifeCyclePolicy.length() > 0) {
+            writeTextElement(ExportConstants.LIFECYCLE_POLICY_TAG,
+                    lifeCyclePolicy);
+        }
+        writer.writeStartElement(ExportConstants.ACCESS_CONTROL_TAG);
+        ACP acp = doc.getACP();
+        if (acp != null) {
+            for (ACL acl : acp.getACLs()) {
+                writer.writeStartElement(ExportConstants.ACL_TAG);
+                writer.writeAttribute(ExportConstants.NAME_ATTR, acl.getName());
+                for (ACE ace : acl.getACEs()) {
+                    writer.writeEmptyElement(ExportConstants.ACE_TAG);
+                    writer.writeAttribute(ExportConstants.PRINCIPAL_ATTR,
+                            ace.getUsername());
+                    writer.writeAttribute(ExportConstants.PERMISSION_ATTR,
+                            ace.getPermission());
+                    writer.writeAttribute(ExportConstants.GRANT_ATTR,
+                            String.valueOf(ace.isGranted()));
+                }
+                writer.writeEndElement();
+            }
+        }
+        writer.writeEndElement();
+        writer.writeEndElement();
+    }
+
+    protected void writeTextElement(String name, String text)
+            throws XMLStreamException {
+        writer.writeStartElement(name);
+        writer.writeCharacters(text);
+        writer.writeEndElement();
+    }
+
+    /**
+     * Writes a property as an element in the given namespace, its children
+     * being written recursively. List items are in no namespace.
+     */
+    protected void writeProperty(Namespace ns, Property property)
+            throws XMLStreamException, IOException, ClientException {
+        writer.writeStartElement(ns.prefix,
+                property.getField().getName().getLocalName(), ns.uri);
+        Type type = property.getType();
+        if (type.isSimpleType()) {
+            Object value = property.getValue();
+            if (value != null) {
+                writer.writeCharacters(type.encode(value));
+            }
+        } else if (type.isListType()) {
+            ListType ltype = (ListType) type;
+            if (ltype.getFieldType().isSimpleType()) {
+                writeScalarList(ltype, property.getValue());
+            } else {
+                for (Property child : property.getChildren()) {
+                    writeProperty(Namespace.DEFAULT_NS, child);
+                }
+            }
+        } else {
+            ComplexType ctype = (ComplexType) type;
+            if (TypeConstants.CONTENT.equals(ctype.getName())) {
+                writeBlob((Blob) property.getValue());
+            } else {
+                for (Property child : property.getChildren()) {
+                    writeProperty(ctype.getNamespace(), child);
+                }
+            }
+        }
+        writer.writeEndElement();
+    }
+
+    protected void writeScalarList(ListType ltype, Object value)
+            throws XMLStreamException {
+        if (value == null) {
+            return;
+        }
+        List<?> list;
+        if (value instanceof List) {
+            list = (List<?>) value;
+        } else if (value.getClass().getComponentType() != null) {
+            list = PrimitiveArrays.toList(value);
+        } else {
+            throw new IllegalArgumentException(
+                    "A value of list type is neither list neither array: "
+                            + value);
+        }
+        Type itemType = ltype.getFieldType();
+        String itemName = ltype.getField().getName().getLocalName();
+        for (Object item : list) {
+            writer.writeStartElement(itemName);
+            if (item != null) {
+                writer.writeCharacters(itemType.encode(item));
+            }
+            writer.writeEndElement();
+        }
+    }
+
+    protected void writeBlob(Blob blob) throws XMLStreamException,
+            IOException {
+        if (blob == null) {
+            return;
+        }
+        writeTextElement(ExportConstants.BLOB_ENCODING,
+                blob.getEncoding() == null ? "" : blob.getEncoding());
+        writeTextElement(ExportConstants.BLOB_MIME_TYPE,
+                blob.getMimeType() == null ? "" : blob.getMimeType());
+        writer.writeStartElement(ExportConstants.BLOB_DATA);
+        InputStream in = blob.getStream();
+        if (in != null) {
+            try {
+                byte[] buf = new byte[BLOB_CHUNK_SIZE];
+                int n;
+                while ((n = readChunk(in, buf)) > 0) {
+                    writer.writeCharacters(Base64.encodeBytes(buf, 0, n));
+                }
+            } finally {
+                in.close();
+            }
+        }
+        writer.writeEndElement();
+    }
+
+    /**
+     * Fills the buffer as much as possible, returns the number of bytes read,
+     * less than the buffer size only at the end of the stream.
+     */
+    protected static int readChunk(InputStream in, byte[] buf)
+            throws IOException {
+        int len = 0;
+        while (len < buf.length) {
+            int n = in.read(buf, len, buf.length - len);
+            if (n == -1) {
+                break;
+            }
+            len += n;
+        }
+        return len;
+    }
+
+}
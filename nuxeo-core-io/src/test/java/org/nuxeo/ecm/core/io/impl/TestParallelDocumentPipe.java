@@ -0,0 +1,224 @@
+/*
+ * (C) Copyright 2009 Nuxeo SAS (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Florent Guillaume
+ */
+
+package org.nuxeo.ecm.core.io.impl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.nuxeo.common.utils.Path;
+import org.nuxeo.ecm.core.api.IdRef;
+import org.nuxeo.ecm.core.io.DocumentTransformer;
+import org.nuxeo.ecm.core.io.DocumentTranslationMap;
+import org.nuxeo.ecm.core.io.ExportedDocument;
+import org.nuxeo.ecm.core.io.impl.plugins.DocumentModelReader;
+
+/**
+ * Tests the pipe with in-memory reader, transformer and writer.
+ *
+ * @author Florent Guillaume
+ */
+public class TestParallelDocumentPipe extends TestCase {
+
+    protected static final int NB_DOCS = 1000;
+
+    protected static class MemoryReader extends AbstractDocumentReader {
+
+        protected int n;
+
+        protected final int failAt;
+
+        public MemoryReader(int failAt) {
+            this.failAt = failAt;
+        }
+
+        @Override
+        public ExportedDocument read() throws IOException {
+            if (n == failAt) {
+                throw new IOException("read failure");
+            }
+            if (n == NB_DOCS) {
+                return null;
+            }
+            ExportedDocumentImpl doc = new ExportedDocumentImpl();
+            doc.setId("doc" + n++);
+            return doc;
+        }
+
+        public void close() {
+        }
+    }
+
+    /**
+     * A reader as if reading from a session, recording the threads using it.
+     */
+    protected static class SessionReader extends DocumentModelReader {
+
+        protected final MemoryReader memoryReader = new MemoryReader(-1);
+
+        protected final Set<Thread> threads = Collections.synchronizedSet(
+                new HashSet<Thread>());
+
+        public SessionReader() {
+            super(null);
+        }
+
+        @Override
+        public ExportedDocument read() throws IOException {
+            threads.add(Thread.currentThread());
+            return memoryReader.read();
+        }
+    }
+
+    protected static class PathTransformer implements DocumentTransformer {
+
+        public boolean transform(ExportedDocument doc) throws IOException {
+            doc.setPath(new Path("/root/" + doc.getId()));
+            return true;
+        }
+    }
+
+    protected static class MemoryWriter extends AbstractDocumentWriter {
+
+        protected final List<ExportedDocument> written = Collections.synchronizedList(
+                new ArrayList<ExportedDocument>());
+
+        protected final Set<Thread> threads = Collections.synchronizedSet(
+                new HashSet<Thread>());
+
+        protected final int failAt;
+
+        public MemoryWriter(int failAt) {
+            this.failAt = failAt;
+        }
+
+        public MemoryWriter() {
+            this(-1);
+        }
+
+        @Override
+        public DocumentTranslationMap write(ExportedDocument doc)
+                throws IOException {
+            threads.add(Thread.currentThread());
+            if (written.size() == failAt) {
+                throw new IOException("write failure");
+            }
+            written.add(doc);
+            DocumentTranslationMap map = new DocumentTranslationMapImpl(
+                    "old", "new");
+            map.put(new IdRef(doc.getId()), new IdRef(doc.getId() + "-new"));
+            return map;
+        }
+
+        public void close() {
+        }
+    }
+
+    protected void checkPipe(DocumentPipeImpl pipe) throws Exception {
+        MemoryWriter writer = new MemoryWriter();
+        pipe.setReader(new MemoryReader(-1));
+        pipe.setWriter(writer);
+        pipe.addTransformer(new PathTransformer());
+        DocumentTranslationMap map = pipe.run();
+
+        assertEquals(NB_DOCS, writer.written.size());
+        // order is kept
+        for (int i = 0; i < NB_DOCS; i++) {
+            ExportedDocument doc = writer.written.get(i);
+            assertEquals("doc" + i, doc.getId());
+            assertEquals("/root/doc" + i, doc.getPath().toString());
+        }
+        assertEquals("old", map.getOldServerName());
+        assertEquals("new", map.getNewServerName());
+        assertEquals(NB_DOCS, map.getDocRefMap().size());
+        assertEquals(new IdRef("doc7-new"),
+                map.getDocRefMap().get(new IdRef("doc7")));
+        assertEquals(NB_DOCS, pipe.getReadCount());
+        assertEquals(NB_DOCS, pipe.getWrittenCount());
+    }
+
+    public void testSerialPipe() throws Exception {
+        checkPipe(new DocumentPipeImpl(10));
+    }
+
+    public void testParallelPipe() throws Exception {
+        checkPipe(new ParallelDocumentPipeImpl(10, 4, 3));
+    }
+
+    public void testParallelPipeSingleDocs() throws Exception {
+        checkPipe(new ParallelDocumentPipeImpl(0, 2, 5));
+    }
+
+    public void testParallelPipeSessionReader() throws Exception {
+        DocumentPipeImpl pipe = new ParallelDocumentPipeImpl(10, 4, 3);
+        SessionReader reader = new SessionReader();
+        MemoryWriter writer = new MemoryWriter();
+        pipe.setReader(reader);
+        pipe.setWriter(writer);
+        pipe.addTransformer(new PathTransformer());
+        pipe.run();
+        assertEquals(NB_DOCS, writer.written.size());
+        for (int i = 0; i < NB_DOCS; i++) {
+            assertEquals("/root/doc" + i,
+                    writer.written.get(i).getPath().toString());
+        }
+        // read by the calling thread, written by another one
+        assertEquals(Collections.singleton(Thread.currentThread()),
+                reader.threads);
+        assertEquals(1, writer.threads.size());
+        assertFalse(writer.threads.contains(Thread.currentThread()));
+    }
+
+    public void testParallelPipeSessionReaderWriteFailure() throws Exception {
+        DocumentPipeImpl pipe = new ParallelDocumentPipeImpl(10, 4, 3);
+        MemoryWriter writer = new MemoryWriter(123);
+        pipe.setReader(new SessionReader());
+        pipe.setWriter(writer);
+        pipe.addTransformer(new PathTransformer());
+        try {
+            pipe.run();
+            fail("write failure not propagated");
+        } catch (IOException e) {
+            assertEquals("write failure", e.getMessage());
+        }
+        // the reader stopped without reading everything
+        assertTrue(pipe.getReadCount() < NB_DOCS);
+    }
+
+    public void testParallelPipeReadFailure() throws Exception {
+        DocumentPipeImpl pipe = new ParallelDocumentPipeImpl(10, 4, 3);
+        MemoryWriter writer = new MemoryWriter();
+        pipe.setReader(new MemoryReader(55));
+        pipe.setWriter(writer);
+        pipe.addTransformer(new PathTransformer());
+        try {
+            pipe.run();
+            fail("read failure not propagated");
+        } catch (IOException e) {
+            assertEquals("read failure", e.getMessage());
+        }
+        // the pages read before the failure were written
+        assertEquals(50, writer.written.size());
+    }
+
+}
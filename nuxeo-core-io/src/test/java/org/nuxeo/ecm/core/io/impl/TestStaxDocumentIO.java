@@ -0,0 +1,367 @@
+/*
+ * (C) Copyright 2009 Nuxeo SAS (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Florent Guillaume
+ */
+
+package org.nuxeo.ecm.core.io.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.dom4j.Element;
+import org.dom4j.io.OutputFormat;
+import org.dom4j.io.SAXReader;
+import org.dom4j.io.XMLWriter;
+import org.nuxeo.common.utils.Path;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.IdRef;
+import org.nuxeo.ecm.core.api.PathRef;
+import org.nuxeo.ecm.core.api.impl.DataModelImpl;
+import org.nuxeo.ecm.core.api.impl.DocumentModelImpl;
+import org.nuxeo.ecm.core.api.impl.blob.ByteArrayBlob;
+import org.nuxeo.ecm.core.api.model.DocumentPart;
+import org.nuxeo.ecm.core.api.model.impl.DocumentPartImpl;
+import org.nuxeo.ecm.core.api.security.ACE;
+import org.nuxeo.ecm.core.api.security.ACL;
+import org.nuxeo.ecm.core.api.security.ACP;
+import org.nuxeo.ecm.core.api.security.impl.ACLImpl;
+import org.nuxeo.ecm.core.api.security.impl.ACPImpl;
+import org.nuxeo.ecm.core.io.ExportConstants;
+import org.nuxeo.ecm.core.io.impl.plugins.StaxDocumentReader;
+import org.nuxeo.ecm.core.io.impl.plugins.StaxDocumentWriter;
+import org.nuxeo.ecm.core.schema.DocumentType;
+import org.nuxeo.ecm.core.schema.SchemaManager;
+import org.nuxeo.ecm.core.schema.types.Schema;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.test.NXRuntimeTestCase;
+
+/**
+ * Tests the StAX-based XML writer and reader, and compares their throughput
+ * and heap usage with the dom4j-based export and import.
+ *
+ * @author Florent Guillaume
+ */
+public class TestStaxDocumentIO extends NXRuntimeTestCase {
+
+    private static final Log log = LogFactory.getLog(TestStaxDocumentIO.class);
+
+    protected static final int BENCH_DOCS = 100;
+
+    protected static final int BENCH_VALUES = 200;
+
+    protected static final int BENCH_BLOB_SIZE = 64 * 1024;
+
+    protected interface Task {
+        void run() throws Exception;
+    }
+
+    /**
+     * An output stream discarding what is written to it.
+     */
+    protected static class NullOutputStream extends OutputStream {
+
+        protected long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
+    /**
+     * A reader giving access to its temporary blob files.
+     */
+    protected static class TrackingReader extends StaxDocumentReader {
+
+        public TrackingReader(byte[] bytes) {
+            super(new ByteArrayInputStream(bytes), "/target");
+        }
+
+        public List<File> getTemporaryFiles() {
+            return new ArrayList<File>(filesToDelete);
+        }
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        deployBundle("org.nuxeo.ecm.core.schema");
+        deployContrib("org.nuxeo.ecm.core.io.tests",
+                "OSGI-INF/test-stax-types-contrib.xml");
+    }
+
+    protected static DocumentType getDocumentType() throws Exception {
+        return Framework.getService(SchemaManager.class).getDocumentType(
+                "Bench");
+    }
+
+    /**
+     * Creates a document model held in memory, without session.
+     */
+    protected static DocumentModel newDocument(int i, int nbValues,
+            int blobSize) throws Exception {
+        DocumentType docType = getDocumentType();
+        final ACP acp = new ACPImpl();
+        ACL acl = new ACLImpl(ACL.LOCAL_ACL);
+        acl.add(new ACE("bob", "Read", true));
+        acl.add(new ACE("members", "Write", false));
+        acp.addACL(acl);
+        DocumentModelImpl doc = new DocumentModelImpl(null, "Bench", "id"
+                + i, new Path("/folder/doc" + i), null, new IdRef("id" + i),
+                new PathRef("/folder"), docType.getSchemaNames(),
+                docType.getFacets(), null, "test") {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public ACP getACP() {
+                return acp;
+            }
+        };
+        doc.prefetchCurrentLifecycleState("project");
+        doc.prefetchLifeCyclePolicy("default");
+        for (Schema schema : docType.getSchemas()) {
+            doc.addDataModel(new DataModelImpl(new DocumentPartImpl(schema)));
+        }
+        DocumentPart part = doc.getPart("bench");
+        part.get("title").setValue("Document " + i);
+        part.get("modified").setValue(new GregorianCalendar(2009, 5, 17));
+        part.get("count").setValue(Long.valueOf(i));
+        String[] keywords = new String[nbValues];
+        List<Map<String, Object>> comments = new ArrayList<Map<String, Object>>();
+        for (int j = 0; j < nbValues; j++) {
+            keywords[j] = "keyword" + j;
+            Map<String, Object> comment = new HashMap<String, Object>();
+            comment.put("author", "user" + j);
+            comment.put("text", "Comment <" + j + "> & more");
+            comments.add(comment);
+        }
+        part.get("keywords").setValue(keywords);
+        part.get("comments").setValue(comments);
+        byte[] bytes = new byte[blobSize];
+        new Random(i).nextBytes(bytes);
+        part.get("file").setValue(
+                new ByteArrayBlob(bytes, "application/octet-stream"));
+        return doc;
+    }
+
+    protected static DocumentModel newEmptyDocument() throws Exception {
+        DocumentType docType = getDocumentType();
+        DocumentModelImpl doc = new DocumentModelImpl(null, "Bench", null,
+                new Path("/folder/doc"), null, null, new PathRef("/folder"),
+                docType.getSchemaNames(), docType.getFacets(), null, null);
+        for (Schema schema : docType.getSchemas()) {
+            doc.addDataModel(new DataModelImpl(new DocumentPartImpl(schema)));
+        }
+        return doc;
+    }
+
+    public void testRoundTrip() throws Exception {
+        // the last blob is big enough to be decoded to a temporary file
+        int[] blobSizes = { 0, 100000,
+                3 * StaxDocumentReader.MAX_MEMORY_BLOB_SIZE };
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        StaxDocumentWriter writer = new StaxDocumentWriter(out);
+        for (int i = 0; i < blobSizes.length; i++) {
+            writer.write(newDocument(i, 5, blobSizes[i]));
+        }
+        writer.close();
+        assertEquals(blobSizes.length, writer.getDocumentCount());
+
+        TrackingReader reader = new TrackingReader(out.toByteArray());
+        for (int i = 0; i < blobSizes.length; i++) {
+            DocumentModel doc = reader.read();
+            assertNotNull(doc);
+            assertEquals("id" + i, reader.getSourceId());
+            assertEquals("Bench", doc.getType());
+            assertEquals("/target/folder/doc" + i, doc.getPathAsString());
+            assertNull(doc.getId());
+            ACL acl = reader.getACP().getACL(ACL.LOCAL_ACL);
+            assertEquals(2, acl.size());
+            assertEquals("members", acl.get(1).getUsername());
+            assertEquals("Write", acl.get(1).getPermission());
+            assertFalse(acl.get(1).isGranted());
+
+            DocumentPart expected = newDocument(i, 5, blobSizes[i]).getPart(
+                    "bench");
+            DocumentPart part = doc.getPart("bench");
+            assertEquals("Document " + i, part.getValue("title"));
+            assertEquals(Long.valueOf(i), part.getValue("count"));
+            assertTrue(Arrays.equals((Object[]) expected.getValue("keywords"),
+                    (Object[]) part.getValue("keywords")));
+            List<?> comments = (List<?>) part.getValue("comments");
+            assertEquals(5, comments.size());
+            Map<?, ?> comment = (Map<?, ?>) comments.get(4);
+            assertEquals("user4", comment.get("author"));
+            assertEquals("Comment <4> & more", comment.get("text"));
+            Blob blob = (Blob) part.getValue("file");
+            assertEquals("application/octet-stream", blob.getMimeType());
+            assertTrue(Arrays.equals(
+                    ((Blob) expected.getValue("file")).getByteArray(),
+                    blob.getByteArray()));
+        }
+        assertNull(reader.read());
+        assertEquals(blobSizes.length, reader.getDocumentCount());
+        List<File> files = reader.getTemporaryFiles();
+        assertEquals(1, files.size());
+        assertTrue(files.get(0).exists());
+        reader.close();
+        assertFalse(files.get(0).exists());
+        assertTrue(reader.getTemporaryFiles().isEmpty());
+    }
+
+    /**
+     * Compares the StAX-based and dom4j-based export and import. The results
+     * are logged, they depend too much on the JVM to be asserted.
+     */
+    public void testBenchmark() throws Exception {
+        final List<DocumentModel> docs = new ArrayList<DocumentModel>(
+                BENCH_DOCS);
+        for (int i = 0; i < BENCH_DOCS; i++) {
+            docs.add(newDocument(i, BENCH_VALUES, BENCH_BLOB_SIZE));
+        }
+
+        // export, one XML file per document for dom4j
+        final List<byte[]> domFiles = new ArrayList<byte[]>(BENCH_DOCS);
+        for (DocumentModel doc : docs) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            writeDom(doc, out);
+            domFiles.add(out.toByteArray());
+        }
+        ByteArrayOutputStream staxOut = new ByteArrayOutputStream();
+        StaxDocumentWriter staxWriter = new StaxDocumentWriter(staxOut);
+        for (DocumentModel doc : docs) {
+            staxWriter.write(doc);
+        }
+        staxWriter.close();
+        final byte[] staxFile = staxOut.toByteArray();
+        staxOut = null;
+
+        bench("dom4j export", new Task() {
+            public void run() throws Exception {
+                OutputStream out = new NullOutputStream();
+                for (DocumentModel doc : docs) {
+                    writeDom(doc, out);
+                }
+            }
+        });
+        bench("StAX export", new Task() {
+            public void run() throws Exception {
+                StaxDocumentWriter writer = new StaxDocumentWriter(
+                        new NullOutputStream());
+                for (DocumentModel doc : docs) {
+                    writer.write(doc);
+                }
+                writer.close();
+            }
+        });
+        bench("dom4j import", new Task() {
+            public void run() throws Exception {
+                SchemaManager schemaManager = Framework.getService(
+                        SchemaManager.class);
+                SAXReader saxReader = new SAXReader();
+                int n = 0;
+                for (byte[] xml : domFiles) {
+                    ExportedDocumentImpl xdoc = new ExportedDocumentImpl();
+                    xdoc.setDocument(saxReader.read(new ByteArrayInputStream(
+                            xml)));
+                    DocumentModel doc = newEmptyDocument();
+                    Element root = xdoc.getDocument().getRootElement();
+                    Iterator<?> it = root.elementIterator(
+                            ExportConstants.SCHEMA_TAG);
+                    while (it.hasNext()) {
+                        Element element = (Element) it.next();
+                        String schemaName = element.attributeValue(
+                                ExportConstants.NAME_ATTR);
+                        Schema schema = schemaManager.getSchema(schemaName);
+                        AbstractDocumentModelWriter.loadSchema(xdoc, schema,
+                                doc, element);
+                    }
+                    n++;
+                }
+                assertEquals(BENCH_DOCS, n);
+            }
+        });
+        bench("StAX import", new Task() {
+            public void run() throws Exception {
+                StaxDocumentReader reader = new StaxDocumentReader(
+                        new ByteArrayInputStream(staxFile));
+                while (reader.read() != null) {
+                }
+                reader.close();
+                assertEquals(BENCH_DOCS, reader.getDocumentCount());
+            }
+        });
+    }
+
+    protected static void writeDom(DocumentModel doc, OutputStream out)
+            throws Exception {
+        XMLWriter writer = new XMLWriter(out,
+                OutputFormat.createCompactFormat());
+        writer.write(new ExportedDocumentImpl(doc, true).getDocument());
+        writer.flush();
+    }
+
+    /**
+     * Runs a task and logs its throughput and the peak heap used above what
+     * was used before it started.
+     */
+    protected static void bench(String name, Task task) throws Exception {
+        List<MemoryPoolMXBean> pools = new ArrayList<MemoryPoolMXBean>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pools.add(pool);
+            }
+        }
+        System.gc();
+        long baseline = 0;
+        for (MemoryPoolMXBean pool : pools) {
+            baseline += pool.getUsage().getUsed();
+            pool.resetPeakUsage();
+        }
+        long t0 = System.nanoTime();
+        task.run();
+        long millis = Math.max(1, (System.nanoTime() - t0) / 1000000);
+        long peak = 0;
+        for (MemoryPoolMXBean pool : pools) {
+            peak += pool.getPeakUsage().getUsed();
+        }
+        log.info(name + ": " + BENCH_DOCS + " documents in " + millis
+                + " ms, " + (BENCH_DOCS * 1000L / millis)
+                + " docs/s, peak heap " + (Math.max(0, peak - baseline) / 1024)
+                + " KB");
+    }
+
+}
@@ -0,0 +1,295 @@
+/*
+ * (C) Copyright 2009 Nuxeo SAS (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Florent Guillaume
+ */
+
+package org.nuxeo.ecm.core.io.impl.plugins;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.dom4j.Document;
+import org.dom4j.DocumentFactory;
+import org.dom4j.Element;
+import org.nuxeo.common.utils.Path;
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DocumentLocation;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.DocumentRef;
+import org.nuxeo.ecm.core.api.IdRef;
+import org.nuxeo.ecm.core.api.PathRef;
+import org.nuxeo.ecm.core.api.impl.DocumentLocationImpl;
+import org.nuxeo.ecm.core.api.impl.DocumentModelImpl;
+import org.nuxeo.ecm.core.io.DocumentTranslationMap;
+import org.nuxeo.ecm.core.io.ExportConstants;
+import org.nuxeo.ecm.core.io.ExportedDocument;
+import org.nuxeo.ecm.core.io.impl.ExportedDocumentImpl;
+
+/**
+ * Tests the pages, the parent resolution and the saves of the batch writer,
+ * against an in-memory session.
+ *
+ * @author Florent Guillaume
+ */
+public class TestDocumentModelBatchWriter extends TestCase {
+
+    protected static final String ROOT = "/import";
+
+    /**
+     * The part of a session used by the writer, creating documents in
+     * memory. A name already taken gets a suffix, as in the repository.
+     */
+    protected static class MemorySession implements InvocationHandler {
+
+        /** The documents, by path. */
+        protected final Map<String, DocumentModel> docs = new HashMap<String, DocumentModel>();
+
+        /** The paths of the documents, by id. */
+        protected final Map<String, String> paths = new HashMap<String, String>();
+
+        /** The sizes of the pages created. */
+        protected final List<Integer> pages = new ArrayList<Integer>();
+
+        /** The parent refs passed for each created document, by path. */
+        protected final Map<String, DocumentRef> parentRefs = new HashMap<String, DocumentRef>();
+
+        /** The number of documents created at each save. */
+        protected final List<Integer> saves = new ArrayList<Integer>();
+
+        protected int created;
+
+        public MemorySession() {
+            add("/", null);
+            add(ROOT, "/");
+        }
+
+        public CoreSession getSession() {
+            return (CoreSession) Proxy.newProxyInstance(
+                    CoreSession.class.getClassLoader(),
+                    new Class<?>[] { CoreSession.class }, this);
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args)
+                throws Throwable {
+            String name = method.getName();
+            if (name.equals("createDocumentModel") && args.length == 1) {
+                return new DocumentModelImpl(null, (String) args[0], null,
+                        null, null, null, null, new String[0], null);
+            }
+            if (name.equals("createDocument")
+                    && args[0] instanceof DocumentModel[]) {
+                return createDocuments((DocumentModel[]) args[0]);
+            }
+            if (name.equals("save")) {
+                saves.add(Integer.valueOf(created));
+                return null;
+            }
+            throw new UnsupportedOperationException(name);
+        }
+
+        protected DocumentModel add(String path, String parentPath) {
+            String id = "id" + paths.size();
+            DocumentModel doc = new DocumentModelImpl("sid", "Folder", id,
+                    new Path(path), null, new IdRef(id),
+                    parentPath == null ? null : new PathRef(parentPath),
+                    new String[0], null, null, "test");
+            docs.put(path, doc);
+            paths.put(id, path);
+            return doc;
+        }
+
+        protected DocumentModel[] createDocuments(DocumentModel[] models)
+                throws ClientException {
+            pages.add(Integer.valueOf(models.length));
+            DocumentModel[] res = new DocumentModel[models.length];
+            for (int i = 0; i < models.length; i++) {
+                DocumentRef parentRef = models[i].getParentRef();
+                parentRefs.put(models[i].getPathAsString(), parentRef);
+                String parentPath;
+                if (parentRef instanceof IdRef) {
+                    parentPath = paths.get(((IdRef) parentRef).value);
+                } else {
+                    parentPath = ((PathRef) parentRef).value;
+                }
+                if (parentPath == null || !docs.containsKey(parentPath)) {
+                    throw new ClientException("No parent: " + parentRef);
+                }
+                String path = parentPath + '/' + models[i].getName();
+                for (int n = 1; docs.containsKey(path); n++) {
+                    path = parentPath + '/' + models[i].getName() + '.' + n;
+                }
+                res[i] = add(path, parentPath);
+                created++;
+            }
+            return res;
+        }
+
+        protected DocumentModel get(String path) {
+            DocumentModel doc = docs.get(path);
+            assertNotNull(path, doc);
+            return doc;
+        }
+    }
+
+    protected MemorySession memory;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        memory = new MemorySession();
+    }
+
+    protected static ExportedDocument xdoc(String path) {
+        ExportedDocumentImpl xdoc = new ExportedDocumentImpl() {
+            @Override
+            public DocumentLocation getSourceLocation() {
+                return new DocumentLocationImpl("source", new IdRef(getId()));
+            }
+        };
+        xdoc.setId("src-" + path);
+        xdoc.setPath(new Path(path));
+        Document document = DocumentFactory.getInstance().createDocument();
+        Element system = document.addElement(ExportConstants.DOCUMENT_TAG).addElement(
+                ExportConstants.SYSTEM_TAG);
+        system.addElement(ExportConstants.TYPE_TAG).addText("Folder");
+        xdoc.setDocument(document);
+        return xdoc;
+    }
+
+    protected static ExportedDocument[] xdocs(String... paths) {
+        ExportedDocument[] xdocs = new ExportedDocument[paths.length];
+        for (int i = 0; i < paths.length; i++) {
+            xdocs[i] = xdoc(paths[i]);
+        }
+        return xdocs;
+    }
+
+    /**
+     * Checks that a document was created under the given parent.
+     */
+    protected void assertParent(String parentPath, String path) {
+        assertEquals(new PathRef(parentPath), memory.get(path).getParentRef());
+    }
+
+    public void testPageSplitWhenParentInPage() throws Exception {
+        DocumentModelBatchWriter writer = new DocumentModelBatchWriter(
+                memory.getSession(), ROOT);
+        DocumentTranslationMap map = writer.write(xdocs("a", "a/b", "c",
+                "a/b/d", "e"));
+        // cut before a/b (parent a in page) and before a/b/d (parent a/b)
+        assertEquals(Arrays.asList(Integer.valueOf(1), Integer.valueOf(2),
+                Integer.valueOf(2)), memory.pages);
+        assertParent("/import", "/import/a");
+        assertParent("/import/a", "/import/a/b");
+        assertParent("/import", "/import/c");
+        assertParent("/import/a/b", "/import/a/b/d");
+        assertEquals(5, map.getDocRefMap().size());
+        assertEquals(memory.get("/import/a/b/d").getRef(),
+                map.getDocRefMap().get(new IdRef("src-a/b/d")));
+        writer.close();
+    }
+
+    public void testParentsFromCreatedRefs() throws Exception {
+        DocumentModelBatchWriter writer = new DocumentModelBatchWriter(
+                memory.getSession(), ROOT, 1000, 2);
+        writer.write(xdocs("a"));
+        writer.write(xdocs("a/b"));
+        // parents created by the writer are referred to by id
+        assertEquals(memory.get("/import/a").getRef(),
+                memory.parentRefs.get("/import/a/b"));
+        // the top level parent was not created by the writer
+        assertEquals(new PathRef(ROOT), memory.parentRefs.get("/import/a"));
+
+        // a/b and x are now remembered, a was evicted
+        writer.write(xdocs("x"));
+        writer.write(xdocs("a/e"));
+        assertEquals(new PathRef("/import/a"),
+                memory.parentRefs.get("/import/a/e"));
+        assertParent("/import/a", "/import/a/e");
+        writer.close();
+    }
+
+    public void testSaveInterval() throws Exception {
+        DocumentModelBatchWriter writer = new DocumentModelBatchWriter(
+                memory.getSession(), ROOT, 3);
+        for (int i = 0; i < 7; i++) {
+            writer.write(xdoc("doc" + i));
+        }
+        // saved every 3 documents
+        assertEquals(Arrays.asList(Integer.valueOf(3), Integer.valueOf(6)),
+                memory.saves);
+        writer.close();
+        // the remaining document is saved on close
+        assertEquals(Arrays.asList(Integer.valueOf(3), Integer.valueOf(6),
+                Integer.valueOf(7)), memory.saves);
+
+        // a page larger than the interval is saved once
+        memory = new MemorySession();
+        writer = new DocumentModelBatchWriter(memory.getSession(), ROOT, 3);
+        writer.write(xdocs("a", "b", "c", "d", "e"));
+        assertEquals(Arrays.asList(Integer.valueOf(5)), memory.saves);
+        writer.close();
+        assertEquals(1, memory.saves.size());
+    }
+
+    public void testNameCollision() throws Exception {
+        // already in the repository
+        memory.add("/import/a", ROOT);
+        DocumentModelBatchWriter writer = new DocumentModelBatchWriter(
+                memory.getSession(), ROOT, 1000, 1);
+        writer.write(xdocs("a"));
+        assertParent(ROOT, "/import/a.1");
+
+        // resolved by id
+        writer.write(xdocs("a/b"));
+        assertParent("/import/a.1", "/import/a.1/b");
+
+        // resolved by path once evicted, not to the existing document
+        writer.write(xdocs("x"));
+        writer.write(xdocs("a/c"));
+        assertEquals(new PathRef("/import/a.1"),
+                memory.parentRefs.get("/import/a/c"));
+        assertParent("/import/a.1", "/import/a.1/c");
+        assertEquals(0, countChildren("/import/a"));
+
+        // deeper descendants too
+        writer.write(xdocs("x/y"));
+        writer.write(xdocs("a/b/d"));
+        assertEquals(new PathRef("/import/a.1/b"),
+                memory.parentRefs.get("/import/a/b/d"));
+        assertParent("/import/a.1/b", "/import/a.1/b/d");
+        writer.close();
+    }
+
+    protected int countChildren(String parentPath) {
+        int count = 0;
+        for (String path : memory.docs.keySet()) {
+            if (path.startsWith(parentPath + '/')) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+}
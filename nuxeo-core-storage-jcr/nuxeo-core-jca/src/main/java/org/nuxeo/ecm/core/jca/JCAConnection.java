@@ -19,6 +19,7 @@ import java.io.InputStream;
 import java.io.Serializable;
 import java.util.Calendar;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 
 import javax.transaction.xa.XAResource;
@@ -147,6 +148,11 @@ public final class JCAConnection implements Session {
         return session.getDocumentByUUID(uuid);
     }
 
+    public List<Document> getDocumentsByUUIDs(List<String> uuids)
+            throws DocumentException {
+        return session.getDocumentsByUUIDs(uuids);
+    }
+
     public void save() throws DocumentException {
         session.save();
     }
@@ -255,6 +255,21 @@ public class JCRSession implements Session {
         }
     }
 
+    public List<Document> getDocumentsByUUIDs(List<String> uuids)
+            throws DocumentException {
+        List<Document> docs = new ArrayList<Document>(uuids.size());
+        for (String uuid : uuids) {
+            Document doc;
+            try {
+                doc = getDocumentByUUID(uuid);
+            } catch (NoSuchDocumentException e) {
+                doc = null;
+            }
+            docs.add(doc);
+        }
+        return docs;
+    }
+
     public Document resolvePath(String path) throws DocumentException {
         if (path.length() == 0) {
             return root;
@@ -73,47 +73,35 @@ public class H2Functions extends EmbeddedFunctions {
     }
 
     /**
-     * Adds an invalidation from this cluster node to the invalidations list.
+     * Adds invalidations from this cluster node to the invalidations list of
+     * the other nodes.
+     *
+     * @param ids the space-separated ids
+     * @param fragments the space-separated fragments
+     * @param kind the invalidation kind
      */
     @SuppressWarnings("boxing")
-    public static void clusterInvalidateString(Connection conn, String id,
+    public static void clusterInvalidateString(Connection conn, String ids,
             String fragments, int kind) throws SQLException {
-        PreparedStatement ps = null;
+        // one insert per id for all the other nodes at once
+        String sql = "INSERT INTO \"CLUSTER_INVALS\" "
+                + "(\"NODEID\", \"ID\", \"FRAGMENTS\", \"KIND\") "
+                + "SELECT \"NODEID\", ?, ?, ? FROM \"CLUSTER_NODES\" "
+                + "WHERE \"NODEID\" <> SESSION_ID()";
+        PreparedStatement ps = conn.prepareStatement(sql);
         try {
-            // find other node ids
-            String sql = "SELECT \"NODEID\" FROM \"CLUSTER_NODES\" "
-                    + "WHERE \"NODEID\" <> SESSION_ID()";
-            if (isLogEnabled()) {
-                logDebug(sql);
-            }
-            ps = conn.prepareStatement(sql);
-            List<Long> nodeIds = new LinkedList<Long>();
-            ResultSet rs = ps.executeQuery();
-            while (rs.next()) {
-                nodeIds.add(rs.getLong(1));
-            }
-            if (isLogEnabled()) {
-                logDebug("  -> " + nodeIds);
-            }
-            // invalidate
-            sql = "INSERT INTO \"CLUSTER_INVALS\" "
-                    + "(\"NODEID\", \"ID\", \"FRAGMENTS\", \"KIND\") "
-                    + "VALUES (?, ?, ?, ?)";
-            for (Long nodeId : nodeIds) {
+            for (String id : split(ids, ' ')) {
                 if (isLogEnabled()) {
-                    logDebug(sql, nodeId, id, fragments, kind);
+                    logDebug(sql, id, fragments, kind);
                 }
-                ps = conn.prepareStatement(sql);
-                ps.setLong(1, nodeId);
-                ps.setObject(2, id);
-                ps.setString(3, fragments);
-                ps.setInt(4, kind);
-                ps.execute();
+                ps.setString(1, id);
+                ps.setString(2, fragments);
+                ps.setInt(3, kind);
+                ps.addBatch();
             }
+            ps.executeBatch();
         } finally {
-            if (ps != null) {
-                ps.close();
-            }
+            ps.close();
         }
     }
 
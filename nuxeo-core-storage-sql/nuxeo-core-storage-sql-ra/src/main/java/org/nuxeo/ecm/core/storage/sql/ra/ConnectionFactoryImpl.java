@@ -286,4 +286,52 @@ public class ConnectionFactoryImpl implements Repository,
     public void processClusterInvalidationsNext() {
         managedConnectionFactory.processClusterInvalidationsNext();
     }
+
+    public long getClusterInvalidationsSentCount() {
+        return managedConnectionFactory.getClusterInvalidationsSentCount();
+    }
+
+    public long getClusterInvalidationsReceivedCount() {
+        return managedConnectionFactory.getClusterInvalidationsReceivedCount();
+    }
+
+    public long getClusterInvalidationsLag() {
+        return managedConnectionFactory.getClusterInvalidationsLag();
+    }
+
+    public int getFragmentCacheSize() {
+        return managedConnectionFactory.getFragmentCacheSize();
+    }
+
+    public long getFragmentCacheHitCount() {
+        return managedConnectionFactory.getFragmentCacheHitCount();
+    }
+
+    public long getFragmentCacheMissCount() {
+        return managedConnectionFactory.getFragmentCacheMissCount();
+    }
+
+    public long getFragmentCacheEvictionCount() {
+        return managedConnectionFactory.getFragmentCacheEvictionCount();
+    }
+
+    public int getQueryCacheSize() {
+        return managedConnectionFactory.getQueryCacheSize();
+    }
+
+    public long getQueryCacheHitCount() {
+        return managedConnectionFactory.getQueryCacheHitCount();
+    }
+
+    public long getQueryCacheMissCount() {
+        return managedConnectionFactory.getQueryCacheMissCount();
+    }
+
+    public long getQueryParseCacheHitCount() {
+        return managedConnectionFactory.getQueryParseCacheHitCount();
+    }
+
+    public long getQueryParseCacheMissCount() {
+        return managedConnectionFactory.getQueryParseCacheMissCount();
+    }
 }
@@ -20,6 +20,7 @@ package org.nuxeo.ecm.core.storage.sql.ra;
 import java.io.InputStream;
 import java.io.Serializable;
 import java.util.List;
+import java.util.Set;
 
 import javax.resource.ResourceException;
 import javax.resource.cci.ConnectionFactory;
@@ -148,6 +149,11 @@ public class ConnectionImpl implements Session {
         getSession().save();
     }
 
+    public Set<Serializable> getSecurityInvalidations()
+            throws StorageException {
+        return getSession().getSecurityInvalidations();
+    }
+
     public Node getRootNode() throws StorageException {
         return getSession().getRootNode();
     }
@@ -156,6 +162,11 @@ public class ConnectionImpl implements Session {
         return getSession().getNodeById(id);
     }
 
+    public List<Node> getNodesByIds(List<Serializable> ids)
+            throws StorageException {
+        return getSession().getNodesByIds(ids);
+    }
+
     public Node getNodeByPath(String path, Node node) throws StorageException {
         return getSession().getNodeByPath(path, node);
     }
@@ -251,6 +262,10 @@ public class ConnectionImpl implements Session {
         return getSession().addProxy(targetId, versionableId, parent, name, pos);
     }
 
+    public SQLQuery parseQuery(String query) throws StorageException {
+        return getSession().parseQuery(query);
+    }
+
     public PartialList<Serializable> query(SQLQuery query,
             QueryFilter queryFilter, boolean countTotal)
             throws StorageException {
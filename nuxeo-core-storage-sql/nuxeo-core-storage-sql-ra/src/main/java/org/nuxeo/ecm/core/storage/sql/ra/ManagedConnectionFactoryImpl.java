@@ -224,6 +224,90 @@ public class ManagedConnectionFactoryImpl implements ManagedConnectionFactory,
         }
     }
 
+    public long getClusterInvalidationsSentCount() {
+        if (repository == null) {
+            return 0;
+        }
+        return repository.getClusterInvalidationsSentCount();
+    }
+
+    public long getClusterInvalidationsReceivedCount() {
+        if (repository == null) {
+            return 0;
+        }
+        return repository.getClusterInvalidationsReceivedCount();
+    }
+
+    public long getClusterInvalidationsLag() {
+        if (repository == null) {
+            return 0;
+        }
+        return repository.getClusterInvalidationsLag();
+    }
+
+    public int getFragmentCacheSize() {
+        if (repository == null) {
+            return 0;
+        }
+        return repository.getFragmentCacheSize();
+    }
+
+    public long getFragmentCacheHitCount() {
+        if (repository == null) {
+            return 0;
+        }
+        return repository.getFragmentCacheHitCount();
+    }
+
+    public long getFragmentCacheMissCount() {
+        if (repository == null) {
+            return 0;
+        }
+        return repository.getFragmentCacheMissCount();
+    }
+
+    public long getFragmentCacheEvictionCount() {
+        if (repository == null) {
+            return 0;
+        }
+        return repository.getFragmentCacheEvictionCount();
+    }
+
+    public int getQueryCacheSize() {
+        if (repository == null) {
+            return 0;
+        }
+        return repository.getQueryCacheSize();
+    }
+
+    public long getQueryCacheHitCount() {
+        if (repository == null) {
+            return 0;
+        }
+        return repository.getQueryCacheHitCount();
+    }
+
+    public long getQueryCacheMissCount() {
+        if (repository == null) {
+            return 0;
+        }
+        return repository.getQueryCacheMissCount();
+    }
+
+    public long getQueryParseCacheHitCount() {
+        if (repository == null) {
+            return 0;
+        }
+        return repository.getQueryParseCacheHitCount();
+    }
+
+    public long getQueryParseCacheMissCount() {
+        if (repository == null) {
+            return 0;
+        }
+        return repository.getQueryParseCacheMissCount();
+    }
+
     /*
      * ----- -----
      */
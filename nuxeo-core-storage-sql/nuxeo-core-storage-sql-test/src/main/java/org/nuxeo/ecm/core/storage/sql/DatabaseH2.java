@@ -21,6 +21,7 @@ import java.io.File;
 import java.io.IOException;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.HashMap;
 import java.util.Map;
@@ -66,8 +67,7 @@ public class DatabaseH2 extends DatabaseHelper {
 
     @Override
     public void tearDown() throws Exception {
-        Connection connection = DriverManager.getConnection(String.format(
-                "jdbc:h2:%s", h2Path), H2_DATABASE_USER, H2_DATABASE_PASSWORD);
+        Connection connection = getConnection();
         Statement st = connection.createStatement();
         String sql = "SHUTDOWN";
         log.trace(sql);
@@ -81,6 +81,12 @@ public class DatabaseH2 extends DatabaseHelper {
         h2Path = null;
     }
 
+    @Override
+    public Connection getConnection() throws SQLException {
+        return DriverManager.getConnection(String.format("jdbc:h2:%s", h2Path),
+                H2_DATABASE_USER, H2_DATABASE_PASSWORD);
+    }
+
     @Override
     public String getDeploymentContrib() {
         return CONTRIB_XML;
@@ -17,6 +17,9 @@
 
 package org.nuxeo.ecm.core.storage.sql;
 
+import java.sql.Connection;
+import java.sql.SQLException;
+
 public abstract class DatabaseHelper {
 
     /**
@@ -53,4 +56,12 @@ public abstract class DatabaseHelper {
         return 0;
     }
 
+    /**
+     * Opens a direct connection to the database, to check or alter its
+     * structure, or returns {@code null} if not available.
+     */
+    public Connection getConnection() throws SQLException {
+        return null;
+    }
+
 }
@@ -0,0 +1,106 @@
+/*
+ * (C) Copyright 2009 Nuxeo SAS (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Florent Guillaume
+ */
+
+package org.nuxeo.ecm.core.storage.sql;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Compares the time taken to copy a hierarchy level by level and one node at
+ * a time.
+ * <p>
+ * Not run with the normal tests, use {@code mvn test
+ * -Dtest=CopyHierarchyBenchmark}.
+ *
+ * @author Florent Guillaume
+ */
+public class CopyHierarchyBenchmark extends SQLBackendTestCase {
+
+    private static final Log log = LogFactory.getLog(CopyHierarchyBenchmark.class);
+
+    protected static final int FOLDERS = 10;
+
+    protected static final int SUBFOLDERS = 10;
+
+    protected static final int DOCS = 20;
+
+    protected static final int RUNS = 3;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        deployContrib("org.nuxeo.ecm.core.storage.sql.test.tests",
+                "OSGI-INF/test-backend-core-types-contrib.xml");
+    }
+
+    public void testCopyBenchmark() throws Exception {
+        Session session = repository.getConnection();
+        Node root = session.getRootNode();
+        Node source = session.addChildNode(root, "source", null, "TestDoc",
+                false);
+        int n = 1;
+        for (int i = 0; i < FOLDERS; i++) {
+            Node folder = session.addChildNode(source, "f" + i, null,
+                    "TestDoc", false);
+            n++;
+            for (int j = 0; j < SUBFOLDERS; j++) {
+                Node subfolder = session.addChildNode(folder, "sf" + j, null,
+                        "TestDoc", false);
+                n++;
+                for (int k = 0; k < DOCS; k++) {
+                    Node doc = session.addChildNode(subfolder, "doc" + k,
+                            null, "TestDoc", false);
+                    doc.setSingleProperty("tst:title", "title " + k);
+                    n++;
+                }
+            }
+        }
+        session.save();
+
+        RepositoryDescriptor descriptor = ((RepositoryImpl) repository).getRepositoryDescriptor();
+        long byLevel = 0;
+        long recursive = 0;
+        for (int run = 0; run < RUNS; run++) {
+            descriptor.recursiveCopy = false;
+            byLevel += timeCopy(session, source, "level" + run);
+            descriptor.recursiveCopy = true;
+            recursive += timeCopy(session, source, "recursive" + run);
+        }
+        descriptor.recursiveCopy = false;
+        log.info(String.format(
+                "Copy of %d documents: level by level %d ms, recursive %d ms",
+                Integer.valueOf(n), Long.valueOf(byLevel / RUNS),
+                Long.valueOf(recursive / RUNS)));
+
+        // both copies are complete
+        Node copy = session.getNodeByPath("/level0/f9/sf9/doc19", null);
+        assertNotNull(copy);
+        assertEquals("title 19",
+                copy.getSimpleProperty("tst:title").getString());
+        assertNotNull(session.getNodeByPath("/recursive0/f9/sf9/doc19", null));
+    }
+
+    protected long timeCopy(Session session, Node source, String name)
+            throws Exception {
+        long t0 = System.currentTimeMillis();
+        session.copy(source, session.getRootNode(), name);
+        session.save();
+        return System.currentTimeMillis() - t0;
+    }
+
+}
@@ -22,15 +22,28 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.GregorianCalendar;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import javax.transaction.xa.XAResource;
 import javax.transaction.xa.Xid;
 
+import org.nuxeo.ecm.core.api.DocumentModelList;
+import org.nuxeo.ecm.core.query.QueryFilter;
+import org.nuxeo.ecm.core.query.sql.model.SQLQuery;
+import org.nuxeo.ecm.core.schema.SchemaManager;
+import org.nuxeo.ecm.core.storage.PartialList;
 import org.nuxeo.ecm.core.storage.StorageException;
+import org.nuxeo.ecm.core.storage.sql.coremodel.BinaryTextPipeline;
+import org.nuxeo.runtime.api.Framework;
 
 /**
  * @author Florent Guillaume
@@ -236,6 +249,179 @@ public class TestSQLBackend extends SQLBackendTestCase {
         // session.save();
     }
 
+    public void testBatchedInserts() throws Exception {
+        Session session = repository.getConnection();
+        Node root = session.getRootNode();
+        Node nodea = session.addChildNode(root, "foo", null, "TestDoc", false);
+        nodea.setSingleProperty("tst:title", "old");
+        Node nodeb = session.addChildNode(root, "bar", null, "TestDoc", false);
+        session.save();
+
+        // more created rows than a batch, with modifications and deletions
+        // in the same save
+        int n = Mapper.BATCH_SIZE * 2 + 10;
+        Node folder = session.addChildNode(root, "folder", null, "TestDoc",
+                false);
+        for (int i = 0; i < n; i++) {
+            Node node = session.addChildNode(folder, "doc" + i, null,
+                    "TestDoc", false);
+            node.setSingleProperty("tst:title", "title" + i);
+            node.setCollectionProperty("tst:subjects", new String[] {
+                    "a" + i, "b" + i });
+        }
+        nodea.setSingleProperty("tst:title", "new");
+        nodea.setCollectionProperty("tst:subjects", new String[] { "c" });
+        session.removeNode(nodeb);
+        session.save();
+        session.close();
+
+        // read from the database, not from the shared caches
+        repository.close();
+        repository = newRepository(-1);
+        session = repository.getConnection();
+        root = session.getRootNode();
+        folder = session.getChildNode(root, "folder", false);
+        assertEquals(n, session.getChildren(folder, null, false).size());
+        for (int i = 0; i < n; i++) {
+            Node node = session.getChildNode(folder, "doc" + i, false);
+            assertEquals("title" + i,
+                    node.getSimpleProperty("tst:title").getString());
+            assertEquals(Arrays.asList("a" + i, "b" + i), Arrays.asList(
+                    node.getCollectionProperty("tst:subjects").getStrings()));
+        }
+        nodea = session.getChildNode(root, "foo", false);
+        assertEquals("new", nodea.getSimpleProperty("tst:title").getString());
+        assertEquals(Arrays.asList("c"), Arrays.asList(
+                nodea.getCollectionProperty("tst:subjects").getStrings()));
+        assertNull(session.getChildNode(root, "bar", false));
+    }
+
+    public void testPrefetch() throws Exception {
+        Session session = repository.getConnection();
+        Node root = session.getRootNode();
+        // more children than fit in one IN list, of two different types
+        int n = 450;
+        Node folder = session.addChildNode(root, "folder", null, "TestDoc",
+                false);
+        for (int i = 0; i < n; i++) {
+            if (i % 3 == 0) {
+                Node node = session.addChildNode(folder, "doc" + i, null,
+                        "TestDoc2", false);
+                node.setSingleProperty("tst2:title", "other" + i);
+            } else {
+                Node node = session.addChildNode(folder, "doc" + i, null,
+                        "TestDoc", false);
+                if (i % 3 == 1) {
+                    node.setSingleProperty("tst:title", "title" + i);
+                }
+            }
+        }
+        Node nodea = session.addChildNode(root, "node_a", null, "TestDoc",
+                false);
+        nodea.setSingleProperty("tst:title", "hello");
+        session.save();
+        Serializable versionId = session.checkIn(nodea, "v1", "desc").getId();
+        session.save();
+        session.close();
+
+        // read from the database, not from the shared caches
+        repository.close();
+        repository = newRepository(-1);
+        session = repository.getConnection();
+        root = session.getRootNode();
+        folder = session.getChildNode(root, "folder", false);
+        // one child already in the session
+        Node doc4 = session.getChildNode(folder, "doc4", false);
+        assertEquals("title4", doc4.getSimpleProperty("tst:title").getString());
+        List<Node> children = session.getChildren(folder, null, false);
+        assertEquals(n, children.size());
+        checkPrefetchedChildren(children);
+
+        // a version also prefetches its version fragment
+        Node version = session.getNodeById(versionId);
+        assertEquals("hello", version.getSimpleProperty("tst:title").getString());
+        assertEquals("v1",
+                version.getSimpleProperty("ecm:versionLabel").getValue());
+        assertEquals("desc",
+                version.getSimpleProperty("ecm:versionDescription").getValue());
+        session.close();
+
+        // another session reads from the shared caches
+        session = repository.getConnection();
+        root = session.getRootNode();
+        folder = session.getChildNode(root, "folder", false);
+        checkPrefetchedChildren(session.getChildren(folder, null, false));
+        version = session.getNodeById(versionId);
+        assertEquals("v1",
+                version.getSimpleProperty("ecm:versionLabel").getValue());
+    }
+
+    protected static void checkPrefetchedChildren(List<Node> children)
+            throws Exception {
+        for (Node node : children) {
+            int i = Integer.parseInt(node.getName().substring("doc".length()));
+            if (i % 3 == 0) {
+                assertEquals("TestDoc2", node.getPrimaryType());
+                assertEquals("other" + i,
+                        node.getSimpleProperty("tst2:title").getString());
+            } else if (i % 3 == 1) {
+                assertEquals("title" + i,
+                        node.getSimpleProperty("tst:title").getString());
+            } else {
+                assertNull(node.getSimpleProperty("tst:title").getString());
+            }
+        }
+    }
+
+    public void testGetNodesByIds() throws Exception {
+        Session session = repository.getConnection();
+        Node root = session.getRootNode();
+        int n = 10;
+        List<Serializable> ids = new ArrayList<Serializable>(n);
+        for (int i = 0; i < n; i++) {
+            Node node = session.addChildNode(root, "doc" + i, null,
+                    "TestDoc", false);
+            node.setSingleProperty("tst:title", "title" + i);
+            ids.add(node.getId());
+        }
+        Node gone = session.addChildNode(root, "gone", null, "TestDoc",
+                false);
+        Serializable goneId = gone.getId();
+        session.save();
+        session.removeNode(gone);
+        session.save();
+        session.close();
+
+        // read from the database, not from the shared caches
+        repository.close();
+        repository = newRepository(-1);
+        session = repository.getConnection();
+
+        // reverse order, with a missing id in the middle
+        List<Serializable> request = new ArrayList<Serializable>(ids);
+        Collections.reverse(request);
+        request.add(n / 2, goneId);
+        List<Node> nodes = session.getNodesByIds(request);
+        assertEquals(request.size(), nodes.size());
+        for (int i = 0; i < request.size(); i++) {
+            Node node = nodes.get(i);
+            if (i == n / 2) {
+                assertNull(node);
+                continue;
+            }
+            assertNotNull(node);
+            assertEquals(request.get(i), node.getId());
+            int j = n - 1 - (i < n / 2 ? i : i - 1);
+            assertEquals("doc" + j, node.getName());
+            assertEquals("title" + j,
+                    node.getSimpleProperty("tst:title").getString());
+        }
+        // the missing id doesn't prevent a later lookup by id
+        assertNull(session.getNodeById(goneId));
+        assertEquals(0, session.getNodesByIds(
+                new ArrayList<Serializable>()).size());
+    }
+
     public void testPropertiesSameName() throws Exception {
         Session session = repository.getConnection();
         Node root = session.getRootNode();
@@ -550,6 +736,64 @@ public class TestSQLBackend extends SQLBackendTestCase {
         assertEquals("glop", title2.getString());
     }
 
+    public void testClusterInvalidations() throws Exception {
+        repository.close();
+        long DELAY = 500; // ms
+        repository = newRepository(DELAY);
+        repository2 = newRepository(DELAY);
+        RepositoryImpl repo1 = (RepositoryImpl) repository;
+        RepositoryImpl repo2 = (RepositoryImpl) repository2;
+
+        Session session1 = repository.getConnection();
+        Session session2 = repository2.getConnection();
+        session2.save();
+
+        // more invalidated ids than sent at once
+        int n = Mapper.CLUSTER_INVALIDATIONS_CHUNK + 10;
+        Node folder1 = session1.addChildNode(session1.getRootNode(), "foo",
+                null, "TestDoc", false);
+        for (int i = 0; i < n; i++) {
+            session1.addChildNode(folder1, "doc" + i, null, "TestDoc", false);
+        }
+        session1.save();
+        repo2.processClusterInvalidationsNext();
+        session2.save();
+
+        // session2 reads all the documents
+        Node folder2 = session2.getChildNode(session2.getRootNode(), "foo",
+                false);
+        List<Node> children2 = session2.getChildren(folder2, null, false);
+        assertEquals(n, children2.size());
+        for (Node node : children2) {
+            assertNull(node.getSimpleProperty("tst:title").getString());
+        }
+
+        // session1 modifies them all
+        long sent = repo1.getClusterInvalidationsSentCount();
+        long received = repo2.getClusterInvalidationsReceivedCount();
+        for (Node node : session1.getChildren(folder1, null, false)) {
+            node.setSingleProperty("tst:title", "title-" + node.getName());
+        }
+        session1.save();
+        assertTrue(repo1.getClusterInvalidationsSentCount() >= sent + n);
+
+        // session2 receives the invalidations
+        repo2.processClusterInvalidationsNext();
+        session2.save();
+        assertTrue(repo2.getClusterInvalidationsReceivedCount() >= received
+                + n);
+        for (Node node : children2) {
+            assertEquals("title-" + node.getName(),
+                    node.getSimpleProperty("tst:title").getString());
+        }
+
+        // they were consumed, they are not received again
+        received = repo2.getClusterInvalidationsReceivedCount();
+        repo2.processClusterInvalidationsNext();
+        session2.save();
+        assertEquals(received, repo2.getClusterInvalidationsReceivedCount());
+    }
+
     public void testRollback() throws Exception {
         Session session = repository.getConnection();
         XAResource xaresource = ((SessionImpl) session).getXAResource();
@@ -668,6 +912,209 @@ public class TestSQLBackend extends SQLBackendTestCase {
         session.save();
     }
 
+    public void testPathsAfterMoveAndCopy() throws Exception {
+        Session session = repository.getConnection();
+        Node root = session.getRootNode();
+        Node foldera = session.addChildNode(root, "folder_a", null, "TestDoc",
+                false);
+        Node nodea = session.addChildNode(foldera, "node_a", null, "TestDoc",
+                false);
+        Node folderb = session.addChildNode(root, "folder_b", null, "TestDoc",
+                false);
+        // names with LIKE special characters
+        Node folderc = session.addChildNode(root, "folder_%", null,
+                "TestDoc", false);
+        session.save();
+        assertEquals("/folder_a/node_a", session.getPath(nodea));
+        assertEquals(nodea.getId(),
+                session.getNodeByPath("/folder_a/node_a", null).getId());
+        assertEquals(nodea.getId(),
+                session.getNodeByPath("node_a", foldera).getId());
+
+        // move, paths of descendants are updated on save
+        session.move(foldera, folderb, "yo");
+        session.save();
+        assertNull(session.getNodeByPath("/folder_a/node_a", null));
+        assertEquals(nodea.getId(),
+                session.getNodeByPath("/folder_b/yo/node_a", null).getId());
+        assertEquals("/folder_b/yo/node_a", session.getPath(nodea));
+
+        // copy, paths of the copy are recorded
+        Node copy = session.copy(folderb, folderc, "copy");
+        session.save();
+        assertEquals("/folder_%/copy", session.getPath(copy));
+        Node nodea2 = session.getNodeByPath("/folder_%/copy/yo/node_a", null);
+        assertNotNull(nodea2);
+        assertNotSame(nodea.getId(), nodea2.getId());
+        assertNull(session.getNodeByPath("/folder_x/copy", null));
+
+        // removal
+        session.removeNode(foldera);
+        session.save();
+        assertNull(session.getNodeByPath("/folder_b/yo/node_a", null));
+    }
+
+    protected static String longName(char c) {
+        char[] chars = new char[300];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    protected static Set<Serializable> queryIds(Session session, String nxql,
+            QueryFilter queryFilter) throws StorageException {
+        PartialList<Serializable> res = session.query(
+                session.parseQuery(nxql), queryFilter, false);
+        return new HashSet<Serializable>(res.list);
+    }
+
+    public void testLongPaths() throws Exception {
+        Session session = repository.getConnection();
+        Node root = session.getRootNode();
+        String a = longName('a');
+        String b = longName('b');
+        String c = longName('c');
+        String d = longName('d');
+        Node nodea = session.addChildNode(root, a, null, "TestDoc", false);
+        Node nodeb = session.addChildNode(nodea, b, null, "TestDoc", false);
+        Node nodec = session.addChildNode(nodeb, c, null, "TestDoc", false);
+        // paths too long to be recorded
+        Node noded = session.addChildNode(nodec, d, null, "TestDoc", false);
+        Node nodee = session.addChildNode(noded, "e", null, "TestDoc", false);
+        CollectionProperty prop = noded.getCollectionProperty(Model.ACL_PROP);
+        prop.setValue(new ACLRow[] { new ACLRow(0, "local", true, "Read",
+                "bob", null) });
+        session.save();
+        String pathc = '/' + a + '/' + b + '/' + c;
+        String pathd = pathc + '/' + d;
+        assertEquals(pathd + "/e", session.getPath(nodee));
+        // lookups walk the hierarchy
+        assertEquals(nodee.getId(),
+                session.getNodeByPath(pathd + "/e", null).getId());
+        assertEquals(nodee.getId(), session.getNodeByPath("e", noded).getId());
+        assertNull(session.getNodeByPath(pathd + "/nosuch", null));
+
+        // queries match the descendants with paths too long
+        QueryFilter queryFilter = new QueryFilter(null, null, null,
+                Collections.<SQLQuery.Transformer> emptyList());
+        Set<Serializable> expected = new HashSet<Serializable>(Arrays.asList(
+                noded.getId(), nodee.getId()));
+        String nxql = "SELECT * FROM TestDoc WHERE ecm:path STARTSWITH '%s'";
+        assertEquals(expected, queryIds(session, String.format(nxql, pathc),
+                queryFilter));
+        assertEquals(Collections.singleton(nodee.getId()), queryIds(session,
+                String.format(nxql, pathd), queryFilter));
+        // read ACLs are inherited
+        QueryFilter bobFilter = new QueryFilter(new String[] { "bob" },
+                new String[] { "Read" }, null,
+                Collections.<SQLQuery.Transformer> emptyList());
+        assertEquals(expected, queryIds(session, "SELECT * FROM TestDoc",
+                bobFilter));
+
+        // moved to a shorter path, the paths are recorded again
+        session.move(nodeb, root, "b");
+        session.save();
+        String newPathd = "/b/" + c + '/' + d;
+        assertEquals(nodee.getId(),
+                session.getNodeByPath(newPathd + "/e", null).getId());
+        assertEquals(expected, queryIds(session, String.format(nxql, "/b"),
+                queryFilter));
+        assertEquals(Collections.singleton(nodee.getId()), queryIds(session,
+                String.format(nxql, newPathd), queryFilter));
+
+        // moved back under a long path
+        session.move(nodeb, nodea, b);
+        session.save();
+        assertEquals(nodee.getId(),
+                session.getNodeByPath(pathd + "/e", null).getId());
+        assertNull(session.getNodeByPath(newPathd + "/e", null));
+        assertEquals(expected, queryIds(session, String.format(nxql, pathc),
+                queryFilter));
+
+        // copy
+        Node copy = session.copy(nodec, root, "copy");
+        session.save();
+        Node copye = session.getNodeByPath("/copy/" + d + "/e", null);
+        assertNotNull(copye);
+        assertNotSame(nodee.getId(), copye.getId());
+        assertEquals(2, queryIds(session, String.format(nxql, "/copy"),
+                queryFilter).size());
+        Node copyd = session.getNodeByPath("/copy/" + d, null);
+        assertEquals(new HashSet<Serializable>(Arrays.asList(noded.getId(),
+                nodee.getId(), copyd.getId(), copye.getId())), queryIds(
+                session, "SELECT * FROM TestDoc", bobFilter));
+        assertEquals(copy.getId(), session.getParentNode(copyd).getId());
+    }
+
+    public void testFillReadAcls() throws Exception {
+        Session session = repository.getConnection();
+        Node root = session.getRootNode();
+        Node folder = session.addChildNode(root, "folder", null, "TestDoc",
+                false);
+        Node doc1 = session.addChildNode(folder, "doc1", null, "TestDoc",
+                false);
+        Node doc2 = session.addChildNode(folder, "doc2", null, "TestDoc",
+                false);
+        Node doc3 = session.addChildNode(doc1, "doc3", null, "TestDoc", false);
+        session.addChildNode(root, "other", null, "TestDoc", false);
+        folder.getCollectionProperty(Model.ACL_PROP).setValue(
+                new ACLRow[] { new ACLRow(0, "local", true, "Read", "bob",
+                        null) });
+        doc1.getCollectionProperty(Model.ACL_PROP).setValue(
+                new ACLRow[] { new ACLRow(0, "local", false, "Browse", "bob",
+                        null) });
+        doc3.getCollectionProperty(Model.ACL_PROP).setValue(
+                new ACLRow[] { new ACLRow(0, "local", true, "Browse", "bob",
+                        null) });
+        session.save();
+        session.close();
+        repository.close();
+
+        // an existing repository without read ACLs
+        Connection connection = DatabaseHelper.DATABASE.getConnection();
+        if (connection == null) {
+            repository = null;
+            return;
+        }
+        try {
+            Statement st = connection.createStatement();
+            st.execute("DROP TABLE " + Model.HIER_READ_ACL_TABLE_NAME);
+            st.execute("DROP TABLE " + Model.READ_ACLS_TABLE_NAME);
+            st.close();
+        } finally {
+            connection.close();
+        }
+        repository = newRepository(-1);
+        session = repository.getConnection();
+        QueryFilter bobFilter = new QueryFilter(new String[] { "bob" },
+                new String[] { "Read" }, null,
+                Collections.<SQLQuery.Transformer> emptyList());
+        assertEquals(new HashSet<Serializable>(Arrays.asList(folder.getId(),
+                doc2.getId(), doc3.getId())), queryIds(session,
+                "SELECT * FROM TestDoc", bobFilter));
+    }
+
+    public void testSimpleTextUpdate() throws Exception {
+        Session session = repository.getConnection();
+        Node root = session.getRootNode();
+        Node node = session.addChildNode(root, "foo", null, "TestDoc", false);
+        node.setSingleProperty("tst:title", "hello");
+        session.save();
+        assertEquals("hello", node.getSimpleProperty(
+                Model.FULLTEXT_SIMPLETEXT_PROP).getString());
+
+        // a change to a fulltext property of a prefixed schema is seen
+        node.setSingleProperty("tst:title", "goodbye");
+        session.save();
+        assertEquals("goodbye", node.getSimpleProperty(
+                Model.FULLTEXT_SIMPLETEXT_PROP).getString());
+
+        // a change to a non-fulltext property leaves the text alone
+        node.setSingleProperty("tst:rate", Double.valueOf(2));
+        session.save();
+        assertEquals("goodbye", node.getSimpleProperty(
+                Model.FULLTEXT_SIMPLETEXT_PROP).getString());
+    }
+
     public void testCopy() throws Exception {
         Session session = repository.getConnection();
         Node root = session.getRootNode();
@@ -921,6 +1368,247 @@ public class TestSQLBackend extends SQLBackendTestCase {
         assertEquals("beeep",
                 nodea.getSimpleProperty("ecm:wfIncOption").getValue());
     }
+
+    public void testQueryPlanCache() throws Exception {
+        Session session = repository.getConnection();
+        Node root = session.getRootNode();
+        Node nodea = session.addChildNode(root, "foo", null, "TestDoc", false);
+        nodea.setSingleProperty("tst:title", "hello");
+        session.save();
+
+        QueryPlanCache cache = ((RepositoryImpl) repository).getQueryPlanCache();
+        long hits = cache.getHitCount();
+        long parseHits = cache.getParseHitCount();
+        QueryFilter queryFilter = new QueryFilter(null, null, null,
+                Collections.<SQLQuery.Transformer> emptyList());
+        String nxql = "SELECT * FROM TestDoc WHERE tst:title = 'hello'";
+        for (int i = 0; i < 2; i++) {
+            SQLQuery query = session.parseQuery(nxql);
+            PartialList<Serializable> res = session.query(query, queryFilter,
+                    false);
+            assertEquals(Collections.singletonList(nodea.getId()), res.list);
+            // doesn't change the cached parsed query
+            query.setLimit(1);
+            query.setOffset(1);
+        }
+        assertEquals(hits + 1, cache.getHitCount());
+        assertEquals(parseHits + 1, cache.getParseHitCount());
+    }
+
+    public void testQueryPaging() throws Exception {
+        Session session = repository.getConnection();
+        Node root = session.getRootNode();
+        List<Serializable> ids = new ArrayList<Serializable>();
+        for (int i = 0; i < 10; i++) {
+            Node node = session.addChildNode(root, "doc" + i, null, "TestDoc",
+                    false);
+            node.setSingleProperty("tst:title", "t" + i);
+            ids.add(node.getId());
+        }
+        session.save();
+
+        QueryFilter queryFilter = new QueryFilter(null, null, null,
+                Collections.<SQLQuery.Transformer> emptyList());
+        String nxql = "SELECT * FROM TestDoc WHERE tst:title LIKE 't%' ORDER BY tst:title";
+        PartialList<Serializable> res;
+
+        // no paging
+        res = queryPage(session, nxql, queryFilter, 0, 0, true);
+        assertEquals(ids, res.list);
+        assertEquals(10, res.totalSize);
+
+        // first page, total size counted
+        res = queryPage(session, nxql, queryFilter, 3, 0, true);
+        assertEquals(ids.subList(0, 3), res.list);
+        assertEquals(10, res.totalSize);
+
+        // middle page, total size not requested
+        res = queryPage(session, nxql, queryFilter, 3, 3, false);
+        assertEquals(ids.subList(3, 6), res.list);
+        assertEquals(-1, res.totalSize);
+
+        // last page, total size known without counting
+        res = queryPage(session, nxql, queryFilter, 3, 8, false);
+        assertEquals(ids.subList(8, 10), res.list);
+        assertEquals(10, res.totalSize);
+
+        // after the last page
+        res = queryPage(session, nxql, queryFilter, 3, 12, true);
+        assertEquals(0, res.list.size());
+        assertEquals(10, res.totalSize);
+        session.close();
+
+        // with a count limit
+        repository.close();
+        RepositoryDescriptor descriptor = DatabaseHelper.DATABASE.getRepositoryDescriptor();
+        descriptor.queryCountLimit = 5;
+        repository = new RepositoryImpl(descriptor,
+                Framework.getService(SchemaManager.class));
+        session = repository.getConnection();
+        res = queryPage(session, nxql, queryFilter, 3, 0, true);
+        assertEquals(ids.subList(0, 3), res.list);
+        assertEquals(DocumentModelList.TOTAL_SIZE_OVER_LIMIT, res.totalSize);
+        // the last page doesn't need counting
+        res = queryPage(session, nxql, queryFilter, 3, 9, true);
+        assertEquals(ids.subList(9, 10), res.list);
+        assertEquals(10, res.totalSize);
+    }
+
+    protected static PartialList<Serializable> queryPage(Session session,
+            String nxql, QueryFilter queryFilter, long limit, long offset,
+            boolean countTotal) throws StorageException {
+        SQLQuery query = session.parseQuery(nxql);
+        query.setLimit(limit);
+        query.setOffset(offset);
+        return session.query(query, queryFilter, countTotal);
+    }
+
+    public void testFragmentCacheUncommittedCreation() throws Exception {
+        Session session = repository.getConnection();
+        session.save();
+        FragmentCache cache = ((RepositoryImpl) repository).getFragmentCache();
+        assertNotNull(cache);
+        Model model = ((SessionImpl) session).getModel();
+        String titleTableName = model.getPropertyInfo("tst:title").fragmentName;
+        XAResource xaresource = ((SessionImpl) session).getXAResource();
+
+        Xid xid = new DummyXid("1");
+        xaresource.start(xid, XAResource.TMNOFLAGS);
+        Node root = session.getRootNode();
+        Node node = session.addChildNode(root, "foo", null, "TestDoc", false);
+        node.setSingleProperty("tst:title", "new");
+        session.save();
+        Serializable id = node.getId();
+        // the GC collects the fragments, they are read again
+        ((SessionImpl) session).clearPristine();
+        node = session.getNodeById(id);
+        assertNotNull(node);
+        assertEquals("new", node.getSimpleProperty("tst:title").getString());
+        // but the uncommitted rows are not shared with other sessions
+        assertFalse(cache.contains(model.hierTableName, id));
+        assertFalse(cache.contains(titleTableName, id));
+        xaresource.end(xid, XAResource.TMSUCCESS);
+        xaresource.prepare(xid);
+        xaresource.commit(xid, false);
+
+        // after commit, other sessions see the node
+        Session session2 = repository.getConnection();
+        Node node2 = session2.getNodeById(id);
+        assertNotNull(node2);
+        assertEquals("new", node2.getSimpleProperty("tst:title").getString());
+        assertTrue(cache.contains(model.hierTableName, id));
+    }
+
+    public void testFragmentCacheRollback() throws Exception {
+        Session session = repository.getConnection();
+        XAResource xaresource = ((SessionImpl) session).getXAResource();
+        Node root = session.getRootNode();
+        Node node = session.addChildNode(root, "foo", null, "TestDoc", false);
+        node.setSingleProperty("tst:title", "old");
+        session.save();
+        Serializable id = node.getId();
+
+        Xid xid = new DummyXid("1");
+        xaresource.start(xid, XAResource.TMNOFLAGS);
+        node = session.getNodeById(id);
+        node.setSingleProperty("tst:title", "new");
+        Node child = session.addChildNode(node, "bar", null, "TestDoc", false);
+        Node copy = session.copy(node, root, "foocopy");
+        session.save();
+        Serializable childId = child.getId();
+        Serializable copyId = copy.getId();
+        // the GC collects the fragments, they are read again
+        ((SessionImpl) session).clearPristine();
+        assertEquals("new",
+                session.getNodeById(id).getSimpleProperty("tst:title")
+                        .getString());
+        assertNotNull(session.getNodeById(childId));
+        assertNotNull(session.getNodeById(copyId));
+        xaresource.end(xid, XAResource.TMSUCCESS);
+        xaresource.prepare(xid);
+        xaresource.rollback(xid);
+
+        // no phantom data is left in the shared cache
+        Session session2 = repository.getConnection();
+        assertNull(session2.getNodeById(childId));
+        assertNull(session2.getNodeById(copyId));
+        assertEquals("old",
+                session2.getNodeById(id).getSimpleProperty("tst:title")
+                        .getString());
+        assertNull(session.getNodeById(childId));
+        assertEquals("old",
+                session.getNodeById(id).getSimpleProperty("tst:title")
+                        .getString());
+    }
+
+    public void testFragmentCacheRecursiveRemoval() throws Exception {
+        Session session = repository.getConnection();
+        FragmentCache cache = ((RepositoryImpl) repository).getFragmentCache();
+        Model model = ((SessionImpl) session).getModel();
+        Node root = session.getRootNode();
+        Node folder = session.addChildNode(root, "foo", null, "TestDoc", false);
+        Node child = session.addChildNode(folder, "bar", null, "TestDoc",
+                false);
+        Node grandchild = session.addChildNode(child, "gee", null, "TestDoc",
+                false);
+        grandchild.setSingleProperty("tst:title", "deep");
+        session.save();
+        Serializable folderId = folder.getId();
+        Serializable grandchildId = grandchild.getId();
+
+        // another session reads the grandchild, filling the shared cache
+        Session session2 = repository.getConnection();
+        Node node2 = session2.getNodeById(grandchildId);
+        assertNotNull(node2);
+        assertEquals("deep", node2.getSimpleProperty("tst:title").getString());
+        assertTrue(cache.contains(model.hierTableName, grandchildId));
+
+        // the folder is removed, the database removes its descendants
+        session.removeNode(session.getNodeById(folderId));
+        session.save();
+        assertFalse(cache.contains(model.hierTableName, grandchildId));
+
+        // the other session sees the grandchild gone
+        session2.save(); // process invalidations
+        assertNull(session2.getNodeById(grandchildId));
+        // and so does a new session
+        Session session3 = repository.getConnection();
+        assertNull(session3.getNodeById(grandchildId));
+    }
+
+    public void testFragmentCacheDisabledWhenClustering() throws Exception {
+        assertNotNull(((RepositoryImpl) repository).getFragmentCache());
+        repository.close();
+        repository = newRepository(500);
+        assertNull(((RepositoryImpl) repository).getFragmentCache());
+    }
+
+    public void testBinaryTextPipelineLifecycle() throws Exception {
+        RepositoryImpl repo = (RepositoryImpl) repository;
+        String name = repo.getName();
+        BinaryTextPipeline pipeline = repo.getBinaryTextPipeline();
+        assertSame(pipeline, BinaryTextPipeline.getPipeline(name));
+        assertTrue(BinaryTextPipeline.getPipelines().contains(pipeline));
+        assertFalse(pipeline.isShutdown());
+
+        // a second repository of the same name takes over
+        repository2 = newRepository(-1);
+        BinaryTextPipeline pipeline2 = ((RepositoryImpl) repository2).getBinaryTextPipeline();
+        assertNotSame(pipeline, pipeline2);
+        assertSame(pipeline2, BinaryTextPipeline.getPipeline(name));
+
+        // closing the first one doesn't unregister the second one
+        repository.close();
+        repository = null;
+        assertTrue(pipeline.isShutdown());
+        assertSame(pipeline2, BinaryTextPipeline.getPipeline(name));
+
+        repository2.close();
+        repository2 = null;
+        assertTrue(pipeline2.isShutdown());
+        assertNull(BinaryTextPipeline.getPipeline(name));
+        assertTrue(BinaryTextPipeline.getPipelines().isEmpty());
+    }
 }
 
 class DummyXid implements Xid {
@@ -28,6 +28,7 @@ import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
@@ -42,6 +43,7 @@ import org.nuxeo.ecm.core.api.ClientException;
 import org.nuxeo.ecm.core.api.CoreSession;
 import org.nuxeo.ecm.core.api.DataModel;
 import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.DocumentModelComparator;
 import org.nuxeo.ecm.core.api.DocumentModelIterator;
 import org.nuxeo.ecm.core.api.DocumentModelList;
 import org.nuxeo.ecm.core.api.DocumentRef;
@@ -564,6 +566,30 @@ public class TestSQLRepositoryAPI extends SQLRepositoryTestCase {
         assertTrue(session.exists(root.getRef()));
     }
 
+    public void testGetDocuments() throws ClientException {
+        DocumentModel a = session.createDocument(new DocumentModelImpl("/",
+                "a", "File"));
+        DocumentModel b = session.createDocument(new DocumentModelImpl("/",
+                "b", "File"));
+        DocumentModel c = session.createDocument(new DocumentModelImpl("/",
+                "c", "File"));
+        DocumentModel gone = session.createDocument(new DocumentModelImpl("/",
+                "gone", "File"));
+        session.save();
+        session.removeDocument(gone.getRef());
+        session.save();
+
+        // ids fetched in bulk, mixed with a path and a missing id
+        DocumentModelList docs = session.getDocuments(new DocumentRef[] {
+                new IdRef(c.getId()), new PathRef("/a"),
+                new IdRef(gone.getId()), new IdRef(b.getId()) });
+        assertEquals(3, docs.size());
+        assertEquals(c.getId(), docs.get(0).getId());
+        assertEquals(a.getId(), docs.get(1).getId());
+        assertEquals(b.getId(), docs.get(2).getId());
+        assertEquals("/c", docs.get(0).getPathAsString());
+    }
+
     public void testGetChild() throws ClientException {
         DocumentModel root = session.getRootDocument();
 
@@ -2728,6 +2754,51 @@ public class TestSQLRepositoryAPI extends SQLRepositoryTestCase {
         assertEquals(expected, actual);
     }
 
+    public void testGetChildrenSortedAndPaged() throws Exception {
+        DocumentModel root = session.getRootDocument();
+        DocumentModel folder = new DocumentModelImpl(root.getPathAsString(),
+                "folder", "Folder");
+        folder = session.createDocument(folder);
+        for (int i = 0; i < 40; i++) {
+            String type = i % 4 == 0 ? "Folder" : "File";
+            DocumentModel doc = new DocumentModelImpl(
+                    folder.getPathAsString(), "doc" + i, type);
+            doc.setPropertyValue("dc:title", String.format("t%02d", i));
+            session.createDocument(doc);
+        }
+        session.save();
+
+        // type, facet and ordering
+        Map<String, String> orderBy = new LinkedHashMap<String, String>();
+        orderBy.put("dc:title", "desc");
+        DocumentModelList docs = session.getChildren(folder.getRef(), "File",
+                null, new FacetFilter("Folderish", false),
+                new DocumentModelComparator(orderBy));
+        assertEquals(30, docs.size());
+        assertEquals("t39", docs.get(0).getTitle());
+        assertEquals("t01", docs.get(29).getTitle());
+        docs = session.getChildren(folder.getRef(), null, null,
+                new FacetFilter("Folderish", true), null);
+        assertEquals(10, docs.size());
+
+        // pagination
+        DocumentModelIterator it = session.getChildrenIterator(
+                folder.getRef(), "File");
+        List<String> names = new ArrayList<String>();
+        while (it.hasNext()) {
+            names.add(it.next().getName());
+        }
+        assertEquals(30, names.size());
+        assertFalse(names.contains("doc0"));
+        assertTrue(names.contains("doc39"));
+        // pages are in a stable order, without duplicates
+        List<String> sorted = new ArrayList<String>(names);
+        Collections.sort(sorted);
+        assertEquals(sorted, names);
+        it = session.getChildrenIterator(folder.getRef());
+        assertEquals(40, it.size());
+    }
+
     public static byte[] createBytes(int size, byte val) {
         byte[] bytes = new byte[size];
         Arrays.fill(bytes, val);
@@ -17,7 +17,11 @@
 
 package org.nuxeo.ecm.core.storage.sql;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import junit.framework.Assert;
 
@@ -26,6 +30,7 @@ import org.nuxeo.ecm.core.api.CoreSession;
 import org.nuxeo.ecm.core.api.DocumentModel;
 import org.nuxeo.ecm.core.api.DocumentRef;
 import org.nuxeo.ecm.core.api.DocumentSecurityException;
+import org.nuxeo.ecm.core.api.PathRef;
 import org.nuxeo.ecm.core.api.impl.DocumentModelImpl;
 import org.nuxeo.ecm.core.api.security.ACE;
 import org.nuxeo.ecm.core.api.security.ACL;
@@ -275,6 +280,106 @@ public class TestSQLRepositorySecurity extends SQLRepositoryTestCase {
         assertEquals("A_x1234_", acl.get(4).getUsername());
     }
 
+    protected static Set<String> getNames(List<DocumentModel> docs) {
+        Set<String> names = new HashSet<String>();
+        for (DocumentModel doc : docs) {
+            names.add(doc.getName());
+        }
+        return names;
+    }
+
+    protected static void setLocalACE(DocumentModel doc, ACE ace)
+            throws ClientException {
+        ACP acp = new ACPImpl();
+        ACL acl = new ACLImpl();
+        if (ace != null) {
+            acl.add(ace);
+        }
+        acp.addACL(acl);
+        doc.setACP(acp, true);
+    }
+
+    public void testQueryReadAcls() throws ClientException {
+        DocumentModel folder = session.createDocument(new DocumentModelImpl(
+                "/", "folder", "Folder"));
+        DocumentModel other = session.createDocument(new DocumentModelImpl(
+                "/", "other", "Folder"));
+        DocumentModel doc1 = session.createDocument(new DocumentModelImpl(
+                "/folder", "doc1", "File"));
+        session.createDocument(new DocumentModelImpl("/folder", "doc2",
+                "File"));
+        setLocalACE(folder, new ACE("bob", SecurityConstants.READ, true));
+        setLocalACE(doc1, new ACE("bob", SecurityConstants.BROWSE, false));
+        session.save();
+
+        CoreSession bobSession = openSessionAs("bob");
+        try {
+            String query = "SELECT * FROM Document";
+            assertEquals(new HashSet<String>(Arrays.asList("folder", "doc2")),
+                    getNames(bobSession.query(query)));
+
+            // move out of the readable folder
+            session.move(new PathRef("/folder/doc2"), other.getRef(), null);
+            session.save();
+            assertEquals(Collections.singleton("folder"),
+                    getNames(bobSession.query(query)));
+
+            // new ACL on an ancestor
+            setLocalACE(other, new ACE("bob", SecurityConstants.READ, true));
+            session.save();
+            assertEquals(new HashSet<String>(Arrays.asList("folder", "other",
+                    "doc2")), getNames(bobSession.query(query)));
+
+            // new document inheriting the ACL, and removed denial
+            session.createDocument(new DocumentModelImpl("/other", "doc3",
+                    "File"));
+            setLocalACE(doc1, null);
+            session.save();
+            assertEquals(new HashSet<String>(Arrays.asList("folder", "doc1",
+                    "other", "doc2", "doc3")),
+                    getNames(bobSession.query(query)));
+        } finally {
+            closeSession(bobSession);
+        }
+    }
+
+    public void testGetChildrenAclCache() throws ClientException {
+        DocumentModel folder = session.createDocument(new DocumentModelImpl(
+                "/", "folder", "Folder"));
+        DocumentModel sub = session.createDocument(new DocumentModelImpl(
+                "/folder", "sub", "Folder"));
+        DocumentModel doc1 = session.createDocument(new DocumentModelImpl(
+                "/folder/sub", "doc1", "File"));
+        session.createDocument(new DocumentModelImpl("/folder/sub", "doc2",
+                "File"));
+        setLocalACE(folder, new ACE("bob", SecurityConstants.READ, true));
+        session.save();
+
+        CoreSession bobSession = openSessionAs("bob");
+        try {
+            assertEquals(new HashSet<String>(Arrays.asList("doc1", "doc2")),
+                    getNames(bobSession.getChildren(sub.getRef())));
+
+            // denial on a child
+            setLocalACE(doc1, new ACE("bob", SecurityConstants.READ, false));
+            session.save();
+            bobSession.save(); // process invalidations
+            assertEquals(Collections.singleton("doc2"),
+                    getNames(bobSession.getChildren(sub.getRef())));
+
+            // denial on an ancestor
+            assertTrue(bobSession.hasPermission(sub.getRef(),
+                    SecurityConstants.READ));
+            setLocalACE(sub, new ACE("bob", SecurityConstants.READ, false));
+            session.save();
+            bobSession.save();
+            assertFalse(bobSession.hasPermission(new PathRef(
+                    "/folder/sub/doc2"), SecurityConstants.READ));
+        } finally {
+            closeSession(bobSession);
+        }
+    }
+
     public void testGetParentDocuments() throws ClientException {
 
         setPermissionToAnonymous(SecurityConstants.EVERYTHING);
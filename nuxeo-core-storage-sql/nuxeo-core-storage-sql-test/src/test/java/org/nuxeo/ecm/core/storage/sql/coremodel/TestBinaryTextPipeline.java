@@ -0,0 +1,128 @@
+/*
+ * (C) Copyright 2009 Nuxeo SAS (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Florent Guillaume
+ */
+
+package org.nuxeo.ecm.core.storage.sql.coremodel;
+
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.DocumentModelList;
+import org.nuxeo.ecm.core.api.impl.DocumentModelImpl;
+import org.nuxeo.ecm.core.api.impl.blob.StringBlob;
+import org.nuxeo.ecm.core.event.EventService;
+import org.nuxeo.ecm.core.storage.sql.DatabaseHelper;
+import org.nuxeo.ecm.core.storage.sql.SQLRepositoryTestCase;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * Tests the fulltext extraction pipeline of a repository through the event
+ * service.
+ *
+ * @author Florent Guillaume
+ */
+public class TestBinaryTextPipeline extends SQLRepositoryTestCase {
+
+    public TestBinaryTextPipeline(String name) {
+        super(name);
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        deployBundle("org.nuxeo.ecm.core.convert.api");
+        deployBundle("org.nuxeo.ecm.core.convert");
+        deployBundle("org.nuxeo.ecm.core.convert.plugins");
+        deployBundle("org.nuxeo.ecm.core.storage.sql"); // event listener
+        openSession();
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        closeSession();
+        super.tearDown();
+    }
+
+    protected BinaryTextPipeline getPipeline() {
+        BinaryTextPipeline pipeline = BinaryTextPipeline.getPipeline(session.getRepositoryName());
+        assertNotNull(pipeline);
+        return pipeline;
+    }
+
+    protected DocumentModel createFile(String name, String text)
+            throws Exception {
+        DocumentModel doc = new DocumentModelImpl("/", name, "File");
+        doc.setPropertyValue("content", new StringBlob(text, "text/plain"));
+        doc = session.createDocument(doc);
+        session.save();
+        return doc;
+    }
+
+    protected void waitForAsyncCompletion() {
+        Framework.getLocalService(EventService.class).waitForAsyncCompletion();
+        DatabaseHelper.DATABASE.sleepForFulltext();
+    }
+
+    public void testWaitForAsyncCompletion() throws Exception {
+        BinaryTextPipeline pipeline = getPipeline();
+        assertFalse(pipeline.isShutdown());
+        long processed = pipeline.getDocumentsProcessed();
+
+        DocumentModel doc1 = createFile("file1", "some caterpillar");
+        DocumentModel doc2 = createFile("file2", "a butterfly");
+        // no explicit wait on the pipeline
+        waitForAsyncCompletion();
+
+        assertEquals(0, pipeline.getBacklog());
+        assertEquals(processed + 2, pipeline.getDocumentsProcessed());
+        DocumentModelList dml = session.query("SELECT * FROM File WHERE ecm:fulltext = 'caterpillar'");
+        assertEquals(1, dml.size());
+        assertEquals(doc1.getId(), dml.get(0).getId());
+        dml = session.query("SELECT * FROM File WHERE ecm:fulltext = 'butterfly'");
+        assertEquals(1, dml.size());
+        assertEquals(doc2.getId(), dml.get(0).getId());
+    }
+
+    public void testSharedBinary() throws Exception {
+        BinaryTextPipeline pipeline = getPipeline();
+        long converted = pipeline.getBinariesConverted();
+        createFile("file1", "the same chrysalis");
+        waitForAsyncCompletion();
+        createFile("file2", "the same chrysalis");
+        waitForAsyncCompletion();
+
+        // the text of the second one was reused
+        assertEquals(converted + 1, pipeline.getBinariesConverted());
+        DocumentModelList dml = session.query("SELECT * FROM File WHERE ecm:fulltext = 'chrysalis'");
+        assertEquals(2, dml.size());
+    }
+
+    public void testDaemonThreads() throws Exception {
+        createFile("file1", "moth");
+        waitForAsyncCompletion();
+        Thread[] threads = new Thread[Thread.activeCount() * 2];
+        int n = Thread.enumerate(threads);
+        int found = 0;
+        for (int i = 0; i < n; i++) {
+            Thread thread = threads[i];
+            if (thread.getName().startsWith("Nuxeo Fulltext Extraction")) {
+                // don't prevent the JVM from exiting
+                assertTrue(thread.getName(), thread.isDaemon());
+                found++;
+            }
+        }
+        assertTrue(found > 0);
+    }
+
+}
@@ -18,10 +18,13 @@
 package org.nuxeo.ecm.core.storage.sql;
 
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -84,8 +87,12 @@ public class Context {
     /**
      * The set of modified/created fragments that should be invalidated in other
      * sessions at post-commit time.
+     * <p>
+     * This also protects the repository-wide {@link FragmentCache} from
+     * uncommitted data, so every fragment written to the database has to be
+     * recorded here or in {@link #deletedInTransaction}.
      */
-    private final Set<Serializable> modifiedInTransaction;
+    protected final Set<Serializable> modifiedInTransaction;
 
     /**
      * The set of deleted fragments that should be invalidated in other sessions
@@ -149,6 +156,14 @@ public class Context {
         return n;
     }
 
+    /**
+     * Forgets the pristine fragments, as the GC does under memory pressure.
+     * Called by tests.
+     */
+    protected void clearPristine() {
+        pristine.clear();
+    }
+
     /**
      * Closes the context. Keeps around the {@link #pristine} and
      * {@link #absent} caches (to avoid costly refills). These two caches are
@@ -209,6 +224,9 @@ public class Context {
 
     /**
      * Gets a fragment from the mapper.
+     * <p>
+     * The repository-wide {@link FragmentCache} is consulted first, unless the
+     * fragment has been changed in the current transaction.
      */
     protected Fragment getFromMapper(Serializable id, boolean allowAbsent)
             throws StorageException {
@@ -221,12 +239,44 @@ public class Context {
                         null) : null;
             }
         } else {
+            FragmentCache cache = persistenceContext.getFragmentCache();
+            if (cache != null
+                    && persistenceContext.isIdChangedInTransaction(id, this)) {
+                // the shared cache only knows about committed data
+                cache = null;
+            }
+            Serializable cached = null;
+            long invalidationCount = 0;
+            if (cache != null) {
+                cached = cache.get(tableName, id);
+                if (cached == null) {
+                    invalidationCount = cache.getInvalidationCount();
+                }
+            }
             if (isCollection) {
-                Serializable[] array = mapper.readCollectionArray(id, this);
+                Serializable[] array;
+                if (cached == null) {
+                    array = mapper.readCollectionArray(id, this);
+                    if (cache != null) {
+                        cache.put(tableName, id, array, invalidationCount);
+                    }
+                } else {
+                    array = (Serializable[]) cached;
+                }
                 return model.newCollectionFragment(id, array, this);
             } else {
-                Map<String, Serializable> map = mapper.readSingleRowMap(
-                        tableName, id, this);
+                Map<String, Serializable> map;
+                if (cached == null) {
+                    map = mapper.readSingleRowMap(tableName, id, this);
+                    if (cache != null) {
+                        cache.put(tableName, id, (Serializable) map,
+                                invalidationCount);
+                    }
+                } else if (cached == FragmentCache.ABSENT) {
+                    map = null;
+                } else {
+                    map = castMap(cached);
+                }
                 if (map == null) {
                     return allowAbsent ? new SimpleFragment(id, State.ABSENT,
                             this, null) : null;
@@ -236,6 +286,70 @@ public class Context {
         }
     }
 
+    /**
+     * Checks if getting a simple fragment would need a read from the
+     * database, in which case it's worth prefetching it.
+     * <p>
+     * Called by the {@link PersistenceContext}.
+     */
+    protected boolean isPrefetchNeeded(Serializable id) {
+        if (isCollection || getIfPresent(id) != null
+                || persistenceContext.isIdNew(id)) {
+            return false;
+        }
+        FragmentCache cache = persistenceContext.getFragmentCache();
+        return cache == null
+                || persistenceContext.isIdChangedInTransaction(id, this)
+                || !cache.contains(tableName, id);
+    }
+
+    /**
+     * Registers in the context a simple fragment prefetched from the
+     * database.
+     * <p>
+     * Called by the {@link PersistenceContext}.
+     *
+     * @param id the fragment id
+     * @param map the row map, or {@code null} if the row is absent
+     * @param allowAbsent {@code true} to register an absent fragment if the
+     *            row is absent
+     * @param invalidationCount the {@link FragmentCache} invalidation count
+     *            obtained before the read
+     * @return the registered fragment, or {@code null}
+     */
+    protected SimpleFragment addPrefetched(Serializable id,
+            Map<String, Serializable> map, boolean allowAbsent,
+            long invalidationCount) throws StorageException {
+        if (getIfPresent(id) != null) {
+            return null;
+        }
+        FragmentCache cache = persistenceContext.getFragmentCache();
+        if (cache != null
+                && !persistenceContext.isIdChangedInTransaction(id, this)) {
+            cache.put(tableName, id, (Serializable) map, invalidationCount);
+        }
+        if (map == null) {
+            return allowAbsent ? new SimpleFragment(id, State.ABSENT, this,
+                    null) : null;
+        }
+        return new SimpleFragment(id, State.PRISTINE, this, map);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Serializable> castMap(Serializable value) {
+        return (Map<String, Serializable>) value;
+    }
+
+    /**
+     * Checks if a fragment has been saved (created, modified or deleted) in
+     * the current transaction, which means that the database holds data that
+     * other sessions cannot see yet.
+     */
+    protected boolean isChangedInTransaction(Serializable id) {
+        return modifiedInTransaction.contains(id)
+                || deletedInTransaction.contains(id);
+    }
+
     /**
      * Gets a fragment, if present.
      * <p>
@@ -307,14 +421,12 @@ public class Context {
             Serializable docId = null;
             switch (fragment.getState()) {
             case CREATED:
-                docId = persistenceContext.getContainingDocument(fragment.getId());
-                dirtyStrings.add(docId);
-                dirtyBinaries.add(docId);
-                break;
             case MODIFIED:
                 Collection<String> dirty;
                 if (isCollection) {
                     dirty = Collections.singleton(null);
+                } else if (fragment.getState() == State.CREATED) {
+                    dirty = getFulltextValuedKeys((SimpleFragment) fragment);
                 } else {
                     dirty = ((SimpleFragment) fragment).getDirty();
                 }
@@ -339,6 +451,24 @@ public class Context {
         }
     }
 
+    /**
+     * Gets the fulltext keys holding a value in a created fragment.
+     */
+    protected Collection<String> getFulltextValuedKeys(SimpleFragment fragment)
+            throws StorageException {
+        Map<String, PropertyType> keys = model.getFulltextFragmentKeys(tableName);
+        if (keys == null) {
+            return Collections.emptyList();
+        }
+        List<String> valued = new LinkedList<String>();
+        for (String key : keys.keySet()) {
+            if (fragment.get(key) != null) {
+                valued.add(key);
+            }
+        }
+        return valued;
+    }
+
     /**
      * Saves all the created, modified or deleted rows, except for the created
      * main rows which have already been done.
@@ -349,6 +479,9 @@ public class Context {
      */
     public void save(Map<Serializable, Serializable> idMap)
             throws StorageException {
+        // consecutive created fragments are inserted together, in batch,
+        // before the next update or deletion to keep the save order
+        List<Fragment> created = new LinkedList<Fragment>();
         for (Fragment fragment : modified.values()) {
             Serializable id = fragment.getId();
             switch (fragment.getState()) {
@@ -359,22 +492,11 @@ public class Context {
                 Serializable newId = idMap.get(id);
                 if (newId != null) {
                     fragment.setId(newId);
-                    id = newId;
-                }
-                /*
-                 * Do the creation.
-                 */
-                if (isCollection) {
-                    mapper.insertCollectionRows((CollectionFragment) fragment);
-                } else {
-                    mapper.insertSingleRow((SimpleFragment) fragment);
                 }
-                fragment.setPristine();
-                // modified map cleared at end of loop
-                pristine.put(id, fragment);
-                modifiedInTransaction.add(id);
+                created.add(fragment);
                 break;
             case MODIFIED:
+                insertCreated(created);
                 if (isCollection) {
                     mapper.updateCollectionRows((CollectionFragment) fragment);
                 } else {
@@ -386,6 +508,7 @@ public class Context {
                 modifiedInTransaction.add(id);
                 break;
             case DELETED:
+                insertCreated(created);
                 // TODO deleting non-hierarchy fragments is done by the database
                 // itself as their foreign key to hierarchy is ON DELETE CASCADE
                 mapper.deleteFragment(fragment);
@@ -397,9 +520,43 @@ public class Context {
                 throw new AssertionError(fragment);
             }
         }
+        insertCreated(created);
         modified.clear();
     }
 
+    /**
+     * Inserts created fragments in the storage, and empties the list.
+     */
+    protected void insertCreated(List<Fragment> created)
+            throws StorageException {
+        if (created.isEmpty()) {
+            return;
+        }
+        if (isCollection) {
+            List<CollectionFragment> fragments = new ArrayList<CollectionFragment>(
+                    created.size());
+            for (Fragment fragment : created) {
+                fragments.add((CollectionFragment) fragment);
+            }
+            mapper.insertCollectionRows(fragments);
+        } else {
+            List<SimpleFragment> rows = new ArrayList<SimpleFragment>(
+                    created.size());
+            for (Fragment fragment : created) {
+                rows.add((SimpleFragment) fragment);
+            }
+            mapper.insertSingleRows(rows);
+        }
+        for (Fragment fragment : created) {
+            Serializable id = fragment.getId();
+            fragment.setPristine();
+            // modified map cleared at end of save loop
+            pristine.put(id, fragment);
+            modifiedInTransaction.add(id);
+        }
+        created.clear();
+    }
+
     /**
      * Called by the mapper when a fragment has been updated in the database.
      *
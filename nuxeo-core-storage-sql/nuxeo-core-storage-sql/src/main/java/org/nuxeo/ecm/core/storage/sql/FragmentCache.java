@@ -0,0 +1,299 @@
+/*
+ * (C) Copyright 2009 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Florent Guillaume
+ */
+
+package org.nuxeo.ecm.core.storage.sql;
+
+import java.io.Serializable;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A repository-wide, size-bounded cache of committed fragment data, shared by
+ * all the sessions of a repository.
+ * <p>
+ * The cache holds detached copies of rows (for simple fragments) or arrays
+ * (for collection fragments) as last read from the database. It is consulted
+ * by {@link Context#getFromMapper} before going to the {@link Mapper}, and is
+ * kept coherent by the same {@link Invalidations} that are sent to the
+ * sessions after a commit, locally or from other cluster nodes.
+ * <p>
+ * Only committed data must be put in the cache: sessions never read from or
+ * write to it for ids they have modified in their current transaction. To
+ * avoid caching a value read from the database just before a concurrent
+ * commit, a put is ignored if an invalidation has been processed since the
+ * caller started its read (see {@link #getInvalidationCount}).
+ * <p>
+ * This class is thread-safe.
+ *
+ * @author Florent Guillaume
+ */
+public class FragmentCache {
+
+    private enum AbsentValue {
+        ABSENT_VALUE
+    }
+
+    /**
+     * Cached value for a simple fragment known to be absent from the
+     * database.
+     */
+    public static final Serializable ABSENT = AbsentValue.ABSENT_VALUE;
+
+    private final int maxSize;
+
+    /** The cached values, in access order. Usage must be synchronized. */
+    private final Map<Key, Serializable> map;
+
+    /** The table names for which something has been cached. */
+    private final Set<String> tableNames;
+
+    /** Incremented each time invalidations are processed. */
+    private long invalidationCount;
+
+    private final AtomicLong hitCount = new AtomicLong();
+
+    private final AtomicLong missCount = new AtomicLong();
+
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    /**
+     * Creates a new cache.
+     *
+     * @param maxSize the maximum number of fragments held
+     */
+    public FragmentCache(final int maxSize) {
+        this.maxSize = maxSize;
+        map = new LinkedHashMap<Key, Serializable>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Entry<Key, Serializable> eldest) {
+                if (size() > maxSize) {
+                    evictionCount.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+        tableNames = new HashSet<String>();
+    }
+
+    /**
+     * Gets a copy of the cached value for a fragment.
+     *
+     * @param tableName the fragment table name
+     * @param id the fragment id
+     * @return a row map (for a simple fragment), an array (for a collection
+     *         fragment), {@link #ABSENT} if the row is known to be absent, or
+     *         {@code null} if nothing is cached
+     */
+    public Serializable get(String tableName, Serializable id) {
+        Serializable value;
+        synchronized (this) {
+            value = map.get(new Key(tableName, id));
+        }
+        if (value == null) {
+            missCount.incrementAndGet();
+            return null;
+        }
+        hitCount.incrementAndGet();
+        return copy(value);
+    }
+
+    /**
+     * Checks if something is cached for a fragment, without affecting the
+     * eviction order or the statistics.
+     *
+     * @param tableName the fragment table name
+     * @param id the fragment id
+     * @return {@code true} if a value is cached
+     */
+    public synchronized boolean contains(String tableName, Serializable id) {
+        return map.containsKey(new Key(tableName, id));
+    }
+
+    /**
+     * Gets the current invalidation count. This must be called before reading
+     * from the database some data that will be passed to {@link #put}.
+     */
+    public synchronized long getInvalidationCount() {
+        return invalidationCount;
+    }
+
+    /**
+     * Caches the value read from the database for a fragment.
+     * <p>
+     * The value is ignored if invalidations have been processed since the
+     * given invalidation count was obtained.
+     *
+     * @param tableName the fragment table name
+     * @param id the fragment id
+     * @param value the row map, the array, or {@code null} for an absent row
+     * @param readInvalidationCount the invalidation count obtained before the
+     *            value was read
+     */
+    public void put(String tableName, Serializable id, Serializable value,
+            long readInvalidationCount) {
+        value = value == null ? ABSENT : copy(value);
+        synchronized (this) {
+            if (readInvalidationCount != invalidationCount) {
+                return;
+            }
+            map.put(new Key(tableName, id), value);
+            tableNames.add(tableName);
+        }
+    }
+
+    /**
+     * Processes invalidations coming from a local session or another cluster
+     * node.
+     * <p>
+     * A deleted fragment is removed for all tables, as deletions of
+     * non-hierarchy fragments are done by the database through cascading.
+     */
+    public synchronized void invalidate(Invalidations invalidations) {
+        if (invalidations.isEmpty()) {
+            return;
+        }
+        invalidationCount++;
+        for (Entry<String, Set<Serializable>> entry : invalidations.modified.entrySet()) {
+            String tableName = entry.getKey();
+            for (Serializable id : entry.getValue()) {
+                map.remove(new Key(tableName, id));
+            }
+        }
+        for (Set<Serializable> ids : invalidations.deleted.values()) {
+            for (Serializable id : ids) {
+                for (String tableName : tableNames) {
+                    map.remove(new Key(tableName, id));
+                }
+            }
+        }
+    }
+
+    /**
+     * Clears the cache.
+     *
+     * @return the number of fragments removed
+     */
+    public synchronized int clear() {
+        invalidationCount++;
+        int n = map.size();
+        map.clear();
+        return n;
+    }
+
+    public synchronized int getSize() {
+        return map.size();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    /**
+     * Copies a value so that it is not shared between the cache and a
+     * session. Calendars are the only mutable values stored in fragments.
+     */
+    @SuppressWarnings("unchecked")
+    protected static Serializable copy(Serializable value) {
+        if (value == ABSENT) {
+            return value;
+        }
+        if (value instanceof Map) {
+            Map<String, Serializable> m = (Map<String, Serializable>) value;
+            HashMap<String, Serializable> copy = new HashMap<String, Serializable>(
+                    m);
+            for (Entry<String, Serializable> entry : copy.entrySet()) {
+                Serializable v = entry.getValue();
+                if (v instanceof Calendar) {
+                    entry.setValue((Serializable) ((Calendar) v).clone());
+                }
+            }
+            return copy;
+        }
+        if (value instanceof Serializable[]) {
+            Serializable[] array = ((Serializable[]) value).clone();
+            for (int i = 0; i < array.length; i++) {
+                if (array[i] instanceof Calendar) {
+                    array[i] = (Serializable) ((Calendar) array[i]).clone();
+                }
+            }
+            return array;
+        }
+        throw new IllegalArgumentException(value.getClass().getName());
+    }
+
+    /**
+     * The key of a cached fragment.
+     */
+    protected static final class Key {
+
+        private final String tableName;
+
+        private final Serializable id;
+
+        private final int hashCode;
+
+        public Key(String tableName, Serializable id) {
+            this.tableName = tableName;
+            this.id = id;
+            hashCode = 31 * tableName.hashCode() + id.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (other == this) {
+                return true;
+            }
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) other;
+            return id.equals(key.id) && tableName.equals(key.tableName);
+        }
+
+        @Override
+        public String toString() {
+            return tableName + '/' + id;
+        }
+    }
+
+}
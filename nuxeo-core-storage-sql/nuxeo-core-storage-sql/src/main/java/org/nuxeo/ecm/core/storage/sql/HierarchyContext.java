@@ -23,12 +23,15 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Map.Entry;
 
 import org.nuxeo.ecm.core.storage.StorageException;
+import org.nuxeo.ecm.core.storage.sql.Fragment.State;
+import org.nuxeo.ecm.core.storage.sql.RepositoryDescriptor.IdGenPolicy;
 
 /**
  * This class holds persistence context information for the hierarchy table, and
@@ -55,6 +58,12 @@ public class HierarchyContext extends Context {
      */
     private final Set<Serializable> modifiedParentsInvalidations;
 
+    /**
+     * The nodes moved since the last save, whose paths have to be updated
+     * after the hierarchy is saved.
+     */
+    private final Map<Serializable, SimpleFragment> movedNodes;
+
     HierarchyContext(Mapper mapper, PersistenceContext persistenceContext) {
         super(mapper.getModel().hierTableName, mapper, persistenceContext);
         // these cannot be ReferenceMaps because we can't get rid of Children
@@ -63,11 +72,13 @@ public class HierarchyContext extends Context {
         childrenComplexProp = new HashMap<Serializable, Children>();
         modifiedParentsInTransaction = new HashSet<Serializable>();
         modifiedParentsInvalidations = new HashSet<Serializable>();
+        movedNodes = new LinkedHashMap<Serializable, SimpleFragment>();
     }
 
     @Override
     protected int clearCaches() {
         int n = super.clearCaches();
+        movedNodes.clear();
         // flush allowable children caches
         for (Iterator<Children> it = childrenRegular.values().iterator(); it.hasNext();) {
             Children children = it.next();
@@ -168,6 +179,19 @@ public class HierarchyContext extends Context {
         return fragment;
     }
 
+    @Override
+    protected SimpleFragment addPrefetched(Serializable id,
+            Map<String, Serializable> map, boolean allowAbsent,
+            long invalidationCount) throws StorageException {
+        SimpleFragment fragment = super.addPrefetched(id, map, allowAbsent,
+                invalidationCount);
+        if (fragment != null && map != null) {
+            // add as a child of its parent
+            addExistingChild(fragment, complexProp(fragment));
+        }
+        return fragment;
+    }
+
     /**
      * Find a row in the hierarchy schema given its parent id and name. If the
      * row is not in the context, fetch it from the mapper.
@@ -317,6 +341,9 @@ public class HierarchyContext extends Context {
         removeChild(hierFragment, complexProp);
         hierFragment.put(model.HIER_PARENT_KEY, parentId);
         addExistingChild(hierFragment, complexProp);
+        if (!complexProp) {
+            movedNodes.put(id, hierFragment);
+        }
     }
 
     /**
@@ -380,7 +407,33 @@ public class HierarchyContext extends Context {
      */
     public Map<Serializable, Serializable> saveCreated(
             Set<Serializable> createdIds) throws StorageException {
+        if (model.idGenPolicy == IdGenPolicy.APP_UUID) {
+            // ids are final, parents come first: insert in batch
+            List<SimpleFragment> rows = new ArrayList<SimpleFragment>(
+                    createdIds.size());
+            for (Serializable id : createdIds) {
+                SimpleFragment row = (SimpleFragment) modified.remove(id);
+                if (row == null) {
+                    throw new AssertionError(id);
+                }
+                rows.add(row);
+            }
+            mapper.insertSingleRows(rows);
+            Map<Serializable, SimpleFragment> rowsById = new LinkedHashMap<Serializable, SimpleFragment>();
+            for (SimpleFragment row : rows) {
+                row.setPristine();
+                pristine.put(row.getId(), row);
+                // keep uncommitted rows out of the shared fragment cache
+                modifiedInTransaction.add(row.getId());
+                rowsById.put(row.getId(), row);
+            }
+            mapper.insertChildPaths(rowsById);
+            return Collections.emptyMap();
+        }
+        // the ids generated by the database for parents are needed before
+        // inserting their children
         Map<Serializable, Serializable> idMap = null;
+        Map<Serializable, SimpleFragment> rowsById = new LinkedHashMap<Serializable, SimpleFragment>();
         for (Serializable id : createdIds) {
             SimpleFragment row = (SimpleFragment) modified.remove(id);
             if (row == null) {
@@ -392,6 +445,9 @@ public class HierarchyContext extends Context {
             Serializable newId = mapper.insertSingleRow(row);
             row.setPristine();
             pristine.put(id, row);
+            // keep uncommitted rows out of the shared fragment cache
+            modifiedInTransaction.add(newId);
+            rowsById.put(newId, row);
             // save in translation map, if different
             // only happens for DB_IDENTITY id generation policy
             if (!newId.equals(id)) {
@@ -401,14 +457,45 @@ public class HierarchyContext extends Context {
                 idMap.put(id, newId);
             }
         }
+        mapper.insertChildPaths(rowsById);
         return idMap == null ? Collections.<Serializable, Serializable> emptyMap()
                 : idMap;
     }
 
+    /**
+     * Gets the ids of the regular nodes moved since the last save.
+     *
+     * @return the moved ids
+     */
+    public Set<Serializable> getMovedIds() {
+        return new HashSet<Serializable>(movedNodes.keySet());
+    }
+
     @Override
     public void save(Map<Serializable, Serializable> idMap)
             throws StorageException {
+        // the database deletes the descendants of deleted rows by cascade,
+        // find them first so that they get invalidated like the rows
+        List<Serializable> deletedIds = new ArrayList<Serializable>();
+        for (Fragment fragment : modified.values()) {
+            if (fragment.getState() == State.DELETED) {
+                deletedIds.add(fragment.getId());
+            }
+        }
+        Set<Serializable> descendantIds = deletedIds.isEmpty() ? Collections.<Serializable> emptySet()
+                : mapper.getDescendantsIds(deletedIds);
         super.save(idMap);
+        for (Serializable id : descendantIds) {
+            markInvalidated(id, false);
+        }
+        // update the paths of moved nodes, now that they are saved
+        // (nodes removed since then have lost their path)
+        for (Entry<Serializable, SimpleFragment> entry : movedNodes.entrySet()) {
+            SimpleFragment row = entry.getValue();
+            mapper.movePaths(entry.getKey(), row.get(model.HIER_PARENT_KEY),
+                    row.getString(model.HIER_CHILD_NAME_KEY));
+        }
+        movedNodes.clear();
         // map temporary parent ids for created parents
         for (Entry<Serializable, Serializable> entry : idMap.entrySet()) {
             Serializable id = entry.getKey();
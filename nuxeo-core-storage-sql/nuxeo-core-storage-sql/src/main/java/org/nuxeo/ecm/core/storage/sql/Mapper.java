@@ -18,6 +18,9 @@
 package org.nuxeo.ecm.core.storage.sql;
 
 import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.sql.Array;
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
@@ -32,13 +35,17 @@ import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 import java.util.Map.Entry;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -51,12 +58,14 @@ import javax.transaction.xa.Xid;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.nuxeo.common.utils.StringUtils;
+import org.nuxeo.ecm.core.api.DocumentModelList;
 import org.nuxeo.ecm.core.query.QueryFilter;
 import org.nuxeo.ecm.core.query.sql.model.SQLQuery;
 import org.nuxeo.ecm.core.storage.PartialList;
 import org.nuxeo.ecm.core.storage.StorageException;
 import org.nuxeo.ecm.core.storage.sql.CollectionFragment.CollectionFragmentIterator;
 import org.nuxeo.ecm.core.storage.sql.Fragment.State;
+import org.nuxeo.ecm.core.storage.sql.RepositoryDescriptor.IdGenPolicy;
 import org.nuxeo.ecm.core.storage.sql.SQLInfo.SQLInfoSelect;
 import org.nuxeo.ecm.core.storage.sql.db.Column;
 import org.nuxeo.ecm.core.storage.sql.db.Table;
@@ -85,6 +94,9 @@ public class Mapper {
     /** The xa datasource. */
     private final XADataSource xadatasource;
 
+    /** The repository-wide cache of query plans. */
+    private final QueryPlanCache queryPlanCache;
+
     /** The xa pooled connection. */
     private XAConnection xaconnection;
 
@@ -103,6 +115,17 @@ public class Mapper {
 
     private static final int DEBUG_MAX_STRING = 100;
 
+    /**
+     * The maximum number of statements sent to the database in one JDBC batch.
+     */
+    protected static final int BATCH_SIZE = 100;
+
+    /** The key of the root id of repositories without name. */
+    protected static final String DEFAULT_ROOT_KEY = "default";
+
+    /** Maximum number of ids sent together as cluster invalidations. */
+    protected static final int CLUSTER_INVALIDATIONS_CHUNK = 1000;
+
     /**
      * Creates a new Mapper.
      *
@@ -110,11 +133,12 @@ public class Mapper {
      * @param sqlInfo the sql info
      * @param xadatasource the XA datasource to use to get connections
      */
-    public Mapper(Model model, SQLInfo sqlInfo, XADataSource xadatasource)
-            throws StorageException {
+    public Mapper(Model model, SQLInfo sqlInfo, XADataSource xadatasource,
+            QueryPlanCache queryPlanCache) throws StorageException {
         this.model = model;
         this.sqlInfo = sqlInfo;
         this.xadatasource = xadatasource;
+        this.queryPlanCache = queryPlanCache;
         resetConnection();
     }
 
@@ -155,6 +179,15 @@ public class Mapper {
         return model;
     }
 
+    /**
+     * Checks if the fragments of a table can be read in a prefetch.
+     *
+     * @see SQLInfo#isPrefetchable
+     */
+    protected boolean isPrefetchable(String tableName) {
+        return sqlInfo.isPrefetchable(tableName);
+    }
+
     // for debug
     private static boolean isLogEnabled() {
         return log.isTraceEnabled();
@@ -288,14 +321,32 @@ public class Mapper {
      * Creates the necessary structures in the database.
      */
     protected void createDatabase() throws StorageException {
+        boolean fillPaths;
+        boolean fillReadAcls;
         try {
             Collection<ConditionalStatement> statements = sqlInfo.getConditionalStatements();
             executeConditionalStatements(statements, true);
+            // an existing hierarchy needs its paths to be computed
+            Set<String> tableNames = findTableNames(connection.getMetaData());
+            fillPaths = tableNames.contains(sqlInfo.getDatabase().getTable(
+                    model.hierTableName).getName().toUpperCase())
+                    && !tableNames.contains(sqlInfo.getDatabase().getTable(
+                            model.PATHS_TABLE_NAME).getName().toUpperCase());
+            fillReadAcls = tableNames.contains(sqlInfo.getDatabase().getTable(
+                    model.hierTableName).getName().toUpperCase())
+                    && !tableNames.contains(sqlInfo.getDatabase().getTable(
+                            model.HIER_READ_ACL_TABLE_NAME).getName().toUpperCase());
             createTables();
             executeConditionalStatements(statements, false);
         } catch (SQLException e) {
             throw new StorageException(e);
         }
+        if (fillPaths) {
+            fillPaths();
+        }
+        if (fillReadAcls) {
+            fillReadAcls();
+        }
     }
 
     protected void createTables() throws SQLException {
@@ -465,11 +516,18 @@ public class Mapper {
 
     /**
      * Inserts the invalidation rows for the other cluster nodes.
+     * <p>
+     * The ids sharing the same fragments and kind are sent together, as an
+     * array if the dialect supports it or as a space-separated string.
+     *
+     * @return the number of invalidated ids sent
      */
-    public void insertClusterInvalidations(Invalidations invalidations)
+    public int insertClusterInvalidations(Invalidations invalidations)
             throws StorageException {
         String sql = sqlInfo.getClusterInsertInvalidationsSql();
         List<Column> columns = sqlInfo.getClusterInsertInvalidationsColumns();
+        boolean arrays = sqlInfo.dialect.supportsArrays();
+        int count = 0;
         PreparedStatement ps = null;
         try {
             ps = connection.prepareStatement(sql);
@@ -477,26 +535,52 @@ public class Mapper {
                 Map<String, Set<Serializable>> map = invalidations.getKindMap(kind);
                 // turn fragment-based map into id-based map
                 Map<Serializable, Set<String>> m = invertMap(map);
+                // group ids by fragments
+                Map<String, List<String>> idsByFragments = new HashMap<String, List<String>>();
                 for (Entry<Serializable, Set<String>> e : m.entrySet()) {
-                    Serializable id = e.getKey();
-                    String fragments = join(e.getValue(), ' ');
-                    if (isLogEnabled()) {
-                        logSQL(sql, Arrays.<Serializable> asList(id, fragments,
-                                Integer.valueOf(kind)));
+                    String fragments = join(new TreeSet<String>(e.getValue()),
+                            ' ');
+                    List<String> ids = idsByFragments.get(fragments);
+                    if (ids == null) {
+                        ids = new LinkedList<String>();
+                        idsByFragments.put(fragments, ids);
                     }
+                    ids.add(e.getKey().toString());
+                }
+                for (Entry<String, List<String>> e : idsByFragments.entrySet()) {
+                    String fragments = e.getKey();
                     Serializable frags;
-                    if (sqlInfo.dialect.supportsArrays()) {
+                    if (arrays) {
                         frags = fragments.split(" ");
                     } else {
                         frags = fragments;
                     }
-                    columns.get(0).setToPreparedStatement(ps, 1, id);
-                    columns.get(1).setToPreparedStatement(ps, 2, frags);
-                    columns.get(2).setToPreparedStatement(ps, 3,
-                            Long.valueOf(kind));
-                    ps.execute();
+                    List<String> allIds = e.getValue();
+                    int size = allIds.size();
+                    int chunk = CLUSTER_INVALIDATIONS_CHUNK;
+                    for (int start = 0; start < size; start += chunk) {
+                        List<String> ids = allIds.subList(start, Math.min(
+                                start + chunk, size));
+                        if (isLogEnabled()) {
+                            logSQL(sql, Arrays.<Serializable> asList(join(
+                                    ids, ' '), fragments, Integer.valueOf(kind)));
+                        }
+                        if (arrays) {
+                            Array array = sqlInfo.dialect.createArrayOf(
+                                    Types.VARCHAR, ids.toArray(), connection);
+                            ps.setArray(1, array);
+                        } else {
+                            ps.setString(1, join(ids, ' '));
+                        }
+                        columns.get(1).setToPreparedStatement(ps, 2, frags);
+                        columns.get(2).setToPreparedStatement(ps, 3,
+                                Long.valueOf(kind));
+                        ps.execute();
+                        count += ids.size();
+                    }
                 }
             }
+            return count;
         } catch (SQLException e) {
             throw new StorageException("Could not invalidate", e);
         } finally {
@@ -717,95 +801,1410 @@ public class Mapper {
         } catch (SQLException e) {
             throw new StorageException("Could not insert: " + sql, e);
         }
+        // the root path and read ACL
+        insertPaths(Collections.singletonMap(id, "/"));
+        updateReadAcls(Collections.singleton(id), true);
     }
 
+    // ---------- paths ----------
+
     /**
-     * Inserts a new {@link SimpleFragment} in the storage. Depending on the
-     * type, the id may be generated by the database (in which case it must not
-     * be provided in the {@link SimpleFragment}), or already assigned (which is
-     * the case for non-main tables).
+     * Computes the path of a regular child given the path of its parent.
+     */
+    protected static String childPath(String parentPath, String name) {
+        if (parentPath.equals("/")) {
+            return '/' + name;
+        }
+        return parentPath + '/' + name;
+    }
+
+    /**
+     * Checks if a path fits in the paths table.
      *
-     * @param row the row
-     * @return the id (generated or not)
+     * @return the path, or {@code null} if it is too long to be recorded, in
+     *         which case it is recorded as missing
      */
-    public Serializable insertSingleRow(SimpleFragment row)
-            throws StorageException {
-        String tableName = row.getTableName();
-        PreparedStatement ps = null;
+    protected String recordablePath(String path) {
+        if (path == null
+                || path.length() > sqlInfo.dialect.getMaximumPathLength()) {
+            return null;
+        }
+        return path;
+    }
+
+    /**
+     * Gets the path of a node from the paths table.
+     *
+     * @param id the node id
+     * @return the path, or {@code null} if the node has no recorded path
+     *         (complex property, version, or path too long)
+     */
+    public String getPath(Serializable id) throws StorageException {
+        String sql = sqlInfo.getSelectPathByIdSql();
         try {
-            // insert the row
-            // XXX statement should be already prepared
-            String sql = sqlInfo.getInsertSql(tableName);
-            List<Column> columns = sqlInfo.getInsertColumns(tableName);
+            if (isLogEnabled()) {
+                logSQL(sql, Collections.singletonList(id));
+            }
+            PreparedStatement ps = connection.prepareStatement(sql);
             try {
+                sqlInfo.getPathsIdColumn().setToPreparedStatement(ps, 1, id);
+                ResultSet rs = ps.executeQuery();
+                if (!rs.next()) {
+                    if (isLogEnabled()) {
+                        log("  -> (none)");
+                    }
+                    return null;
+                }
+                String path = rs.getString(1);
                 if (isLogEnabled()) {
-                    logSQL(sql, columns, row);
+                    log("  -> " + model.PATHS_PATH_KEY + '=' + path);
                 }
-                ps = connection.prepareStatement(sql);
-                int i = 0;
-                for (Column column : columns) {
-                    i++;
-                    String key = column.getKey();
-                    Serializable v;
-                    if (key.equals(model.MAIN_KEY)) {
-                        v = row.getId();
-                    } else {
-                        v = row.get(key);
+                return path;
+            } finally {
+                ps.close();
+            }
+        } catch (SQLException e) {
+            throw new StorageException("Could not select: " + sql, e);
+        }
+    }
+
+    /**
+     * Gets the paths of several nodes from the paths table.
+     *
+     * @param ids the node ids
+     * @return a map of id to path, holding a {@code null} path for the nodes
+     *         whose path is too long to be recorded, and nothing for nodes
+     *         without path (complex properties, versions)
+     */
+    protected Map<Serializable, String> getPaths(Collection<Serializable> ids)
+            throws StorageException {
+        Map<Serializable, String> paths = new HashMap<Serializable, String>();
+        for (Serializable[] row : selectByValues(model.PATHS_TABLE_NAME,
+                model.MAIN_KEY, null, ids, model.MAIN_KEY,
+                model.PATHS_PATH_KEY)) {
+            paths.put(row[0], (String) row[1]);
+        }
+        return paths;
+    }
+
+    /**
+     * Gets the id of a node from its path, using the paths table.
+     *
+     * @param path the absolute path
+     * @return the node id, or {@code null} if not found or if the path is too
+     *         long to be recorded
+     */
+    public Serializable getIdForPath(String path) throws StorageException {
+        if (recordablePath(path) == null) {
+            return null;
+        }
+        String sql = sqlInfo.getSelectIdByPathSql();
+        try {
+            if (isLogEnabled()) {
+                logSQL(sql, Collections.<Serializable> singletonList(path));
+            }
+            PreparedStatement ps = connection.prepareStatement(sql);
+            try {
+                ps.setString(1, path);
+                ResultSet rs = ps.executeQuery();
+                if (!rs.next()) {
+                    if (isLogEnabled()) {
+                        log("  -> (none)");
                     }
-                    column.setToPreparedStatement(ps, i, v);
+                    return null;
                 }
-                ps.execute();
-            } catch (SQLException e) {
-                throw new StorageException("Could not insert: " + sql, e);
+                Serializable id = sqlInfo.getPathsIdColumn().getFromResultSet(
+                        rs, 1);
+                if (isLogEnabled()) {
+                    log("  -> " + model.MAIN_KEY + '=' + id);
+                }
+                return id;
+            } finally {
+                ps.close();
             }
+        } catch (SQLException e) {
+            throw new StorageException("Could not select: " + sql, e);
+        }
+    }
 
-            // TODO only do this if the id was not inserted!
-            switch (model.idGenPolicy) {
-            case APP_UUID:
-                // nothing to do, id is already known
-                break;
-            case DB_IDENTITY:
-                // post insert fetch idrow
-                // TODO PG 8.2 has INSERT ... RETURNING ... which can avoid this
-                // separate query
-                String isql = sqlInfo.getIdentityFetchSql(tableName);
-                if (isql != null) {
-                    Column icolumn = sqlInfo.getIdentityFetchColumn(tableName);
+    /**
+     * Gets the paths of all the strict descendants of a node. Descendants
+     * whose path is too long to be recorded are not returned.
+     *
+     * @param path the path of the node
+     * @return a map of id to path
+     */
+    protected Map<Serializable, String> getDescendantsPaths(String path)
+            throws StorageException {
+        String sql = sqlInfo.getSelectPathsByPrefixSql();
+        String pattern = sqlInfo.getDescendantsPathPattern(path);
+        Map<Serializable, String> paths = new LinkedHashMap<Serializable, String>();
+        try {
+            if (isLogEnabled()) {
+                logSQL(sql, Collections.<Serializable> singletonList(pattern));
+            }
+            PreparedStatement ps = connection.prepareStatement(sql);
+            try {
+                ps.setString(1, pattern);
+                ResultSet rs = ps.executeQuery();
+                Column idColumn = sqlInfo.getPathsIdColumn();
+                while (rs.next()) {
+                    paths.put(idColumn.getFromResultSet(rs, 1),
+                            rs.getString(2));
+                }
+                if (isLogEnabled()) {
+                    log("  -> " + paths.size() + " rows");
+                }
+                return paths;
+            } finally {
+                ps.close();
+            }
+        } catch (SQLException e) {
+            throw new StorageException("Could not select: " + sql, e);
+        }
+    }
+
+    /**
+     * Gets the strict descendants of some nodes whose path is too long to be
+     * recorded. As descendants of such nodes have paths too long as well, they
+     * are found one level at a time from the children of the nodes, so that
+     * only the subtrees of the nodes are read.
+     *
+     * @param ids the ancestors, including all the descendants of the
+     *            ancestors that have a recorded path
+     * @return a map of id to parent id and name, parents first
+     */
+    protected Map<Serializable, Serializable[]> getMissingDescendants(
+            Collection<Serializable> ids) throws StorageException {
+        Map<Serializable, Serializable[]> missing = new LinkedHashMap<Serializable, Serializable[]>();
+        Column idColumn = sqlInfo.getPathsIdColumn();
+        int max = sqlInfo.dialect.getMaximumArgsForIn();
+        List<Serializable> level = new ArrayList<Serializable>(ids);
+        while (!level.isEmpty()) {
+            List<Serializable> next = new ArrayList<Serializable>();
+            for (int start = 0; start < level.size(); start += max) {
+                List<Serializable> chunk = level.subList(start, Math.min(
+                        start + max, level.size()));
+                String sql = sqlInfo.getSelectMissingChildrenSql(chunk.size());
+                try {
+                    if (isLogEnabled()) {
+                        logSQL(sql, chunk);
+                    }
+                    PreparedStatement ps = connection.prepareStatement(sql);
                     try {
-                        // logDebug(isql);
-                        ps.close();
-                        ps = connection.prepareStatement(isql);
-                        ResultSet rs;
-                        try {
-                            rs = ps.executeQuery();
-                        } catch (SQLException e) {
-                            throw new StorageException("Could not select: "
-                                    + isql, e);
+                        int i = 0;
+                        for (Serializable id : chunk) {
+                            idColumn.setToPreparedStatement(ps, ++i, id);
+                        }
+                        ResultSet rs = ps.executeQuery();
+                        int n = 0;
+                        while (rs.next()) {
+                            Serializable id = idColumn.getFromResultSet(rs, 1);
+                            Serializable parentId = idColumn.getFromResultSet(
+                                    rs, 2);
+                            if (!missing.containsKey(id)) {
+                                missing.put(id, new Serializable[] {
+                                        parentId, rs.getString(3) });
+                                next.add(id);
+                            }
+                            n++;
                         }
-                        rs.next();
-                        Serializable iv = icolumn.getFromResultSet(rs, 1);
-                        row.setId(iv);
                         if (isLogEnabled()) {
-                            log("  -> " + icolumn.getKey() + '=' + iv);
+                            log("  -> " + n + " rows");
                         }
-                    } catch (SQLException e) {
-                        throw new StorageException("Could not fetch: " + isql,
-                                e);
+                    } finally {
+                        ps.close();
                     }
+                } catch (SQLException e) {
+                    throw new StorageException("Could not select: " + sql, e);
                 }
-                break;
             }
-        } finally {
-            if (ps != null) {
-                try {
-                    ps.close();
-                } catch (SQLException e) {
-                    log.error("Cannot close connection", e);
+            level = next;
+        }
+        return missing;
+    }
+
+    /**
+     * Finds among some nodes whose path is too long to be recorded the strict
+     * descendants of other nodes, by following their parents.
+     *
+     * @param ids the ancestors
+     * @param missing the nodes whose path is too long, with their parent id
+     * @return the ids of the descendants, parents first
+     */
+    protected static Set<Serializable> getMissingDescendants(
+            Collection<Serializable> ids,
+            Map<Serializable, Serializable[]> missing) {
+        Set<Serializable> descendants = new LinkedHashSet<Serializable>();
+        if (missing.isEmpty()) {
+            return descendants;
+        }
+        Map<Serializable, List<Serializable>> children = new HashMap<Serializable, List<Serializable>>();
+        for (Entry<Serializable, Serializable[]> entry : missing.entrySet()) {
+            Serializable parentId = entry.getValue()[0];
+            List<Serializable> list = children.get(parentId);
+            if (list == null) {
+                list = new LinkedList<Serializable>();
+                children.put(parentId, list);
+            }
+            list.add(entry.getKey());
+        }
+        LinkedList<Serializable> todo = new LinkedList<Serializable>(ids);
+        while (!todo.isEmpty()) {
+            List<Serializable> list = children.get(todo.removeFirst());
+            if (list == null) {
+                continue;
+            }
+            for (Serializable childId : list) {
+                if (descendants.add(childId)) {
+                    todo.add(childId);
+                }
+            }
+        }
+        return descendants;
+    }
+
+    /**
+     * Records the paths of newly created hierarchy rows. Parents must come
+     * before their children. Complex properties, versions and the root (whose
+     * path is recorded with the root id) are skipped. Paths too long to be
+     * recorded are recorded as missing.
+     *
+     * @param rows the created hierarchy rows, keyed by their final id
+     */
+    public void insertChildPaths(Map<Serializable, SimpleFragment> rows)
+            throws StorageException {
+        Set<Serializable> parentIds = new HashSet<Serializable>();
+        for (Entry<Serializable, SimpleFragment> entry : rows.entrySet()) {
+            Serializable parentId = entry.getValue().get(model.HIER_PARENT_KEY);
+            if (parentId != null && !rows.containsKey(parentId)) {
+                parentIds.add(parentId);
+            }
+        }
+        Map<Serializable, String> paths = new LinkedHashMap<Serializable, String>();
+        Map<Serializable, String> parentPaths = getPaths(parentIds);
+        for (Entry<Serializable, SimpleFragment> entry : rows.entrySet()) {
+            SimpleFragment row = entry.getValue();
+            Serializable parentId = row.get(model.HIER_PARENT_KEY);
+            if (parentId == null
+                    || ((Boolean) row.get(model.HIER_CHILD_ISPROPERTY_KEY)).booleanValue()) {
+                continue;
+            }
+            String parentPath;
+            if (paths.containsKey(parentId)) {
+                parentPath = paths.get(parentId);
+            } else if (parentPaths.containsKey(parentId)) {
+                parentPath = parentPaths.get(parentId);
+            } else {
+                // no path for the parent
+                continue;
+            }
+            String path = null;
+            if (parentPath != null) {
+                path = recordablePath(childPath(parentPath,
+                        row.getString(model.HIER_CHILD_NAME_KEY)));
+            }
+            paths.put(entry.getKey(), path);
+        }
+        insertPaths(paths);
+    }
+
+    /**
+     * Updates the paths of a moved or renamed node and of all its descendants.
+     * <p>
+     * The paths of the descendants are rewritten by a single statement
+     * replacing their prefix. Descendants whose path becomes too long are
+     * recorded as missing, and those whose path becomes short enough are
+     * recorded again.
+     *
+     * @param id the moved node id
+     * @param parentId the new parent id
+     * @param name the new name
+     */
+    public void movePaths(Serializable id, Serializable parentId, String name)
+            throws StorageException {
+        Map<Serializable, String> oldPaths = getPaths(Arrays.asList(id,
+                parentId));
+        if (!oldPaths.containsKey(id)) {
+            return;
+        }
+        if (!oldPaths.containsKey(parentId)) {
+            throw new StorageException("No path for parent: " + parentId);
+        }
+        String oldPath = oldPaths.get(id);
+        String parentPath = oldPaths.get(parentId);
+        String newPath = null;
+        if (parentPath != null) {
+            newPath = recordablePath(childPath(parentPath, name));
+        }
+        if (newPath == null) {
+            if (oldPath != null) {
+                // all the descendants have paths too long as well
+                writePaths(Collections.singletonMap(id, (String) null),
+                        sqlInfo.getUpdatePathSql(), true);
+                executeUpdate(sqlInfo.getClearLongPathsSql(),
+                        sqlInfo.getDescendantsPathPattern(oldPath),
+                        Integer.valueOf(0));
+            }
+            return;
+        }
+        if (newPath.equals(oldPath)) {
+            return;
+        }
+        writePaths(Collections.singletonMap(id, newPath),
+                sqlInfo.getUpdatePathSql(), true);
+        if (oldPath == null) {
+            // the descendants had paths too long as well
+            updateMissingPaths(id, newPath);
+            return;
+        }
+        String pattern = sqlInfo.getDescendantsPathPattern(oldPath);
+        int delta = newPath.length() - oldPath.length();
+        if (delta > 0) {
+            executeUpdate(sqlInfo.getClearLongPathsSql(), pattern,
+                    Integer.valueOf(sqlInfo.dialect.getMaximumPathLength()
+                            - delta));
+        }
+        executeUpdate(sqlInfo.getUpdatePathsPrefixSql(), newPath,
+                Integer.valueOf(oldPath.length() + 1), pattern);
+        if (delta < 0) {
+            updateMissingPaths(id, newPath);
+        }
+    }
+
+    /**
+     * Records the paths of the descendants of a node that were too long to be
+     * recorded, when they fit now that the node has a shorter path.
+     *
+     * @param id the node id
+     * @param path the new path of the node
+     */
+    protected void updateMissingPaths(Serializable id, String path)
+            throws StorageException {
+        // the node and its descendants with a recorded path
+        Map<Serializable, String> known = getDescendantsPaths(path);
+        known.put(id, path);
+        Map<Serializable, Serializable[]> missing = getMissingDescendants(known.keySet());
+        Map<Serializable, String> paths = new LinkedHashMap<Serializable, String>();
+        for (Entry<Serializable, Serializable[]> entry : missing.entrySet()) {
+            Serializable missingId = entry.getKey();
+            Serializable[] info = entry.getValue();
+            String parentPath = known.get(info[0]);
+            if (parentPath == null) {
+                // still too long
+                continue;
+            }
+            String childPath = recordablePath(childPath(parentPath,
+                    (String) info[1]));
+            if (childPath != null) {
+                known.put(missingId, childPath);
+                paths.put(missingId, childPath);
+            }
+        }
+        writePaths(paths, sqlInfo.getUpdatePathSql(), true);
+    }
+
+    /**
+     * Executes an update statement.
+     *
+     * @return the number of rows changed
+     */
+    protected int executeUpdate(String sql, Serializable... values)
+            throws StorageException {
+        try {
+            if (isLogEnabled()) {
+                logSQL(sql, Arrays.asList(values));
+            }
+            PreparedStatement ps = connection.prepareStatement(sql);
+            try {
+                int i = 0;
+                for (Serializable value : values) {
+                    ps.setObject(++i, value);
+                }
+                int count = ps.executeUpdate();
+                if (isLogEnabled()) {
+                    log("  -> " + count + " rows");
+                }
+                return count;
+            } finally {
+                ps.close();
+            }
+        } catch (SQLException e) {
+            throw new StorageException("Could not update: " + sql, e);
+        }
+    }
+
+    /**
+     * Records the paths of a copied hierarchy, computed from the paths of the
+     * source.
+     *
+     * @param sourceId the id of the root of the source
+     * @param destParentId the parent of the copy
+     * @param destName the name of the copy, or {@code null} to keep the source
+     *            name
+     * @param idMap the map of source ids to copied ids
+     */
+    protected void copyPaths(Serializable sourceId, Serializable destParentId,
+            String destName, Map<Serializable, Serializable> idMap)
+            throws StorageException {
+        Map<Serializable, String> oldPaths = getPaths(Arrays.asList(sourceId,
+                destParentId));
+        if (!oldPaths.containsKey(sourceId)
+                || !oldPaths.containsKey(destParentId)) {
+            return;
+        }
+        String sourcePath = oldPaths.get(sourceId);
+        String parentPath = oldPaths.get(destParentId);
+        if (destName == null) {
+            if (sourcePath == null) {
+                destName = (String) selectByValues(model.hierTableName,
+                        model.MAIN_KEY, null,
+                        Collections.singleton(sourceId),
+                        model.HIER_CHILD_NAME_KEY).get(0)[0];
+            } else {
+                destName = sourcePath.substring(sourcePath.lastIndexOf('/') + 1);
+            }
+        }
+        String newPath = null;
+        if (parentPath != null) {
+            newPath = recordablePath(childPath(parentPath, destName));
+        }
+        Map<Serializable, String> paths = new LinkedHashMap<Serializable, String>();
+        paths.put(idMap.get(sourceId), newPath);
+        Set<Serializable> sourceIds = new HashSet<Serializable>();
+        sourceIds.add(sourceId);
+        if (sourcePath != null) {
+            for (Entry<Serializable, String> entry : getDescendantsPaths(
+                    sourcePath).entrySet()) {
+                Serializable newId = idMap.get(entry.getKey());
+                if (newId == null) {
+                    continue;
+                }
+                sourceIds.add(entry.getKey());
+                String path = null;
+                if (newPath != null) {
+                    path = recordablePath(newPath
+                            + entry.getValue().substring(sourcePath.length()));
+                }
+                paths.put(newId, path);
+            }
+        }
+        // copies of the descendants whose path is too long
+        for (Entry<Serializable, Serializable[]> entry : getMissingDescendants(
+                sourceIds).entrySet()) {
+            Serializable newId = idMap.get(entry.getKey());
+            if (newId == null) {
+                continue;
+            }
+            Serializable[] info = entry.getValue();
+            String copyParentPath = paths.get(idMap.get(info[0]));
+            String path = null;
+            if (copyParentPath != null) {
+                path = recordablePath(childPath(copyParentPath,
+                        (String) info[1]));
+            }
+            paths.put(newId, path);
+        }
+        insertPaths(paths);
+    }
+
+    protected void insertPaths(Map<Serializable, String> paths)
+            throws StorageException {
+        writePaths(paths, sqlInfo.getInsertPathSql(), false);
+    }
+
+    /**
+     * Inserts or updates rows of the paths table, batching the statements when
+     * possible. A {@code null} path records a path too long to be recorded.
+     */
+    protected void writePaths(Map<Serializable, String> paths, String sql,
+            boolean update) throws StorageException {
+        if (paths.isEmpty()) {
+            return;
+        }
+        boolean batch = paths.size() > 1
+                && sqlInfo.dialect.supportsBatchUpdates();
+        Column idColumn = sqlInfo.getPathsIdColumn();
+        try {
+            PreparedStatement ps = connection.prepareStatement(sql);
+            try {
+                int batched = 0;
+                for (Entry<Serializable, String> entry : paths.entrySet()) {
+                    Serializable id = entry.getKey();
+                    String path = recordablePath(entry.getValue());
+                    if (isLogEnabled()) {
+                        logSQL(sql, update ? Arrays.<Serializable> asList(
+                                path, id) : Arrays.<Serializable> asList(id,
+                                path));
+                    }
+                    // update: path then id, insert: id then path
+                    idColumn.setToPreparedStatement(ps, update ? 2 : 1, id);
+                    if (path == null) {
+                        ps.setNull(update ? 1 : 2, Types.VARCHAR);
+                    } else {
+                        ps.setString(update ? 1 : 2, path);
+                    }
+                    if (batch) {
+                        ps.addBatch();
+                        batched++;
+                        if (batched == BATCH_SIZE) {
+                            executeBatch(ps);
+                            batched = 0;
+                        }
+                    } else {
+                        ps.execute();
+                    }
+                }
+                if (batched != 0) {
+                    executeBatch(ps);
+                }
+            } finally {
+                ps.close();
+            }
+        } catch (SQLException e) {
+            throw new StorageException("Could not write paths: " + sql, e);
+        }
+    }
+
+    /**
+     * Gets the key under which the root id of this repository is recorded:
+     * the repository name.
+     */
+    protected String getRootKey() {
+        String name = model.repositoryDescriptor.name;
+        return name == null ? DEFAULT_ROOT_KEY : name;
+    }
+
+    /**
+     * Gets the root id of this repository, if registered.
+     * <p>
+     * Sessions used to record the root under the {@code "default"} key
+     * whatever the repository name, this key is still looked up for existing
+     * repositories.
+     */
+    protected Serializable getRepositoryRootId() throws StorageException {
+        String key = getRootKey();
+        Serializable rootId = getRootId(key);
+        if (rootId == null && !key.equals(DEFAULT_ROOT_KEY)) {
+            rootId = getRootId(DEFAULT_ROOT_KEY);
+        }
+        return rootId;
+    }
+
+    /**
+     * Fills the paths table by walking the existing hierarchy one level at a
+     * time, for repositories created before paths were recorded.
+     */
+    protected void fillPaths() throws StorageException {
+        Serializable rootId = getRepositoryRootId();
+        if (rootId == null) {
+            return;
+        }
+        log.info("Computing paths for the existing hierarchy");
+        Map<Serializable, String> level = new LinkedHashMap<Serializable, String>();
+        level.put(rootId, "/");
+        while (!level.isEmpty()) {
+            insertPaths(level);
+            Map<Serializable, String> children = new LinkedHashMap<Serializable, String>();
+            for (Serializable[] row : selectByValues(model.hierTableName,
+                    model.HIER_PARENT_KEY, null, level.keySet(),
+                    model.MAIN_KEY, model.HIER_PARENT_KEY,
+                    model.HIER_CHILD_NAME_KEY, model.HIER_CHILD_ISPROPERTY_KEY)) {
+                if (Boolean.TRUE.equals(row[3])) {
+                    continue;
+                }
+                String parentPath = level.get(row[1]);
+                String path = null;
+                if (parentPath != null) {
+                    path = recordablePath(childPath(parentPath,
+                            (String) row[2]));
+                }
+                children.put(row[0], path);
+            }
+            level = children;
+        }
+    }
+
+    // ---------- read acls ----------
+
+    /** Orders the entries of a map of id to path, ancestors first. */
+    protected static final Comparator<Entry<Serializable, String>> PATH_DEPTH_COMPARATOR = new Comparator<Entry<Serializable, String>>() {
+        public int compare(Entry<Serializable, String> a,
+                Entry<Serializable, String> b) {
+            return a.getValue().length() - b.getValue().length();
+        }
+    };
+
+    /**
+     * Computes the path of the parent of a regular node given its path.
+     */
+    protected static String parentPath(String path) {
+        int i = path.lastIndexOf('/');
+        return i == 0 ? "/" : path.substring(0, i);
+    }
+
+    /**
+     * Recomputes the read ACLs of some nodes, and records them.
+     * <p>
+     * The read ACL of a node is its own ACL followed by the read ACL of its
+     * parent (or of its live document for a version), keeping only the
+     * entries for the permissions configured in the model and the first entry
+     * for each user. Read ACLs are stored once, under an id that is the digest
+     * of their entries; read ACLs no longer used are kept.
+     *
+     * @param ids the nodes whose ACL, parent or existence changed
+     * @param descendants {@code true} if the descendants of the nodes and
+     *            their versions have to be recomputed as well, {@code false}
+     *            for new nodes which all have to be passed explicitly
+     */
+    public void updateReadAcls(Collection<Serializable> ids,
+            boolean descendants) throws StorageException {
+        if (ids.isEmpty()) {
+            return;
+        }
+        Map<Serializable, String> paths = getPaths(ids);
+        // nodes whose path is too long to be recorded
+        Set<Serializable> missingIds = new HashSet<Serializable>();
+        for (Iterator<Entry<Serializable, String>> it = paths.entrySet().iterator(); it.hasNext();) {
+            Entry<Serializable, String> entry = it.next();
+            if (entry.getValue() == null) {
+                missingIds.add(entry.getKey());
+                it.remove();
+            }
+        }
+        List<Serializable> others = new LinkedList<Serializable>();
+        for (Serializable id : ids) {
+            if (!paths.containsKey(id) && !missingIds.contains(id)) {
+                others.add(id);
+            }
+        }
+        if (descendants) {
+            // sorted paths put ancestors first, skip nested roots
+            List<String> rootPaths = new LinkedList<String>();
+            for (String path : new TreeSet<String>(paths.values())) {
+                boolean nested = false;
+                for (String rootPath : rootPaths) {
+                    if (rootPath.equals("/")
+                            || path.startsWith(rootPath + '/')) {
+                        nested = true;
+                        break;
+                    }
+                }
+                if (!nested) {
+                    rootPaths.add(path);
+                }
+            }
+            for (String rootPath : rootPaths) {
+                paths.putAll(getDescendantsPaths(rootPath));
+            }
+        }
+
+        /*
+         * Find the parents of the nodes whose path is too long, and order
+         * them parents first.
+         */
+        Map<Serializable, Serializable[]> missing = new HashMap<Serializable, Serializable[]>();
+        if (!missingIds.isEmpty()) {
+            for (Serializable[] row : selectByValues(model.hierTableName,
+                    model.MAIN_KEY, null, missingIds, model.MAIN_KEY,
+                    model.HIER_PARENT_KEY)) {
+                missing.put(row[0], new Serializable[] { row[1] });
+            }
+        }
+        if (descendants) {
+            Set<Serializable> ancestors = new HashSet<Serializable>(
+                    paths.keySet());
+            ancestors.addAll(missingIds);
+            missing.putAll(getMissingDescendants(ancestors));
+        }
+        Set<Serializable> missingParentIds = new HashSet<Serializable>();
+        for (Serializable[] info : missing.values()) {
+            if (!missing.containsKey(info[0])) {
+                missingParentIds.add(info[0]);
+            }
+        }
+        Set<Serializable> missingNodes = getMissingDescendants(
+                missingParentIds, missing);
+        List<Entry<Serializable, String>> nodes = new ArrayList<Entry<Serializable, String>>(
+                paths.entrySet());
+        Collections.sort(nodes, PATH_DEPTH_COMPARATOR);
+        Map<String, Serializable> pathIds = new HashMap<String, Serializable>();
+        for (Entry<Serializable, String> entry : nodes) {
+            pathIds.put(entry.getValue(), entry.getKey());
+        }
+
+        /*
+         * Find the versions and their live documents.
+         */
+        Map<Serializable, Serializable> versionables = new LinkedHashMap<Serializable, Serializable>();
+        if (!others.isEmpty()) {
+            for (Serializable[] row : selectByValues(model.VERSION_TABLE_NAME,
+                    model.MAIN_KEY, null, others, model.MAIN_KEY,
+                    model.VERSION_VERSIONABLE_KEY)) {
+                versionables.put(row[0], row[1]);
+            }
+        }
+        if (descendants && !(paths.isEmpty() && missingNodes.isEmpty())) {
+            Set<Serializable> versionableIds = new HashSet<Serializable>(
+                    paths.keySet());
+            versionableIds.addAll(missingNodes);
+            for (Serializable[] row : selectByValues(model.VERSION_TABLE_NAME,
+                    model.VERSION_VERSIONABLE_KEY, null, versionableIds,
+                    model.MAIN_KEY, model.VERSION_VERSIONABLE_KEY)) {
+                versionables.put(row[0], row[1]);
+            }
+        }
+        // nodes without path that aren't versions are placeless documents,
+        // complex properties or deleted nodes
+        others.removeAll(versionables.keySet());
+        if (!others.isEmpty()) {
+            List<Serializable> placeless = new LinkedList<Serializable>();
+            for (Serializable[] row : selectByValues(model.hierTableName,
+                    model.MAIN_KEY, null, others, model.MAIN_KEY,
+                    model.HIER_CHILD_ISPROPERTY_KEY)) {
+                if (!Boolean.TRUE.equals(row[1])) {
+                    placeless.add(row[0]);
+                }
+            }
+            others = placeless;
+        }
+
+        /*
+         * Get the read ACLs of the parents and live documents that are not
+         * recomputed.
+         */
+        Set<String> outerPaths = new HashSet<String>();
+        for (Entry<Serializable, String> entry : nodes) {
+            String path = entry.getValue();
+            if (!path.equals("/") && !pathIds.containsKey(parentPath(path))) {
+                outerPaths.add(parentPath(path));
+            }
+        }
+        Map<String, Serializable> outerPathIds = new HashMap<String, Serializable>();
+        if (!outerPaths.isEmpty()) {
+            for (Serializable[] row : selectByValues(model.PATHS_TABLE_NAME,
+                    model.PATHS_PATH_KEY, null, outerPaths, model.MAIN_KEY,
+                    model.PATHS_PATH_KEY)) {
+                outerPathIds.put((String) row[1], row[0]);
+            }
+        }
+        Set<Serializable> outerIds = new HashSet<Serializable>(
+                outerPathIds.values());
+        for (Serializable parentId : missingParentIds) {
+            if (!paths.containsKey(parentId)) {
+                outerIds.add(parentId);
+            }
+        }
+        for (Serializable versionableId : versionables.values()) {
+            if (!paths.containsKey(versionableId)
+                    && !missingNodes.contains(versionableId)) {
+                outerIds.add(versionableId);
+            }
+        }
+        Map<Serializable, Map<String, Boolean>> acls = new HashMap<Serializable, Map<String, Boolean>>();
+        if (!outerIds.isEmpty()) {
+            Map<Serializable, String> outerAclIds = getReadAclIds(outerIds);
+            Map<String, Map<String, Boolean>> outerAcls = getReadAcls(new HashSet<String>(
+                    outerAclIds.values()));
+            for (Entry<Serializable, String> entry : outerAclIds.entrySet()) {
+                acls.put(entry.getKey(), outerAcls.get(entry.getValue()));
+            }
+        }
+
+        /*
+         * Compute the read ACLs, parents first.
+         */
+        Set<Serializable> computed = new LinkedHashSet<Serializable>();
+        for (Entry<Serializable, String> entry : nodes) {
+            computed.add(entry.getKey());
+        }
+        computed.addAll(missingNodes);
+        computed.addAll(versionables.keySet());
+        computed.addAll(others);
+        Map<Serializable, Map<String, Boolean>> ownAcls = getOwnReadAcls(computed);
+        for (Entry<Serializable, String> entry : nodes) {
+            String path = entry.getValue();
+            Map<String, Boolean> parentAcl = null;
+            if (!path.equals("/")) {
+                String parentPath = parentPath(path);
+                Serializable parentId = pathIds.get(parentPath);
+                if (parentId == null) {
+                    parentId = outerPathIds.get(parentPath);
+                }
+                parentAcl = acls.get(parentId);
+            }
+            Serializable id = entry.getKey();
+            acls.put(id, mergeReadAcls(ownAcls.get(id), parentAcl));
+        }
+        for (Serializable id : missingNodes) {
+            acls.put(id, mergeReadAcls(ownAcls.get(id),
+                    acls.get(missing.get(id)[0])));
+        }
+        for (Entry<Serializable, Serializable> entry : versionables.entrySet()) {
+            Serializable id = entry.getKey();
+            acls.put(id, mergeReadAcls(ownAcls.get(id),
+                    acls.get(entry.getValue())));
+        }
+        for (Serializable id : others) {
+            acls.put(id, mergeReadAcls(ownAcls.get(id), null));
+        }
+
+        /*
+         * Record the changed read ACLs.
+         */
+        Map<Serializable, String> oldAclIds;
+        if (descendants) {
+            oldAclIds = getReadAclIds(computed);
+        } else {
+            oldAclIds = Collections.emptyMap();
+        }
+        Map<String, Map<String, Boolean>> newAcls = new HashMap<String, Map<String, Boolean>>();
+        List<Serializable[]> inserts = new LinkedList<Serializable[]>();
+        List<Serializable[]> updates = new LinkedList<Serializable[]>();
+        for (Serializable id : computed) {
+            Map<String, Boolean> acl = acls.get(id);
+            String aclId = getReadAclId(acl);
+            String oldAclId = oldAclIds.get(id);
+            if (oldAclId == null) {
+                inserts.add(new Serializable[] { id, aclId });
+            } else if (!oldAclId.equals(aclId)) {
+                updates.add(new Serializable[] { aclId, id });
+            } else {
+                continue;
+            }
+            if (!acl.isEmpty()) {
+                newAcls.put(aclId, acl);
+            }
+        }
+        insertReadAcls(newAcls);
+        Table table = sqlInfo.getDatabase().getTable(
+                model.HIER_READ_ACL_TABLE_NAME);
+        Column idColumn = table.getColumn(model.MAIN_KEY);
+        Column aclIdColumn = table.getColumn(model.HIER_READ_ACL_ACL_ID_KEY);
+        executeBatched(sqlInfo.getInsertHierReadAclSql(), Arrays.asList(
+                idColumn, aclIdColumn), inserts);
+        executeBatched(sqlInfo.getUpdateHierReadAclSql(), Arrays.asList(
+                aclIdColumn, idColumn), updates);
+    }
+
+    /**
+     * Merges the own ACL of a node with the read ACL of its parent.
+     */
+    protected static Map<String, Boolean> mergeReadAcls(
+            Map<String, Boolean> acl, Map<String, Boolean> parentAcl) {
+        if (acl == null) {
+            if (parentAcl == null) {
+                return Collections.emptyMap();
+            }
+            return parentAcl;
+        }
+        if (parentAcl == null) {
+            return acl;
+        }
+        Map<String, Boolean> merged = new LinkedHashMap<String, Boolean>(acl);
+        for (Entry<String, Boolean> entry : parentAcl.entrySet()) {
+            if (!merged.containsKey(entry.getKey())) {
+                merged.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Computes the id of a read ACL, the digest of its entries.
+     */
+    protected static String getReadAclId(Map<String, Boolean> acl) {
+        StringBuilder buf = new StringBuilder();
+        for (Entry<String, Boolean> entry : acl.entrySet()) {
+            buf.append(entry.getValue().booleanValue() ? '+' : '-');
+            buf.append(entry.getKey());
+            buf.append('\n');
+        }
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+            digest.update(buf.toString().getBytes("UTF-8"));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e.toString(), e);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e.toString(), e);
+        }
+        return BinaryManager.toHexString(digest.digest());
+    }
+
+    /**
+     * Gets the own ACLs of some nodes, reduced to the read permissions.
+     *
+     * @return a map of id to ACL, without the nodes that have no such ACL
+     */
+    protected Map<Serializable, Map<String, Boolean>> getOwnReadAcls(
+            Collection<Serializable> ids) throws StorageException {
+        Set<String> permissions = model.getReadAclPermissions();
+        Map<Serializable, Map<String, Boolean>> acls = new HashMap<Serializable, Map<String, Boolean>>();
+        for (Serializable[] row : selectByValues(model.ACL_TABLE_NAME,
+                model.MAIN_KEY, model.ACL_POS_KEY, ids, model.MAIN_KEY,
+                model.ACL_GRANT_KEY, model.ACL_PERMISSION_KEY,
+                model.ACL_USER_KEY)) {
+            if (!permissions.contains(row[2])) {
+                continue;
+            }
+            Map<String, Boolean> acl = acls.get(row[0]);
+            if (acl == null) {
+                acl = new LinkedHashMap<String, Boolean>();
+                acls.put(row[0], acl);
+            }
+            String user = (String) row[3];
+            if (!acl.containsKey(user)) {
+                acl.put(user, (Boolean) row[1]);
+            }
+        }
+        return acls;
+    }
+
+    /**
+     * Gets the ids of the recorded read ACLs of some nodes.
+     *
+     * @return a map of id to read ACL id, without the nodes that have none
+     */
+    protected Map<Serializable, String> getReadAclIds(
+            Collection<Serializable> ids) throws StorageException {
+        Map<Serializable, String> aclIds = new HashMap<Serializable, String>();
+        for (Serializable[] row : selectByValues(
+                model.HIER_READ_ACL_TABLE_NAME, model.MAIN_KEY, null, ids,
+                model.MAIN_KEY, model.HIER_READ_ACL_ACL_ID_KEY)) {
+            aclIds.put(row[0], (String) row[1]);
+        }
+        return aclIds;
+    }
+
+    /**
+     * Gets the entries of recorded read ACLs.
+     *
+     * @return a map of read ACL id to ACL, empty for the empty ACL
+     */
+    protected Map<String, Map<String, Boolean>> getReadAcls(
+            Collection<String> aclIds) throws StorageException {
+        Map<String, Map<String, Boolean>> acls = new HashMap<String, Map<String, Boolean>>();
+        for (String aclId : aclIds) {
+            acls.put(aclId, new LinkedHashMap<String, Boolean>());
+        }
+        for (Serializable[] row : selectByValues(model.READ_ACLS_TABLE_NAME,
+                model.READ_ACLS_ACL_ID_KEY, model.READ_ACLS_POS_KEY, aclIds,
+                model.READ_ACLS_ACL_ID_KEY, model.READ_ACLS_USER_KEY,
+                model.READ_ACLS_GRANT_KEY)) {
+            Map<String, Boolean> acl = acls.get(row[0]);
+            // concurrent insertions of the same ACL may duplicate entries
+            if (!acl.containsKey(row[1])) {
+                acl.put((String) row[1], (Boolean) row[2]);
+            }
+        }
+        return acls;
+    }
+
+    /**
+     * Records the entries of read ACLs that don't exist yet.
+     *
+     * @param acls a map of read ACL id to ACL
+     */
+    protected void insertReadAcls(Map<String, Map<String, Boolean>> acls)
+            throws StorageException {
+        if (acls.isEmpty()) {
+            return;
+        }
+        Set<String> aclIds = new HashSet<String>(acls.keySet());
+        for (Serializable[] row : selectByValues(model.READ_ACLS_TABLE_NAME,
+                model.READ_ACLS_ACL_ID_KEY, null, acls.keySet(),
+                model.READ_ACLS_ACL_ID_KEY)) {
+            aclIds.remove(row[0]);
+        }
+        List<Serializable[]> rows = new LinkedList<Serializable[]>();
+        for (String aclId : aclIds) {
+            long pos = 0;
+            for (Entry<String, Boolean> entry : acls.get(aclId).entrySet()) {
+                rows.add(new Serializable[] { aclId, Long.valueOf(pos++),
+                        entry.getKey(), entry.getValue() });
+            }
+        }
+        executeBatched(sqlInfo.getInsertReadAclSql(),
+                sqlInfo.getInsertReadAclColumns(), rows);
+    }
+
+    /**
+     * Fills the read ACL tables for repositories created before read ACLs were
+     * recorded.
+     * <p>
+     * The hierarchy is filled one level at a time, starting from the root:
+     * nodes without ACL of their own inherit the read ACL of their parent
+     * through a single statement, and only the nodes with an ACL get their
+     * read ACL computed. Versions are filled last from their live documents.
+     */
+    protected void fillReadAcls() throws StorageException {
+        Serializable rootId = getRepositoryRootId();
+        if (rootId == null) {
+            return;
+        }
+        log.info("Computing read ACLs for the existing hierarchy");
+        updateReadAcls(Collections.singleton(rootId), false);
+        int count;
+        do {
+            count = executeUpdate(sqlInfo.getInsertInheritedReadAclsSql(false));
+            count += fillOwnReadAcls(sqlInfo.getSelectReadAclsToFillSql(
+                    false, true));
+        } while (count != 0);
+        executeUpdate(sqlInfo.getInsertInheritedReadAclsSql(true));
+        fillOwnReadAcls(sqlInfo.getSelectReadAclsToFillSql(true, true));
+    }
+
+    /**
+     * Records the read ACLs of nodes that have an ACL of their own, merged
+     * with the read ACL of their parent.
+     *
+     * @param sql the SQL selecting the node ids and the read ACL ids of their
+     *            parents
+     * @return the number of nodes recorded
+     */
+    protected int fillOwnReadAcls(String sql) throws StorageException {
+        Map<Serializable, String> parentAclIds = new LinkedHashMap<Serializable, String>();
+        try {
+            if (isLogEnabled()) {
+                logSQL(sql, Collections.<Serializable> emptyList());
+            }
+            Statement st = connection.createStatement();
+            try {
+                ResultSet rs = st.executeQuery(sql);
+                Column idColumn = sqlInfo.getPathsIdColumn();
+                while (rs.next()) {
+                    parentAclIds.put(idColumn.getFromResultSet(rs, 1),
+                            rs.getString(2));
+                }
+                if (isLogEnabled()) {
+                    log("  -> " + parentAclIds.size() + " rows");
+                }
+            } finally {
+                st.close();
+            }
+        } catch (SQLException e) {
+            throw new StorageException("Could not select: " + sql, e);
+        }
+        if (parentAclIds.isEmpty()) {
+            return 0;
+        }
+        Map<String, Map<String, Boolean>> parentAcls = getReadAcls(new HashSet<String>(
+                parentAclIds.values()));
+        Map<Serializable, Map<String, Boolean>> ownAcls = getOwnReadAcls(parentAclIds.keySet());
+        Map<String, Map<String, Boolean>> newAcls = new HashMap<String, Map<String, Boolean>>();
+        List<Serializable[]> inserts = new LinkedList<Serializable[]>();
+        for (Entry<Serializable, String> entry : parentAclIds.entrySet()) {
+            Serializable id = entry.getKey();
+            Map<String, Boolean> acl = mergeReadAcls(ownAcls.get(id),
+                    parentAcls.get(entry.getValue()));
+            String aclId = getReadAclId(acl);
+            inserts.add(new Serializable[] { id, aclId });
+            if (!acl.isEmpty()) {
+                newAcls.put(aclId, acl);
+            }
+        }
+        insertReadAcls(newAcls);
+        Table table = sqlInfo.getDatabase().getTable(
+                model.HIER_READ_ACL_TABLE_NAME);
+        executeBatched(sqlInfo.getInsertHierReadAclSql(), Arrays.asList(
+                table.getColumn(model.MAIN_KEY), table.getColumn(
+                        model.HIER_READ_ACL_ACL_ID_KEY)), inserts);
+        return inserts.size();
+    }
+
+    /**
+     * Selects some columns of the rows of a table matching several values of
+     * a column, in as many statements as needed.
+     *
+     * @param tableName the table name
+     * @param whereKey the key of the column to match
+     * @param orderKey the key of the column to order by, or {@code null}
+     * @param values the values to match
+     * @param whatKeys the keys of the selected columns
+     * @return the rows, each holding the values of the selected columns
+     */
+    protected List<Serializable[]> selectByValues(String tableName,
+            String whereKey, String orderKey,
+            Collection<? extends Serializable> values, String... whatKeys)
+            throws StorageException {
+        List<Serializable[]> rows = new LinkedList<Serializable[]>();
+        List<Serializable> list = new ArrayList<Serializable>(values);
+        int max = sqlInfo.dialect.getMaximumArgsForIn();
+        for (int start = 0; start < list.size(); start += max) {
+            List<Serializable> chunk = list.subList(start, Math.min(start
+                    + max, list.size()));
+            SQLInfoSelect select = sqlInfo.getSelectByValues(tableName,
+                    whereKey, orderKey, chunk.size(), whatKeys);
+            try {
+                if (isLogEnabled()) {
+                    logSQL(select.sql, chunk);
+                }
+                PreparedStatement ps = connection.prepareStatement(select.sql);
+                try {
+                    Column whereColumn = select.whereColumns.get(0);
+                    int i = 0;
+                    for (Serializable value : chunk) {
+                        whereColumn.setToPreparedStatement(ps, ++i, value);
+                    }
+                    ResultSet rs = ps.executeQuery();
+                    int n = 0;
+                    while (rs.next()) {
+                        Serializable[] row = new Serializable[whatKeys.length];
+                        i = 0;
+                        for (Column column : select.whatColumns) {
+                            row[i] = column.getFromResultSet(rs, i + 1);
+                            i++;
+                        }
+                        rows.add(row);
+                        n++;
+                    }
+                    if (isLogEnabled()) {
+                        log("  -> " + n + " rows");
+                    }
+                } finally {
+                    ps.close();
+                }
+            } catch (SQLException e) {
+                throw new StorageException("Could not select: " + select.sql,
+                        e);
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Executes a statement for several rows of parameters, batching the
+     * statements when possible.
+     *
+     * @param sql the statement
+     * @param columns the columns of the parameters
+     * @param rows the parameters, in the order of the columns
+     */
+    protected void executeBatched(String sql, List<Column> columns,
+            List<Serializable[]> rows) throws StorageException {
+        if (rows.isEmpty()) {
+            return;
+        }
+        boolean batch = rows.size() > 1
+                && sqlInfo.dialect.supportsBatchUpdates();
+        try {
+            PreparedStatement ps = connection.prepareStatement(sql);
+            try {
+                int batched = 0;
+                for (Serializable[] row : rows) {
+                    if (isLogEnabled()) {
+                        logSQL(sql, Arrays.asList(row));
+                    }
+                    int i = 0;
+                    for (Column column : columns) {
+                        column.setToPreparedStatement(ps, i + 1, row[i]);
+                        i++;
+                    }
+                    if (batch) {
+                        ps.addBatch();
+                        batched++;
+                        if (batched == BATCH_SIZE) {
+                            executeBatch(ps);
+                            batched = 0;
+                        }
+                    } else {
+                        ps.execute();
+                    }
+                }
+                if (batched != 0) {
+                    executeBatch(ps);
+                }
+            } finally {
+                ps.close();
+            }
+        } catch (SQLException e) {
+            throw new StorageException("Could not execute: " + sql, e);
+        }
+    }
+
+    /**
+     * Inserts a new {@link SimpleFragment} in the storage. Depending on the
+     * type, the id may be generated by the database (in which case it must not
+     * be provided in the {@link SimpleFragment}), or already assigned (which is
+     * the case for non-main tables).
+     *
+     * @param row the row
+     * @return the id (generated or not)
+     */
+    public Serializable insertSingleRow(SimpleFragment row)
+            throws StorageException {
+        String tableName = row.getTableName();
+        // an identity column is never inserted, its value is generated by the
+        // database and fetched after the insert
+        boolean fetchIdentity = sqlInfo.getIdentityFetchColumn(tableName) != null;
+        boolean generatedKeys = fetchIdentity
+                && sqlInfo.dialect.supportsGetGeneratedKeys();
+        PreparedStatement ps = null;
+        try {
+            // insert the row
+            // XXX statement should be already prepared
+            String sql = sqlInfo.getInsertSql(tableName);
+            List<Column> columns = sqlInfo.getInsertColumns(tableName);
+            try {
+                if (isLogEnabled()) {
+                    logSQL(sql, columns, row);
+                }
+                if (generatedKeys) {
+                    ps = connection.prepareStatement(sql,
+                            Statement.RETURN_GENERATED_KEYS);
+                } else {
+                    ps = connection.prepareStatement(sql);
+                }
+                setInsertValues(ps, columns, row);
+                ps.execute();
+            } catch (SQLException e) {
+                throw new StorageException("Could not insert: " + sql, e);
+            }
+
+            if (fetchIdentity) {
+                // post insert fetch idrow
+                Column icolumn = sqlInfo.getIdentityFetchColumn(tableName);
+                Serializable iv;
+                if (generatedKeys) {
+                    try {
+                        ResultSet rs = ps.getGeneratedKeys();
+                        if (!rs.next()) {
+                            throw new StorageException(
+                                    "No generated key returned by: " + sql);
+                        }
+                        iv = icolumn.getFromResultSet(rs, 1);
+                    } catch (SQLException e) {
+                        throw new StorageException(
+                                "Could not fetch generated keys: " + sql, e);
+                    }
+                } else {
+                    // TODO PG 8.2 has INSERT ... RETURNING ... which can avoid
+                    // this separate query
+                    String isql = sqlInfo.getIdentityFetchSql(tableName);
+                    try {
+                        // logDebug(isql);
+                        ps.close();
+                        ps = connection.prepareStatement(isql);
+                        ResultSet rs;
+                        try {
+                            rs = ps.executeQuery();
+                        } catch (SQLException e) {
+                            throw new StorageException("Could not select: "
+                                    + isql, e);
+                        }
+                        if (!rs.next()) {
+                            throw new StorageException(
+                                    "No identity returned by: " + isql);
+                        }
+                        iv = icolumn.getFromResultSet(rs, 1);
+                    } catch (SQLException e) {
+                        throw new StorageException("Could not fetch: " + isql,
+                                e);
+                    }
+                }
+                row.setId(iv);
+                if (isLogEnabled()) {
+                    log("  -> " + icolumn.getKey() + '=' + iv);
+                }
+            }
+        } finally {
+            if (ps != null) {
+                try {
+                    ps.close();
+                } catch (SQLException e) {
+                    log.error("Cannot close connection", e);
+                }
+            }
+        }
+        row.clearDirty();
+        return row.getId();
+    }
+
+    /**
+     * Inserts several new {@link SimpleFragment}s of the same table in the
+     * storage, using JDBC batching when the dialect allows it.
+     * <p>
+     * The ids must already be assigned, so this cannot be used for main rows
+     * whose id is generated by the database.
+     *
+     * @param rows the rows, all from the same table
+     */
+    public void insertSingleRows(List<SimpleFragment> rows)
+            throws StorageException {
+        if (rows.size() <= 1 || !sqlInfo.dialect.supportsBatchUpdates()) {
+            for (SimpleFragment row : rows) {
+                insertSingleRow(row);
+            }
+            return;
+        }
+        String tableName = rows.get(0).getTableName();
+        String sql = sqlInfo.getInsertSql(tableName);
+        List<Column> columns = sqlInfo.getInsertColumns(tableName);
+        try {
+            PreparedStatement ps = connection.prepareStatement(sql);
+            try {
+                int batched = 0;
+                for (SimpleFragment row : rows) {
+                    if (isLogEnabled()) {
+                        logSQL(sql, columns, row);
+                    }
+                    setInsertValues(ps, columns, row);
+                    ps.addBatch();
+                    batched++;
+                    if (batched == BATCH_SIZE) {
+                        executeBatch(ps);
+                        batched = 0;
+                    }
+                }
+                if (batched != 0) {
+                    executeBatch(ps);
+                }
+            } finally {
+                ps.close();
+            }
+        } catch (SQLException e) {
+            throw new StorageException("Could not insert: " + sql, e);
+        }
+        for (SimpleFragment row : rows) {
+            row.clearDirty();
+        }
+    }
+
+    /**
+     * Sets the values of a row to an insert statement.
+     */
+    protected void setInsertValues(PreparedStatement ps, List<Column> columns,
+            SimpleFragment row) throws SQLException, StorageException {
+        int i = 0;
+        for (Column column : columns) {
+            i++;
+            String key = column.getKey();
+            Serializable v;
+            if (key.equals(model.MAIN_KEY)) {
+                v = row.getId();
+            } else {
+                v = row.get(key);
+            }
+            column.setToPreparedStatement(ps, i, v);
+        }
+    }
+
+    /**
+     * Executes the statements batched so far.
+     */
+    protected void executeBatch(PreparedStatement ps) throws SQLException {
+        int[] counts = ps.executeBatch();
+        if (isLogEnabled()) {
+            int count = 0;
+            for (int n : counts) {
+                if (n > 0) {
+                    count += n;
                 }
             }
+            log("  -> batch of " + counts.length + " statements");
+            logCount(count);
         }
-        row.clearDirty();
-        return row.getId();
     }
 
     /**
@@ -853,6 +2252,60 @@ public class Mapper {
         }
     }
 
+    /**
+     * Inserts several new {@link CollectionFragment}s of the same table in the
+     * storage, using JDBC batching when the dialect allows it.
+     *
+     * @param fragments the fragments, all from the same table
+     */
+    public void insertCollectionRows(List<CollectionFragment> fragments)
+            throws StorageException {
+        if (fragments.size() <= 1 || !sqlInfo.dialect.supportsBatchUpdates()) {
+            for (CollectionFragment fragment : fragments) {
+                insertCollectionRows(fragment);
+            }
+            return;
+        }
+        String tableName = fragments.get(0).getTableName();
+        String sql = sqlInfo.getInsertSql(tableName);
+        List<Column> columns = sqlInfo.getInsertColumns(tableName);
+        try {
+            List<Serializable> debugValues = null;
+            if (isLogEnabled()) {
+                debugValues = new ArrayList<Serializable>(3);
+            }
+            PreparedStatement ps = connection.prepareStatement(sql);
+            try {
+                int batched = 0;
+                for (CollectionFragment fragment : fragments) {
+                    CollectionFragmentIterator it = fragment.getIterator();
+                    while (it.hasNext()) {
+                        it.next();
+                        it.setToPreparedStatement(columns, ps, model,
+                                debugValues);
+                        if (debugValues != null) {
+                            logSQL(sql, debugValues);
+                            debugValues.clear();
+                        }
+                        ps.addBatch();
+                        batched++;
+                        if (batched == BATCH_SIZE) {
+                            executeBatch(ps);
+                            batched = 0;
+                        }
+                    }
+                }
+                if (batched != 0) {
+                    executeBatch(ps);
+                }
+            } finally {
+                ps.close();
+            }
+        } catch (SQLException e) {
+            throw new StorageException("Could not insert: " + sql, e);
+        }
+    }
+
     /**
      * Fetch one row for a select of fragments with fixed criteria.
      */
@@ -1056,6 +2509,141 @@ public class Mapper {
         return maps == null ? null : maps.get(0);
     }
 
+    /**
+     * Gets the states for several {@link SimpleFragment}s of the same id from
+     * the database, using a single joined statement.
+     *
+     * @param id the fragment id
+     * @param tableNames the table names, which must be prefetchable
+     * @return a map of table name to row map, or to {@code null} if the table
+     *         has no row for this id
+     * @see SQLInfo#isPrefetchable
+     */
+    public Map<String, Map<String, Serializable>> readSingleRowMapsJoined(
+            Serializable id, List<String> tableNames) throws StorageException {
+        SQLInfoSelect select = sqlInfo.getSelectFragmentsByIdJoined(tableNames);
+        Map<String, Map<String, Serializable>> maps = new HashMap<String, Map<String, Serializable>>();
+        try {
+            if (isLogEnabled()) {
+                logSQL(select.sql, Collections.singletonList(id));
+            }
+            PreparedStatement ps = connection.prepareStatement(select.sql);
+            try {
+                select.whereColumns.get(0).setToPreparedStatement(ps, 1, id);
+                ResultSet rs = ps.executeQuery();
+                if (!rs.next()) {
+                    // no main row
+                    if (isLogEnabled()) {
+                        log("  -> nothing");
+                    }
+                    for (String tableName : tableNames) {
+                        maps.put(tableName, null);
+                    }
+                    return maps;
+                }
+                Iterator<String> tableNamesIt = tableNames.iterator();
+                String tableName = null;
+                Map<String, Serializable> map = null;
+                int i = 0;
+                for (Column column : select.whatColumns) {
+                    i++;
+                    String key = column.getKey();
+                    if (key.equals(model.MAIN_KEY)) {
+                        // start of a new table
+                        tableName = tableNamesIt.next();
+                        if (rs.getObject(i) == null) {
+                            map = null;
+                        } else {
+                            map = new HashMap<String, Serializable>();
+                            map.put(model.MAIN_KEY, id);
+                            addOpaqueColumns(map, tableName);
+                        }
+                        maps.put(tableName, map);
+                    } else if (map != null) {
+                        map.put(key, column.getFromResultSet(rs, i));
+                    }
+                }
+                if (isLogEnabled()) {
+                    log("  -> " + maps);
+                }
+                return maps;
+            } finally {
+                ps.close();
+            }
+        } catch (SQLException e) {
+            throw new StorageException("Could not select: " + select.sql, e);
+        }
+    }
+
+    /**
+     * Gets the states for several {@link SimpleFragment}s of the same table
+     * from the database, given their ids. The ids are split into several
+     * {@code IN} lists if needed.
+     *
+     * @param tableName the table name, which must be prefetchable
+     * @param ids the fragment ids
+     * @return a map of id to row map, or to {@code null} if the table has no
+     *         row for this id
+     * @see SQLInfo#isPrefetchable
+     */
+    public Map<Serializable, Map<String, Serializable>> readSingleRowMaps(
+            String tableName, List<Serializable> ids) throws StorageException {
+        Map<Serializable, Map<String, Serializable>> maps = new HashMap<Serializable, Map<String, Serializable>>();
+        for (Serializable id : ids) {
+            maps.put(id, null);
+        }
+        int max = sqlInfo.dialect.getMaximumArgsForIn();
+        for (int start = 0; start < ids.size(); start += max) {
+            List<Serializable> chunk = ids.subList(start, Math.min(start
+                    + max, ids.size()));
+            SQLInfoSelect select = sqlInfo.getSelectFragmentsByIds(tableName,
+                    chunk.size());
+            try {
+                if (isLogEnabled()) {
+                    logSQL(select.sql, chunk);
+                }
+                PreparedStatement ps = connection.prepareStatement(select.sql);
+                try {
+                    Column idColumn = select.whereColumns.get(0);
+                    int i = 0;
+                    for (Serializable id : chunk) {
+                        idColumn.setToPreparedStatement(ps, ++i, id);
+                    }
+                    ResultSet rs = ps.executeQuery();
+                    while (rs.next()) {
+                        Map<String, Serializable> map = new HashMap<String, Serializable>();
+                        i = 0;
+                        for (Column column : select.whatColumns) {
+                            map.put(column.getKey(), column.getFromResultSet(
+                                    rs, ++i));
+                        }
+                        addOpaqueColumns(map, tableName);
+                        if (isLogEnabled()) {
+                            logResultSet(rs, select.whatColumns);
+                        }
+                        maps.put(map.get(model.MAIN_KEY), map);
+                    }
+                } finally {
+                    ps.close();
+                }
+            } catch (SQLException e) {
+                throw new StorageException("Could not select: " + select.sql,
+                        e);
+            }
+        }
+        return maps;
+    }
+
+    protected void addOpaqueColumns(Map<String, Serializable> map,
+            String tableName) {
+        List<Column> opaqueColumns = sqlInfo.selectFragmentById.get(tableName).opaqueColumns;
+        if (opaqueColumns != null) {
+            for (Column column : opaqueColumns) {
+                map.put(column.getKey(), SimpleFragment.OPAQUE);
+            }
+        }
+    }
+
     /**
      * Reads the hierarchy {@link SimpleFragment} for a child, given its parent
      * id and the child name.
@@ -1384,8 +2972,25 @@ public class Mapper {
                 hierContext.markInvalidated(overwriteId, true);
             }
             // create the new hierarchy by copy
-            Serializable newRootId = copyHierRecursive(sourceId, typeName,
-                    destParentId, destName, overwriteId, idMap, idType);
+            Serializable newRootId;
+            Serializable copyId = null; // when using the copy map
+            if (model.idGenPolicy == IdGenPolicy.APP_UUID
+                    && !model.getRepositoryDescriptor().recursiveCopy) {
+                copyId = model.generateNewId();
+                newRootId = copyHierByLevel(copyId, sourceId, typeName,
+                        destParentId, destName, overwriteId, idMap, idType);
+            } else {
+                newRootId = copyHierRecursive(sourceId, typeName,
+                        destParentId, destName, overwriteId, idMap, idType);
+            }
+            // keep the uncommitted copies out of the shared fragment cache
+            for (Serializable newId : idMap.values()) {
+                hierContext.markInvalidated(newId, true);
+            }
+            if (overwriteId == null && destParentId != null) {
+                copyPaths(sourceId, destParentId, destName, idMap);
+                updateReadAcls(Collections.singleton(newRootId), true);
+            }
             // invalidate children
             hierContext.markChildrenAdded(overwriteId == null ? destParentId
                     : overwriteId);
@@ -1400,6 +3005,16 @@ public class Mapper {
                 Set<Serializable> ids = entry.getValue();
                 boolean overwrite = overwriteId != null
                         && !tableName.equals(model.mainTableName);
+                if (copyId != null) {
+                    // all the nodes at once, except an overwritten root
+                    // which is copied on its own
+                    copyFragmentsByMap(tableName, copyId,
+                            overwriteId == null ? 0 : 1);
+                    if (overwriteId == null || !ids.contains(sourceId)) {
+                        continue;
+                    }
+                    ids = Collections.singleton(sourceId);
+                }
                 Boolean invalidation = copyFragments(tableName, ids, idMap,
                         overwrite ? overwriteId : null);
                 if (invalidation != null) {
@@ -1409,6 +3024,9 @@ public class Mapper {
                             overwriteId, invalidation.booleanValue());
                 }
             }
+            if (copyId != null) {
+                deleteCopyMap(copyId);
+            }
             return newRootId;
         } catch (SQLException e) {
             throw new StorageException(
@@ -1425,7 +3043,9 @@ public class Mapper {
      * original and copied ids. {@code idType} is filled with the type of each
      * (source) fragment.
      * <p>
-     * TODO: this should be optimized to use a stored procedure.
+     * This is only used when the database generates the ids or when
+     * configured for comparison purposes, otherwise {@link #copyHierByLevel}
+     * is used.
      *
      * @param overwriteId when not {@code null}, the copy is done onto this
      *            existing node (skipped)
@@ -1454,6 +3074,159 @@ public class Mapper {
         return newId;
     }
 
+    /**
+     * Copies hierarchy from id to parentId, one level of descendants at a
+     * time.
+     * <p>
+     * Each level is read with one query per chunk of parents, and the new ids
+     * are generated for the whole level and recorded in the copy map table
+     * with batched inserts. The hierarchy rows of the level are then copied
+     * with a single {@code INSERT ... SELECT} joined on the copy map, see
+     * {@link SQLInfo#getCopyHierLevelSql}. The copy map is also used to copy
+     * the fragments, see {@link #copyFragmentsByMap}. This needs ids
+     * generated by the application.
+     * <p>
+     * {@code idMap} and {@code idType} are filled as in
+     * {@link #copyHierRecursive}.
+     *
+     * @param copyId the id of the copy in the copy map
+     * @param overwriteId when not {@code null}, the copy is done onto this
+     *            existing node (skipped)
+     * @return the new root id
+     */
+    protected Serializable copyHierByLevel(Serializable copyId,
+            Serializable id, String type, Serializable parentId, String name,
+            Serializable overwriteId, Map<Serializable, Serializable> idMap,
+            Map<Serializable, String> idType) throws SQLException,
+            StorageException {
+        idType.put(id, type);
+        Serializable newId;
+        if (overwriteId == null) {
+            newId = copyHier(id, type, parentId, name, idMap);
+        } else {
+            newId = overwriteId;
+            idMap.put(id, newId);
+        }
+        List<Serializable> level = Collections.singletonList(id);
+        insertCopyMap(copyId, 0, level, idMap);
+        // version creation only copies the complex properties, and below
+        // them there are only complex properties anyway
+        boolean onlyComplex = parentId == null;
+        for (int depth = 1;; depth++) {
+            List<Serializable[]> children = getChildrenIds(level, onlyComplex);
+            if (children.isEmpty()) {
+                break;
+            }
+            onlyComplex = false;
+            level = new ArrayList<Serializable>(children.size());
+            for (Serializable[] info : children) {
+                Serializable childId = info[0];
+                idType.put(childId, (String) info[1]);
+                idMap.put(childId, model.generateNewId());
+                level.add(childId);
+            }
+            insertCopyMap(copyId, depth, level, idMap);
+            copyHierLevel(copyId, depth);
+        }
+        return newId;
+    }
+
+    /**
+     * Records in the copy map the new ids of some nodes of a level.
+     */
+    protected void insertCopyMap(Serializable copyId, int depth,
+            List<Serializable> ids, Map<Serializable, Serializable> idMap)
+            throws StorageException {
+        List<Column> columns = sqlInfo.getInsertColumns(model.COPY_MAP_TABLE_NAME);
+        List<Serializable[]> rows = new ArrayList<Serializable[]>(ids.size());
+        Long level = Long.valueOf(depth);
+        for (Serializable id : ids) {
+            Serializable[] row = new Serializable[columns.size()];
+            int i = 0;
+            for (Column column : columns) {
+                String key = column.getKey();
+                if (key.equals(model.COPY_MAP_COPY_ID_KEY)) {
+                    row[i++] = copyId;
+                } else if (key.equals(model.MAIN_KEY)) {
+                    row[i++] = id;
+                } else if (key.equals(model.COPY_MAP_NEW_ID_KEY)) {
+                    row[i++] = idMap.get(id);
+                } else if (key.equals(model.COPY_MAP_LEVEL_KEY)) {
+                    row[i++] = level;
+                } else {
+                    throw new AssertionError(column);
+                }
+            }
+            rows.add(row);
+        }
+        executeBatched(sqlInfo.getInsertSql(model.COPY_MAP_TABLE_NAME),
+                columns, rows);
+    }
+
+    /**
+     * Copies the hierarchy rows of a level recorded in the copy map, with
+     * their new ids and new parent ids.
+     */
+    protected void copyHierLevel(Serializable copyId, int depth)
+            throws SQLException {
+        String sql = sqlInfo.getCopyHierLevelSql();
+        if (isLogEnabled()) {
+            logSQL(sql, Arrays.<Serializable> asList(copyId,
+                    Integer.valueOf(depth)));
+        }
+        PreparedStatement ps = connection.prepareStatement(sql);
+        try {
+            ps.setObject(1, copyId);
+            ps.setInt(2, depth);
+            int count = ps.executeUpdate();
+            logCount(count);
+        } finally {
+            ps.close();
+        }
+    }
+
+    /**
+     * Copies the rows of a fragment table for all the nodes recorded in the
+     * copy map from a level down, with their new ids.
+     *
+     * @param minDepth {@code 1} to skip the root of the copy
+     */
+    protected void copyFragmentsByMap(String tableName, Serializable copyId,
+            int minDepth) throws SQLException {
+        String sql = sqlInfo.getCopyByMapSql(tableName);
+        if (isLogEnabled()) {
+            logSQL(sql, Arrays.<Serializable> asList(copyId,
+                    Integer.valueOf(minDepth)));
+        }
+        PreparedStatement ps = connection.prepareStatement(sql);
+        try {
+            ps.setObject(1, copyId);
+            ps.setInt(2, minDepth);
+            int count = ps.executeUpdate();
+            logCount(count);
+        } finally {
+            ps.close();
+        }
+    }
+
+    /**
+     * Forgets the copy map of a copy.
+     */
+    protected void deleteCopyMap(Serializable copyId) throws SQLException {
+        String sql = sqlInfo.getDeleteCopyMapSql();
+        if (isLogEnabled()) {
+            logSQL(sql, Collections.singletonList(copyId));
+        }
+        PreparedStatement ps = connection.prepareStatement(sql);
+        try {
+            ps.setObject(1, copyId);
+            int count = ps.executeUpdate();
+            logCount(count);
+        } finally {
+            ps.close();
+        }
+    }
+
     /**
      * Copies hierarchy from id to a new child of parentId.
      * <p>
@@ -1547,6 +3320,33 @@ public class Mapper {
         return newId;
     }
 
+    /**
+     * Gets the ids of all the strict descendants of some nodes, complex
+     * properties included, one level at a time.
+     *
+     * @param ids the ids of the nodes
+     * @return the ids of the descendants, parents first
+     */
+    public Set<Serializable> getDescendantsIds(Collection<Serializable> ids)
+            throws StorageException {
+        Set<Serializable> descendants = new LinkedHashSet<Serializable>();
+        List<Serializable> level = new ArrayList<Serializable>(ids);
+        try {
+            while (!level.isEmpty()) {
+                List<Serializable[]> children = getChildrenIds(level, false);
+                level = new ArrayList<Serializable>(children.size());
+                for (Serializable[] info : children) {
+                    if (descendants.add(info[0])) {
+                        level.add(info[0]);
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            throw new StorageException("Could not get descendants: " + ids, e);
+        }
+        return descendants;
+    }
+
     /**
      * Gets the children ids and types of a node.
      */
@@ -1593,6 +3393,50 @@ public class Mapper {
         }
     }
 
+    /**
+     * Gets the ids, types and parent ids of the children of several nodes.
+     */
+    protected List<Serializable[]> getChildrenIds(List<Serializable> ids,
+            boolean onlyComplex) throws SQLException {
+        List<Serializable[]> childrenIds = new LinkedList<Serializable[]>();
+        int max = sqlInfo.dialect.getMaximumArgsForIn();
+        for (int start = 0; start < ids.size(); start += max) {
+            List<Serializable> chunk = ids.subList(start, Math.min(
+                    start + max, ids.size()));
+            SQLInfoSelect select = sqlInfo.getSelectChildrenIdsAndTypes(
+                    chunk.size(), onlyComplex);
+            if (isLogEnabled()) {
+                logSQL(select.sql, chunk);
+            }
+            Column parentColumn = select.whereColumns.get(0);
+            PreparedStatement ps = connection.prepareStatement(select.sql);
+            try {
+                int i = 1;
+                for (Serializable id : chunk) {
+                    parentColumn.setToPreparedStatement(ps, i++, id);
+                }
+                ResultSet rs = ps.executeQuery();
+                int n = 0;
+                while (rs.next()) {
+                    Serializable[] info = new Serializable[3];
+                    i = 0;
+                    for (Column column : select.whatColumns) {
+                        info[i] = column.getFromResultSet(rs, i + 1);
+                        i++;
+                    }
+                    childrenIds.add(info);
+                    n++;
+                }
+                if (isLogEnabled()) {
+                    log("  -> " + n + " rows");
+                }
+            } finally {
+                ps.close();
+            }
+        }
+        return childrenIds;
+    }
+
     /**
      * Copy the rows from tableName with ids in fragmentIds into new ones with
      * new ids given by idMap.
@@ -1610,12 +3454,19 @@ public class Mapper {
         PreparedStatement copyPs = connection.prepareStatement(copySql);
         String deleteSql = sqlInfo.getDeleteSql(tableName);
         PreparedStatement deletePs = connection.prepareStatement(deleteSql);
+        boolean batch = ids.size() > 1 && sqlInfo.dialect.supportsBatchUpdates();
         try {
             boolean before = false;
             boolean after = false;
+            int batched = 0;
             for (Serializable id : ids) {
                 Serializable newId = idMap.get(id);
                 boolean overwrite = newId.equals(overwriteId);
+                if (overwrite && batched != 0) {
+                    // keep the statement order
+                    executeBatch(copyPs);
+                    batched = 0;
+                }
                 if (overwrite) {
                     // remove existing first
                     if (isLogEnabled()) {
@@ -1631,12 +3482,25 @@ public class Mapper {
                 if (isLogEnabled()) {
                     logSQL(copySql, Arrays.asList(newId, id));
                 }
+                if (batch && !overwrite) {
+                    // the count is only needed when overwriting
+                    copyPs.addBatch();
+                    batched++;
+                    if (batched == BATCH_SIZE) {
+                        executeBatch(copyPs);
+                        batched = 0;
+                    }
+                    continue;
+                }
                 int copyCount = copyPs.executeUpdate();
                 logCount(copyCount);
                 if (overwrite) {
                     after = copyCount > 0;
                 }
             }
+            if (batched != 0) {
+                executeBatch(copyPs);
+            }
             // * , n -> mod (TRUE)
             // n , 0 -> del (FALSE)
             // 0 , 0 -> null
@@ -1751,7 +3615,16 @@ public class Mapper {
             throws StorageException, SQLException {
         QueryMaker queryMaker = new QueryMaker(sqlInfo, model, session, query,
                 queryFilter);
-        queryMaker.makeQuery();
+        String planKey = QueryMaker.getPlanKey(query, queryFilter);
+        QueryMaker.Plan plan = queryPlanCache.getPlan(model, planKey);
+        if (plan == null) {
+            queryMaker.makeQuery();
+            if (queryMaker.isPlanCachable()) {
+                queryPlanCache.putPlan(model, planKey, queryMaker.getPlan());
+            }
+        } else {
+            queryMaker.makeQuery(plan);
+        }
 
         if (queryMaker.selectInfo == null) {
             log("Query cannot return anything due to conflicting clauses");
@@ -1759,76 +3632,55 @@ public class Mapper {
                     Collections.<Serializable> emptyList(), 0);
         }
 
+        long limit = query.getLimit();
+        long offset = query.getOffset();
+        String sql = queryMaker.selectInfo.sql;
+        boolean paging = limit != 0 && sqlInfo.dialect.supportsPaging();
+        if (paging) {
+            sql = sqlInfo.dialect.addPagingClause(sql, limit, offset);
+        }
         if (isLogEnabled()) {
-            String sql = queryMaker.selectInfo.sql;
-            if (query.getLimit() != 0) {
-                sql += " -- LIMIT " + query.getLimit() + " OFFSET "
-                        + query.getOffset();
-            }
-            if (countTotal) {
-                sql += " -- COUNT TOTAL";
+            String debugSql = sql;
+            if (limit != 0 && !paging) {
+                debugSql += " -- LIMIT " + limit + " OFFSET " + offset;
             }
-            logSQL(sql, queryMaker.selectParams);
+            logSQL(debugSql, queryMaker.selectParams);
         }
-        PreparedStatement ps = connection.prepareStatement(
-                queryMaker.selectInfo.sql, ResultSet.TYPE_SCROLL_INSENSITIVE,
-                ResultSet.CONCUR_READ_ONLY);
+        PreparedStatement ps = connection.prepareStatement(sql);
         try {
-            int i = 1;
-            for (Object object : queryMaker.selectParams) {
-                if (object instanceof Calendar) {
-                    Calendar cal = (Calendar) object;
-                    Timestamp ts = new Timestamp(cal.getTimeInMillis());
-                    ps.setTimestamp(i++, ts, cal); // cal passed for timezone
-                } else if (object instanceof String[]) {
-                    Array array = sqlInfo.dialect.createArrayOf(Types.VARCHAR,
-                            (Object[]) object, connection);
-                    ps.setArray(i++, array);
-                } else {
-                    ps.setObject(i++, object);
-                }
+            if (limit != 0 && !paging && offset + limit <= Integer.MAX_VALUE) {
+                // don't transfer the rows after the page
+                ps.setMaxRows((int) (offset + limit));
             }
+            setQueryParameters(ps, queryMaker.selectParams);
             ResultSet rs = ps.executeQuery();
 
-            // limit/offset
-            long totalSize = -1;
-            long limit = query.getLimit();
-            long offset = query.getOffset();
-            boolean available;
-            if (limit == 0 || offset == 0) {
-                available = rs.first();
-                if (!available) {
-                    totalSize = 0;
-                }
-                if (limit == 0) {
-                    limit = -1; // infinite
+            if (limit != 0 && !paging) {
+                // skip the rows before the page
+                for (long n = 0; n < offset; n++) {
+                    if (!rs.next()) {
+                        break;
+                    }
                 }
-            } else {
-                available = rs.absolute((int) offset + 1);
             }
 
             Column column = queryMaker.selectInfo.whatColumns.get(0);
             List<Serializable> ids = new LinkedList<Serializable>();
-            int rowNum = 0;
-            while (available && limit != 0) {
+            while ((limit == 0 || ids.size() < limit) && rs.next()) {
                 Serializable id = column.getFromResultSet(rs, 1);
                 ids.add(id);
-                rowNum = rs.getRow();
-                available = rs.next();
-                limit--;
             }
 
             // total size
-            if (countTotal && totalSize == -1) {
-                if (!available && rowNum != 0) {
-                    // last row read was the actual last
-                    totalSize = rowNum;
-                } else {
-                    // available if limit reached with some left
-                    // rowNum == 0 if skipped too far
-                    rs.last();
-                    totalSize = rs.getRow();
-                }
+            long totalSize = -1;
+            if (limit == 0) {
+                // all the rows were read
+                totalSize = ids.size();
+            } else if (ids.size() < limit && (!ids.isEmpty() || offset == 0)) {
+                // the last row was read
+                totalSize = offset + ids.size();
+            } else if (countTotal) {
+                totalSize = queryCount(queryMaker);
             }
 
             if (isLogEnabled()) {
@@ -1836,7 +3688,7 @@ public class Mapper {
                 String end = "";
                 if (ids.size() > DEBUG_MAX_ARRAY) {
                     debugIds = new ArrayList<Serializable>(DEBUG_MAX_ARRAY);
-                    i = 0;
+                    int i = 0;
                     for (Serializable id : ids) {
                         debugIds.add(id);
                         i++;
@@ -1858,6 +3710,56 @@ public class Mapper {
         }
     }
 
+    /**
+     * Counts the total number of rows matched by a query, regardless of its
+     * limit and offset.
+     * <p>
+     * If the repository has a query count limit and the count is bigger, the
+     * count stops there and {@link DocumentModelList#TOTAL_SIZE_OVER_LIMIT} is
+     * returned.
+     */
+    protected long queryCount(QueryMaker queryMaker) throws SQLException {
+        long countLimit = model.repositoryDescriptor.queryCountLimit;
+        String sql = queryMaker.getCountSql(countLimit);
+        if (isLogEnabled()) {
+            logSQL(sql, queryMaker.selectParams);
+        }
+        PreparedStatement ps = connection.prepareStatement(sql);
+        try {
+            setQueryParameters(ps, queryMaker.selectParams);
+            ResultSet rs = ps.executeQuery();
+            rs.next();
+            long count = rs.getLong(1);
+            if (countLimit != 0 && count > countLimit) {
+                count = DocumentModelList.TOTAL_SIZE_OVER_LIMIT;
+            }
+            if (isLogEnabled()) {
+                log("  -> " + count);
+            }
+            return count;
+        } finally {
+            ps.close();
+        }
+    }
+
+    protected void setQueryParameters(PreparedStatement ps,
+            List<Serializable> params) throws SQLException {
+        int i = 1;
+        for (Object object : params) {
+            if (object instanceof Calendar) {
+                Calendar cal = (Calendar) object;
+                Timestamp ts = new Timestamp(cal.getTimeInMillis());
+                ps.setTimestamp(i++, ts, cal); // cal passed for timezone
+            } else if (object instanceof String[]) {
+                Array array = sqlInfo.dialect.createArrayOf(Types.VARCHAR,
+                        (Object[]) object, connection);
+                ps.setArray(i++, array);
+            } else {
+                ps.setObject(i++, object);
+            }
+        }
+    }
+
     /**
      * ----- called by {@link TransactionalSession} -----
      */
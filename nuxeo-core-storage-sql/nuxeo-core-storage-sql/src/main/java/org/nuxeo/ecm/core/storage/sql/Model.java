@@ -20,6 +20,7 @@ package org.nuxeo.ecm.core.storage.sql;
 import java.io.Serializable;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -33,6 +34,7 @@ import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.security.SecurityConstants;
 import org.nuxeo.ecm.core.schema.DocumentType;
 import org.nuxeo.ecm.core.schema.SchemaManager;
 import org.nuxeo.ecm.core.schema.types.ComplexType;
@@ -131,6 +133,18 @@ public class Model {
 
     public static final String HIER_CHILD_ISPROPERTY_KEY = "isproperty";
 
+    public static final String PATHS_TABLE_NAME = "paths";
+
+    public static final String PATHS_PATH_KEY = "path";
+
+    public static final String COPY_MAP_TABLE_NAME = "copy_map";
+
+    public static final String COPY_MAP_COPY_ID_KEY = "copy_id";
+
+    public static final String COPY_MAP_NEW_ID_KEY = "new_id";
+
+    public static final String COPY_MAP_LEVEL_KEY = "depth";
+
     public static final String COLL_TABLE_POS_KEY = "pos";
 
     public static final String COLL_TABLE_VALUE_KEY = "item";
@@ -173,6 +187,29 @@ public class Model {
 
     public static final String ACL_GROUP_KEY = "group";
 
+    public static final String HIER_READ_ACL_TABLE_NAME = "hierarchy_read_acl";
+
+    public static final String HIER_READ_ACL_ACL_ID_KEY = "acl_id";
+
+    public static final String READ_ACLS_TABLE_NAME = "read_acls";
+
+    public static final String READ_ACLS_ACL_ID_KEY = "acl_id";
+
+    public static final String READ_ACLS_POS_KEY = "pos";
+
+    public static final String READ_ACLS_USER_KEY = "user";
+
+    public static final String READ_ACLS_GRANT_KEY = "grant";
+
+    /**
+     * The permissions precomputed in the read ACLs when not configured, which
+     * are those checked when browsing with the default permissions.
+     */
+    public static final String[] DEFAULT_READ_ACL_PERMISSIONS = {
+            SecurityConstants.BROWSE, SecurityConstants.READ_PROPERTIES,
+            SecurityConstants.READ, "ReadRemove", SecurityConstants.READ_WRITE,
+            SecurityConstants.EVERYTHING };
+
     public static final String VERSION_TABLE_NAME = "versions";
 
     public static final String VERSION_VERSIONABLE_PROP = "ecm:versionableId";
@@ -298,6 +335,21 @@ public class Model {
 
     private final Map<String, Map<String, PropertyInfo>> fulltextBinaryPropertyInfos;
 
+    /** Per-table fulltext keys and their base type, STRING or BINARY. */
+    private final Map<String, Map<String, PropertyType>> fulltextFragmentKeys;
+
+    /** Maps schema or complex type to the complex types of its children. */
+    private final Map<String, Set<String>> complexSubTypes;
+
+    /**
+     * The types whose nodes, or their complex children, hold fulltext
+     * strings.
+     */
+    private final Set<String> fulltextStringTypes;
+
+    /** The permissions whose grants are precomputed in the read ACLs. */
+    private final Set<String> readAclPermissions;
+
     /** Per-table info about properties. */
     private final Map<String, Map<String, PropertyType>> fragmentsKeys;
 
@@ -339,6 +391,11 @@ public class Model {
         repositoryDescriptor = repository.getRepositoryDescriptor();
         idGenPolicy = repositoryDescriptor.idGenPolicy;
         separateMainTable = repositoryDescriptor.separateMainTable;
+        String[] permissions = repositoryDescriptor.readAclPermissions;
+        if (permissions == null || permissions.length == 0) {
+            permissions = DEFAULT_READ_ACL_PERMISSIONS;
+        }
+        readAclPermissions = new HashSet<String>(Arrays.asList(permissions));
         temporaryIdCounter = new AtomicLong(0);
         hierTableName = HIER_TABLE_NAME;
         mainTableName = separateMainTable ? MAIN_TABLE_NAME : HIER_TABLE_NAME;
@@ -348,6 +405,9 @@ public class Model {
         mergedPropertyInfos = new HashMap<String, PropertyInfo>();
         fulltextStringPropertyInfos = new HashMap<String, Map<String, PropertyInfo>>();
         fulltextBinaryPropertyInfos = new HashMap<String, Map<String, PropertyInfo>>();
+        fulltextFragmentKeys = new HashMap<String, Map<String, PropertyType>>();
+        complexSubTypes = new HashMap<String, Set<String>>();
+        fulltextStringTypes = new HashSet<String>();
         fragmentsKeys = new HashMap<String, Map<String, PropertyType>>();
 
         collectionTables = new HashMap<String, PropertyType>();
@@ -386,6 +446,16 @@ public class Model {
         return repositoryDescriptor;
     }
 
+    /**
+     * Gets the permissions whose grants are precomputed in the read ACLs. Only
+     * security checks on exactly these permissions can use the read ACLs.
+     *
+     * @return the permissions
+     */
+    public Set<String> getReadAclPermissions() {
+        return readAclPermissions;
+    }
+
     /**
      * Gets a binary given its digest.
      *
@@ -544,11 +614,55 @@ public class Model {
                 } else if (info.propertyType == PropertyType.BINARY) {
                     binaryPropertyInfos.put(name, info);
                 }
+                if (info.fragmentKey != null
+                        && !info.propertyType.isArray()) {
+                    Map<String, PropertyType> keys = fulltextFragmentKeys.get(info.fragmentName);
+                    if (keys == null) {
+                        keys = new HashMap<String, PropertyType>();
+                        fulltextFragmentKeys.put(info.fragmentName, keys);
+                    }
+                    keys.put(info.fragmentKey, info.propertyType);
+                }
             }
             String schemaName = entry.getKey();
             fulltextStringPropertyInfos.put(schemaName, stringPropertyInfos);
             fulltextBinaryPropertyInfos.put(schemaName, binaryPropertyInfos);
         }
+        Set<String> types = new HashSet<String>(schemaPropertyInfos.keySet());
+        types.addAll(complexSubTypes.keySet());
+        for (String typeName : types) {
+            if (hasFulltextStrings(typeName, new HashSet<String>())) {
+                fulltextStringTypes.add(typeName);
+            }
+        }
+    }
+
+    private boolean hasFulltextStrings(String typeName, Set<String> visited) {
+        if (!visited.add(typeName)) {
+            return false;
+        }
+        Map<String, PropertyInfo> infos = fulltextStringPropertyInfos.get(typeName);
+        if (infos != null && !infos.isEmpty()) {
+            return true;
+        }
+        Set<String> subTypes = complexSubTypes.get(typeName);
+        if (subTypes != null) {
+            for (String subType : subTypes) {
+                if (hasFulltextStrings(subType, visited)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void addComplexSubType(String typeName, String subTypeName) {
+        Set<String> subTypes = complexSubTypes.get(typeName);
+        if (subTypes == null) {
+            subTypes = new HashSet<String>();
+            complexSubTypes.put(typeName, subTypes);
+        }
+        subTypes.add(subTypeName);
     }
 
     public PropertyInfo getPropertyInfo(String schemaName, String propertyName) {
@@ -580,6 +694,48 @@ public class Model {
         return fulltextBinaryPropertyInfos.get(schemaName);
     }
 
+    /**
+     * Checks if nodes of the given type, or their complex children, hold
+     * strings indexed as fulltext.
+     *
+     * @param typeName the document, schema or complex type
+     */
+    public boolean hasFulltextStrings(String typeName) {
+        return fulltextStringTypes.contains(typeName);
+    }
+
+    /**
+     * Checks if the complex children of nodes of the given type hold strings
+     * indexed as fulltext, in which case they have to be visited to compute
+     * the fulltext of a document.
+     *
+     * @param typeName the document, schema or complex type
+     */
+    public boolean hasComplexFulltextStrings(String typeName) {
+        Set<String> subTypes = complexSubTypes.get(typeName);
+        if (subTypes == null) {
+            return false;
+        }
+        for (String subType : subTypes) {
+            if (fulltextStringTypes.contains(subType)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets the keys of a simple fragment that are indexed as fulltext.
+     *
+     * @param fragmentName the fragment name
+     * @return a map of key to {@link PropertyType#STRING} or
+     *         {@link PropertyType#BINARY}, or {@code null}
+     */
+    public Map<String, PropertyType> getFulltextFragmentKeys(
+            String fragmentName) {
+        return fulltextFragmentKeys.get(fragmentName);
+    }
+
     /**
      * Finds out if a field is to be indexed as fulltext.
      *
@@ -598,15 +754,9 @@ public class Model {
             }
             return null;
         } else {
-            Map<String, PropertyInfo> infos = schemaPropertyInfos.get(fragmentName);
-            if (infos == null) {
-                return null;
-            }
-            PropertyInfo info = infos.get(fragmentKey);
-            if (info != null && info.fulltext) {
-                return info.propertyType;
-            }
-            return null;
+            // property infos are keyed by property name, not fragment key
+            Map<String, PropertyType> keys = fulltextFragmentKeys.get(fragmentName);
+            return keys == null ? null : keys.get(fragmentKey);
         }
     }
 
@@ -785,6 +935,12 @@ public class Model {
             for (Schema schema : documentType.getSchemas()) {
                 String fragmentName = initTypeModel(schema);
                 addTypeSimpleFragment(typeName, fragmentName); // may be null
+                Set<String> subTypes = complexSubTypes.get(schema.getName());
+                if (subTypes != null) {
+                    for (String subType : subTypes) {
+                        addComplexSubType(typeName, subType);
+                    }
+                }
                 // collection fragments too for this schema
                 Set<String> cols = typeCollectionFragments.get(schema.getName());
                 if (cols != null) {
@@ -965,6 +1121,7 @@ public class Model {
                 String subTypeName = fieldComplexType.getName();
                 String subFragmentName = initTypeModel(fieldComplexType);
                 addTypeSimpleFragment(subTypeName, subFragmentName);
+                addComplexSubType(typeName, subTypeName);
             } else {
                 String propertyName = field.getName().getPrefixedName();
                 if (fieldType.isListType()) {
@@ -996,6 +1153,7 @@ public class Model {
                         String subFragmentName = initTypeModel((ComplexType) listFieldType);
                         addTypeSimpleFragment(listFieldType.getName(),
                                 subFragmentName);
+                        addComplexSubType(typeName, listFieldType.getName());
                     }
                 } else {
                     /*
@@ -18,6 +18,8 @@
 package org.nuxeo.ecm.core.storage.sql;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.GregorianCalendar;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -27,6 +29,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
+import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.logging.Log;
@@ -38,6 +41,7 @@ import org.nuxeo.ecm.core.event.EventContext;
 import org.nuxeo.ecm.core.event.EventProducer;
 import org.nuxeo.ecm.core.event.impl.EventContextImpl;
 import org.nuxeo.ecm.core.storage.StorageException;
+import org.nuxeo.ecm.core.storage.sql.Fragment.State;
 import org.nuxeo.ecm.core.storage.sql.Model.PropertyInfo;
 import org.nuxeo.ecm.core.storage.sql.coremodel.BinaryTextListener;
 import org.nuxeo.runtime.api.Framework;
@@ -65,6 +69,9 @@ public class PersistenceContext {
 
     private final Model model;
 
+    /** The repository-wide fragment cache, or {@code null}. */
+    private final FragmentCache fragmentCache;
+
     private EventProducer eventProducer;
 
     /**
@@ -82,8 +89,9 @@ public class PersistenceContext {
      */
     private final HashMap<Serializable, Serializable> oldIdMap;
 
-    public PersistenceContext(Mapper mapper) {
+    public PersistenceContext(Mapper mapper, FragmentCache fragmentCache) {
         this.mapper = mapper;
+        this.fragmentCache = fragmentCache;
         model = mapper.getModel();
         // accessed by invalidator, needs to be concurrent
         contexts = new ConcurrentHashMap<String, Context>();
@@ -121,6 +129,15 @@ public class PersistenceContext {
         return n;
     }
 
+    /**
+     * Forgets the pristine fragments of all the contexts. Called by tests.
+     */
+    protected void clearPristine() {
+        for (Context context : contexts.values()) {
+            context.clearPristine();
+        }
+    }
+
     // get or return null
     protected Context getContextOrNull(String tableName) {
         return contexts.get(tableName);
@@ -156,14 +173,45 @@ public class PersistenceContext {
         return createdIds.contains(id);
     }
 
-    protected Serializable getRootId(Serializable repositoryId)
-            throws StorageException {
-        return mapper.getRootId(repositoryId);
+    /* Called by Context */
+    protected FragmentCache getFragmentCache() {
+        return fragmentCache;
     }
 
-    protected void setRootId(Serializable repositoryId, Serializable id)
-            throws StorageException {
-        mapper.setRootId(repositoryId, id);
+    /**
+     * Checks if a fragment, or its hierarchy row (whose deletion cascades to
+     * the other fragments), has been saved in the current transaction.
+     * <p>
+     * Called by Context.
+     */
+    protected boolean isIdChangedInTransaction(Serializable id, Context context) {
+        return context.isChangedInTransaction(id)
+                || hierContext.isChangedInTransaction(id);
+    }
+
+    protected Serializable getRootId() throws StorageException {
+        return mapper.getRepositoryRootId();
+    }
+
+    protected void setRootId(Serializable id) throws StorageException {
+        mapper.setRootId(mapper.getRootKey(), id);
+    }
+
+    /**
+     * Checks if the paths table can be used to resolve paths. This is not the
+     * case when there are unsaved hierarchy changes (creations, moves or
+     * removals), as the paths are only updated at save time.
+     */
+    protected boolean isPathsUpToDate() {
+        return hierContext.modified.isEmpty();
+    }
+
+    protected String getPath(Serializable id) throws StorageException {
+        return mapper.getPath(id);
+    }
+
+    protected Serializable getIdForPath(String path) throws StorageException {
+        return mapper.getIdForPath(path);
     }
 
     public void close() {
@@ -187,9 +235,11 @@ public class PersistenceContext {
             return;
         }
 
-        // update simpletext on documents with dirty strings
-        for (Serializable docId : dirtyStrings) {
-            Node document = session.getNodeById(docId);
+        // update simpletext on documents with dirty strings, fetching all
+        // their fragments at once
+        List<Node> documents = session.getNodesByIds(new ArrayList<Serializable>(
+                dirtyStrings));
+        for (Node document : documents) {
             if (document == null) {
                 // cannot happen
                 continue;
@@ -204,12 +254,18 @@ public class PersistenceContext {
             queue.add(document);
             do {
                 Node node = queue.remove();
-                // recurse into complex properties
-                // TODO could avoid recursion if no know fulltext properties
-                // there
-                queue.addAll(session.getChildren(node, null, true));
+                String typeName = node.getPrimaryType();
+                // recurse into complex properties only if they have some
+                // fulltext strings
+                if (model.hasComplexFulltextStrings(typeName)) {
+                    for (Node child : session.getChildren(node, null, true)) {
+                        if (model.hasFulltextStrings(child.getPrimaryType())) {
+                            queue.add(child);
+                        }
+                    }
+                }
 
-                Map<String, PropertyInfo> infos = model.getFulltextStringPropertyInfos(node.getPrimaryType());
+                Map<String, PropertyInfo> infos = model.getFulltextStringPropertyInfos(typeName);
                 if (infos != null) {
                     for (String name : infos.keySet()) {
                         PropertyInfo info = infos.get(name);
@@ -230,10 +286,15 @@ public class PersistenceContext {
                 }
             } while (!queue.isEmpty());
 
-            // set the computed full text
+            // set the computed full text, unless unchanged
             // on INSERT/UPDATE a trigger will change the actual fulltext
-            document.setSingleProperty(model.FULLTEXT_SIMPLETEXT_PROP,
-                    StringUtils.join(strings, " "));
+            String simpletext = StringUtils.join(strings, " ");
+            String old = document.getSimpleProperty(
+                    model.FULLTEXT_SIMPLETEXT_PROP).getString();
+            if (!simpletext.equals(old)) {
+                document.setSingleProperty(model.FULLTEXT_SIMPLETEXT_PROP,
+                        simpletext);
+            }
         }
 
         if (!dirtyBinaries.isEmpty()) {
@@ -259,6 +320,15 @@ public class PersistenceContext {
          * First, create the main rows to get final ids for each.
          */
         assert !model.separateMainTable;
+        List<Serializable> createdReadAclIds = new LinkedList<Serializable>();
+        for (Serializable id : createdIds) {
+            SimpleFragment row = (SimpleFragment) hierContext.modified.get(id);
+            if (row != null && !hierContext.complexProp(row)) {
+                createdReadAclIds.add(id);
+            }
+        }
+        Set<Serializable> readAclIds = getReadAclChangedIds();
+        readAclIds.removeAll(createdIds);
         Map<Serializable, Serializable> idMap = hierContext.saveCreated(createdIds);
         createdIds.clear();
 
@@ -268,6 +338,13 @@ public class PersistenceContext {
         for (Context context : contexts.values()) {
             context.save(idMap);
         }
+
+        /*
+         * Finally update the read ACLs of new nodes, and of the nodes (and
+         * their descendants) whose ACL or parent changed.
+         */
+        mapper.updateReadAcls(mapIds(createdReadAclIds, idMap), false);
+        mapper.updateReadAcls(mapIds(readAclIds, idMap), true);
         // no need to clear the contexts, they'd get reallocate soon anyway
 
         // HACK: remember the idMap
@@ -276,6 +353,37 @@ public class PersistenceContext {
         log.debug("End of save");
     }
 
+    /**
+     * Gets the ids of the existing nodes whose read ACL may change when saving:
+     * nodes whose ACL changed, moved nodes and new versions.
+     */
+    protected Set<Serializable> getReadAclChangedIds() {
+        Set<Serializable> ids = hierContext.getMovedIds();
+        Context context = contexts.get(model.ACL_TABLE_NAME);
+        if (context != null) {
+            ids.addAll(context.modified.keySet());
+        }
+        context = contexts.get(model.VERSION_TABLE_NAME);
+        if (context != null) {
+            for (Fragment fragment : context.modified.values()) {
+                if (fragment.getState() == State.CREATED) {
+                    ids.add(fragment.getId());
+                }
+            }
+        }
+        return ids;
+    }
+
+    protected static List<Serializable> mapIds(Collection<Serializable> ids,
+            Map<Serializable, Serializable> idMap) {
+        List<Serializable> mapped = new ArrayList<Serializable>(ids.size());
+        for (Serializable id : ids) {
+            Serializable newId = idMap.get(id);
+            mapped.add(newId == null ? id : newId);
+        }
+        return mapped;
+    }
+
     /**
      * Rolls back everything.
      * <p>
@@ -369,6 +477,84 @@ public class PersistenceContext {
         return getContext(tableName).get(id, allowAbsent);
     }
 
+    /**
+     * Prefetches the simple fragments of several tables for one id, so that
+     * the following calls to {@link #get} don't hit the database.
+     * <p>
+     * Fragments already known to this context or to the repository-wide
+     * cache are not read again. If more than one fragment is missing, they are
+     * all read using a single joined statement.
+     *
+     * @param id the fragment id
+     * @param tableNames the table names
+     */
+    public void prefetch(Serializable id, Collection<String> tableNames)
+            throws StorageException {
+        List<String> fetchTableNames = new LinkedList<String>();
+        for (String tableName : tableNames) {
+            if (!tableName.equals(model.mainTableName)
+                    && mapper.isPrefetchable(tableName)
+                    && getContext(tableName).isPrefetchNeeded(id)) {
+                fetchTableNames.add(tableName);
+            }
+        }
+        if (fetchTableNames.size() < 2) {
+            // a single fragment is read as usual by get
+            return;
+        }
+        long invalidationCount = fragmentCache == null ? 0
+                : fragmentCache.getInvalidationCount();
+        Map<String, Map<String, Serializable>> maps = mapper.readSingleRowMapsJoined(
+                id, fetchTableNames);
+        for (Entry<String, Map<String, Serializable>> entry : maps.entrySet()) {
+            getContext(entry.getKey()).addPrefetched(id, entry.getValue(),
+                    true, invalidationCount);
+        }
+    }
+
+    /**
+     * Prefetches the simple fragments of several tables for several ids, so
+     * that the following calls to {@link #get} don't hit the database.
+     * <p>
+     * Fragments already known to this context or to the repository-wide
+     * cache are not read again. The missing fragments of each table are read
+     * using statements with {@code IN} lists of ids.
+     *
+     * @param idsByTable the ids to fetch, for each table name
+     * @param allowAbsent {@code true} if fragments absent from the database
+     *            are to be registered as absent, as done by {@link #get}
+     */
+    public void prefetch(
+            Map<String, ? extends Collection<Serializable>> idsByTable,
+            boolean allowAbsent) throws StorageException {
+        for (Entry<String, ? extends Collection<Serializable>> entry : idsByTable.entrySet()) {
+            String tableName = entry.getKey();
+            if (!mapper.isPrefetchable(tableName)) {
+                continue;
+            }
+            Context context = getContext(tableName);
+            List<Serializable> fetchIds = new ArrayList<Serializable>(
+                    entry.getValue().size());
+            for (Serializable id : entry.getValue()) {
+                if (context.isPrefetchNeeded(id)) {
+                    fetchIds.add(id);
+                }
+            }
+            if (fetchIds.size() < 2) {
+                // a single fragment is read as usual by get
+                continue;
+            }
+            long invalidationCount = fragmentCache == null ? 0
+                    : fragmentCache.getInvalidationCount();
+            Map<Serializable, Map<String, Serializable>> maps = mapper.readSingleRowMaps(
+                    tableName, fetchIds);
+            for (Serializable id : fetchIds) {
+                context.addPrefetched(id, maps.get(id), allowAbsent,
+                        invalidationCount);
+            }
+        }
+    }
+
     /**
      * Finds a row in the hierarchy table given its parent id and name. If the
      * row is not in the context, fetch it from the mapper.
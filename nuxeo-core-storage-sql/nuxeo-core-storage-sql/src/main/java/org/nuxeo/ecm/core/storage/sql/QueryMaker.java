@@ -20,12 +20,14 @@ package org.nuxeo.ecm.core.storage.sql;
 import java.io.Serializable;
 import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
+import java.util.TreeSet;
 
 import org.nuxeo.common.utils.StringUtils;
 import org.nuxeo.ecm.core.api.impl.FacetFilter;
@@ -108,6 +110,11 @@ import org.nuxeo.ecm.core.storage.sql.db.dialect.Dialect;
  *     AND NX_ACCESS_ALLOWED(_nxhier.id, 'user1|user2', 'perm1|perm2')
  * </pre>
  *
+ * When the permissions checked are those precomputed in the read ACLs, the
+ * {@code NX_ACCESS_ALLOWED} check is replaced by a lookup of the read ACLs
+ * granting access to the principals, see
+ * {@link SQLInfo#getReadAclsCheckSql}.
+ *
  * @author Florent Guillaume
  */
 public class QueryMaker {
@@ -145,6 +152,21 @@ public class QueryMaker {
 
     public final List<Serializable> selectParams = new LinkedList<Serializable>();
 
+    /** Is a DISTINCT needed by the query, set by {@link #makeQuery}. */
+    protected boolean distinct;
+
+    /** The FROM clause of the query, set by {@link #makeQuery}. */
+    protected String fromClause;
+
+    /** The WHERE clause of the query, set by {@link #makeQuery}. */
+    protected String whereClause;
+
+    /**
+     * Is the plan made by {@link #makeQuery} independent of the session state,
+     * so that it can be cached.
+     */
+    protected boolean planCachable = true;
+
     /**
      * The hierarchy table, which may be an alias table.
      */
@@ -202,6 +224,121 @@ public class QueryMaker {
         private static final long serialVersionUID = 1L;
     }
 
+    /**
+     * The reusable result of {@link #makeQuery}: the generated SQL and the
+     * parameters that do not depend on the principals of the query filter.
+     * <p>
+     * A plan only depends on the query text, the model and the shape of the
+     * query filter, see {@link #getPlanKey}. It is immutable and can be shared
+     * between sessions.
+     */
+    public static class Plan {
+
+        /** The select, or {@code null} if the query cannot match. */
+        protected final SQLInfoSelect selectInfo;
+
+        protected final List<Serializable> params;
+
+        protected final boolean distinct;
+
+        protected final String fromClause;
+
+        protected final String whereClause;
+
+        protected final String hierId;
+
+        protected Plan(SQLInfoSelect selectInfo, List<Serializable> params,
+                boolean distinct, String fromClause, String whereClause,
+                String hierId) {
+            this.selectInfo = selectInfo;
+            this.params = params;
+            this.distinct = distinct;
+            this.fromClause = fromClause;
+            this.whereClause = whereClause;
+            this.hierId = hierId;
+        }
+    }
+
+    /** The parameters of the query before the security ones. */
+    protected List<Serializable> planParams;
+
+    /**
+     * Gets the key under which the plan of a query can be cached, or {@code
+     * null} if it must not be cached.
+     * <p>
+     * The key is made of the query text and of the shape of the query filter:
+     * the number of principals, the permissions and the facet filter. Queries
+     * transformed by security policies are not cached as the transformation
+     * may depend on the principal.
+     */
+    public static String getPlanKey(SQLQuery query, QueryFilter queryFilter) {
+        String nxql = query.getQueryString();
+        if (nxql == null) {
+            return null;
+        }
+        if (queryFilter == null) {
+            queryFilter = QueryFilter.EMPTY;
+        }
+        if (!queryFilter.getQueryTransformers().isEmpty()) {
+            return null;
+        }
+        StringBuilder buf = new StringBuilder(nxql);
+        String[] principals = queryFilter.getPrincipals();
+        buf.append("\n");
+        buf.append(principals == null ? -1 : principals.length);
+        if (principals != null) {
+            buf.append("\n");
+            buf.append(new TreeSet<String>(
+                    Arrays.asList(queryFilter.getPermissions())));
+        }
+        FacetFilter filter = queryFilter.getFacetFilter();
+        if (filter != null) {
+            buf.append("\n");
+            buf.append(new TreeSet<String>(filter.required));
+            buf.append(new TreeSet<String>(filter.excluded));
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Checks if the plan of the query made by {@link #makeQuery} can be cached.
+     * It cannot if it depends on ids resolved from the session.
+     */
+    public boolean isPlanCachable() {
+        return planCachable;
+    }
+
+    /**
+     * Gets the plan of the query made by {@link #makeQuery}.
+     */
+    public Plan getPlan() {
+        List<Serializable> params;
+        if (planParams == null) {
+            params = Collections.emptyList();
+        } else {
+            params = Collections.unmodifiableList(planParams);
+        }
+        return new Plan(selectInfo, params, distinct, fromClause,
+                whereClause, hierId);
+    }
+
+    /**
+     * Makes the query from a plan previously made for the same key, binding
+     * the principals and permissions of the query filter.
+     */
+    public void makeQuery(Plan plan) {
+        if (plan.selectInfo == null) {
+            return;
+        }
+        selectInfo = plan.selectInfo;
+        distinct = plan.distinct;
+        fromClause = plan.fromClause;
+        whereClause = plan.whereClause;
+        hierId = plan.hierId;
+        selectParams.addAll(plan.params);
+        addSecurityParams();
+    }
+
     public void makeQuery() throws StorageException {
         // clauses ANDed together
         List<String> whereClauses = new LinkedList<String>();
@@ -454,20 +591,16 @@ public class QueryMaker {
          * Security check.
          */
 
+        planParams = new ArrayList<Serializable>(selectParams);
         if (queryFilter.getPrincipals() != null) {
-            whereClauses.add(dialect.getSecurityCheckSql(hierId));
-            Serializable principals;
-            Serializable permissions;
-            if (dialect.supportsArrays()) {
-                principals = queryFilter.getPrincipals();
-                permissions = queryFilter.getPermissions();
+            if (useReadAcls()) {
+                // use the precomputed read ACLs
+                whereClauses.add(sqlInfo.getReadAclsCheckSql(hierId,
+                        queryFilter.getPrincipals().length));
             } else {
-                principals = StringUtils.join(queryFilter.getPrincipals(), '|');
-                permissions = StringUtils.join(queryFilter.getPermissions(),
-                        '|');
+                whereClauses.add(dialect.getSecurityCheckSql(hierId));
             }
-            selectParams.add(principals);
-            selectParams.add(permissions);
+            addSecurityParams();
         }
 
         /*
@@ -507,10 +640,13 @@ public class QueryMaker {
         /*
          * Create the whole select.
          */
+        distinct = considerProxies;
+        fromClause = StringUtils.join(joins, " LEFT JOIN ");
+        whereClause = StringUtils.join(whereClauses, " AND ");
         Select select = new Select(null);
         select.setWhat(what);
-        select.setFrom(StringUtils.join(joins, " LEFT JOIN "));
-        select.setWhere(StringUtils.join(whereClauses, " AND "));
+        select.setFrom(fromClause);
+        select.setWhere(whereClause);
         select.setOrderBy(orderBy);
 
         List<Column> whatColumns = Collections.singletonList(hierTable.getColumn(model.MAIN_KEY));
@@ -518,6 +654,62 @@ public class QueryMaker {
                 null, null);
     }
 
+    protected boolean useReadAcls() {
+        Set<String> permissions = new HashSet<String>(
+                Arrays.asList(queryFilter.getPermissions()));
+        return permissions.equals(model.getReadAclPermissions());
+    }
+
+    /**
+     * Adds the parameters of the security check, which come last.
+     */
+    protected void addSecurityParams() {
+        String[] principals = queryFilter.getPrincipals();
+        if (principals == null) {
+            return;
+        }
+        if (useReadAcls()) {
+            selectParams.addAll(Arrays.asList(principals));
+            selectParams.addAll(Arrays.asList(principals));
+        } else if (dialect.supportsArrays()) {
+            selectParams.add(principals);
+            selectParams.add(queryFilter.getPermissions());
+        } else {
+            selectParams.add(StringUtils.join(principals, '|'));
+            selectParams.add(StringUtils.join(queryFilter.getPermissions(),
+                    '|'));
+        }
+    }
+
+    /**
+     * Gets the SQL counting the rows matched by the query, regardless of its
+     * ORDER BY, limit and offset. The parameters are the same as for the
+     * query itself ({@link #selectParams}).
+     *
+     * @param countLimit if not 0, the count stops after {@code countLimit + 1}
+     *            rows, if the dialect supports paging
+     * @return the count SQL
+     */
+    public String getCountSql(long countLimit) {
+        boolean limited = countLimit != 0 && dialect.supportsPaging();
+        if (!distinct && !limited) {
+            Select select = new Select(null);
+            select.setWhat("COUNT(*)");
+            select.setFrom(fromClause);
+            select.setWhere(whereClause);
+            return select.getStatement();
+        }
+        Select select = new Select(null);
+        select.setWhat(distinct ? "DISTINCT " + hierId : hierId);
+        select.setFrom(fromClause);
+        select.setWhere(whereClause);
+        String sql = select.getStatement();
+        if (limited) {
+            sql = dialect.addPagingClause(sql, countLimit + 1, 0);
+        }
+        return String.format("SELECT COUNT(*) FROM (%s) nxcount", sql);
+    }
+
     protected Column findColumn(String name, boolean allowArray,
             boolean inOrderBy) {
         Column column;
@@ -1046,7 +1238,18 @@ public class QueryMaker {
 
         protected void visitExpressionStartsWithPath(Expression node,
                 String path) {
-            // find the id from the path
+            if (path.length() > 1 && path.endsWith("/")) {
+                path = path.substring(0, path.length() - 1);
+            }
+            if (path.length() <= dialect.getMaximumPathLength()) {
+                // match the descendants in the paths table
+                buf.append(sqlInfo.getInTreeByPathSql(hierId));
+                whereParams.add(sqlInfo.getDescendantsPathPattern(path));
+                whereParams.add(path);
+                return;
+            }
+            // the path is too long to be recorded, find the id by walking
+            planCachable = false;
             Serializable id;
             try {
                 Node n = session.getNodeByPath(path, null);
@@ -1056,11 +1259,10 @@ public class QueryMaker {
             }
             if (id == null) {
                 // no such path, always return a false
-                // TODO remove the expression more intelligently from the parse
-                // tree
                 buf.append("0 = 1");
             } else {
-                buf.append(dialect.getInTreeSql(hierId));
+                // all its descendants have paths too long as well
+                buf.append(sqlInfo.getInTreeOfMissingPathSql(hierId));
                 whereParams.add(id);
             }
         }
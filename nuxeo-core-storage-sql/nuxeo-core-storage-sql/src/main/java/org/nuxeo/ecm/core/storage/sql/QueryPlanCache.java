@@ -0,0 +1,198 @@
+/*
+ * (C) Copyright 2009 Nuxeo SAS (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Florent Guillaume
+ */
+
+package org.nuxeo.ecm.core.storage.sql;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.nuxeo.ecm.core.query.sql.SQLQueryParser;
+import org.nuxeo.ecm.core.query.sql.model.SQLQuery;
+
+/**
+ * A repository-wide, size-bounded cache of parsed NXQL queries and of the SQL
+ * plans generated for them by the {@link QueryMaker}, shared by all the
+ * sessions of a repository.
+ * <p>
+ * Parsed queries are keyed by their NXQL text, and are copied when returned
+ * as the limit and offset of a query can be changed by its user. Plans are
+ * keyed by {@link QueryMaker#getPlanKey} and only depend on the model, they
+ * are dropped when a plan for a different model is put in the cache.
+ * <p>
+ * A maximum size of {@code 0} disables the cache.
+ * <p>
+ * This class is thread-safe.
+ *
+ * @author Florent Guillaume
+ */
+public class QueryPlanCache {
+
+    private final int maxSize;
+
+    /** The parsed queries, in access order. Usage must be synchronized. */
+    private final Map<String, SQLQuery> queries;
+
+    /** The plans, in access order. Usage must be synchronized. */
+    private final Map<String, QueryMaker.Plan> plans;
+
+    /** The model for which the plans were made. */
+    private Model model;
+
+    private final AtomicLong parseHitCount = new AtomicLong();
+
+    private final AtomicLong parseMissCount = new AtomicLong();
+
+    private final AtomicLong hitCount = new AtomicLong();
+
+    private final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * Creates a new cache.
+     *
+     * @param maxSize the maximum number of queries, and of plans, held
+     */
+    public QueryPlanCache(final int maxSize) {
+        this.maxSize = maxSize;
+        queries = new LinkedHashMap<String, SQLQuery>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Entry<String, SQLQuery> eldest) {
+                return size() > maxSize;
+            }
+        };
+        plans = new LinkedHashMap<String, QueryMaker.Plan>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                    Entry<String, QueryMaker.Plan> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Parses an NXQL query, or gets a copy of it if it was already parsed.
+     *
+     * @param nxql the NXQL query
+     * @return the parsed query, which can be modified by the caller
+     */
+    public SQLQuery parse(String nxql) {
+        if (maxSize == 0) {
+            return SQLQueryParser.parse(nxql);
+        }
+        SQLQuery query;
+        synchronized (this) {
+            query = queries.get(nxql);
+        }
+        if (query == null) {
+            parseMissCount.incrementAndGet();
+            query = SQLQueryParser.parse(nxql);
+            synchronized (this) {
+                queries.put(nxql, query);
+            }
+        } else {
+            parseHitCount.incrementAndGet();
+        }
+        SQLQuery copy = new SQLQuery(query);
+        copy.setQueryString(nxql);
+        return copy;
+    }
+
+    /**
+     * Gets the plan cached for a key.
+     *
+     * @param model the current model
+     * @param key the plan key, or {@code null} for a query that is not cached
+     * @return the plan, or {@code null} if none is cached
+     */
+    public QueryMaker.Plan getPlan(Model model, String key) {
+        if (maxSize == 0 || key == null) {
+            return null;
+        }
+        QueryMaker.Plan plan;
+        synchronized (this) {
+            plan = model == this.model ? plans.get(key) : null;
+        }
+        if (plan == null) {
+            missCount.incrementAndGet();
+        } else {
+            hitCount.incrementAndGet();
+        }
+        return plan;
+    }
+
+    /**
+     * Caches a plan.
+     *
+     * @param model the model for which the plan was made
+     * @param key the plan key, or {@code null} for a query that is not cached
+     * @param plan the plan
+     */
+    public void putPlan(Model model, String key, QueryMaker.Plan plan) {
+        if (maxSize == 0 || key == null) {
+            return;
+        }
+        synchronized (this) {
+            if (model != this.model) {
+                plans.clear();
+                this.model = model;
+            }
+            plans.put(key, plan);
+        }
+    }
+
+    /**
+     * Clears the cache.
+     *
+     * @return the number of queries and plans removed
+     */
+    public synchronized int clear() {
+        int n = queries.size() + plans.size();
+        queries.clear();
+        plans.clear();
+        return n;
+    }
+
+    public synchronized int getSize() {
+        return plans.size();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getParseHitCount() {
+        return parseHitCount.get();
+    }
+
+    public long getParseMissCount() {
+        return parseMissCount.get();
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+}
@@ -23,8 +23,10 @@ import java.util.Map;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.nuxeo.common.xmap.annotation.XNode;
+import org.nuxeo.common.xmap.annotation.XNodeList;
 import org.nuxeo.common.xmap.annotation.XNodeMap;
 import org.nuxeo.common.xmap.annotation.XObject;
+import org.nuxeo.ecm.core.api.DocumentModelList;
 
 /**
  * Repository descriptor.
@@ -45,6 +47,53 @@ public class RepositoryDescriptor {
     @XNode("clustering@delay")
     public long clusteringDelay;
 
+    /**
+     * Whether the repository-wide fragment cache is enabled, {@code null} for
+     * the default: enabled, except when clustering as the cache then holds
+     * stale data until the next invalidations poll.
+     */
+    @XNode("fragment-cache@enabled")
+    public Boolean fragmentCacheEnabled;
+
+    /**
+     * The maximum number of fragments held in the repository-wide fragment
+     * cache.
+     */
+    @XNode("fragment-cache@size")
+    public int fragmentCacheSize = 10000;
+
+    /**
+     * The maximum number of parsed queries, and of generated SQL plans, held
+     * in the repository-wide query cache, {@code 0} to disable it.
+     */
+    @XNode("query-cache@size")
+    public int queryCacheSize = 1000;
+
+    /**
+     * The number of matching documents above which a query stops counting its
+     * total size, {@code 0} for no limit. Queries whose count is stopped
+     * report a total size of {@link DocumentModelList#TOTAL_SIZE_OVER_LIMIT}.
+     */
+    @XNode("query/count@limit")
+    public long queryCountLimit;
+
+    /**
+     * Copy hierarchies one node at a time instead of one level at a time.
+     * Only useful for comparison purposes, the level by level copy issues far
+     * fewer statements.
+     */
+    @XNode("copy@recursive")
+    public boolean recursiveCopy;
+
+    /**
+     * The permissions whose grants are precomputed in the read ACLs, which are
+     * used instead of the recursive security check by queries checking
+     * exactly these permissions. The default is the set of permissions
+     * implying Browse in the default configuration.
+     */
+    @XNodeList(value = "read-acl/permission", type = String[].class, componentType = String.class)
+    public String[] readAclPermissions;
+
     @XNode("indexing/fulltext@analyzer")
     public String fulltextAnalyzer;
 
@@ -57,6 +106,13 @@ public class RepositoryDescriptor {
     @XNodeMap(value = "property", key = "@name", type = HashMap.class, componentType = String.class)
     public Map<String, String> properties;
 
+    public boolean isFragmentCacheEnabled() {
+        if (fragmentCacheEnabled == null) {
+            return !clusteringEnabled;
+        }
+        return fragmentCacheEnabled.booleanValue();
+    }
+
     /** The possible id generation policies. */
     public enum IdGenPolicy {
 
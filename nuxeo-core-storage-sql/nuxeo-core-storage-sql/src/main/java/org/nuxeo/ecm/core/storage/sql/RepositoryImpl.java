@@ -38,6 +38,7 @@ import org.apache.commons.logging.LogFactory;
 import org.nuxeo.ecm.core.schema.SchemaManager;
 import org.nuxeo.ecm.core.storage.Credentials;
 import org.nuxeo.ecm.core.storage.StorageException;
+import org.nuxeo.ecm.core.storage.sql.coremodel.BinaryTextPipeline;
 import org.nuxeo.ecm.core.storage.sql.db.dialect.Dialect;
 import org.nuxeo.runtime.api.Framework;
 
@@ -60,6 +61,12 @@ public class RepositoryImpl implements Repository {
 
     private final XADataSource xadatasource;
 
+    private final FragmentCache fragmentCache; // null if disabled
+
+    private final QueryPlanCache queryPlanCache;
+
+    private final BinaryTextPipeline binaryTextPipeline;
+
     private boolean initialized; // initialized at first access
 
     private Dialect dialect;
@@ -73,17 +80,38 @@ public class RepositoryImpl implements Repository {
     // modified only under clusterMapper synchronization
     private long clusterLastInvalidationTimeMillis;
 
+    // time of the last read, or of the node creation before the first one
+    // modified only under clusterMapper synchronization
+    private long clusterLastReadTimeMillis;
+
+    // modified only under clusterMapper synchronization
+    private long clusterInvalidationsLag;
+
+    // modified only under clusterMapper synchronization
+    private long clusterInvalidationsSentCount;
+
+    // modified only under clusterMapper synchronization
+    private long clusterInvalidationsReceivedCount;
+
     public RepositoryImpl(RepositoryDescriptor repositoryDescriptor,
             SchemaManager schemaManager) throws StorageException {
         this.repositoryDescriptor = repositoryDescriptor;
         this.schemaManager = schemaManager;
         sessions = new CopyOnWriteArrayList<SessionImpl>();
         xadatasource = getXADataSource();
+        if (repositoryDescriptor.isFragmentCacheEnabled()) {
+            fragmentCache = new FragmentCache(
+                    repositoryDescriptor.fragmentCacheSize);
+        } else {
+            fragmentCache = null;
+        }
+        queryPlanCache = new QueryPlanCache(repositoryDescriptor.queryCacheSize);
         try {
             binaryManager = new BinaryManager(repositoryDescriptor);
         } catch (IOException e) {
             throw new StorageException(e);
         }
+        binaryTextPipeline = BinaryTextPipeline.create(repositoryDescriptor.name);
     }
 
     protected RepositoryDescriptor getRepositoryDescriptor() {
@@ -94,6 +122,18 @@ public class RepositoryImpl implements Repository {
         return binaryManager;
     }
 
+    protected FragmentCache getFragmentCache() {
+        return fragmentCache;
+    }
+
+    protected QueryPlanCache getQueryPlanCache() {
+        return queryPlanCache;
+    }
+
+    protected BinaryTextPipeline getBinaryTextPipeline() {
+        return binaryTextPipeline;
+    }
+
     /*
      * ----- javax.resource.cci.ConnectionFactory -----
      */
@@ -129,7 +169,8 @@ public class RepositoryImpl implements Repository {
             initialize();
         }
 
-        Mapper mapper = new Mapper(model, sqlInfo, xadatasource);
+        Mapper mapper = new Mapper(model, sqlInfo, xadatasource,
+                queryPlanCache);
 
         if (!initialized) {
             // first connection, initialize the database
@@ -138,8 +179,10 @@ public class RepositoryImpl implements Repository {
                 // use the mapper that created the database as cluster mapper
                 clusterMapper = mapper;
                 clusterMapper.createClusterNode();
+                clusterLastReadTimeMillis = System.currentTimeMillis();
                 processClusterInvalidationsNext();
-                mapper = new Mapper(model, sqlInfo, xadatasource);
+                mapper = new Mapper(model, sqlInfo, xadatasource,
+                        queryPlanCache);
             }
             initialized = true;
         }
@@ -178,6 +221,7 @@ public class RepositoryImpl implements Repository {
      */
 
     public synchronized void close() {
+        binaryTextPipeline.shutdown();
         for (SessionImpl session : sessions) {
             if (!session.isLive()) {
                 continue;
@@ -215,9 +259,76 @@ public class RepositoryImpl implements Repository {
         for (SessionImpl session : sessions) {
             n += session.clearCaches();
         }
+        if (fragmentCache != null) {
+            n += fragmentCache.clear();
+        }
+        n += queryPlanCache.clear();
         return n;
     }
 
+    public int getFragmentCacheSize() {
+        return fragmentCache == null ? 0 : fragmentCache.getSize();
+    }
+
+    public long getFragmentCacheHitCount() {
+        return fragmentCache == null ? 0 : fragmentCache.getHitCount();
+    }
+
+    public long getFragmentCacheMissCount() {
+        return fragmentCache == null ? 0 : fragmentCache.getMissCount();
+    }
+
+    public long getFragmentCacheEvictionCount() {
+        return fragmentCache == null ? 0 : fragmentCache.getEvictionCount();
+    }
+
+    public int getQueryCacheSize() {
+        return queryPlanCache.getSize();
+    }
+
+    public long getQueryCacheHitCount() {
+        return queryPlanCache.getHitCount();
+    }
+
+    public long getQueryCacheMissCount() {
+        return queryPlanCache.getMissCount();
+    }
+
+    public long getQueryParseCacheHitCount() {
+        return queryPlanCache.getParseHitCount();
+    }
+
+    public long getQueryParseCacheMissCount() {
+        return queryPlanCache.getParseMissCount();
+    }
+
+    public long getClusterInvalidationsSentCount() {
+        if (clusterMapper == null) {
+            return 0;
+        }
+        synchronized (clusterMapper) {
+            return clusterInvalidationsSentCount;
+        }
+    }
+
+    public long getClusterInvalidationsReceivedCount() {
+        if (clusterMapper == null) {
+            return 0;
+        }
+        synchronized (clusterMapper) {
+            return clusterInvalidationsReceivedCount;
+        }
+    }
+
+    public long getClusterInvalidationsLag() {
+        if (clusterMapper == null) {
+            return 0;
+        }
+        synchronized (clusterMapper) {
+            return clusterInvalidationsLag;
+        }
+    }
+
     public void processClusterInvalidationsNext() {
         clusterLastInvalidationTimeMillis = System.currentTimeMillis()
                 - repositoryDescriptor.clusteringDelay - 1;
@@ -300,6 +411,8 @@ public class RepositoryImpl implements Repository {
         }
         model = new Model(this, schemaManager);
         sqlInfo = new SQLInfo(model, dialect);
+        // plans made for a previous model are obsolete
+        queryPlanCache.clear();
     }
 
     // called by session
@@ -318,6 +431,10 @@ public class RepositoryImpl implements Repository {
      */
     protected void invalidate(Invalidations invalidations,
             SessionImpl fromSession) throws StorageException {
+        // shared cache invalidations
+        if (fragmentCache != null) {
+            fragmentCache.invalidate(invalidations);
+        }
         // local invalidations
         for (SessionImpl session : sessions) {
             if (session != fromSession) {
@@ -327,11 +444,22 @@ public class RepositoryImpl implements Repository {
         // cluster invalidations
         if (clusterMapper != null) {
             synchronized (clusterMapper) {
-                clusterMapper.insertClusterInvalidations(invalidations);
+                clusterInvalidationsSentCount += clusterMapper.insertClusterInvalidations(invalidations);
             }
         }
     }
 
+    /**
+     * Counts the invalidated ids, for each kind.
+     */
+    protected static int countIds(Invalidations invalidations) {
+        int count = 0;
+        for (int kind = 1; kind <= 2; kind++) {
+            count += Mapper.invertMap(invalidations.getKindMap(kind)).size();
+        }
+        return count;
+    }
+
     /**
      * Reads cluster invalidations and queues them locally.
      */
@@ -344,12 +472,23 @@ public class RepositoryImpl implements Repository {
                     // delay hasn't expired
                     return;
                 }
+                long readTime = System.currentTimeMillis();
                 invalidations = clusterMapper.getClusterInvalidations();
                 clusterLastInvalidationTimeMillis = System.currentTimeMillis();
+                clusterInvalidationsReceivedCount += countIds(invalidations);
+                if (!invalidations.isEmpty()) {
+                    // sent at the earliest just after the previous read
+                    clusterInvalidationsLag = readTime
+                            - clusterLastReadTimeMillis;
+                }
+                clusterLastReadTimeMillis = readTime;
             }
             if (invalidations.isEmpty()) {
                 return;
             }
+            if (fragmentCache != null) {
+                fragmentCache.invalidate(invalidations);
+            }
             for (SessionImpl session : sessions) {
                 session.invalidate(invalidations);
             }
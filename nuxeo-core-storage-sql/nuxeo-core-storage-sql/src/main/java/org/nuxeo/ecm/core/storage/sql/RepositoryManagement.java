@@ -44,4 +44,71 @@ public interface RepositoryManagement {
      */
     void processClusterInvalidationsNext();
 
+    /**
+     * Gets the number of invalidated ids sent to the other cluster nodes.
+     */
+    long getClusterInvalidationsSentCount();
+
+    /**
+     * Gets the number of invalidated ids received from the other cluster
+     * nodes.
+     */
+    long getClusterInvalidationsReceivedCount();
+
+    /**
+     * Gets the maximum age of the cluster invalidations last received, in
+     * milliseconds: the time between the read that received them and the
+     * previous read, after which they were sent. Returns {@code 0} if
+     * clustering is not enabled or if no invalidations were received yet.
+     */
+    long getClusterInvalidationsLag();
+
+    /**
+     * Gets the number of fragments held in the repository-wide fragment cache.
+     */
+    int getFragmentCacheSize();
+
+    /**
+     * Gets the number of fragment reads served by the repository-wide fragment
+     * cache.
+     */
+    long getFragmentCacheHitCount();
+
+    /**
+     * Gets the number of fragment reads that had to go to the database.
+     */
+    long getFragmentCacheMissCount();
+
+    /**
+     * Gets the number of fragments evicted from the repository-wide fragment
+     * cache because it was full.
+     */
+    long getFragmentCacheEvictionCount();
+
+    /**
+     * Gets the number of SQL plans held in the repository-wide query cache.
+     */
+    int getQueryCacheSize();
+
+    /**
+     * Gets the number of queries whose SQL plan was found in the query cache.
+     */
+    long getQueryCacheHitCount();
+
+    /**
+     * Gets the number of queries whose SQL plan had to be generated.
+     */
+    long getQueryCacheMissCount();
+
+    /**
+     * Gets the number of NXQL queries found already parsed in the query
+     * cache.
+     */
+    long getQueryParseCacheHitCount();
+
+    /**
+     * Gets the number of NXQL queries that had to be parsed.
+     */
+    long getQueryParseCacheMissCount();
+
 }
@@ -21,6 +21,7 @@ import java.sql.Types;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -32,12 +33,14 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.nuxeo.common.utils.StringUtils;
 import org.nuxeo.ecm.core.storage.StorageException;
+import org.nuxeo.ecm.core.storage.sql.RepositoryDescriptor.IdGenPolicy;
 import org.nuxeo.ecm.core.storage.sql.db.Column;
 import org.nuxeo.ecm.core.storage.sql.db.Database;
 import org.nuxeo.ecm.core.storage.sql.db.Delete;
 import org.nuxeo.ecm.core.storage.sql.db.Insert;
 import org.nuxeo.ecm.core.storage.sql.db.Select;
 import org.nuxeo.ecm.core.storage.sql.db.Table;
+import org.nuxeo.ecm.core.storage.sql.db.TableAlias;
 import org.nuxeo.ecm.core.storage.sql.db.Update;
 import org.nuxeo.ecm.core.storage.sql.db.dialect.ConditionalStatement;
 import org.nuxeo.ecm.core.storage.sql.db.dialect.Dialect;
@@ -120,6 +123,12 @@ public class SQLInfo {
 
     private final Map<String, Column> copyIdColumnMap;
 
+    private String copyHierLevelSql;
+
+    private final Map<String, String> copyByMapSqlMap;
+
+    private String deleteCopyMapSql;
+
     private final String selectVersionIdByLabelSql;
 
     private final List<Column> selectVersionIdByLabelWhereColumns;
@@ -128,6 +137,9 @@ public class SQLInfo {
 
     protected final Map<String, SQLInfoSelect> selectFragmentById;
 
+    /** Joined selects of several fragments, keyed by table names. */
+    private final Map<List<String>, SQLInfoSelect> selectFragmentsByIdJoined;
+
     protected SQLInfoSelect selectVersionsByLabel;
 
     protected SQLInfoSelect selectVersionsByVersionable;
@@ -152,6 +164,24 @@ public class SQLInfo {
 
     protected List<Column> clusterGetInvalidationsColumns;
 
+    protected String selectPathByIdSql;
+
+    protected String selectIdByPathSql;
+
+    protected String selectPathsByPrefixSql;
+
+    protected String updatePathSql;
+
+    protected String updatePathsPrefixSql;
+
+    protected String clearLongPathsSql;
+
+    protected Column pathsIdColumn;
+
+    protected Column pathsPathColumn;
+
+    protected String updateHierReadAclSql;
+
     /**
      * Generates and holds the needed SQL statements given a {@link Model} and a
      * {@link Dialect}.
@@ -169,6 +199,7 @@ public class SQLInfo {
         selectRootIdWhatColumn = null;
 
         selectFragmentById = new HashMap<String, SQLInfoSelect>();
+        selectFragmentsByIdJoined = new HashMap<List<String>, SQLInfoSelect>();
         identityFetchSqlMap = new HashMap<String, String>();
         identityFetchColumnMap = new HashMap<String, Column>();
 
@@ -200,6 +231,7 @@ public class SQLInfo {
         copyHierWhereColumn = null;
         copySqlMap = new HashMap<String, String>();
         copyIdColumnMap = new HashMap<String, Column>();
+        copyByMapSqlMap = new HashMap<String, String>();
 
         selectVersionIdByLabelSql = null;
         selectVersionIdByLabelWhereColumns = new ArrayList<Column>(2);
@@ -301,6 +333,407 @@ public class SQLInfo {
         return clusterGetInvalidationsColumns;
     }
 
+    // ----- paths -----
+
+    public String getSelectPathByIdSql() {
+        return selectPathByIdSql;
+    }
+
+    public String getSelectIdByPathSql() {
+        return selectIdByPathSql;
+    }
+
+    public String getSelectPathsByPrefixSql() {
+        return selectPathsByPrefixSql;
+    }
+
+    public String getUpdatePathSql() {
+        return updatePathSql;
+    }
+
+    public String getInsertPathSql() {
+        return insertSqlMap.get(model.PATHS_TABLE_NAME);
+    }
+
+    public List<Column> getInsertPathColumns() {
+        return insertColumnsMap.get(model.PATHS_TABLE_NAME);
+    }
+
+    public String getUpdatePathsPrefixSql() {
+        return updatePathsPrefixSql;
+    }
+
+    public String getClearLongPathsSql() {
+        return clearLongPathsSql;
+    }
+
+    /**
+     * Returns the SELECT of the children of some nodes whose path is too long
+     * to be recorded, with their parent and name:
+     *
+     * <pre>
+     * SELECT paths.id, hier.parentid, hier.name FROM hier
+     *   JOIN paths ON paths.id = hier.id
+     *   WHERE hier.parentid IN (?, ?, ?) AND paths.path IS NULL
+     * </pre>
+     *
+     * @param nparents the number of parents
+     * @return the SQL statement
+     */
+    public String getSelectMissingChildrenSql(int nparents) {
+        Table hierTable = database.getTable(model.hierTableName);
+        Column hierIdColumn = hierTable.getColumn(model.MAIN_KEY);
+        Column hierParentColumn = hierTable.getColumn(model.HIER_PARENT_KEY);
+        List<String> qmarks = new ArrayList<String>(nparents);
+        for (int i = 0; i < nparents; i++) {
+            qmarks.add("?");
+        }
+        Select select = new Select(hierTable);
+        select.setWhat(pathsIdColumn.getFullQuotedName()
+                + ", "
+                + hierParentColumn.getFullQuotedName()
+                + ", "
+                + hierTable.getColumn(model.HIER_CHILD_NAME_KEY).getFullQuotedName());
+        select.setFrom(hierTable.getQuotedName() + " JOIN "
+                + pathsIdColumn.getTable().getQuotedName() + " ON "
+                + pathsIdColumn.getFullQuotedName() + " = "
+                + hierIdColumn.getFullQuotedName());
+        select.setWhere(String.format("%s IN (%s) AND %s IS NULL",
+                hierParentColumn.getFullQuotedName(), StringUtils.join(qmarks,
+                        ", "), pathsPathColumn.getFullQuotedName()));
+        return select.getStatement();
+    }
+
+    public Column getPathsIdColumn() {
+        return pathsIdColumn;
+    }
+
+    // ----- read acls -----
+
+    public String getInsertHierReadAclSql() {
+        return insertSqlMap.get(model.HIER_READ_ACL_TABLE_NAME);
+    }
+
+    public String getUpdateHierReadAclSql() {
+        return updateHierReadAclSql;
+    }
+
+    public String getInsertReadAclSql() {
+        return insertSqlMap.get(model.READ_ACLS_TABLE_NAME);
+    }
+
+    /**
+     * Gets the SQL selecting the nodes that don't have a read ACL yet while
+     * their parent (or their live document, for versions) has one. Used to
+     * fill the read ACLs of an existing hierarchy one level at a time.
+     *
+     * @param versions {@code true} for versions, {@code false} for the
+     *            regular nodes of the hierarchy
+     * @param ownAcl {@code true} for the nodes that have an ACL of their own,
+     *            {@code false} for those that simply inherit the read ACL of
+     *            their parent
+     * @return the SQL, selecting the node id and the read ACL id of its
+     *         parent
+     */
+    public String getSelectReadAclsToFillSql(boolean versions, boolean ownAcl) {
+        Table readAclTable = database.getTable(model.HIER_READ_ACL_TABLE_NAME);
+        String readAcl = readAclTable.getQuotedName();
+        String readAclId = readAclTable.getColumn(model.MAIN_KEY).getQuotedName();
+        String aclId = readAclTable.getColumn(model.HIER_READ_ACL_ACL_ID_KEY).getQuotedName();
+        Table aclTable = database.getTable(model.ACL_TABLE_NAME);
+        Table table;
+        String parentId;
+        String where;
+        if (versions) {
+            table = database.getTable(model.VERSION_TABLE_NAME);
+            parentId = table.getColumn(model.VERSION_VERSIONABLE_KEY).getQuotedName();
+            where = "";
+        } else {
+            table = database.getTable(model.hierTableName);
+            parentId = table.getColumn(model.HIER_PARENT_KEY).getQuotedName();
+            where = "c."
+                    + table.getColumn(model.HIER_CHILD_ISPROPERTY_KEY).getQuotedName()
+                    + " = " + dialect.toBooleanValueString(false) + " AND ";
+        }
+        String id = table.getColumn(model.MAIN_KEY).getQuotedName();
+        return String.format("SELECT c.%s, p.%s FROM %s c"
+                + " JOIN %s p ON p.%s = c.%s WHERE %s"
+                + "NOT EXISTS (SELECT 1 FROM %s x WHERE x.%s = c.%s)"
+                + " AND %sEXISTS (SELECT 1 FROM %s o WHERE o.%s = c.%s)", id,
+                aclId, table.getQuotedName(), readAcl, readAclId, parentId,
+                where, readAcl, readAclId, id, ownAcl ? "" : "NOT ",
+                aclTable.getQuotedName(), aclTable.getColumn(model.MAIN_KEY).getQuotedName(),
+                id);
+    }
+
+    /**
+     * Gets the SQL recording the read ACL of the nodes that simply inherit the
+     * read ACL of their parent, see {@link #getSelectReadAclsToFillSql}.
+     */
+    public String getInsertInheritedReadAclsSql(boolean versions) {
+        Table readAclTable = database.getTable(model.HIER_READ_ACL_TABLE_NAME);
+        return String.format("INSERT INTO %s (%s, %s) %s",
+                readAclTable.getQuotedName(),
+                readAclTable.getColumn(model.MAIN_KEY).getQuotedName(),
+                readAclTable.getColumn(model.HIER_READ_ACL_ACL_ID_KEY).getQuotedName(),
+                getSelectReadAclsToFillSql(versions, false));
+    }
+
+    public List<Column> getInsertReadAclColumns() {
+        return insertColumnsMap.get(model.READ_ACLS_TABLE_NAME);
+    }
+
+    /**
+     * Gets the expression to use to check security using the read ACLs. A
+     * document is readable if one of its read ACL entries grants access to
+     * one of the principals, and no entry before it denies access to one of
+     * them:
+     *
+     * <pre>
+     * id IN (SELECT id FROM hierarchy_read_acl WHERE acl_id IN
+     *   (SELECT g.acl_id FROM read_acls g WHERE g.user IN (?, ?)
+     *     AND g.grant = TRUE AND NOT EXISTS (SELECT 1 FROM read_acls d
+     *       WHERE d.acl_id = g.acl_id AND d.user IN (?, ?)
+     *       AND d.grant = FALSE AND d.pos &lt; g.pos)))
+     * </pre>
+     *
+     * @param idColumnName the quoted name of the id column to use
+     * @param nprincipals the number of principals
+     * @return an SQL expression whose parameters are the principals, twice
+     */
+    public String getReadAclsCheckSql(String idColumnName, int nprincipals) {
+        Table hierReadAcl = database.getTable(model.HIER_READ_ACL_TABLE_NAME);
+        Table readAcls = database.getTable(model.READ_ACLS_TABLE_NAME);
+        boolean upper = dialect.storesUpperCaseIdentifiers();
+        Table grants = new TableAlias(readAcls, upper ? "_NXRG" : "_nxrg");
+        Table denies = new TableAlias(readAcls, upper ? "_NXRD" : "_nxrd");
+        List<String> qmarks = new ArrayList<String>(nprincipals);
+        for (int i = 0; i < nprincipals; i++) {
+            qmarks.add("?");
+        }
+        String in = StringUtils.join(qmarks, ", ");
+        String grantAclId = grants.getColumn(model.READ_ACLS_ACL_ID_KEY).getFullQuotedName();
+        String grantPos = grants.getColumn(model.READ_ACLS_POS_KEY).getFullQuotedName();
+        String deny = String.format(
+                "SELECT 1 FROM %s %s WHERE %s = %s AND %s IN (%s)"
+                        + " AND %s = %s AND %s < %s",
+                readAcls.getQuotedName(), denies.getQuotedName(),
+                denies.getColumn(model.READ_ACLS_ACL_ID_KEY).getFullQuotedName(),
+                grantAclId,
+                denies.getColumn(model.READ_ACLS_USER_KEY).getFullQuotedName(),
+                in,
+                denies.getColumn(model.READ_ACLS_GRANT_KEY).getFullQuotedName(),
+                dialect.toBooleanValueString(false),
+                denies.getColumn(model.READ_ACLS_POS_KEY).getFullQuotedName(),
+                grantPos);
+        String grant = String.format(
+                "SELECT %s FROM %s %s WHERE %s IN (%s) AND %s = %s"
+                        + " AND NOT EXISTS (%s)", grantAclId,
+                readAcls.getQuotedName(), grants.getQuotedName(),
+                grants.getColumn(model.READ_ACLS_USER_KEY).getFullQuotedName(),
+                in,
+                grants.getColumn(model.READ_ACLS_GRANT_KEY).getFullQuotedName(),
+                dialect.toBooleanValueString(true), deny);
+        return String.format("%s IN (SELECT %s FROM %s WHERE %s IN (%s))",
+                idColumnName,
+                hierReadAcl.getColumn(model.MAIN_KEY).getQuotedName(),
+                hierReadAcl.getQuotedName(),
+                hierReadAcl.getColumn(model.HIER_READ_ACL_ACL_ID_KEY).getQuotedName(),
+                grant);
+    }
+
+    // ----- select -----
+
+    /**
+     * Checks if the fragments of a table can be read from the database in a
+     * prefetch. This isn't the case for fragments whose columns are all
+     * opaque, which are never read.
+     *
+     * @param tableName the table name
+     * @return {@code true} if the fragments of this table can be prefetched
+     */
+    public boolean isPrefetchable(String tableName) {
+        SQLInfoSelect select = selectFragmentById.get(tableName);
+        return select != null && !select.whatColumns.isEmpty();
+    }
+
+    /**
+     * Returns the SELECT of several fragments for one id, outer joined on the
+     * main table:
+     *
+     * <pre>
+     * SELECT T.id, T.x, T.y, U.id, U.z FROM hierarchy
+     *   LEFT JOIN T ON T.id = hierarchy.id
+     *   LEFT JOIN U ON U.id = hierarchy.id
+     *   WHERE hierarchy.id = ?
+     * </pre>
+     *
+     * For each table, in order, the what columns contain its id column (which
+     * is {@code null} if the table has no row for the id) followed by the what
+     * columns of its {@link #selectFragmentById}.
+     *
+     * @param tableNames the prefetchable table names, not including the main
+     *            table
+     * @return the joined select
+     */
+    public SQLInfoSelect getSelectFragmentsByIdJoined(List<String> tableNames) {
+        synchronized (selectFragmentsByIdJoined) {
+            SQLInfoSelect select = selectFragmentsByIdJoined.get(tableNames);
+            if (select == null) {
+                select = makeSelectFragmentsByIdJoined(tableNames);
+                selectFragmentsByIdJoined.put(new ArrayList<String>(
+                        tableNames), select);
+            }
+            return select;
+        }
+    }
+
+    protected SQLInfoSelect makeSelectFragmentsByIdJoined(
+            List<String> tableNames) {
+        Table mainTable = database.getTable(model.mainTableName);
+        Column mainColumn = mainTable.getColumn(model.MAIN_KEY);
+        List<Column> whatColumns = new LinkedList<Column>();
+        List<String> whats = new LinkedList<String>();
+        StringBuilder from = new StringBuilder(mainTable.getQuotedName());
+        for (String tableName : tableNames) {
+            Table table = database.getTable(tableName);
+            Column idColumn = table.getColumn(model.MAIN_KEY);
+            whatColumns.add(idColumn);
+            whats.add(idColumn.getFullQuotedName());
+            for (Column column : selectFragmentById.get(tableName).whatColumns) {
+                whatColumns.add(column);
+                whats.add(column.getFullQuotedName());
+            }
+            from.append(String.format(" LEFT JOIN %s ON %s = %s",
+                    table.getQuotedName(), idColumn.getFullQuotedName(),
+                    mainColumn.getFullQuotedName()));
+        }
+        Select select = new Select(mainTable);
+        select.setWhat(StringUtils.join(whats, ", "));
+        select.setFrom(from.toString());
+        select.setWhere(mainColumn.getFullQuotedName() + " = ?");
+        return new SQLInfoSelect(select.getStatement(), whatColumns,
+                Collections.singletonList(mainColumn), null);
+    }
+
+    /**
+     * Returns the SELECT of the fragments of a table for several ids:
+     *
+     * <pre>
+     * SELECT id, x, y FROM T WHERE id IN (?, ?, ?)
+     * </pre>
+     *
+     * The what columns contain the id column followed by the what columns of
+     * the {@link #selectFragmentById}.
+     *
+     * @param tableName the prefetchable table name
+     * @param nids the number of ids
+     * @return the select
+     */
+    public SQLInfoSelect getSelectFragmentsByIds(String tableName, int nids) {
+        Table table = database.getTable(tableName);
+        Column idColumn = table.getColumn(model.MAIN_KEY);
+        List<Column> whatColumns = new LinkedList<Column>();
+        List<String> whats = new LinkedList<String>();
+        whatColumns.add(idColumn);
+        whats.add(idColumn.getQuotedName());
+        for (Column column : selectFragmentById.get(tableName).whatColumns) {
+            whatColumns.add(column);
+            whats.add(column.getQuotedName());
+        }
+        List<String> qmarks = new ArrayList<String>(nids);
+        for (int i = 0; i < nids; i++) {
+            qmarks.add("?");
+        }
+        Select select = new Select(table);
+        select.setWhat(StringUtils.join(whats, ", "));
+        select.setFrom(table.getQuotedName());
+        select.setWhere(String.format("%s IN (%s)", idColumn.getQuotedName(),
+                StringUtils.join(qmarks, ", ")));
+        return new SQLInfoSelect(select.getStatement(), whatColumns,
+                Collections.singletonList(idColumn), null);
+    }
+
+    /**
+     * Gets the select for the ids, types and parent ids of the children of
+     * several nodes at once.
+     *
+     * @param nids the number of parent ids
+     * @param onlyComplex whether to select only complex properties
+     */
+    public SQLInfoSelect getSelectChildrenIdsAndTypes(int nids,
+            boolean onlyComplex) {
+        Table table = database.getTable(model.hierTableName);
+        Column parentColumn = table.getColumn(model.HIER_PARENT_KEY);
+        List<Column> whatColumns = new ArrayList<Column>(3);
+        whatColumns.add(table.getColumn(model.MAIN_KEY));
+        whatColumns.add(table.getColumn(model.MAIN_PRIMARY_TYPE_KEY));
+        whatColumns.add(parentColumn);
+        List<String> whats = new ArrayList<String>(3);
+        for (Column column : whatColumns) {
+            whats.add(column.getQuotedName());
+        }
+        List<String> qmarks = new ArrayList<String>(nids);
+        for (int i = 0; i < nids; i++) {
+            qmarks.add("?");
+        }
+        String where = String.format("%s IN (%s)",
+                parentColumn.getQuotedName(), StringUtils.join(qmarks, ", "));
+        if (onlyComplex) {
+            where += " AND "
+                    + table.getColumn(model.HIER_CHILD_ISPROPERTY_KEY).getQuotedName()
+                    + " = " + dialect.toBooleanValueString(true);
+        }
+        Select select = new Select(table);
+        select.setWhat(StringUtils.join(whats, ", "));
+        select.setFrom(table.getQuotedName());
+        select.setWhere(where);
+        return new SQLInfoSelect(select.getStatement(), whatColumns,
+                Collections.singletonList(parentColumn), null);
+    }
+
+    /**
+     * Returns a SELECT of some columns of a table for the rows matching
+     * several values of a column:
+     *
+     * <pre>
+     * SELECT x, y FROM T WHERE k IN (?, ?, ?) ORDER BY z
+     * </pre>
+     *
+     * @param tableName the table name
+     * @param whereKey the key of the column to match
+     * @param orderKey the key of the column to order by, or {@code null}
+     * @param nvalues the number of values to match
+     * @param whatKeys the keys of the selected columns
+     * @return the select
+     */
+    public SQLInfoSelect getSelectByValues(String tableName, String whereKey,
+            String orderKey, int nvalues, String... whatKeys) {
+        Table table = database.getTable(tableName);
+        Column whereColumn = table.getColumn(whereKey);
+        List<Column> whatColumns = new ArrayList<Column>(whatKeys.length);
+        List<String> whats = new ArrayList<String>(whatKeys.length);
+        for (String key : whatKeys) {
+            Column column = table.getColumn(key);
+            whatColumns.add(column);
+            whats.add(column.getQuotedName());
+        }
+        List<String> qmarks = new ArrayList<String>(nvalues);
+        for (int i = 0; i < nvalues; i++) {
+            qmarks.add("?");
+        }
+        Select select = new Select(table);
+        select.setWhat(StringUtils.join(whats, ", "));
+        select.setFrom(table.getQuotedName());
+        select.setWhere(String.format("%s IN (%s)",
+                whereColumn.getQuotedName(), StringUtils.join(qmarks, ", ")));
+        if (orderKey != null) {
+            select.setOrderBy(table.getColumn(orderKey).getQuotedName());
+        }
+        return new SQLInfoSelect(select.getStatement(), whatColumns,
+                Collections.singletonList(whereColumn), null);
+    }
+
     // ----- insert -----
 
     /**
@@ -414,6 +847,27 @@ public class SQLInfo {
         return copyIdColumnMap.get(tableName);
     }
 
+    /**
+     * Gets the SQL copying the hierarchy rows of one level of a copy, see
+     * {@link #initCopyMapSQL}. Parameters: the copy id and the level.
+     */
+    public String getCopyHierLevelSql() {
+        return copyHierLevelSql;
+    }
+
+    /**
+     * Gets the SQL copying the rows of a fragment table for all the nodes of
+     * a copy from a level down, see {@link #initCopyMapSQL}. Parameters: the
+     * copy id and the minimum level.
+     */
+    public String getCopyByMapSql(String tableName) {
+        return copyByMapSqlMap.get(tableName);
+    }
+
+    public String getDeleteCopyMapSql() {
+        return deleteCopyMapSql;
+    }
+
     public String getVersionIdByLabelSql() {
         return selectVersionIdByLabelSql;
     }
@@ -439,6 +893,8 @@ public class SQLInfo {
         }
         initHierarchySQL();
         initRepositorySQL();
+        initPathsSQL();
+        initReadAclsSQL();
 
         for (String tableName : model.getFragmentNames()) {
             if (tableName.equals(model.HIER_TABLE_NAME)) {
@@ -496,6 +952,10 @@ public class SQLInfo {
             table.addFulltextIndex(model.FULLTEXT_SIMPLETEXT_KEY,
                     model.FULLTEXT_BINARYTEXT_KEY);
         }
+
+        if (model.idGenPolicy == IdGenPolicy.APP_UUID) {
+            initCopyMapSQL();
+        }
     }
 
     protected void initClusterSQL() throws StorageException {
@@ -533,6 +993,208 @@ public class SQLInfo {
         maker.postProcessRepository();
     }
 
+    /**
+     * Creates the SQL for the table holding the materialized path of each
+     * regular (non complex property) hierarchy node.
+     */
+    protected void initPathsSQL() {
+        TableMaker maker = new TableMaker(model.PATHS_TABLE_NAME);
+        maker.newPrimaryKey(); // foreign key to main id
+        Column column = maker.newColumn(model.PATHS_PATH_KEY,
+                PropertyType.STRING, Types.VARCHAR, null);
+        column.setLength(dialect.getMaximumPathLength());
+        maker.postProcessPaths();
+        maker.table.addIndex(model.PATHS_PATH_KEY);
+    }
+
+    /**
+     * Creates the SQL copying a hierarchy one level at a time. The ids of the
+     * nodes of a level and of their copies are recorded in the copy map table
+     * under the id of the copy, then a single statement copies the hierarchy
+     * rows of the level, taking the new parent ids from the copy map:
+     *
+     * <pre>
+     * INSERT INTO hierarchy (id, parentid, name, ...)
+     *   SELECT M.new_id, P.new_id, S.name, ... FROM hierarchy S
+     *   JOIN copy_map M ON M.id = S.id
+     *   JOIN copy_map P ON P.id = S.parentid AND P.copy_id = M.copy_id
+     *   WHERE M.copy_id = ? AND M.depth = ?
+     * </pre>
+     *
+     * Once all the levels are copied, each fragment table is copied with a
+     * single statement for all the nodes. This needs ids generated by the
+     * application.
+     */
+    protected void initCopyMapSQL() {
+        TableMaker maker = new TableMaker(model.COPY_MAP_TABLE_NAME);
+        maker.newMainKey(model.COPY_MAP_COPY_ID_KEY);
+        maker.newMainKey(model.MAIN_KEY);
+        maker.newMainKey(model.COPY_MAP_NEW_ID_KEY);
+        maker.newColumn(model.COPY_MAP_LEVEL_KEY, PropertyType.LONG,
+                Types.INTEGER, null);
+        maker.postProcessInsert();
+        Table mapTable = maker.table;
+        mapTable.addIndex(model.COPY_MAP_COPY_ID_KEY, model.COPY_MAP_LEVEL_KEY);
+        String copyId = mapTable.getColumn(model.COPY_MAP_COPY_ID_KEY).getQuotedName();
+
+        Delete delete = new Delete(mapTable);
+        delete.setWhere(copyId + " = ?");
+        deleteCopyMapSql = delete.getStatement();
+
+        Table m = new TableAlias(mapTable, "M");
+        Table p = new TableAlias(mapTable, "P");
+        String mId = m.getColumn(model.MAIN_KEY).getFullQuotedName();
+        String mNewId = m.getColumn(model.COPY_MAP_NEW_ID_KEY).getFullQuotedName();
+        String mCopyId = m.getColumn(model.COPY_MAP_COPY_ID_KEY).getFullQuotedName();
+        String mLevel = m.getColumn(model.COPY_MAP_LEVEL_KEY).getFullQuotedName();
+
+        // hierarchy rows of a level
+        Table hierTable = database.getTable(model.hierTableName);
+        Table s = new TableAlias(hierTable, "S");
+        Insert insert = new Insert(hierTable);
+        List<String> whats = new LinkedList<String>();
+        for (Column column : hierTable.getColumns()) {
+            insert.addColumn(column);
+            String key = column.getKey();
+            if (key.equals(model.MAIN_KEY)) {
+                whats.add(mNewId);
+            } else if (key.equals(model.HIER_PARENT_KEY)) {
+                whats.add(p.getColumn(model.COPY_MAP_NEW_ID_KEY).getFullQuotedName());
+            } else {
+                whats.add(new Column(column, s).getFullQuotedName());
+            }
+        }
+        Select select = new Select(hierTable);
+        select.setWhat(StringUtils.join(whats, ", "));
+        select.setFrom(String.format(
+                "%s %s JOIN %s %s ON %s = %s JOIN %s %s ON %s = %s AND %s = %s",
+                hierTable.getQuotedName(), s.getQuotedName(),
+                mapTable.getQuotedName(), m.getQuotedName(), mId,
+                s.getColumn(model.MAIN_KEY).getFullQuotedName(),
+                mapTable.getQuotedName(), p.getQuotedName(),
+                p.getColumn(model.MAIN_KEY).getFullQuotedName(),
+                s.getColumn(model.HIER_PARENT_KEY).getFullQuotedName(),
+                p.getColumn(model.COPY_MAP_COPY_ID_KEY).getFullQuotedName(),
+                mCopyId));
+        select.setWhere(mCopyId + " = ? AND " + mLevel + " = ?");
+        insert.setValues(select.getStatement());
+        copyHierLevelSql = insert.getStatement();
+
+        // fragment rows of all the nodes from a level down
+        for (String tableName : copySqlMap.keySet()) {
+            Table table = database.getTable(tableName);
+            s = new TableAlias(table, "S");
+            insert = new Insert(table);
+            whats = new LinkedList<String>();
+            for (Column column : table.getColumns()) {
+                if (column.isIdentity()) {
+                    // identity column is never copied
+                    continue;
+                }
+                insert.addColumn(column);
+                if (column.getKey().equals(model.MAIN_KEY)) {
+                    whats.add(mNewId);
+                } else {
+                    whats.add(new Column(column, s).getFullQuotedName());
+                }
+            }
+            select = new Select(table);
+            select.setWhat(StringUtils.join(whats, ", "));
+            select.setFrom(String.format("%s %s JOIN %s %s ON %s = %s",
+                    table.getQuotedName(), s.getQuotedName(),
+                    mapTable.getQuotedName(), m.getQuotedName(), mId,
+                    s.getColumn(model.MAIN_KEY).getFullQuotedName()));
+            select.setWhere(mCopyId + " = ? AND " + mLevel + " >= ?");
+            insert.setValues(select.getStatement());
+            copyByMapSqlMap.put(tableName, insert.getStatement());
+        }
+    }
+
+    /**
+     * Creates the SQL for the tables holding the read ACLs: the merged ACL of
+     * each regular hierarchy node, reduced to the entries checked when
+     * reading, is stored once per distinct ACL, and each node points to its
+     * ACL.
+     */
+    protected void initReadAclsSQL() {
+        TableMaker maker = new TableMaker(model.HIER_READ_ACL_TABLE_NAME);
+        maker.newPrimaryKey(); // foreign key to main id
+        Column column = maker.newColumn(model.HIER_READ_ACL_ACL_ID_KEY,
+                PropertyType.STRING, Types.VARCHAR, null);
+        column.setLength(32);
+        maker.postProcessHierReadAcl();
+        maker.table.addIndex(model.HIER_READ_ACL_ACL_ID_KEY);
+
+        maker = new TableMaker(model.READ_ACLS_TABLE_NAME);
+        column = maker.newColumn(model.READ_ACLS_ACL_ID_KEY,
+                PropertyType.STRING, Types.VARCHAR, null);
+        column.setLength(32);
+        maker.newColumn(model.READ_ACLS_POS_KEY, PropertyType.LONG,
+                Types.INTEGER, null);
+        maker.newColumn(model.READ_ACLS_USER_KEY, PropertyType.STRING,
+                Types.VARCHAR, null);
+        maker.newColumn(model.READ_ACLS_GRANT_KEY, PropertyType.BOOLEAN,
+                Types.BIT, null);
+        maker.postProcessInsert();
+        maker.table.addIndex(model.READ_ACLS_ACL_ID_KEY);
+        maker.table.addIndex(model.READ_ACLS_USER_KEY);
+    }
+
+    /**
+     * Gets the expression to use to check tree membership using the paths
+     * table.
+     * <p>
+     * Descendants whose path is too long to be recorded are checked by
+     * walking the hierarchy up from them.
+     *
+     * @param idColumnName the quoted name of the id column to use
+     * @return an SQL expression with two parameters: the {@code LIKE} pattern
+     *         of the descendants paths, and the path of the ancestor
+     * @see #getDescendantsPathPattern
+     */
+    public String getInTreeByPathSql(String idColumnName) {
+        String ancestorId = String.format("(SELECT %s FROM %s WHERE %s = ?)",
+                pathsIdColumn.getQuotedName(),
+                pathsIdColumn.getTable().getQuotedName(),
+                pathsPathColumn.getQuotedName());
+        return String.format("(%s IN (SELECT %s FROM %s WHERE %s LIKE ?"
+                + " ESCAPE '!') OR %s)", idColumnName,
+                pathsIdColumn.getQuotedName(),
+                pathsIdColumn.getTable().getQuotedName(),
+                pathsPathColumn.getQuotedName(), getInTreeOfMissingPathSql(
+                        idColumnName).replace("?", ancestorId));
+    }
+
+    /**
+     * Gets the expression to use to check tree membership for the nodes whose
+     * path is too long to be recorded in the paths table.
+     *
+     * @param idColumnName the quoted name of the id column to use
+     * @return an SQL expression with one parameter for the ancestor id
+     */
+    public String getInTreeOfMissingPathSql(String idColumnName) {
+        return String.format("(%s IN (SELECT %s FROM %s WHERE %s IS NULL)"
+                + " AND %s)", idColumnName, pathsIdColumn.getQuotedName(),
+                pathsIdColumn.getTable().getQuotedName(),
+                pathsPathColumn.getQuotedName(),
+                dialect.getInTreeSql(idColumnName));
+    }
+
+    /**
+     * Gets the {@code LIKE} pattern matching the paths of all the strict
+     * descendants of a node.
+     *
+     * @param path the path of the node
+     * @return the pattern, to be used with {@code ESCAPE '!'}
+     */
+    public String getDescendantsPathPattern(String path) {
+        if (path.equals("/")) {
+            // root: everything except the root itself
+            return "/_%";
+        }
+        return dialect.escapeLikeLiteral(path) + "/%";
+    }
+
     /**
      * Creates the SQL for the table holding hierarchy information.
      */
@@ -759,6 +1421,60 @@ public class SQLInfo {
             postProcessInsert();
         }
 
+        protected void postProcessPaths() {
+            postProcessInsert();
+            pathsIdColumn = table.getColumn(model.MAIN_KEY);
+            pathsPathColumn = table.getColumn(model.PATHS_PATH_KEY);
+            String tableName = table.getQuotedName();
+            String id = pathsIdColumn.getQuotedName();
+            String path = pathsPathColumn.getQuotedName();
+
+            Select select = new Select(table);
+            select.setWhat(path);
+            select.setFrom(tableName);
+            select.setWhere(id + " = ?");
+            selectPathByIdSql = select.getStatement();
+
+            select = new Select(table);
+            select.setWhat(id);
+            select.setFrom(tableName);
+            select.setWhere(path + " = ?");
+            selectIdByPathSql = select.getStatement();
+
+            select = new Select(table);
+            select.setWhat(id + ", " + path);
+            select.setFrom(tableName);
+            select.setWhere(path + " LIKE ? ESCAPE '!'");
+            selectPathsByPrefixSql = select.getStatement();
+
+            Update update = new Update(table);
+            update.setNewValues(path + " = ?");
+            update.setWhere(id + " = ?");
+            updatePathSql = update.getStatement();
+
+            update = new Update(table);
+            update.setNewValues(path + " = "
+                    + dialect.getReplacePrefixSql(path));
+            update.setWhere(path + " LIKE ? ESCAPE '!'");
+            updatePathsPrefixSql = update.getStatement();
+
+            update = new Update(table);
+            update.setNewValues(path + " = NULL");
+            update.setWhere(path + " LIKE ? ESCAPE '!' AND "
+                    + dialect.getLengthFunction() + '(' + path + ") > ?");
+            clearLongPathsSql = update.getStatement();
+        }
+
+        protected void postProcessHierReadAcl() {
+            postProcessInsert();
+            Update update = new Update(table);
+            update.setNewValues(table.getColumn(model.HIER_READ_ACL_ACL_ID_KEY).getQuotedName()
+                    + " = ?");
+            update.setWhere(table.getColumn(model.MAIN_KEY).getQuotedName()
+                    + " = ?");
+            updateHierReadAclSql = update.getStatement();
+        }
+
         protected void postProcessRootIdSelect() {
             String what = null;
             String where = null;
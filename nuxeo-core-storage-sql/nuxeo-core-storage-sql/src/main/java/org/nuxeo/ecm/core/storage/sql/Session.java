@@ -20,6 +20,7 @@ package org.nuxeo.ecm.core.storage.sql;
 import java.io.InputStream;
 import java.io.Serializable;
 import java.util.List;
+import java.util.Set;
 
 import javax.resource.cci.Connection;
 
@@ -67,6 +68,18 @@ public interface Session extends Connection {
      */
     void save() throws StorageException;
 
+    /**
+     * Gets the ids of the nodes whose ACL or parent were changed by other
+     * sessions, for the invalidations processed since the last call.
+     * <p>
+     * This is used to invalidate the security information cached above this
+     * session.
+     *
+     * @return the ids, or {@code null} if too many nodes changed to keep track
+     *         of them
+     */
+    Set<Serializable> getSecurityInvalidations() throws StorageException;
+
     /**
      * Gets the root node of the repository.
      *
@@ -83,6 +96,19 @@ public interface Session extends Connection {
      */
     Node getNodeById(Serializable id) throws StorageException;
 
+    /**
+     * Gets several nodes given their ids.
+     * <p>
+     * The fragments of the nodes that are not already known are read in bulk,
+     * using one statement per table.
+     *
+     * @param ids the ids
+     * @return the nodes, in the same order as the ids, with {@code null} for
+     *         the ids not found
+     * @throws StorageException
+     */
+    List<Node> getNodesByIds(List<Serializable> ids) throws StorageException;
+
     /**
      * Gets a node given its absolute path, or given an existing node and a
      * relative path.
@@ -345,6 +371,15 @@ public interface Session extends Connection {
      */
     List<Node> getProxies(Node document, Node parent) throws StorageException;
 
+    /**
+     * Parses a NXQL query, reusing the repository-wide cache of parsed
+     * queries.
+     *
+     * @param query the NXQL query
+     * @return the query as a parsed tree, which can be modified
+     */
+    SQLQuery parseQuery(String query) throws StorageException;
+
     /**
      * Makes a NXQL query to the database.
      *
@@ -24,9 +24,12 @@ import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.resource.ResourceException;
 import javax.resource.cci.ConnectionMetaData;
@@ -73,6 +76,25 @@ public class SessionImpl implements Session {
 
     private Node rootNode;
 
+    /**
+     * Above this number of ids whose ACL or parent changed, the security
+     * invalidations are not tracked individually anymore.
+     */
+    protected static final int MAX_SECURITY_INVALIDATIONS = 1000;
+
+    /**
+     * The ids whose ACL or parent were changed by other sessions, not yet
+     * processed. Accessed by other sessions.
+     */
+    private Set<Serializable> receivedSecurityInvalidations = new HashSet<Serializable>();
+
+    /**
+     * The ids whose ACL or parent changes have been processed, not yet
+     * returned by {@link #getSecurityInvalidations}, or {@code null} if there
+     * were too many.
+     */
+    private Set<Serializable> securityInvalidations = new HashSet<Serializable>();
+
     SessionImpl(RepositoryImpl repository, SchemaManager schemaManager,
             Mapper mapper, Credentials credentials) throws StorageException {
         this.repository = repository;
@@ -80,7 +102,8 @@ public class SessionImpl implements Session {
         this.mapper = mapper;
         // this.credentials = credentials;
         model = mapper.getModel();
-        context = new PersistenceContext(mapper);
+        context = new PersistenceContext(mapper,
+                repository.getFragmentCache());
         live = true;
         transactionalSession = new TransactionalSession(this, mapper);
         computeRootNode();
@@ -105,6 +128,14 @@ public class SessionImpl implements Session {
         return context.clearCaches();
     }
 
+    /**
+     * Forgets the pristine fragments, as if they had been collected by the GC,
+     * but keeps the transaction state. Called by tests.
+     */
+    protected void clearPristine() {
+        context.clearPristine();
+    }
+
     /*
      * ----- javax.resource.cci.Connection -----
      */
@@ -194,6 +225,17 @@ public class SessionImpl implements Session {
     protected void processReceivedInvalidations() throws StorageException {
         repository.receiveClusterInvalidations();
         context.processReceivedInvalidations();
+        synchronized (this) {
+            if (receivedSecurityInvalidations == null) {
+                securityInvalidations = null;
+            } else if (securityInvalidations != null) {
+                securityInvalidations.addAll(receivedSecurityInvalidations);
+                if (securityInvalidations.size() > MAX_SECURITY_INVALIDATIONS) {
+                    securityInvalidations = null;
+                }
+            }
+            receivedSecurityInvalidations = new HashSet<Serializable>();
+        }
     }
 
     /**
@@ -205,10 +247,41 @@ public class SessionImpl implements Session {
      */
     protected void invalidate(Invalidations invalidations) {
         context.invalidate(invalidations);
+        addSecurityInvalidations(invalidations.modified);
+        addSecurityInvalidations(invalidations.deleted);
+    }
+
+    protected synchronized void addSecurityInvalidations(
+            Map<String, Set<Serializable>> map) {
+        if (receivedSecurityInvalidations == null) {
+            return;
+        }
+        for (String tableName : new String[] { model.hierTableName,
+                Model.ACL_TABLE_NAME }) {
+            Set<Serializable> ids = map.get(tableName);
+            if (ids != null) {
+                receivedSecurityInvalidations.addAll(ids);
+            }
+        }
+        if (receivedSecurityInvalidations.size() > MAX_SECURITY_INVALIDATIONS) {
+            receivedSecurityInvalidations = null;
+        }
+    }
+
+    public synchronized Set<Serializable> getSecurityInvalidations() {
+        Set<Serializable> ids = securityInvalidations;
+        if (ids == null || !ids.isEmpty()) {
+            securityInvalidations = new HashSet<Serializable>();
+        }
+        return ids;
     }
 
     protected void rollback() {
         context.rollback();
+        synchronized (this) {
+            // rolled back ACLs or moves may have been seen
+            securityInvalidations = null;
+        }
     }
 
     public Node getNodeById(Serializable id) throws StorageException {
@@ -258,29 +331,109 @@ public class SessionImpl implements Session {
         return new Node(this, context, childGroup);
     }
 
+    public List<Node> getNodesByIds(List<Serializable> ids)
+            throws StorageException {
+        checkLive();
+        prefetchFragments(ids);
+        List<Node> nodes = new ArrayList<Node>(ids.size());
+        for (Serializable id : ids) {
+            nodes.add(getNodeById(id));
+        }
+        return nodes;
+    }
+
     protected FragmentsMap getFragments(Serializable id, String typeName,
             Serializable parentId, String name) throws StorageException {
-        // TODO get all non-cached fragments at once using join / union
         FragmentsMap fragments = new FragmentsMap();
-        Iterable<String> fragmentNames = model.getTypeSimpleFragments(typeName);
+        List<String> fragmentNames = getFragmentNames(typeName, parentId, name);
         if (fragmentNames == null) {
             // don't crash if the database refers to an unknown type
             log.error(String.format("Node %s (%s) has unknown type: %s", id,
                     name, typeName));
             return fragments;
         }
+        // get all non-cached fragments at once
+        context.prefetch(id, fragmentNames);
         for (String fragmentName : fragmentNames) {
             Fragment fragment = context.get(fragmentName, id, true);
             fragments.put(fragmentName, fragment);
         }
+        return fragments;
+    }
+
+    /**
+     * Gets the names of the simple fragments of a node.
+     *
+     * @return the fragment names, or {@code null} if the type is unknown
+     */
+    protected List<String> getFragmentNames(String typeName,
+            Serializable parentId, String name) {
+        Set<String> typeFragmentNames = model.getTypeSimpleFragments(typeName);
+        if (typeFragmentNames == null) {
+            return null;
+        }
+        List<String> fragmentNames = new ArrayList<String>(
+                typeFragmentNames.size() + 1);
+        fragmentNames.addAll(typeFragmentNames);
         // check version too
         if (parentId == null && name != null && name.length() > 0) {
             // this is a version, fetch the version fragment too
-            String fragmentName = model.VERSION_TABLE_NAME;
-            Fragment fragment = context.get(fragmentName, id, true);
-            fragments.put(fragmentName, fragment);
+            fragmentNames.add(model.VERSION_TABLE_NAME);
         }
-        return fragments;
+        return fragmentNames;
+    }
+
+    /**
+     * Prefetches the fragments of several nodes, using one statement per
+     * table.
+     */
+    protected void prefetchFragments(List<Serializable> ids)
+            throws StorageException {
+        if (ids.size() < 2) {
+            return;
+        }
+        // main and hierarchy rows
+        Map<String, List<Serializable>> idsByTable = new HashMap<String, List<Serializable>>();
+        idsByTable.put(model.mainTableName, ids);
+        if (model.separateMainTable) {
+            idsByTable.put(model.hierTableName, ids);
+        }
+        context.prefetch(idsByTable, false);
+        // other fragments, which depend on the type
+        idsByTable = new HashMap<String, List<Serializable>>();
+        for (Serializable id : ids) {
+            SimpleFragment main = (SimpleFragment) context.get(
+                    model.mainTableName, id, false);
+            if (main == null) {
+                continue;
+            }
+            SimpleFragment hier;
+            if (model.separateMainTable) {
+                hier = (SimpleFragment) context.get(model.hierTableName, id,
+                        false);
+                if (hier == null) {
+                    continue;
+                }
+            } else {
+                hier = main;
+            }
+            String typeName = (String) main.get(model.MAIN_PRIMARY_TYPE_KEY);
+            List<String> fragmentNames = getFragmentNames(typeName,
+                    hier.get(model.HIER_PARENT_KEY),
+                    hier.getString(model.HIER_CHILD_NAME_KEY));
+            if (fragmentNames == null) {
+                continue;
+            }
+            for (String fragmentName : fragmentNames) {
+                List<Serializable> tableIds = idsByTable.get(fragmentName);
+                if (tableIds == null) {
+                    tableIds = new LinkedList<Serializable>();
+                    idsByTable.put(fragmentName, tableIds);
+                }
+                tableIds.add(id);
+            }
+        }
+        context.prefetch(idsByTable, true);
     }
 
     public Node getParentNode(Node node) throws StorageException {
@@ -298,6 +451,13 @@ public class SessionImpl implements Session {
 
     public String getPath(Node node) throws StorageException {
         checkLive();
+        if (node != null && context.isPathsUpToDate()) {
+            String path = context.getPath(node.getId());
+            if (path != null) {
+                return path;
+            }
+            // complex property, version or path too long to be recorded
+        }
         List<String> list = new LinkedList<String>();
         while (node != null) {
             list.add(node.getName());
@@ -313,7 +473,6 @@ public class SessionImpl implements Session {
 
     /* Does not apply to properties for now (no use case). */
     public Node getNodeByPath(String path, Node node) throws StorageException {
-        // TODO optimize this to use a dedicated path-based table
         checkLive();
         if (path == null) {
             throw new IllegalArgumentException("Illegal null path");
@@ -333,13 +492,32 @@ public class SessionImpl implements Session {
             i = 0;
         }
         String[] names = path.split("/", -1);
-        for (; i < names.length; i++) {
-            String name = names[i];
-            if (name.length() == 0) {
+        for (int j = i; j < names.length; j++) {
+            if (names[j].length() == 0) {
                 throw new IllegalArgumentException(
                         "Illegal path with empty component: " + path);
             }
-            node = getChildNode(node, name, false);
+        }
+        if (context.isPathsUpToDate()) {
+            // single lookup in the paths table
+            String fullPath = path;
+            if (i == 0) {
+                String basePath = getPath(node);
+                fullPath = basePath.equals("/") ? '/' + path : basePath + '/'
+                        + path;
+            }
+            Serializable id = context.getIdForPath(fullPath);
+            if (id != null) {
+                Node found = getNodeById(id);
+                if (found != null) {
+                    return found;
+                }
+            }
+            // not recorded (path too long) or no such node, walk the path
+        }
+        // unsaved hierarchy changes, walk the path
+        for (; i < names.length; i++) {
+            node = getChildNode(node, names[i], false);
             if (node == null) {
                 return null;
             }
@@ -484,12 +662,17 @@ public class SessionImpl implements Session {
         checkLive();
         List<SimpleFragment> fragments = context.getChildren(parent.getId(),
                 name, complexProp);
-        List<Node> nodes = new ArrayList<Node>(fragments.size());
+        List<Serializable> ids = new ArrayList<Serializable>(fragments.size());
         for (SimpleFragment fragment : fragments) {
-            Node node = getNodeById(fragment.getId());
+            ids.add(fragment.getId());
+        }
+        List<Node> nodes = new ArrayList<Node>(ids.size());
+        Iterator<Serializable> it = ids.iterator();
+        for (Node node : getNodesByIds(ids)) {
+            Serializable id = it.next();
             if (node == null) {
                 // cannot happen
-                log.error("Child node cannot be created: " + fragment.getId());
+                log.error("Child node cannot be created: " + id);
                 continue;
             }
             nodes.add(node);
@@ -515,8 +698,8 @@ public class SessionImpl implements Session {
 
     public void removeNode(Node node) throws StorageException {
         checkLive();
+        // the descendants are deleted by the database and invalidated on save
         node.remove();
-        // TODO XXX remove recursively the children
     }
 
     public Node checkIn(Node node, String label, String description)
@@ -581,9 +764,20 @@ public class SessionImpl implements Session {
         return nodes;
     }
 
+    public SQLQuery parseQuery(String query) {
+        return repository.getQueryPlanCache().parse(query);
+    }
+
     public PartialList<Serializable> query(SQLQuery query,
             QueryFilter queryFilter, boolean countTotal)
             throws StorageException {
+        // make the session's changes visible to the query; outside a
+        // transaction they are now committed, so tell the others as a save
+        // does
+        flush();
+        if (!transactionalSession.isInTransaction()) {
+            sendInvalidationsToOthers();
+        }
         try {
             return mapper.query(query, queryFilter, countTotal, this);
         } catch (SQLException e) {
@@ -603,15 +797,14 @@ public class SessionImpl implements Session {
     }
 
     private void computeRootNode() throws StorageException {
-        String repositoryId = "default"; // TODO use repo name
-        Serializable rootId = context.getRootId(repositoryId);
+        Serializable rootId = context.getRootId();
         if (rootId == null) {
             log.debug("Creating root");
             rootNode = addRootNode();
             addRootACP();
             save();
             // record information about the root id
-            context.setRootId(repositoryId, rootNode.getId());
+            context.setRootId(rootNode.getId());
         } else {
             rootNode = getNodeById(rootId);
         }
@@ -0,0 +1,563 @@
+/*
+ * (C) Copyright 2009 Nuxeo SAS (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Florent Guillaume
+ */
+package org.nuxeo.ecm.core.storage.sql.coremodel;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.security.auth.login.LoginContext;
+import javax.security.auth.login.LoginException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.common.utils.StringUtils;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.core.api.CoreInstance;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DocumentException;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.IdRef;
+import org.nuxeo.ecm.core.api.blobholder.BlobHolder;
+import org.nuxeo.ecm.core.api.blobholder.SimpleBlobHolder;
+import org.nuxeo.ecm.core.api.repository.Repository;
+import org.nuxeo.ecm.core.api.repository.RepositoryManager;
+import org.nuxeo.ecm.core.convert.api.ConversionService;
+import org.nuxeo.ecm.core.event.EventService;
+import org.nuxeo.ecm.core.event.impl.AsyncWaitHook;
+import org.nuxeo.ecm.core.event.impl.EventServiceImpl;
+import org.nuxeo.ecm.core.event.impl.AsyncEventExecutor.NamedThreadFactory;
+import org.nuxeo.ecm.core.event.tx.EventBundleTransactionHandler;
+import org.nuxeo.ecm.core.utils.BlobsExtractor;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * Extracts the fulltext of the blobs of documents in its own pool of threads,
+ * so that long conversions don't hold the threads shared by all the
+ * asynchronous post-commit listeners.
+ * <p>
+ * Documents are processed in batches, each batch being extracted and saved in
+ * its own session and transaction. Conversions are shared by binary digest:
+ * a binary being converted by one worker is waited for by the others, and the
+ * texts of the most recently converted binaries are kept.
+ * <p>
+ * Each repository has its own pipeline, created and shut down with it. The
+ * pending extractions are waited for by
+ * {@link EventService#waitForAsyncCompletion}.
+ * <p>
+ * The pool is configured through the following runtime properties:
+ * <ul>
+ * <li>{@value #POOL_SIZE_PROP}: the number of worker threads (default
+ * {@value #DEFAULT_POOL_SIZE}),</li>
+ * <li>{@value #QUEUE_SIZE_PROP}: the number of batches waiting for a worker
+ * above which submitters are blocked (default {@value #DEFAULT_QUEUE_SIZE}),
+ * </li>
+ * <li>{@value #BATCH_SIZE_PROP}: the number of documents saved together
+ * (default {@value #DEFAULT_BATCH_SIZE}),</li>
+ * <li>{@value #CACHE_SIZE_PROP}: the number of converted texts kept (default
+ * {@value #DEFAULT_CACHE_SIZE}).</li>
+ * </ul>
+ * They are read when the repository is created.
+ *
+ * @author Florent Guillaume
+ */
+public class BinaryTextPipeline implements AsyncWaitHook {
+
+    private static final Log log = LogFactory.getLog(BinaryTextPipeline.class);
+
+    public static final String POOL_SIZE_PROP = "org.nuxeo.ecm.core.storage.sql.fulltext.poolSize";
+
+    public static final String QUEUE_SIZE_PROP = "org.nuxeo.ecm.core.storage.sql.fulltext.queueSize";
+
+    public static final String BATCH_SIZE_PROP = "org.nuxeo.ecm.core.storage.sql.fulltext.batchSize";
+
+    public static final String CACHE_SIZE_PROP = "org.nuxeo.ecm.core.storage.sql.fulltext.cacheSize";
+
+    public static final int DEFAULT_POOL_SIZE = 2;
+
+    public static final int DEFAULT_QUEUE_SIZE = 1000;
+
+    public static final int DEFAULT_BATCH_SIZE = 20;
+
+    public static final int DEFAULT_CACHE_SIZE = 100;
+
+    private static final String ANY2TEXT = "any2text";
+
+    /** Time given to the running extractions to finish on shutdown. */
+    public static final long SHUTDOWN_TIMEOUT = 10; // seconds
+
+    /** The pipelines of the open repositories, by repository name. */
+    private static final ConcurrentMap<String, BinaryTextPipeline> pipelines = new ConcurrentHashMap<String, BinaryTextPipeline>();
+
+    protected final String repositoryName;
+
+    protected final ThreadPoolExecutor executor;
+
+    protected final int batchSize;
+
+    /** Conversions in progress, by binary digest. */
+    protected final ConcurrentMap<String, Future<String>> conversions;
+
+    /** Most recently converted texts, by binary digest. */
+    protected final Map<String, String> texts;
+
+    protected final long startTime;
+
+    protected final AtomicLong documentsSubmitted = new AtomicLong();
+
+    protected final AtomicLong documentsProcessed = new AtomicLong();
+
+    protected final AtomicLong binariesConverted = new AtomicLong();
+
+    protected final AtomicLong binariesReused = new AtomicLong();
+
+    protected final AtomicLong conversionTime = new AtomicLong();
+
+    /**
+     * Creates the pipeline of a repository from the runtime properties, and
+     * registers it.
+     * <p>
+     * Called when the repository is created, the pipeline must be
+     * {@link #shutdown} when it is closed.
+     */
+    public static BinaryTextPipeline create(String repositoryName) {
+        BinaryTextPipeline pipeline = new BinaryTextPipeline(repositoryName,
+                getIntProperty(POOL_SIZE_PROP, DEFAULT_POOL_SIZE),
+                getIntProperty(QUEUE_SIZE_PROP, DEFAULT_QUEUE_SIZE),
+                getIntProperty(BATCH_SIZE_PROP, DEFAULT_BATCH_SIZE),
+                getIntProperty(CACHE_SIZE_PROP, DEFAULT_CACHE_SIZE));
+        pipeline.register();
+        return pipeline;
+    }
+
+    /**
+     * Gets the pipeline of an open repository.
+     *
+     * @return the pipeline, or {@code null} if the repository is not open
+     */
+    public static BinaryTextPipeline getPipeline(String repositoryName) {
+        return pipelines.get(repositoryName);
+    }
+
+    /**
+     * Gets the pipelines of all the open repositories.
+     */
+    public static Collection<BinaryTextPipeline> getPipelines() {
+        return Collections.unmodifiableCollection(pipelines.values());
+    }
+
+    protected static int getIntProperty(String name, int def) {
+        String val = Framework.getProperty(name);
+        if (val == null) {
+            return def;
+        }
+        try {
+            return Integer.parseInt(val.trim());
+        } catch (NumberFormatException e) {
+            log.error("Invalid value for " + name + ": " + val
+                    + ", using default: " + def);
+            return def;
+        }
+    }
+
+    public BinaryTextPipeline(String repositoryName, int poolSize,
+            int queueSize, int batchSize, final int cacheSize) {
+        this.repositoryName = repositoryName;
+        this.batchSize = batchSize;
+        executor = new ThreadPoolExecutor(poolSize, poolSize, 0,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(queueSize),
+                new NamedThreadFactory("Nuxeo Fulltext Extraction", true),
+                new BlockingPolicy());
+        conversions = new ConcurrentHashMap<String, Future<String>>();
+        texts = Collections.synchronizedMap(new LinkedHashMap<String, String>(
+                16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> e) {
+                return size() > cacheSize;
+            }
+        });
+        startTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Registers this pipeline as the one of its repository, and with the
+     * event service so that its backlog is waited for.
+     */
+    protected void register() {
+        // several instances of a repository only coexist in cluster tests,
+        // the last one created gets the extractions
+        pipelines.put(repositoryName, this);
+        EventServiceImpl eventService = getEventService();
+        if (eventService != null) {
+            eventService.registerForAsyncWait(this);
+        }
+    }
+
+    protected void unregister() {
+        pipelines.remove(repositoryName, this);
+        EventServiceImpl eventService = getEventService();
+        if (eventService != null) {
+            eventService.unregisterForAsyncWait(this);
+        }
+    }
+
+    protected static EventServiceImpl getEventService() {
+        EventService eventService = Framework.getLocalService(EventService.class);
+        if (eventService instanceof EventServiceImpl) {
+            return (EventServiceImpl) eventService;
+        }
+        return null;
+    }
+
+    /**
+     * Stops the pipeline.
+     * <p>
+     * The running extractions are given {@value #SHUTDOWN_TIMEOUT} seconds to
+     * finish, the ones not started yet are dropped.
+     */
+    public void shutdown() {
+        unregister();
+        List<Runnable> dropped = executor.shutdownNow();
+        int count = 0;
+        for (Runnable r : dropped) {
+            count += ((Job) r).ids.size();
+        }
+        if (count != 0) {
+            documentsProcessed.addAndGet(count);
+            log.warn("Fulltext extraction of " + count
+                    + " documents dropped on shutdown of repository: "
+                    + repositoryName);
+        }
+        try {
+            if (!executor.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.SECONDS)) {
+                log.warn("Fulltext extraction still running for repository: "
+                        + repositoryName);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public boolean isShutdown() {
+        return executor.isShutdown();
+    }
+
+    public String getRepositoryName() {
+        return repositoryName;
+    }
+
+    /**
+     * Schedules the extraction of the fulltext of some documents.
+     * <p>
+     * Blocks only if the backlog of batches is full.
+     *
+     * @param ids the document ids
+     */
+    public void submit(Collection<Serializable> ids) {
+        List<Serializable> batch = new ArrayList<Serializable>(batchSize);
+        for (Serializable id : ids) {
+            batch.add(id);
+            if (batch.size() == batchSize) {
+                execute(new Job(batch));
+                batch = new ArrayList<Serializable>(batchSize);
+            }
+        }
+        if (!batch.isEmpty()) {
+            execute(new Job(batch));
+        }
+    }
+
+    protected void execute(Job job) {
+        documentsSubmitted.addAndGet(job.ids.size());
+        try {
+            executor.execute(job);
+        } catch (RejectedExecutionException e) {
+            documentsProcessed.addAndGet(job.ids.size());
+            log.error("Fulltext extraction not scheduled for: " + job.ids, e);
+        }
+    }
+
+    /**
+     * Gets the number of documents submitted and not yet processed.
+     */
+    public long getBacklog() {
+        return documentsSubmitted.get() - documentsProcessed.get();
+    }
+
+    public long getPendingCount() {
+        return getBacklog();
+    }
+
+    /**
+     * Gets the number of documents processed.
+     */
+    public long getDocumentsProcessed() {
+        return documentsProcessed.get();
+    }
+
+    /**
+     * Gets the average number of documents processed per second.
+     */
+    public double getThroughput() {
+        long elapsed = System.currentTimeMillis() - startTime;
+        if (elapsed == 0) {
+            return 0;
+        }
+        return documentsProcessed.get() * 1000.0 / elapsed;
+    }
+
+    /**
+     * Gets the number of binaries actually converted.
+     */
+    public long getBinariesConverted() {
+        return binariesConverted.get();
+    }
+
+    /**
+     * Gets the number of binaries whose text was reused from a conversion done
+     * for another document.
+     */
+    public long getBinariesReused() {
+        return binariesReused.get();
+    }
+
+    /**
+     * Gets the total time spent in conversions, in milliseconds.
+     */
+    public long getConversionTime() {
+        return conversionTime.get();
+    }
+
+    /**
+     * Extracts the fulltext of a batch of documents.
+     */
+    protected void extract(CoreSession session, List<Serializable> ids)
+            throws ClientException {
+        ConversionService conversionService;
+        try {
+            conversionService = Framework.getService(ConversionService.class);
+        } catch (Exception e) {
+            throw new ClientException(e);
+        }
+        if (conversionService == null) {
+            throw new ClientException("No conversion service");
+        }
+        boolean save = false;
+        BlobsExtractor extractor = new BlobsExtractor();
+        for (Serializable id : ids) {
+            IdRef docRef = new IdRef(((String) id));
+            if (!session.exists(docRef)) {
+                // doc is gone
+                continue;
+            }
+            DocumentModel doc = session.getDocument(docRef);
+            if (doc.isProxy()) {
+                // proxies don't have any fulltext attached, it's
+                // the target document that carries it
+                continue;
+            }
+            List<Blob> blobs = extractor.getBlobs(doc);
+            String text = blobsToText(blobs, conversionService);
+            try {
+                session.setDocumentSystemProp(docRef,
+                        SQLDocument.BINARY_TEXT_SYS_PROP, text);
+            } catch (DocumentException e) {
+                log.error("Couldn't set fulltext on: " + id, e);
+                continue;
+            }
+            save = true;
+        }
+        if (save) {
+            session.save();
+        }
+    }
+
+    protected String blobsToText(List<Blob> blobs,
+            ConversionService conversionService) {
+        List<String> strings = new LinkedList<String>();
+        for (Blob blob : blobs) {
+            String text = blobToText(blob, conversionService);
+            if (text != null) {
+                strings.add(text);
+            }
+        }
+        return StringUtils.join(strings, " ");
+    }
+
+    /**
+     * Gets the text of a blob, converting it only if no text for the same
+     * binary is known or being computed.
+     */
+    protected String blobToText(final Blob blob,
+            final ConversionService conversionService) {
+        String digest = getDigest(blob);
+        if (digest == null) {
+            return convert(blob, conversionService);
+        }
+        String text = texts.get(digest);
+        if (text != null) {
+            binariesReused.incrementAndGet();
+            return text;
+        }
+        FutureTask<String> task = new FutureTask<String>(
+                new Callable<String>() {
+                    public String call() {
+                        return convert(blob, conversionService);
+                    }
+                });
+        Future<String> future = conversions.putIfAbsent(digest, task);
+        if (future == null) {
+            // we're the ones doing the conversion
+            try {
+                task.run();
+                text = getText(task);
+                if (text != null) {
+                    texts.put(digest, text);
+                }
+            } finally {
+                conversions.remove(digest);
+            }
+        } else {
+            binariesReused.incrementAndGet();
+            text = getText(future);
+        }
+        return text;
+    }
+
+    protected static String getDigest(Blob blob) {
+        if (blob instanceof SQLBlob) {
+            return ((SQLBlob) blob).getBinary().getDigest();
+        }
+        return blob.getDigest();
+    }
+
+    protected static String getText(Future<String> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            log.error(e.getMessage(), e);
+            return null;
+        }
+    }
+
+    protected String convert(Blob blob, ConversionService conversionService) {
+        long t0 = System.currentTimeMillis();
+        try {
+            SimpleBlobHolder bh = new SimpleBlobHolder(blob);
+            BlobHolder result = conversionService.convert(ANY2TEXT, bh, null);
+            if (result == null) {
+                return null;
+            }
+            blob = result.getBlob();
+            if (blob == null) {
+                return null;
+            }
+            return new String(blob.getByteArray(), "UTF-8");
+        } catch (Exception e) {
+            log.error(e.getMessage(), e);
+            return null;
+        } finally {
+            binariesConverted.incrementAndGet();
+            conversionTime.addAndGet(System.currentTimeMillis() - t0);
+        }
+    }
+
+    /**
+     * Extracts the fulltext of a batch of documents in its own session and
+     * transaction.
+     */
+    protected class Job implements Runnable {
+
+        protected final List<Serializable> ids;
+
+        public Job(List<Serializable> ids) {
+            this.ids = ids;
+        }
+
+        public void run() {
+            EventBundleTransactionHandler txh = new EventBundleTransactionHandler();
+            LoginContext loginContext = null;
+            CoreSession session = null;
+            try {
+                txh.beginNewTransaction();
+                loginContext = Framework.login();
+                RepositoryManager mgr = Framework.getService(RepositoryManager.class);
+                Repository repo = mgr.getRepository(repositoryName);
+                session = repo.open();
+                extract(session, ids);
+                txh.commitOrRollbackTransaction();
+            } catch (Throwable t) {
+                log.error("Failed to extract fulltext for: " + ids, t);
+                txh.rollbackTransaction();
+            } finally {
+                if (session != null) {
+                    CoreInstance.getInstance().close(session);
+                }
+                if (loginContext != null) {
+                    try {
+                        loginContext.logout();
+                    } catch (LoginException e) {
+                        log.error("Error while logging out", e);
+                    }
+                }
+                documentsProcessed.addAndGet(ids.size());
+            }
+        }
+    }
+
+    /**
+     * Makes the submitter wait when the backlog is full.
+     */
+    protected static class BlockingPolicy implements RejectedExecutionHandler {
+
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+                throw new RejectedExecutionException("Executor shut down");
+            }
+            try {
+                executor.getQueue().put(r);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException(e);
+            }
+        }
+    }
+
+}
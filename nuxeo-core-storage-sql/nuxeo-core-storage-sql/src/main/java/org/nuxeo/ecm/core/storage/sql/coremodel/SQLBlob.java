@@ -59,6 +59,13 @@ public class SQLBlob extends DefaultStreamBlob implements Serializable {
         setDigest(digest);
     }
 
+    /**
+     * Gets the binary wrapped by this blob.
+     */
+    public Binary getBinary() {
+        return binary;
+    }
+
     @Override
     public long getLength() {
         return binary.getLength();
@@ -22,7 +22,9 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.NoSuchElementException;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -45,6 +47,9 @@ public class SQLQueryResult implements QueryResult {
 
     private static final Log log = LogFactory.getLog(SQLQueryResult.class);
 
+    /** Number of documents fetched at once by the document iterator. */
+    protected static final int FETCH_SIZE = 100;
+
     protected final SQLSession session;
 
     protected final Iterator<Serializable> it;
@@ -87,16 +92,26 @@ public class SQLQueryResult implements QueryResult {
 
     public DocumentModelList getDocumentModels() throws QueryException {
         String[] schemas = { "common" };
-        List<DocumentModel> list = new ArrayList<DocumentModel>((int) size);
+        List<Serializable> ids = new ArrayList<Serializable>((int) size);
         while (it.hasNext()) {
             currentId = it.next();
-            try {
+            ids.add(currentId);
+        }
+        List<Document> docs = getDocumentsById(ids);
+        List<DocumentModel> list = new ArrayList<DocumentModel>(docs.size());
+        Iterator<Serializable> idsIt = ids.iterator();
+        for (Document doc : docs) {
+            Serializable id = idsIt.next();
+            if (doc == null) {
                 // TODO skip root
-                Document doc = session.getDocumentById(currentId);
+                log.error("Could not create document model for doc: " + id);
+                continue;
+            }
+            try {
                 list.add(DocumentModelFactory.createDocumentModel(doc, schemas));
             } catch (DocumentException e) {
-                log.error("Could not create document model for doc: "
-                        + currentId + ": " + e.getMessage());
+                log.error("Could not create document model for doc: " + id
+                        + ": " + e.getMessage());
             }
         }
         if (orderByPath != null) {
@@ -115,6 +130,36 @@ public class SQLQueryResult implements QueryResult {
         return new DocumentModelListImpl(list, totalSize);
     }
 
+    /**
+     * Gets documents in bulk. If the bulk read fails, the documents are read
+     * one at a time, so that only the documents that really can't be read
+     * are lost.
+     *
+     * @param ids the document ids
+     * @return the documents, with {@code null} for those that can't be read
+     */
+    protected List<Document> getDocumentsById(List<Serializable> ids) {
+        try {
+            return session.getDocumentsById(ids);
+        } catch (DocumentException e) {
+            // don't lose the whole batch, retry one at a time
+            log.error(e.getMessage());
+        }
+        List<Document> docs = new ArrayList<Document>(ids.size());
+        for (Serializable id : ids) {
+            Document doc;
+            try {
+                doc = session.getDocumentById(id);
+            } catch (DocumentException e) {
+                log.error("Could not get document: " + id + ": "
+                        + e.getMessage());
+                doc = null;
+            }
+            docs.add(doc);
+        }
+        return docs;
+    }
+
     public static class PathComparator implements Comparator<DocumentModel> {
 
         private final int sign;
@@ -141,18 +186,42 @@ public class SQLQueryResult implements QueryResult {
         }
 
         return new DocumentIterator() {
+
+            /** Documents fetched in bulk but not yet returned. */
+            private final LinkedList<Document> docs = new LinkedList<Document>();
+
+            private final LinkedList<Serializable> ids = new LinkedList<Serializable>();
+
             public Document next() {
-                currentId = it.next();
-                try {
-                    return session.getDocumentById(currentId);
-                } catch (DocumentException e) {
-                    log.error(e.getMessage());
-                    return next();
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
                 }
+                currentId = ids.removeFirst();
+                return docs.removeFirst();
             }
 
             public boolean hasNext() {
-                return it.hasNext();
+                while (docs.isEmpty() && it.hasNext()) {
+                    fetch();
+                }
+                return !docs.isEmpty();
+            }
+
+            private void fetch() {
+                List<Serializable> batch = new ArrayList<Serializable>(
+                        FETCH_SIZE);
+                while (batch.size() < FETCH_SIZE && it.hasNext()) {
+                    batch.add(it.next());
+                }
+                List<Document> batchDocs = getDocumentsById(batch);
+                Iterator<Serializable> batchIt = batch.iterator();
+                for (Document doc : batchDocs) {
+                    Serializable id = batchIt.next();
+                    if (doc != null) {
+                        ids.add(id);
+                        docs.add(doc);
+                    }
+                }
             }
 
             public long getSize() {
@@ -37,6 +37,8 @@ import org.nuxeo.ecm.core.api.security.impl.ACPImpl;
 import org.nuxeo.ecm.core.model.Document;
 import org.nuxeo.ecm.core.model.Property;
 import org.nuxeo.ecm.core.model.Session;
+import org.nuxeo.ecm.core.security.CacheEntry;
+import org.nuxeo.ecm.core.security.SecurityCache;
 import org.nuxeo.ecm.core.security.SecurityException;
 import org.nuxeo.ecm.core.security.SecurityManager;
 import org.nuxeo.ecm.core.storage.sql.ACLRow;
@@ -65,6 +67,8 @@ public class SQLSecurityManager implements SecurityManager {
             return;
         }
         try {
+            SecurityCache cache = ((SQLSession) doc.getSession()).getSecurityCache();
+            cache.invalidate(Collections.singleton(doc.getUUID()));
             Property property = ((SQLDocument) doc).getACLProperty();
             ACLRow[] aclrows;
             if (overwrite) {
@@ -78,27 +82,18 @@ public class SQLSecurityManager implements SecurityManager {
         }
     }
 
+    /**
+     * Gets the merged ACP of a document.
+     * <p>
+     * The merged ACPs are cached in the session, so that checking the
+     * permissions of the children of a folder does not walk up the ancestors
+     * for each child. The returned ACP is a copy that can be modified.
+     */
     public ACP getMergedACP(Document doc) throws SecurityException {
         try {
-            Document base = doc.isVersion() ? doc.getSourceDocument() : doc;
-            if (base == null) {
-                return null;
-            }
-            ACP acp = getACP(base);
-            if (doc.getParent() == null) {
-                return acp;
-            }
-            ACL acl = getInheritedACLs(doc);
-            if (acp == null) {
-                if (acl == null) {
-                    return null;
-                }
-                acp = new ACPImpl();
-            }
-            if (acl != null) {
-                acp.addACL(acl);
-            }
-            return acp;
+            SecurityCache cache = ((SQLSession) doc.getSession()).getSecurityCache();
+            ACP acp = getCacheEntry(doc, cache).getACP();
+            return acp == null ? null : (ACP) acp.clone();
         } catch (DocumentException e) {
             throw new SecurityException("Failed to get merged acp", e);
         }
@@ -117,6 +112,11 @@ public class SQLSecurityManager implements SecurityManager {
     }
 
     public void invalidateCache(Session session) {
+        try {
+            ((SQLSession) session).getSecurityCache().invalidateAll();
+        } catch (DocumentException e) {
+            throw new RuntimeException(e);
+        }
     }
 
     /*
@@ -246,26 +246,44 @@ public class SQLSecurityManager implements SecurityManager {
                 ace.getPermission(), user, group));
     }
 
-    protected ACL getInheritedACLs(Document doc) throws DocumentException {
-        doc = doc.getParent();
-        ACL merged = null;
-        while (doc != null) {
-            ACP acp = getACP(doc);
-            if (acp != null) {
-                ACL acl = acp.getMergedACLs(ACL.INHERITED_ACL);
-                if (merged == null) {
-                    merged = acl;
-                } else {
-                    merged.addAll(acl);
-                }
-                if (acp.getAccess(SecurityConstants.EVERYONE,
-                        SecurityConstants.EVERYTHING) == Access.DENY) {
-                    break;
-                }
+    /**
+     * Gets the cache entry for a document, computing it and the entries of its
+     * ancestors if needed.
+     * <p>
+     * The ACL inherited by the children of a document is the merge of its own
+     * ACLs and of the ACL it inherits itself, unless it blocks inheritance by
+     * denying Everything to Everyone.
+     */
+    protected CacheEntry getCacheEntry(Document doc, SecurityCache cache)
+            throws DocumentException {
+        String id = doc.getUUID();
+        CacheEntry entry = cache.get(id);
+        if (entry != null) {
+            return entry;
+        }
+        Document base = doc.isVersion() ? doc.getSourceDocument() : doc;
+        if (base == null) {
+            entry = new CacheEntry(id, null, null, null);
+        } else {
+            ACP acp = getACP(base);
+            Document parent = doc.getParent();
+            CacheEntry parentEntry = parent == null ? null : getCacheEntry(
+                    parent, cache);
+            ACL parentACL = parentEntry == null ? null
+                    : parentEntry.getInheritedACL();
+            ACL inheritedACL = acp.getMergedACLs(ACL.INHERITED_ACL);
+            if (parentACL != null
+                    && acp.getAccess(SecurityConstants.EVERYONE,
+                            SecurityConstants.EVERYTHING) != Access.DENY) {
+                inheritedACL.addAll(parentACL);
+            }
+            if (parentACL != null) {
+                acp.addACL(parentACL);
             }
-            doc = doc.getParent();
+            entry = new CacheEntry(id, parentEntry, acp, inheritedACL);
         }
-        return merged;
+        cache.put(entry);
+        return entry;
     }
 
 }
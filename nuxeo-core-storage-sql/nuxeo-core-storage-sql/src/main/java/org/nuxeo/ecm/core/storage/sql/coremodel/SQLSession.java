@@ -27,12 +27,15 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import javax.resource.ResourceException;
 import javax.transaction.xa.XAResource;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.nuxeo.ecm.core.api.CoreSession;
 import org.nuxeo.ecm.core.api.DocumentException;
 import org.nuxeo.ecm.core.api.VersionModel;
@@ -50,7 +53,6 @@ import org.nuxeo.ecm.core.query.QueryParseException;
 import org.nuxeo.ecm.core.query.QueryResult;
 import org.nuxeo.ecm.core.query.UnsupportedQueryTypeException;
 import org.nuxeo.ecm.core.query.sql.NXQL;
-import org.nuxeo.ecm.core.query.sql.SQLQueryParser;
 import org.nuxeo.ecm.core.query.sql.model.OrderByExpr;
 import org.nuxeo.ecm.core.query.sql.model.OrderByList;
 import org.nuxeo.ecm.core.query.sql.model.SQLQuery;
@@ -60,6 +62,7 @@ import org.nuxeo.ecm.core.schema.types.ComplexType;
 import org.nuxeo.ecm.core.schema.types.Field;
 import org.nuxeo.ecm.core.schema.types.ListType;
 import org.nuxeo.ecm.core.schema.types.Type;
+import org.nuxeo.ecm.core.security.SecurityCache;
 import org.nuxeo.ecm.core.security.SecurityManager;
 import org.nuxeo.ecm.core.storage.PartialList;
 import org.nuxeo.ecm.core.storage.StorageException;
@@ -78,6 +81,8 @@ import org.nuxeo.ecm.core.versioning.DocumentVersion;
  */
 public class SQLSession implements Session {
 
+    private static final Log log = LogFactory.getLog(SQLSession.class);
+
     private final Repository repository;
 
     private final Map<String, Serializable> context;
@@ -88,6 +93,8 @@ public class SQLSession implements Session {
 
     private final String userSessionId;
 
+    private final SecurityCache securityCache;
+
     public SQLSession(org.nuxeo.ecm.core.storage.sql.Session session,
             Repository repository, Map<String, Serializable> context)
             throws DocumentException {
@@ -108,6 +115,7 @@ public class SQLSession implements Session {
         root = newDocument(rootNode);
 
         userSessionId = (String) context.get("SESSION_ID");
+        securityCache = new SecurityCache();
     }
 
     /*
@@ -143,6 +151,7 @@ public class SQLSession implements Session {
     public void cancel() throws DocumentException {
         // TODO
         // throw new UnsupportedOperationException();
+        securityCache.invalidateAll();
     }
 
     public boolean isLive() {
@@ -204,6 +213,15 @@ public class SQLSession implements Session {
         }
     }
 
+    public List<Document> getDocumentsByUUIDs(List<String> uuids)
+            throws DocumentException {
+        List<Serializable> ids = new ArrayList<Serializable>(uuids.size());
+        for (String uuid : uuids) {
+            ids.add(session.getModel().unHackStringId(uuid));
+        }
+        return getDocumentsById(ids);
+    }
+
     public Document resolvePath(String path) throws DocumentException {
         if (path.endsWith("/") && path.length() > 1) {
             path = path.substring(0, path.length() - 1);
@@ -232,6 +250,7 @@ public class SQLSession implements Session {
             Node result = session.move(
                     ((SQLDocument) source).getHierarchyNode(),
                     ((SQLDocument) parent).getHierarchyNode(), name);
+            securityCache.invalidate(Collections.singleton(source.getUUID()));
             return newDocument(result);
         } catch (StorageException e) {
             throw new DocumentException(e);
@@ -396,9 +415,11 @@ public class SQLSession implements Session {
             throw new QueryException("Parameters not supported");
         }
         try {
-            return new SQLSessionQuery(SQLQueryParser.parse(query));
+            return new SQLSessionQuery(session.parseQuery(query));
         } catch (QueryParseException e) {
             throw new QueryException(e.getMessage() + ": " + query, e);
+        } catch (StorageException e) {
+            throw new QueryException(e.getMessage(), e);
         }
     }
 
@@ -463,6 +484,29 @@ public class SQLSession implements Session {
      * ----- called by SQLDocument -----
      */
 
+    /**
+     * Gets the cache of the merged ACPs computed for this session, after
+     * invalidating it for the changes made by other sessions.
+     */
+    protected SecurityCache getSecurityCache() throws DocumentException {
+        Set<Serializable> ids;
+        try {
+            ids = session.getSecurityInvalidations();
+        } catch (StorageException e) {
+            throw new DocumentException(e);
+        }
+        if (ids == null) {
+            securityCache.invalidateAll();
+        } else if (!ids.isEmpty()) {
+            List<String> uuids = new ArrayList<String>(ids.size());
+            for (Serializable id : ids) {
+                uuids.add(id.toString());
+            }
+            securityCache.invalidate(uuids);
+        }
+        return securityCache;
+    }
+
     private SQLDocument newDocument(Node node) throws DocumentException {
         return newDocument(node, true);
     }
@@ -516,6 +560,37 @@ public class SQLSession implements Session {
         }
     }
 
+    /**
+     * Gets several documents given their ids, reading their data in bulk.
+     *
+     * @param ids the ids
+     * @return the documents, in the same order as the ids, with {@code null}
+     *         for the documents that could not be found or created
+     */
+    protected List<Document> getDocumentsById(List<Serializable> ids)
+            throws DocumentException {
+        List<Node> nodes;
+        try {
+            nodes = session.getNodesByIds(ids);
+        } catch (StorageException e) {
+            throw new DocumentException("Failed to get documents: " + ids, e);
+        }
+        List<Document> docs = new ArrayList<Document>(nodes.size());
+        for (Node node : nodes) {
+            Document doc = null;
+            if (node != null) {
+                try {
+                    doc = newDocument(node);
+                } catch (DocumentException e) {
+                    log.error("Could not create document: " + node.getId()
+                            + ": " + e.getMessage());
+                }
+            }
+            docs.add(doc);
+        }
+        return docs;
+    }
+
     // called by SQLContentProperty
     protected Binary getBinary(InputStream in) throws DocumentException {
         try {
@@ -666,6 +741,8 @@ public class SQLSession implements Session {
             throws DocumentException {
         try {
             session.restoreByLabel(node, label);
+            String id = node.getId().toString();
+            securityCache.invalidate(Collections.singleton(id));
         } catch (StorageException e) {
             throw new DocumentException(e);
         }
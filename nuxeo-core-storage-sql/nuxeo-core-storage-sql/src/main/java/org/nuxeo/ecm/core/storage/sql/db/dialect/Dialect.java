@@ -292,6 +292,92 @@ public abstract class Dialect {
         return true;
     }
 
+    /**
+     * Gets the maximum number of parameters to use in a single {@code IN (?,
+     * ?, ...)} list.
+     *
+     * @return the maximum number of parameters
+     */
+    public int getMaximumArgsForIn() {
+        return 400;
+    }
+
+    /**
+     * Gets the maximum length of a path stored in the paths table.
+     * <p>
+     * The path column is indexed, so this is bounded by the maximum size of an
+     * index key in the database. Longer paths are recorded as missing and are
+     * resolved by walking the hierarchy.
+     *
+     * @return the maximum path length
+     */
+    public int getMaximumPathLength() {
+        return 1000;
+    }
+
+    /**
+     * Gets the SQL expression replacing the beginning of a string column,
+     * used to rewrite the paths of the descendants of a moved node.
+     *
+     * @param columnName the quoted column name
+     * @return an SQL expression with two parameters: the new prefix, and the
+     *         1-based position of the first character of the column to keep
+     */
+    public String getReplacePrefixSql(String columnName) {
+        return String.format("? || SUBSTR(%s, ?)", columnName);
+    }
+
+    /**
+     * Gets the SQL function returning the number of characters of a string.
+     */
+    public String getLengthFunction() {
+        return "LENGTH";
+    }
+
+    /**
+     * Escapes a string so that it matches literally when used as a {@code
+     * LIKE} pattern with an {@code ESCAPE '!'} clause.
+     *
+     * @param string the string to escape
+     * @return the escaped string
+     */
+    public String escapeLikeLiteral(String string) {
+        return escapeLikeLiteral(string, "!%_");
+    }
+
+    protected static String escapeLikeLiteral(String string, String special) {
+        StringBuilder buf = new StringBuilder(string.length() + 8);
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            if (special.indexOf(c) != -1) {
+                buf.append('!');
+            }
+            buf.append(c);
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Does the JDBC driver support sending several inserts in one batch with
+     * {@link PreparedStatement#executeBatch}.
+     *
+     * @return true if batch updates are supported
+     */
+    public boolean supportsBatchUpdates() {
+        return true;
+    }
+
+    /**
+     * Does the JDBC driver support returning the identity generated by an
+     * insert through {@link PreparedStatement#getGeneratedKeys}, avoiding a
+     * separate identity fetch query.
+     *
+     * @return true if generated keys can be retrieved
+     */
+    public boolean supportsGetGeneratedKeys() {
+        return false;
+    }
+
     public String getAddColumnString() {
         // "ADD COLUMN" or "ADD"
         return dialect.getAddColumnString().toUpperCase();
@@ -308,6 +394,32 @@ public abstract class Dialect {
      */
     public abstract boolean doesUpdateFromRepeatSelf();
 
+    /**
+     * Does the dialect support restricting the rows returned by a SELECT to a
+     * given page, using {@link #addPagingClause}.
+     * <p>
+     * If not, the rows before the page are skipped on the client side.
+     *
+     * @return true if paging is supported
+     */
+    public boolean supportsPaging() {
+        return false;
+    }
+
+    /**
+     * Restricts the rows returned by a SELECT to a given page.
+     *
+     * @param sql the SELECT statement
+     * @param limit the maximum number of rows returned
+     * @param offset the number of rows to skip
+     * @return the SELECT statement returning only the given page, with the
+     *         same first column
+     */
+    public String addPagingClause(String sql, long limit, long offset) {
+        throw new UnsupportedOperationException("Paging not supported by: "
+                + getClass().getSimpleName());
+    }
+
     /**
      * When doing a SELECT DISTINCT that uses a ORDER BY, do the keys along
      * which we order have to be mentioned in the DISTINCT clause?
@@ -440,9 +552,13 @@ public abstract class Dialect {
     }
 
     /**
-     * Gets the SQL to send an invalidation to the cluster.
+     * Gets the SQL to send invalidations to the cluster.
+     * <p>
+     * Several ids sharing the same fragments and kind are sent at once: if
+     * {@link #supportsArrays} they are passed as an array, otherwise as a
+     * single string of space-separated ids.
      *
-     * @return an SQL statement with parameters for: id, fragments, kind
+     * @return an SQL statement with parameters for: ids, fragments, kind
      */
     public String getClusterInsertInvalidations() {
         return null;
@@ -450,8 +566,11 @@ public abstract class Dialect {
 
     /**
      * Gets the SQL to query invalidations for this cluster node.
+     * <p>
+     * The invalidations returned are consumed, they won't be returned again.
      *
-     * @return an SQL statement returning a result set
+     * @return an SQL statement returning a result set with columns id,
+     *         fragments, kind
      */
     public String getClusterGetInvalidations() {
         return null;
@@ -76,6 +76,16 @@ public class DialectH2 extends Dialect {
         return false; // check this, unused
     }
 
+    @Override
+    public boolean supportsPaging() {
+        return true;
+    }
+
+    @Override
+    public String addPagingClause(String sql, long limit, long offset) {
+        return sql + " LIMIT " + limit + " OFFSET " + offset;
+    }
+
     @Override
     public boolean doesUpdateFromRepeatSelf() {
         return true;
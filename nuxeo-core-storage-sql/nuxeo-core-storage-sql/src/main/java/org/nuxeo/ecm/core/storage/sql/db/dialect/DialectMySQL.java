@@ -76,6 +76,37 @@ public class DialectMySQL extends Dialect {
         return true;
     }
 
+    @Override
+    public boolean supportsGetGeneratedKeys() {
+        return true;
+    }
+
+    @Override
+    public boolean supportsPaging() {
+        return true;
+    }
+
+    @Override
+    public String addPagingClause(String sql, long limit, long offset) {
+        return sql + " LIMIT " + limit + " OFFSET " + offset;
+    }
+
+    @Override
+    public int getMaximumPathLength() {
+        // InnoDB index keys are limited to 767 bytes, 3 bytes per UTF-8 char
+        return 255;
+    }
+
+    @Override
+    public String getReplacePrefixSql(String columnName) {
+        return String.format("CONCAT(?, SUBSTRING(%s, ?))", columnName);
+    }
+
+    @Override
+    public String getLengthFunction() {
+        return "CHAR_LENGTH";
+    }
+
     @Override
     public boolean doesUpdateFromRepeatSelf() {
         return true;
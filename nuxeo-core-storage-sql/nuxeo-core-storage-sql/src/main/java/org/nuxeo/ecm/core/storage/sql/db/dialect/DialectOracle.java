@@ -98,6 +98,21 @@ public class DialectOracle extends Dialect {
         throw new UnsupportedOperationException();
     }
 
+    @Override
+    public boolean supportsPaging() {
+        return true;
+    }
+
+    @Override
+    public String addPagingClause(String sql, long limit, long offset) {
+        // ROWNUM is assigned before ORDER BY, so it must be used outside
+        return String.format(
+                "SELECT * FROM (SELECT \"_nxpage\".*, ROWNUM \"_nxrownum\""
+                        + " FROM (%s) \"_nxpage\" WHERE ROWNUM <= %d)"
+                        + " WHERE \"_nxrownum\" > %d", sql, offset + limit,
+                offset);
+    }
+
     @Override
     public boolean doesUpdateFromRepeatSelf() {
         throw new UnsupportedOperationException();
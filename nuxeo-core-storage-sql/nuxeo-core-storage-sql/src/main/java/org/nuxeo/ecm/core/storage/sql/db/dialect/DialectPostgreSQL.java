@@ -38,6 +38,9 @@ import org.nuxeo.ecm.core.storage.sql.db.Table;
 
 /**
  * PostgreSQL-specific dialect.
+ * <p>
+ * PostgreSQL 8.2 or later is required, for {@code DELETE ... RETURNING} (used
+ * to consume cluster invalidations) and {@code DROP ... IF EXISTS}.
  *
  * @author Florent Guillaume
  */
@@ -50,6 +53,18 @@ public class DialectPostgreSQL extends Dialect {
     public DialectPostgreSQL(DatabaseMetaData metadata,
             RepositoryDescriptor repositoryDescriptor) throws StorageException {
         super(new PostgreSQLDialect(), metadata);
+        int major;
+        int minor;
+        try {
+            major = metadata.getDatabaseMajorVersion();
+            minor = metadata.getDatabaseMinorVersion();
+        } catch (SQLException e) {
+            throw new StorageException(e);
+        }
+        if (major < 8 || (major == 8 && minor < 2)) {
+            throw new StorageException("PostgreSQL 8.2 or later is required, "
+                    + "found: " + major + '.' + minor);
+        }
         fulltextAnalyzer = repositoryDescriptor.fulltextAnalyzer == null ? DEFAULT_FULLTEXT_ANALYZER
                 : repositoryDescriptor.fulltextAnalyzer;
     }
@@ -100,6 +115,16 @@ public class DialectPostgreSQL extends Dialect {
         return true;
     }
 
+    @Override
+    public boolean supportsPaging() {
+        return true;
+    }
+
+    @Override
+    public String addPagingClause(String sql, long limit, long offset) {
+        return sql + " LIMIT " + limit + " OFFSET " + offset;
+    }
+
     @Override
     public boolean doesUpdateFromRepeatSelf() {
         return false;
@@ -353,48 +378,44 @@ public class DialectPostgreSQL extends Dialect {
                                 + "STABLE " //
                         , fulltextAnalyzer)));
 
+        // functions replaced by NX_CLUSTER_INVALS and DELETE ... RETURNING
+        // (one statement each, DROP FUNCTION takes a single function)
         statements.add(new ConditionalStatement(
                 true, // early
                 Boolean.FALSE, // no drop needed
                 null, //
                 null, //
                 String.format(
-                        "CREATE OR REPLACE FUNCTION NX_CLUSTER_INVAL" //
-                                + "(i %s, f varchar[], k int) " //
+                        "DROP FUNCTION IF EXISTS NX_CLUSTER_INVAL(%s, varchar[], int)",
+                        idType)));
+
+        statements.add(new ConditionalStatement(
+                true, // early
+                Boolean.FALSE, // no drop needed
+                null, //
+                null, //
+                "DROP FUNCTION IF EXISTS NX_CLUSTER_GET_INVALS()"));
+
+        statements.add(new ConditionalStatement(
+                true, // early
+                Boolean.FALSE, // no drop needed
+                null, //
+                null, //
+                String.format(
+                        "CREATE OR REPLACE FUNCTION NX_CLUSTER_INVALS" //
+                                + "(i varchar[], f varchar[], k int) " //
                                 + "RETURNS VOID " //
                                 + "AS $$ " //
-                                + "DECLARE" //
-                                + "  nid int; " //
                                 + "BEGIN" //
-                                + "  FOR nid IN SELECT nodeid FROM cluster_nodes WHERE nodeid <> pg_backend_pid() LOOP" //
-                                + "  INSERT INTO cluster_invals (nodeid, id, fragments, kind) VALUES (nid, i, f, k);" //
-                                + "  END LOOP; " //
+                                + "  INSERT INTO cluster_invals (nodeid, id, fragments, kind)" //
+                                + "    SELECT n.nodeid, CAST(i[s] AS %s), f, k" //
+                                + "    FROM cluster_nodes n, generate_series(array_lower(i, 1), array_upper(i, 1)) s" //
+                                + "    WHERE n.nodeid <> pg_backend_pid(); " //
                                 + "END " //
                                 + "$$ " //
                                 + "LANGUAGE plpgsql" //
                         , idType)));
 
-        statements.add(new ConditionalStatement(
-                true, // early
-                Boolean.FALSE, // no drop needed
-                null, //
-                null, //
-                "CREATE OR REPLACE FUNCTION NX_CLUSTER_GET_INVALS() " //
-                        + "RETURNS SETOF RECORD " //
-                        + "AS $$ " //
-                        + "DECLARE" //
-                        + "  r RECORD; " //
-                        + "BEGIN" //
-                        + "  FOR r IN SELECT id, fragments, kind FROM cluster_invals WHERE nodeid = pg_backend_pid() LOOP" //
-                        + "    RETURN NEXT r;" //
-                        + "  END LOOP;" //
-                        + "  DELETE FROM cluster_invals WHERE nodeid = pg_backend_pid();" //
-                        + "  RETURN; " //
-                        + "END " //
-                        + "$$ " //
-                        + "LANGUAGE plpgsql" //
-        ));
-
         statements.add(new ConditionalStatement(
                 //
                 false, // late
@@ -477,13 +498,14 @@ public class DialectPostgreSQL extends Dialect {
 
     @Override
     public String getClusterInsertInvalidations() {
-        return "SELECT NX_CLUSTER_INVAL(?, ?, ?)";
+        return "SELECT NX_CLUSTER_INVALS(?, ?, ?)";
     }
 
     @Override
     public String getClusterGetInvalidations() {
-        // TODO id type
-        return "SELECT * FROM NX_CLUSTER_GET_INVALS() "
-                + "AS invals(id varchar(36), fragments varchar[], kind int)";
+        // read and consume atomically, so that invalidations inserted
+        // concurrently are never deleted without being read
+        return "DELETE FROM cluster_invals WHERE nodeid = pg_backend_pid() "
+                + "RETURNING id, fragments, kind";
     }
 }
@@ -69,6 +69,29 @@ public class DialectSQLServer extends Dialect {
         return super.getTypeName(sqlType, length, precision, scale);
     }
 
+    @Override
+    public int getMaximumPathLength() {
+        // index keys are limited to 900 bytes, 2 bytes per NVARCHAR char
+        return 450;
+    }
+
+    @Override
+    public String getReplacePrefixSql(String columnName) {
+        return String.format("? + SUBSTRING(%s, ?, LEN(%s))", columnName,
+                columnName);
+    }
+
+    @Override
+    public String getLengthFunction() {
+        return "LEN";
+    }
+
+    @Override
+    public String escapeLikeLiteral(String string) {
+        // brackets introduce character classes in LIKE patterns
+        return escapeLikeLiteral(string, "!%_[");
+    }
+
     @Override
     public String getCreateFulltextIndexSql(String indexName, String tableName,
             List<String> columnNames) {
@@ -114,6 +137,11 @@ public class DialectSQLServer extends Dialect {
         return false;
     }
 
+    @Override
+    public boolean supportsGetGeneratedKeys() {
+        return true;
+    }
+
     @Override
     public boolean supportsUpdateFrom() {
         return true;
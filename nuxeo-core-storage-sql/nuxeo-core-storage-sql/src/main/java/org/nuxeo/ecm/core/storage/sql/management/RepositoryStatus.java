@@ -29,6 +29,7 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.nuxeo.ecm.core.storage.sql.Repository;
 import org.nuxeo.ecm.core.storage.sql.RepositoryManagement;
+import org.nuxeo.ecm.core.storage.sql.coremodel.BinaryTextPipeline;
 
 /**
  * An MBean to manage SQL storage repositories.
@@ -118,4 +119,198 @@ public class RepositoryStatus implements RepositoryStatusMBean {
         return buf.toString();
     }
 
+    public String listFragmentCacheStatistics() {
+        List<RepositoryManagement> repositories;
+        try {
+            repositories = getRepositories();
+        } catch (NamingException e) {
+            log.error("Error getting repositories", e);
+            return "Error!";
+        }
+        StringBuilder buf = new StringBuilder();
+        buf.append("Fragment cache for SQL repositories:<br />");
+        for (RepositoryManagement repository : repositories) {
+            buf.append("<b>").append(repository.getName()).append("</b>: ");
+            buf.append(repository.getFragmentCacheSize()).append(" fragments, ");
+            buf.append(repository.getFragmentCacheHitCount()).append(" hits, ");
+            buf.append(repository.getFragmentCacheMissCount()).append(
+                    " misses, ");
+            buf.append(repository.getFragmentCacheEvictionCount()).append(
+                    " evictions");
+            buf.append("<br />");
+        }
+        return buf.toString();
+    }
+
+    public int getFragmentCacheSize() {
+        int size = 0;
+        for (RepositoryManagement repository : getRepositoriesOrFail()) {
+            size += repository.getFragmentCacheSize();
+        }
+        return size;
+    }
+
+    public long getFragmentCacheHitCount() {
+        long count = 0;
+        for (RepositoryManagement repository : getRepositoriesOrFail()) {
+            count += repository.getFragmentCacheHitCount();
+        }
+        return count;
+    }
+
+    public long getFragmentCacheMissCount() {
+        long count = 0;
+        for (RepositoryManagement repository : getRepositoriesOrFail()) {
+            count += repository.getFragmentCacheMissCount();
+        }
+        return count;
+    }
+
+    public long getFragmentCacheEvictionCount() {
+        long count = 0;
+        for (RepositoryManagement repository : getRepositoriesOrFail()) {
+            count += repository.getFragmentCacheEvictionCount();
+        }
+        return count;
+    }
+
+    public String listQueryCacheStatistics() {
+        List<RepositoryManagement> repositories;
+        try {
+            repositories = getRepositories();
+        } catch (NamingException e) {
+            log.error("Error getting repositories", e);
+            return "Error!";
+        }
+        StringBuilder buf = new StringBuilder();
+        buf.append("Query cache for SQL repositories:<br />");
+        for (RepositoryManagement repository : repositories) {
+            buf.append("<b>").append(repository.getName()).append("</b>: ");
+            buf.append(repository.getQueryCacheSize()).append(" plans, ");
+            buf.append(repository.getQueryCacheHitCount()).append(" hits, ");
+            buf.append(repository.getQueryCacheMissCount()).append(
+                    " misses, ");
+            buf.append(repository.getQueryParseCacheHitCount()).append(
+                    " parse hits, ");
+            buf.append(repository.getQueryParseCacheMissCount()).append(
+                    " parse misses");
+            buf.append("<br />");
+        }
+        return buf.toString();
+    }
+
+    public int getQueryCacheSize() {
+        int size = 0;
+        for (RepositoryManagement repository : getRepositoriesOrFail()) {
+            size += repository.getQueryCacheSize();
+        }
+        return size;
+    }
+
+    public long getQueryCacheHitCount() {
+        long count = 0;
+        for (RepositoryManagement repository : getRepositoriesOrFail()) {
+            count += repository.getQueryCacheHitCount();
+        }
+        return count;
+    }
+
+    public long getQueryCacheMissCount() {
+        long count = 0;
+        for (RepositoryManagement repository : getRepositoriesOrFail()) {
+            count += repository.getQueryCacheMissCount();
+        }
+        return count;
+    }
+
+    public String listClusterInvalidationStatistics() {
+        List<RepositoryManagement> repositories;
+        try {
+            repositories = getRepositories();
+        } catch (NamingException e) {
+            log.error("Error getting repositories", e);
+            return "Error!";
+        }
+        StringBuilder buf = new StringBuilder();
+        buf.append("Cluster invalidations for SQL repositories:<br />");
+        for (RepositoryManagement repository : repositories) {
+            buf.append("<b>").append(repository.getName()).append("</b>: ");
+            buf.append(repository.getClusterInvalidationsSentCount()).append(
+                    " sent, ");
+            buf.append(repository.getClusterInvalidationsReceivedCount()).append(
+                    " received, lag ");
+            buf.append(repository.getClusterInvalidationsLag()).append(
+                    " ms");
+            buf.append("<br />");
+        }
+        return buf.toString();
+    }
+
+    public long getClusterInvalidationsSentCount() {
+        long count = 0;
+        for (RepositoryManagement repository : getRepositoriesOrFail()) {
+            count += repository.getClusterInvalidationsSentCount();
+        }
+        return count;
+    }
+
+    public long getClusterInvalidationsReceivedCount() {
+        long count = 0;
+        for (RepositoryManagement repository : getRepositoriesOrFail()) {
+            count += repository.getClusterInvalidationsReceivedCount();
+        }
+        return count;
+    }
+
+    public long getClusterInvalidationsLag() {
+        long lag = 0;
+        for (RepositoryManagement repository : getRepositoriesOrFail()) {
+            lag = Math.max(lag, repository.getClusterInvalidationsLag());
+        }
+        return lag;
+    }
+
+    public String listFulltextExtractionStatistics() {
+        StringBuilder buf = new StringBuilder();
+        buf.append("Fulltext extraction:<br />");
+        for (BinaryTextPipeline pipeline : BinaryTextPipeline.getPipelines()) {
+            buf.append("<b>").append(pipeline.getRepositoryName()).append(
+                    "</b>: ");
+            buf.append(pipeline.getBacklog()).append(" documents waiting, ");
+            buf.append(pipeline.getDocumentsProcessed()).append(
+                    " documents processed, ");
+            buf.append(pipeline.getBinariesConverted()).append(
+                    " binaries converted in ");
+            buf.append(pipeline.getConversionTime()).append(" ms, ");
+            buf.append(pipeline.getBinariesReused()).append(
+                    " binaries reused");
+            buf.append("<br />");
+        }
+        return buf.toString();
+    }
+
+    public long getFulltextExtractionBacklog() {
+        long backlog = 0;
+        for (BinaryTextPipeline pipeline : BinaryTextPipeline.getPipelines()) {
+            backlog += pipeline.getBacklog();
+        }
+        return backlog;
+    }
+
+    public double getFulltextExtractionThroughput() {
+        double throughput = 0;
+        for (BinaryTextPipeline pipeline : BinaryTextPipeline.getPipelines()) {
+            throughput += pipeline.getThroughput();
+        }
+        return throughput;
+    }
+
+    protected List<RepositoryManagement> getRepositoriesOrFail() {
+        try {
+            return getRepositories();
+        } catch (NamingException e) {
+            throw new IllegalStateException("Cannot get repositories", e);
+        }
+    }
+
 }
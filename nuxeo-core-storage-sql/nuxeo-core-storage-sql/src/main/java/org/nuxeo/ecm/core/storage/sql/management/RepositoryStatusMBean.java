@@ -38,4 +38,90 @@ public interface RepositoryStatusMBean {
      */
     String clearCaches();
 
+    /**
+     * Lists the repository-wide fragment cache statistics.
+     */
+    String listFragmentCacheStatistics();
+
+    /**
+     * Gets the number of fragments held in the repository-wide fragment caches.
+     */
+    int getFragmentCacheSize();
+
+    /**
+     * Gets the number of fragment reads served by the repository-wide fragment
+     * caches.
+     */
+    long getFragmentCacheHitCount();
+
+    /**
+     * Gets the number of fragment reads that missed the repository-wide
+     * fragment caches.
+     */
+    long getFragmentCacheMissCount();
+
+    /**
+     * Gets the number of fragments evicted from the repository-wide fragment
+     * caches.
+     */
+    long getFragmentCacheEvictionCount();
+
+    /**
+     * Lists the repository-wide query cache statistics.
+     */
+    String listQueryCacheStatistics();
+
+    /**
+     * Gets the number of SQL plans held in the repository-wide query caches.
+     */
+    int getQueryCacheSize();
+
+    /**
+     * Gets the number of queries whose SQL plan was found in the query caches.
+     */
+    long getQueryCacheHitCount();
+
+    /**
+     * Gets the number of queries whose SQL plan had to be generated.
+     */
+    long getQueryCacheMissCount();
+
+    /**
+     * Lists the cluster invalidation statistics.
+     */
+    String listClusterInvalidationStatistics();
+
+    /**
+     * Gets the number of invalidated ids sent to the other cluster nodes.
+     */
+    long getClusterInvalidationsSentCount();
+
+    /**
+     * Gets the number of invalidated ids received from the other cluster
+     * nodes.
+     */
+    long getClusterInvalidationsReceivedCount();
+
+    /**
+     * Gets the maximum age of the cluster invalidations last received by a
+     * repository, in milliseconds.
+     */
+    long getClusterInvalidationsLag();
+
+    /**
+     * Lists the statistics of the fulltext extraction pipeline.
+     */
+    String listFulltextExtractionStatistics();
+
+    /**
+     * Gets the number of documents waiting for fulltext extraction.
+     */
+    long getFulltextExtractionBacklog();
+
+    /**
+     * Gets the average number of documents whose fulltext is extracted per
+     * second.
+     */
+    double getFulltextExtractionThroughput();
+
 }
@@ -78,9 +78,12 @@ import org.nuxeo.ecm.core.model.PathComparator;
 import org.nuxeo.ecm.core.model.Session;
 import org.nuxeo.ecm.core.query.FilterableQuery;
 import org.nuxeo.ecm.core.query.Query;
+import org.nuxeo.ecm.core.query.QueryException;
 import org.nuxeo.ecm.core.query.QueryFilter;
 import org.nuxeo.ecm.core.query.QueryParseException;
 import org.nuxeo.ecm.core.query.QueryResult;
+import org.nuxeo.ecm.core.query.sql.NXQL;
+import org.nuxeo.ecm.core.query.sql.SQLQueryParser;
 import org.nuxeo.ecm.core.repository.RepositoryInitializationHandler;
 import org.nuxeo.ecm.core.schema.DocumentType;
 import org.nuxeo.ecm.core.schema.NXSchema;
@@ -418,16 +421,37 @@ public abstract class AbstractSession implements CoreSession,
 
     protected final boolean hasPermission(Document doc, String permission)
             throws DocumentException {
-        // TODO: optimize this - usually ACP is already available when calling
-        // this method.
-        // -> cache ACP at securitymanager level or try to reuse the ACP when it
-        // is known
+        // the merged ACPs are cached by the security manager
         return getSecurityService().checkPermission(doc, getPrincipal(),
                 permission);
         // return doc.getSession().getSecurityManager().checkPermission(doc,
         // getPrincipal().getName(), permission);
     }
 
+    /**
+     * Gets the documents on which the current principal has a permission.
+     *
+     * @param docs the documents to filter
+     * @param permission the permission
+     * @return the granted documents, in the same order
+     */
+    protected final List<Document> filterPermission(Iterator<Document> docs,
+            String permission) throws DocumentException {
+        List<Document> list = new ArrayList<Document>();
+        while (docs.hasNext()) {
+            list.add(docs.next());
+        }
+        boolean[] granted = getSecurityService().checkPermission(list,
+                getPrincipal(), permission);
+        List<Document> result = new ArrayList<Document>(list.size());
+        for (int i = 0; i < granted.length; i++) {
+            if (granted[i]) {
+                result.add(list.get(i));
+            }
+        }
+        return result;
+    }
+
     protected final Document resolveReference(DocumentRef docRef)
             throws DocumentException, ClientException {
         return DocumentResolver.resolveReference(getSession(), docRef);
@@ -958,18 +982,37 @@ public abstract class AbstractSession implements CoreSession,
             }
             Document doc = resolveReference(parent);
             checkPermission(doc, READ_CHILDREN);
-            Iterator<Document> children = doc.getChildren();
-            DocumentModelList docs = new DocumentModelListImpl();
-            while (children.hasNext()) {
-                Document child = children.next();
-                if (hasPermission(child, perm)) {
-                    if (child.getType() != null
-                            && (type == null || type.equals(child.getType().getName()))) {
-                        DocumentModel childModel = readModel(child, null);
-                        if (filter == null || filter.accept(childModel)) {
-                            docs.add(childModel);
+            String orderBy = getQueryOrderBy(sorter);
+            DocumentModelList docs = queryChildren(doc, type, perm,
+                    filter instanceof FacetFilter ? (FacetFilter) filter
+                            : null, orderBy == null ? "" : orderBy, 0, 0,
+                    false);
+            if (docs != null) {
+                if (filter != null && !(filter instanceof FacetFilter)) {
+                    DocumentModelList filtered = new DocumentModelListImpl();
+                    for (DocumentModel childModel : docs) {
+                        if (filter.accept(childModel)) {
+                            filtered.add(childModel);
                         }
                     }
+                    docs = filtered;
+                }
+                if (sorter != null && orderBy == null) {
+                    Collections.sort(docs, sorter);
+                }
+                return docs;
+            }
+            // the backend cannot query, iterate on all the children
+            List<Document> children = filterPermission(doc.getChildren(),
+                    perm);
+            docs = new DocumentModelListImpl();
+            for (Document child : children) {
+                if (child.getType() != null
+                        && (type == null || type.equals(child.getType().getName()))) {
+                    DocumentModel childModel = readModel(child, null);
+                    if (filter == null || filter.accept(childModel)) {
+                        docs.add(childModel);
+                    }
                 }
             }
             if (sorter != null) {
@@ -982,6 +1025,119 @@ public abstract class AbstractSession implements CoreSession,
         }
     }
 
+    /**
+     * Queries the children of a document, letting the backend check the type,
+     * the permission and the facet filter, and do the ordering and the
+     * pagination.
+     *
+     * @param parent the parent document
+     * @param type the type of the children, or {@code null} for all types
+     * @param perm the permission to check on the children
+     * @param filter the facet filter, or {@code null}
+     * @param orderBy the NXQL ORDER BY clause, or an empty string; when
+     *            paging it is completed by the name and id
+     * @param limit the maximum number of children, or {@code 0} for all
+     * @param offset the offset of the first child
+     * @param countTotal if {@code true}, count the total number of children
+     * @return the children, or {@code null} if the backend cannot express the
+     *         query, in which case the children have to be iterated on
+     */
+    protected DocumentModelList queryChildren(Document parent, String type,
+            String perm, FacetFilter filter, String orderBy, long limit,
+            long offset, boolean countTotal) throws DocumentException,
+            ClientException {
+        SecurityService securityService = getSecurityService();
+        if (!securityService.arePoliciesExpressibleInQuery()) {
+            return null;
+        }
+        if (type != null
+                && getSession().getTypeManager().getDocumentType(type) == null) {
+            return new DocumentModelListImpl();
+        }
+        String query = "SELECT * FROM " + (type == null ? "Document" : type)
+                + " WHERE " + NXQL.ECM_PARENTID + " = "
+                + SQLQueryParser.prepareStringLiteral(parent.getUUID());
+        if (type != null) {
+            // exclude subtypes
+            query += " AND " + NXQL.ECM_PRIMARYTYPE + " = "
+                    + SQLQueryParser.prepareStringLiteral(type);
+        }
+        query += orderBy;
+        if (limit != 0) {
+            // pages must not overlap, the order has to be total
+            query += (orderBy.length() == 0 ? " ORDER BY " : ", ")
+                    + NXQL.ECM_NAME + ", " + NXQL.ECM_UUID;
+        }
+        try {
+            Query compiledQuery = getSession().createQuery(query,
+                    Query.Type.NXQL);
+            if (!(compiledQuery instanceof FilterableQuery)) {
+                return null;
+            }
+            Principal principal = getPrincipal();
+            String[] principals;
+            if (principal.getName().equals("system")) {
+                principals = null; // means: no security check needed
+            } else {
+                principals = SecurityService.getPrincipalsToCheck(principal);
+            }
+            QueryFilter queryFilter = new QueryFilter(principals,
+                    securityService.getPermissionsToCheck(perm), filter,
+                    securityService.getPoliciesQueryTransformers());
+            if (limit != 0) {
+                compiledQuery.setLimit(limit);
+                compiledQuery.setOffset(offset);
+            }
+            QueryResult results = ((FilterableQuery) compiledQuery).execute(
+                    queryFilter, countTotal);
+            return results.getDocumentModels();
+        } catch (QueryException e) {
+            throw new ClientException("Failed to query children of "
+                    + parent.getUUID(), e);
+        }
+    }
+
+    /**
+     * Gets the NXQL ORDER BY clause equivalent to a sorter, if the sorter
+     * compares documents on simple properties.
+     *
+     * @param sorter the sorter, or {@code null}
+     * @return the ORDER BY clause, an empty string if there is no sorter, or
+     *         {@code null} if the sorter has to be applied in memory
+     */
+    protected String getQueryOrderBy(Sorter sorter) throws ClientException {
+        if (sorter == null) {
+            return "";
+        }
+        if (!(sorter instanceof DocumentModelComparator)) {
+            return null;
+        }
+        DocumentModelComparator comparator = (DocumentModelComparator) sorter;
+        Map<String, String> orderBy = comparator.getOrderBy();
+        if (comparator.getSchemaName() != null || orderBy == null
+                || orderBy.isEmpty()) {
+            return null;
+        }
+        StringBuilder buf = new StringBuilder(" ORDER BY ");
+        boolean first = true;
+        for (Entry<String, String> es : orderBy.entrySet()) {
+            String name = es.getKey();
+            Field field = getSession().getTypeManager().getField(name);
+            if (field == null || !field.getType().isSimpleType()) {
+                return null;
+            }
+            if (!first) {
+                buf.append(", ");
+            }
+            first = false;
+            buf.append(name);
+            if (!DocumentModelComparator.ORDER_ASC.equals(es.getValue())) {
+                buf.append(" DESC");
+            }
+        }
+        return buf.toString();
+    }
+
     public List<DocumentRef> getChildrenRefs(DocumentRef parentRef, String perm)
             throws ClientException {
         if (perm != null) {
@@ -1020,6 +1176,28 @@ public abstract class AbstractSession implements CoreSession,
                 perm = READ;
             }
 
+            if (def.getType() == DocsQueryProviderDef.DefType.TYPE_CHILDREN
+                    && (filter == null || filter instanceof FacetFilter)) {
+                Document doc = resolveReference(def.getParent());
+                checkPermission(doc, READ_CHILDREN);
+                // fetch one more document to know if there are more
+                DocumentModelList docs = queryChildren(doc, type, perm,
+                        (FacetFilter) filter, "", max == 0 ? 0 : max + 1,
+                        start, true);
+                if (docs != null) {
+                    boolean hasMore = max != 0 && docs.size() > max;
+                    if (hasMore) {
+                        docs.remove(max);
+                    }
+                    long total = docs.totalSize();
+                    if (total < 0) {
+                        total = start + docs.size() + (hasMore ? 1 : 0);
+                    }
+                    return new DocumentModelsChunk(docs, start + docs.size(),
+                            hasMore, total);
+                }
+            }
+
             DocsQueryProvider dqp = dqpFactory.getDQLbyType(def);
             // Document doc = resolveReference(parent);
             // checkPermission(doc, READ_CHILDREN);
@@ -1100,17 +1278,55 @@ public abstract class AbstractSession implements CoreSession,
 
     public DocumentModelList getDocuments(DocumentRef[] docRefs)
             throws ClientException {
-        List<DocumentModel> docs = new ArrayList<DocumentModel>(docRefs.length);
+        // fetch the documents referenced by id in one call
+        List<String> uuids = new ArrayList<String>(docRefs.length);
         for (DocumentRef docRef : docRefs) {
-            Document doc;
+            if (docRef.type() == DocumentRef.ID) {
+                uuids.add((String) docRef.reference());
+            }
+        }
+        Map<String, Document> byId = new HashMap<String, Document>();
+        if (!uuids.isEmpty()) {
             try {
-                doc = resolveReference(docRef);
-                checkPermission(doc, READ);
+                Iterator<String> it = uuids.iterator();
+                for (Document doc : getSession().getDocumentsByUUIDs(uuids)) {
+                    String uuid = it.next();
+                    if (doc != null) {
+                        byId.put(uuid, doc);
+                    }
+                }
             } catch (DocumentException e) {
-                // no permission, or other low-level error
-                continue;
+                // resolve them one by one below
+                log.error("Failed to get documents: " + uuids, e);
+                uuids.clear();
             }
-            docs.add(readModel(doc, null));
+        }
+        List<Document> found = new ArrayList<Document>(docRefs.length);
+        for (DocumentRef docRef : docRefs) {
+            Document doc;
+            if (docRef.type() == DocumentRef.ID && !uuids.isEmpty()) {
+                doc = byId.get(docRef.reference());
+                if (doc == null) {
+                    // no such document
+                    continue;
+                }
+            } else {
+                try {
+                    doc = resolveReference(docRef);
+                } catch (DocumentException e) {
+                    // no such document, or other low-level error
+                    continue;
+                }
+            }
+            found.add(doc);
+        }
+        List<DocumentModel> docs = new ArrayList<DocumentModel>(found.size());
+        try {
+            for (Document doc : filterPermission(found.iterator(), READ)) {
+                docs.add(readModel(doc, null));
+            }
+        } catch (DocumentException e) {
+            throw new ClientException("Failed to get documents", e);
         }
         return new DocumentModelListImpl(docs);
     }
@@ -1120,11 +1336,11 @@ public abstract class AbstractSession implements CoreSession,
         try {
             Document doc = resolveReference(parent);
             checkPermission(doc, READ_CHILDREN);
-            Iterator<Document> children = doc.getChildren();
+            List<Document> children = filterPermission(doc.getChildren(),
+                    READ);
             DocumentModelList docs = new DocumentModelListImpl();
-            while (children.hasNext()) {
-                Document child = children.next();
-                if (!child.isFolder() && hasPermission(child, READ)) {
+            for (Document child : children) {
+                if (!child.isFolder()) {
                     docs.add(readModel(child, null));
                 }
             }
@@ -1149,11 +1365,11 @@ public abstract class AbstractSession implements CoreSession,
         try {
             Document doc = resolveReference(parent);
             checkPermission(doc, READ_CHILDREN);
-            Iterator<Document> children = doc.getChildren();
+            List<Document> children = filterPermission(doc.getChildren(),
+                    READ);
             DocumentModelList docs = new DocumentModelListImpl();
-            while (children.hasNext()) {
-                Document child = children.next();
-                if (!child.isFolder() && hasPermission(child, READ)) {
+            for (Document child : children) {
+                if (!child.isFolder()) {
                     DocumentModel docModel = readModel(doc, null);
                     if (filter == null || filter.accept(docModel)) {
                         docs.add(readModel(child, null));
@@ -1175,11 +1391,11 @@ public abstract class AbstractSession implements CoreSession,
         try {
             Document doc = resolveReference(parent);
             checkPermission(doc, READ_CHILDREN);
-            Iterator<Document> children = doc.getChildren();
+            List<Document> children = filterPermission(doc.getChildren(),
+                    READ);
             DocumentModelList docs = new DocumentModelListImpl();
-            while (children.hasNext()) {
-                Document child = children.next();
-                if (child.isFolder() && hasPermission(child, READ)) {
+            for (Document child : children) {
+                if (child.isFolder()) {
                     docs.add(readModel(child, null));
                 }
             }
@@ -1202,11 +1418,11 @@ public abstract class AbstractSession implements CoreSession,
         try {
             Document doc = resolveReference(parent);
             checkPermission(doc, READ_CHILDREN);
-            Iterator<Document> children = doc.getChildren();
+            List<Document> children = filterPermission(doc.getChildren(),
+                    READ);
             DocumentModelList docs = new DocumentModelListImpl();
-            while (children.hasNext()) {
-                Document child = children.next();
-                if (child.isFolder() && hasPermission(child, READ)) {
+            for (Document child : children) {
+                if (child.isFolder()) {
                     DocumentModel docModel = readModel(doc, null);
                     if (filter == null || filter.accept(docModel)) {
                         docs.add(readModel(child, null));
@@ -2150,10 +2366,8 @@ public abstract class AbstractSession implements CoreSession,
             Document doc = resolveReference(docRef);
             Collection<Document> children = getSession().getProxies(doc, folder);
             DocumentModelList docs = new DocumentModelListImpl();
-            for (Document child : children) {
-                if (hasPermission(child, READ)) {
-                    docs.add(readModel(child, null));
-                }
+            for (Document child : filterPermission(children.iterator(), READ)) {
+                docs.add(readModel(child, null));
             }
             return docs;
         } catch (DocumentException e) {
@@ -2173,10 +2387,8 @@ public abstract class AbstractSession implements CoreSession,
                 return null;
             }
             List<String> versions = new ArrayList<String>();
-            for (Document child : children) {
-                if (hasPermission(child, READ)) {
-                    versions.add(((DocumentVersionProxy) child).getTargetVersion().getLabel());
-                }
+            for (Document child : filterPermission(children.iterator(), READ)) {
+                versions.add(((DocumentVersionProxy) child).getTargetVersion().getLabel());
             }
             return versions.toArray(new String[versions.size()]);
         } catch (DocumentException e) {
@@ -22,6 +22,7 @@ package org.nuxeo.ecm.core.model;
 import java.io.InputStream;
 import java.io.Serializable;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 
 import javax.transaction.xa.XAResource;
@@ -159,6 +160,19 @@ public interface Session {
      */
     Document getDocumentByUUID(String uuid) throws DocumentException;
 
+    /**
+     * Gets several documents given their IDs.
+     * <p>
+     * Backends able to do so read the documents in bulk.
+     *
+     * @param uuids the document ids
+     * @return the documents, in the same order as the ids, with {@code null}
+     *         for the documents that don't exist
+     * @throws DocumentException if any error occurs
+     */
+    List<Document> getDocumentsByUUIDs(List<String> uuids)
+            throws DocumentException;
+
     /**
      * Gets the root document in this repository.
      *
@@ -1,5 +1,5 @@
 /*
- * (C) Copyright 2006-2007 Nuxeo SAS (http://nuxeo.com/) and contributors.
+ * (C) Copyright 2006-2009 Nuxeo SAS (http://nuxeo.com/) and contributors.
  *
  * All rights reserved. This program and the accompanying materials
  * are made available under the terms of the GNU Lesser General Public License
@@ -13,81 +13,73 @@
  *
  * Contributors:
  *     Nuxeo - initial API and implementation
+ *     Florent Guillaume
  *
  * $Id$
  */
 
 package org.nuxeo.ecm.core.security;
 
-import org.nuxeo.ecm.core.api.security.Access;
+import org.nuxeo.ecm.core.api.security.ACL;
+import org.nuxeo.ecm.core.api.security.ACP;
 
 /**
- * @author Bogdan Stefanescu
+ * Entry of a {@link SecurityCache}: the merged ACP of a document, and the ACL
+ * its children inherit.
+ * <p>
+ * The ACP and ACL must not be modified, they are shared with the entries of
+ * the children.
  *
+ * @author Bogdan Stefanescu
+ * @author Florent Guillaume
  */
 public class CacheEntry {
 
     private final String docUid;
 
-    private final String username;
-
-    private final String permission;
+    private final CacheEntry parent;
 
-    private final SecurityCache cache;
+    private final ACP acp;
 
-    private Access access;
+    private final ACL inheritedACL;
 
-    private int hash;
-
-    public CacheEntry(SecurityCache cache, String docUid, String username, String permission) {
+    public CacheEntry(String docUid, CacheEntry parent, ACP acp,
+            ACL inheritedACL) {
         this.docUid = docUid;
-        this.username = username;
-        this.permission = permission;
-        this.cache = cache;
+        this.parent = parent;
+        this.acp = acp;
+        this.inheritedACL = inheritedACL;
     }
 
-    public final void setAccess(Access access) {
-        this.access = access;
-        if (hash == 0) {
-            cache.put(this);
-        }
+    public final String getDocUid() {
+        return docUid;
     }
 
-    public final Access getAccess() {
-        return access;
+    /**
+     * Gets the entry of the parent, or {@code null} for a root or a version.
+     */
+    public final CacheEntry getParent() {
+        return parent;
     }
 
-    @SuppressWarnings({"NonFinalFieldReferencedInHashCode"})
-    @Override
-    public int hashCode() {
-        // CachEntry is immutable, we can store the computed hash code value
-        int h = hash;
-        if (h == 0) {
-            h = 17;
-            h = 37 * h + docUid.hashCode();
-            h = 37 * h + username.hashCode();
-            hash = 37 * h + permission.hashCode();
-        }
-        return hash;
+    /**
+     * Gets the merged ACP, or {@code null} if there is none.
+     */
+    public final ACP getACP() {
+        return acp;
     }
 
-    @Override
-    public boolean equals(Object other) {
-        if (other == null) {
-            return false;
-        }
-        if (!(other instanceof CacheEntry)) {
-            return false;
-        }
-        CacheEntry entry = (CacheEntry) other;
-        return entry.docUid.equals(docUid)
-            && entry.username.equals(username)
-            && entry.permission.equals(permission);
+    /**
+     * Gets the ACL inherited by the children, or {@code null} if there is
+     * none.
+     */
+    public final ACL getInheritedACL() {
+        return inheritedACL;
     }
 
     @Override
     public String toString() {
-        return docUid + ':' + username + ':' + permission;
+        return docUid + ':' + acp;
     }
 
 }
@@ -1,5 +1,5 @@
 /*
- * (C) Copyright 2006-2007 Nuxeo SAS (http://nuxeo.com/) and contributors.
+ * (C) Copyright 2006-2009 Nuxeo SAS (http://nuxeo.com/) and contributors.
  *
  * All rights reserved. This program and the accompanying materials
  * are made available under the terms of the GNU Lesser General Public License
@@ -13,38 +13,87 @@
  *
  * Contributors:
  *     Nuxeo - initial API and implementation
+ *     Florent Guillaume
  *
  * $Id$
  */
 
 package org.nuxeo.ecm.core.security;
 
-//import java.util.Hashtable;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
 
-//import org.nuxeo.ecm.core.api.security.Access;
-import org.nuxeo.ecm.core.model.Document;
-
-// TODO: this class is not finished, and not used. (Same for CacheEntry).
 /**
- * Unfinished class. Don't use.
+ * Cache of the merged ACPs computed by a security manager for one session,
+ * keyed by document id.
+ * <p>
+ * The merged ACP of a document depends on the ACPs of all its ancestors, so
+ * the entry of a document is only added once the entries of its ancestors are
+ * present. When a document whose entry is present is invalidated, its
+ * descendants may be stale as well, so the whole cache is cleared. For the
+ * same reason when the cache is full it is cleared, keeping only the entry
+ * being added and the entries of its ancestors.
+ * <p>
+ * The cache is not thread-safe, like the session it belongs to.
  *
  * @author <a href="mailto:bs@nuxeo.com">Bogdan Stefanescu</a>
+ * @author Florent Guillaume
  */
 public class SecurityCache {
 
-    //private Hashtable<CacheEntry, Access> cache;
+    public static final int DEFAULT_SIZE = 1000;
+
+    private final int size;
+
+    private final Map<String, CacheEntry> entries;
 
-    // cacheEntry -> cacheEntry
-    // user -> List {cacheEntry}
-    // document -> List {cacheEntry}
+    public SecurityCache() {
+        this(DEFAULT_SIZE);
+    }
 
+    public SecurityCache(int size) {
+        this.size = size;
+        entries = new HashMap<String, CacheEntry>();
+    }
 
     public void put(CacheEntry entry) {
-        //cache.put(entry);
+        if (entries.size() >= size) {
+            entries.clear();
+            for (CacheEntry e = entry.getParent(); e != null; e = e.getParent()) {
+                entries.put(e.getDocUid(), e);
+            }
+        }
+        entries.put(entry.getDocUid(), entry);
+    }
+
+    public CacheEntry get(String docUid) {
+        return entries.get(docUid);
+    }
+
+    /**
+     * Invalidates the cache if one of the given documents has an entry.
+     *
+     * @param docUids the ids of the documents whose ACP or parent changed
+     */
+    public void invalidate(Collection<String> docUids) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        for (String docUid : docUids) {
+            if (entries.containsKey(docUid)) {
+                entries.clear();
+                return;
+            }
+        }
+    }
+
+    public void invalidateAll() {
+        entries.clear();
     }
 
-    public CacheEntry get(Document doc, String username, String permission) {
-        return null;
+    public int size() {
+        return entries.size();
     }
 
 }
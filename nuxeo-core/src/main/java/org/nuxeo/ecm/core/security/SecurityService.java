@@ -21,6 +21,7 @@ package org.nuxeo.ecm.core.security;
 
 import java.security.Principal;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
@@ -151,13 +152,48 @@ public class SecurityService extends DefaultComponent {
             return true;
         }
 
-        // get the security store
-        SecurityManager securityManager = doc.getSession().getRepository().getNuxeoSecurityManager();
-
         // fully check each ACE in turn
         String[] resolvedPermissions = getPermissionsToCheck(permission);
         String[] additionalPrincipals = getPrincipalsToCheck(principal);
 
+        return checkPermission(doc, principal, permission,
+                resolvedPermissions, additionalPrincipals);
+    }
+
+    /**
+     * Checks a permission on several documents at once.
+     * <p>
+     * The permissions and principals to check are resolved only once for all
+     * the documents.
+     *
+     * @param docs the documents
+     * @param principal the principal
+     * @param permission the permission
+     * @return the results of the checks, in the same order as the documents
+     */
+    public boolean[] checkPermission(List<Document> docs, Principal principal,
+            String permission) throws SecurityException {
+        boolean[] granted = new boolean[docs.size()];
+        if (principal.getName().equals("system")) {
+            Arrays.fill(granted, true);
+            return granted;
+        }
+        String[] resolvedPermissions = getPermissionsToCheck(permission);
+        String[] additionalPrincipals = getPrincipalsToCheck(principal);
+        int i = 0;
+        for (Document doc : docs) {
+            granted[i++] = checkPermission(doc, principal, permission,
+                    resolvedPermissions, additionalPrincipals);
+        }
+        return granted;
+    }
+
+    protected boolean checkPermission(Document doc, Principal principal,
+            String permission, String[] resolvedPermissions,
+            String[] additionalPrincipals) throws SecurityException {
+        // get the security store
+        SecurityManager securityManager = doc.getSession().getRepository().getNuxeoSecurityManager();
+
         // get the ordered list of ACE
         ACP acp = securityManager.getMergedACP(doc);
 